@@ -0,0 +1,174 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.LabTimeSeries;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test, which will execute on an Android device.
+ * Seeds an in-memory copy of the local database and checks that LabTrendService's two queries hand every point to the right series.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LabTrendServiceTest
+{
+    private static final String HCN = "1868176460";
+    private static final String OTHER_HCN = "6408383104";
+    private static final String GLUCOSE = "2345-7";
+    private static final String HEMOGLOBIN = "718-7";
+
+    private LocalSQLOpenHelper sqLiteOpenHelper;
+    private LabTrendService labTrendService;
+
+    @Before
+    public void setUp()
+    {
+        sqLiteOpenHelper = new LocalSQLOpenHelper(InstrumentationRegistry.getTargetContext(), null);
+        labTrendService = new LabTrendService(sqLiteOpenHelper);
+        SQLiteDatabase db = sqLiteOpenHelper.getWritableDatabase();
+
+        // r1 has both times, r2 was only released, r3 has neither
+        insertReport(db, HCN, "r1", 1000L, 2000L);
+        insertReport(db, HCN, "r2", null, 5000L);
+        insertReport(db, HCN, "r3", null, null);
+        insertReport(db, OTHER_HCN, "r1", 1000L, 2000L);
+
+        // out of time order on purpose, the query sorts them
+        insertObservation(db, HCN, "r1", GLUCOSE, "Glucose", 5.1, "mmol/L", 3000L);
+        insertObservation(db, HCN, "r1", GLUCOSE, "Glucose", 6.2, "mmol/L", 1000L);
+        insertObservation(db, HCN, "r1", HEMOGLOBIN, "Hemoglobin", 140.0, "g/L", 1500L);
+        insertObservation(db, HCN, "r1", GLUCOSE, "Glucose", 4.4, "mmol/L", 2000L);
+
+        // the same test in other units is its own series
+        insertObservation(db, HCN, "r2", GLUCOSE, "Glucose", 99.0, "mg/dL", 4000L);
+        insertObservation(db, HCN, "r1", GLUCOSE, "Glucose", 110.0, null, 1100L);
+
+        // no issued time: takes r2's release time, and r3 has nothing to fall back on so it's left out
+        insertObservation(db, HCN, "r2", GLUCOSE, "Glucose", 7.0, "mmol/L", null);
+        insertObservation(db, HCN, "r3", GLUCOSE, "Glucose", 8.8, "mmol/L", null);
+
+        // left out: a text result, a result without a code and another patient's result
+        insertObservation(db, HCN, "r1", GLUCOSE, "Glucose", null, "mmol/L", 2500L);
+        insertObservation(db, HCN, "r1", null, null, 1.0, "mmol/L", 2500L);
+        insertObservation(db, OTHER_HCN, "r1", GLUCOSE, "Glucose", 3.3, "mmol/L", 1200L);
+    }
+
+    @After
+    public void tearDown()
+    {
+        sqLiteOpenHelper.close();
+    }
+
+    @Test
+    public void loadTrends_oneSeriesPerTestAndUnit()
+    {
+        ArrayList<LabTimeSeries> trends = labTrendService.loadTrends(HCN);
+
+        // ordered by code, then unit with no unit first
+        assertEquals(4, trends.size());
+        assertSeries(trends.get(0), GLUCOSE, null, new long[]{1100}, new double[]{110.0});
+        assertSeries(trends.get(1), GLUCOSE, "mg/dL", new long[]{4000}, new double[]{99.0});
+        assertSeries(trends.get(2), GLUCOSE, "mmol/L", new long[]{1000, 2000, 3000, 5000}, new double[]{6.2, 4.4, 5.1, 7.0});
+        assertSeries(trends.get(3), HEMOGLOBIN, "g/L", new long[]{1500}, new double[]{140.0});
+
+        assertEquals("Glucose", trends.get(2).getTestName());
+        assertEquals("Hemoglobin", trends.get(3).getTestName());
+    }
+
+    @Test
+    public void loadTrends_aggregates()
+    {
+        LabTimeSeries mmol = labTrendService.loadTrends(HCN).get(2);
+
+        assertEquals(4.4, mmol.getMinValue(), 0);
+        assertEquals(7.0, mmol.getMaxValue(), 0);
+        assertEquals(7.0, mmol.getLastValue(), 0);
+        assertEquals(5000, mmol.getLastTime());
+    }
+
+    @Test
+    public void loadTrend_onlyThatTest()
+    {
+        ArrayList<LabTimeSeries> trends = labTrendService.loadTrend(HCN, GLUCOSE);
+
+        assertEquals(3, trends.size());
+        assertSeries(trends.get(2), GLUCOSE, "mmol/L", new long[]{1000, 2000, 3000, 5000}, new double[]{6.2, 4.4, 5.1, 7.0});
+
+        assertSeries(labTrendService.loadTrend(HCN, HEMOGLOBIN).get(0), HEMOGLOBIN, "g/L", new long[]{1500}, new double[]{140.0});
+        assertTrue(labTrendService.loadTrend(HCN, "14749-6").isEmpty());
+    }
+
+    @Test
+    public void loadTrends_onlyThatPatient()
+    {
+        ArrayList<LabTimeSeries> trends = labTrendService.loadTrends(OTHER_HCN);
+
+        assertEquals(1, trends.size());
+        assertSeries(trends.get(0), GLUCOSE, "mmol/L", new long[]{1200}, new double[]{3.3});
+        assertTrue(labTrendService.loadTrends("0000000000").isEmpty());
+    }
+
+    @Test
+    public void loadTrends_downsampled()
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getWritableDatabase();
+
+        for (int i = 0; i < 500; i++)
+        {
+            insertObservation(db, OTHER_HCN, "r1", HEMOGLOBIN, "Hemoglobin", i == 250 ? 60.0 : 140.0 + i % 5, "g/L", 10000L + i);
+        }
+
+        LabTimeSeries hemoglobin = labTrendService.loadTrend(OTHER_HCN, HEMOGLOBIN).get(0);
+        LabTimeSeries downsampled = hemoglobin.downsample(50);
+
+        assertEquals(500, hemoglobin.size());
+        assertTrue(downsampled.size() <= 50);
+        assertEquals(10000, downsampled.getTime(0));
+        assertEquals(10499, downsampled.getLastTime());
+        assertEquals(60.0, downsampled.getMinValue(), 0);
+        assertEquals(144.0, downsampled.getMaxValue(), 0);
+    }
+
+    private static void assertSeries(LabTimeSeries series, String testCode, String unit, long[] times, double[] values)
+    {
+        assertEquals(testCode, series.getTestCode());
+        assertEquals(unit, series.getUnit());
+        assertArrayEquals(times, series.copyTimes());
+        assertArrayEquals(values, series.copyValues(), 0);
+    }
+
+    private static void insertReport(SQLiteDatabase db, String hcn, String reportId, Long effective, Long issued)
+    {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("hcn", hcn);
+        contentValues.put("report_id", reportId);
+        contentValues.put("resource", "{}");
+        contentValues.put("effective", effective);
+        contentValues.put("issued", issued);
+        db.insertOrThrow("reports", null, contentValues);
+    }
+
+    private static void insertObservation(SQLiteDatabase db, String hcn, String reportId, String code, String codeDisplay, Double value, String unit, Long issued)
+    {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("hcn", hcn);
+        contentValues.put("report_id", reportId);
+        contentValues.put("code", code);
+        contentValues.put("code_display", codeDisplay);
+        contentValues.put("value", value);
+        contentValues.put("unit", unit);
+        contentValues.put("issued", issued);
+        db.insertOrThrow("observations", null, contentValues);
+    }
+}
@@ -0,0 +1,41 @@
+package ca.ehealth.ontario.olis_fhir_prototype;
+
+import android.app.Application;
+
+import ca.ehealth.ontario.olis_fhir_prototype.services.MainThreadWatchdog;
+import ca.ehealth.ontario.olis_fhir_prototype.services.OLISService;
+import ca.ehealth.ontario.olis_fhir_prototype.services.PCRService;
+
+/**
+ * This class runs before any activity, including when Android restores one after killing the app.
+ * It points OLISService and PCRService at the servers the app was built for (see olisEndpoint and pcrEndpoint in app/build.gradle).
+ * Normally those are the Innovation Lab servers, but a build can use e.g. the local stand-in server instead.
+ */
+public class PrototypeApplication extends Application
+{
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+
+        // empty means the default Innovation Lab server
+        if (!BuildConfig.OLIS_ENDPOINT.isEmpty())
+        {
+            OLISService.setEndPointBase(BuildConfig.OLIS_ENDPOINT);
+        }
+
+        if (!BuildConfig.PCR_ENDPOINT.isEmpty())
+        {
+            PCRService.setEndPoint(BuildConfig.PCR_ENDPOINT);
+        }
+
+        // one slow OLIS search shouldn't hold up the patient summary, its budget keeps the extra requests to about 1 in 10
+        OLISService.getHedgingPolicy().setEnabled(true);
+
+        // debug builds log and count FHIR work that runs on the UI thread, see MainThreadWatchdog
+        if (BuildConfig.DEBUG)
+        {
+            MainThreadWatchdog.install(16);
+        }
+    }
+}
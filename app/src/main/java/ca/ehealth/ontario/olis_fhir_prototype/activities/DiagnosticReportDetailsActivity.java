@@ -6,10 +6,13 @@ import android.widget.TextView;
 
 import ca.ehealth.ontario.olis_fhir_prototype.R;
 import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.FHIRBackgroundExecutor;
+import ca.ehealth.ontario.olis_fhir_prototype.services.ReportDetailsAsyncTask;
 
 /**
  * A simple class that takes in a OLISDiagnosticReportModel object and inserts the containing data into the
  * Lab Report Details view.
+ * The report list only has the summary of each report, so the details are decoded in the background and filled in when ready.
  */
 public class DiagnosticReportDetailsActivity extends AppCompatActivity
 {
@@ -23,21 +26,39 @@ public class DiagnosticReportDetailsActivity extends AppCompatActivity
         // get diagnostic report object that was sent from PatientSummaryActivity
         OLISDiagnosticReportModel labReport = getIntent().getParcelableExtra("olisReport");
 
-        //get the text views for medication dispense details
+        //get the text views for the report summary
         TextView practitionerTextView = findViewById(R.id.practitionerItem);
         TextView organizationTextView = findViewById(R.id.organizationItem);
         TextView testTextView = findViewById(R.id.testItem);
-        TextView acceptableRangeTextView = findViewById(R.id.acceptableRangeItem);
         TextView dateTextView = findViewById(R.id.dateItem);
-        TextView resultTextView = findViewById(R.id.resultItem);
 
         // set data to text views
         practitionerTextView.setText(labReport.getPractitionerName());
         organizationTextView.setText(labReport.getOrganizationName());
         testTextView.setText(labReport.getTestPerformed());
-        acceptableRangeTextView.setText(labReport.getAcceptableRange());
         dateTextView.setText(labReport.getTestReleaseDate());
-        resultTextView.setText(labReport.getTestResult());
 
+        if (labReport.isDetailLoaded())
+        {
+            showDetails(labReport);
+        }
+        else
+        {
+            ReportDetailsAsyncTask reportDetailsAsyncTask = new ReportDetailsAsyncTask(this);
+            reportDetailsAsyncTask.executeOnExecutor(FHIRBackgroundExecutor.getExecutor(), labReport);
+        }
+    }
+
+    /**
+     * Fills in the detail fields, called by ReportDetailsAsyncTask once they've been decoded.
+     * @param labReport the report with its details loaded
+     */
+    public void showDetails(OLISDiagnosticReportModel labReport)
+    {
+        TextView acceptableRangeTextView = findViewById(R.id.acceptableRangeItem);
+        TextView resultTextView = findViewById(R.id.resultItem);
+
+        acceptableRangeTextView.setText(labReport.getAcceptableRange());
+        resultTextView.setText(labReport.getTestResult());
     }
 }
@@ -0,0 +1,116 @@
+package ca.ehealth.ontario.olis_fhir_prototype.activities;
+
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.RecyclerView;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import ca.ehealth.ontario.olis_fhir_prototype.R;
+import ca.ehealth.ontario.olis_fhir_prototype.adapters.AlternatingRowDecoration;
+import ca.ehealth.ontario.olis_fhir_prototype.adapters.LabQueryResultAdapter;
+import ca.ehealth.ontario.olis_fhir_prototype.models.LabQueryResultModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.LabQueryAsyncTask;
+
+/**
+ * This view asks lab questions across every patient in the roster, using the reports that have already been synced.
+ * e.g. test code 4548-4, above 7, in the last 90 days lists the patients with a recent HbA1c above 7.
+ * Nothing is sent to OLIS.
+ */
+public class LabQueryActivity extends AppCompatActivity
+{
+    private static final int DEFAULT_DAY_COUNT = 90;
+
+    private EditText testCodeInput;
+    private EditText thresholdInput;
+    private EditText dayCountInput;
+    private TextView resultSummary;
+    private LabQueryResultAdapter labQueryResultAdapter;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_lab_query);
+
+        testCodeInput = findViewById(R.id.test_code_input);
+        thresholdInput = findViewById(R.id.threshold_input);
+        dayCountInput = findViewById(R.id.day_count_input);
+        resultSummary = findViewById(R.id.lab_query_summary);
+
+        RecyclerView resultList = findViewById(R.id.lab_query_result_list);
+        labQueryResultAdapter = new LabQueryResultAdapter(this);
+        resultList.addItemDecoration(new AlternatingRowDecoration(this));
+        resultList.setAdapter(labQueryResultAdapter);
+    }
+
+    /**
+     * onClick for the "Above" button
+     */
+    public void findResultsAbove(View view)
+    {
+        String testCode = getTestCode();
+        Double threshold = parseNumber(thresholdInput);
+
+        if (testCode == null || threshold == null)
+        {
+            resultSummary.setText("Enter a test code and a value");
+            return;
+        }
+
+        Double dayCount = parseNumber(dayCountInput);
+        LabQueryAsyncTask.resultsAbove(this, testCode, threshold, dayCount != null ? dayCount.intValue() : DEFAULT_DAY_COUNT).execute();
+    }
+
+    /**
+     * onClick for the "Pending" button
+     */
+    public void findPendingResults(View view)
+    {
+        String testCode = getTestCode();
+
+        if (testCode == null)
+        {
+            resultSummary.setText("Enter a test code");
+            return;
+        }
+
+        LabQueryAsyncTask.pendingResults(this, testCode).execute();
+    }
+
+    /**
+     * Called by LabQueryAsyncTask once the query has finished.
+     * @param results       the matching patients
+     * @param elapsedMillis how long the query took
+     */
+    public void showResults(ArrayList<LabQueryResultModel> results, long elapsedMillis)
+    {
+        resultSummary.setText(String.format(Locale.CANADA, "%d patients (%d ms)", results.size(), elapsedMillis));
+        labQueryResultAdapter.setResults(results);
+    }
+
+    private String getTestCode()
+    {
+        String testCode = testCodeInput.getText().toString().trim();
+        return testCode.isEmpty() ? null : testCode;
+    }
+
+    /**
+     * @return the number in the input, or null if it's empty or not a number
+     */
+    private Double parseNumber(EditText input)
+    {
+        try
+        {
+            return Double.valueOf(input.getText().toString().trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+}
@@ -1,26 +1,42 @@
 package ca.ehealth.ontario.olis_fhir_prototype.activities;
 
+import android.content.Intent;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.View;
 
 import ca.ehealth.ontario.olis_fhir_prototype.R;
 import ca.ehealth.ontario.olis_fhir_prototype.services.PCRAsyncTask;
+import ca.ehealth.ontario.olis_fhir_prototype.services.RosterImportAsyncTask;
 
 /**
  * This Activity is for the landing screen of this prototype.
  * Its only purpose is to display buttons and define the onClick logic of those buttons.
- * Currently there is only one button: Clinician View.
+ * Currently there are three buttons: Clinician View, Import Roster to load a CSV or NDJSON patient roster,
+ * and Lab Query to search the synced results of every patient.
  * Each button should lead to a prompt or a list from which a patient can be selected.
+ * A long press on the footer opens the metrics screen.
  */
 public class MainActivity extends AppCompatActivity
 {
+    private static final int IMPORT_ROSTER_REQUEST = 1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+
+        // hidden on purpose, the metrics screen is only for checking performance
+        findViewById(R.id.footer_image).setOnLongClickListener(new View.OnLongClickListener()
+        {
+            @Override
+            public boolean onLongClick(View view)
+            {
+                startActivity(new Intent(MainActivity.this, MetricsActivity.class));
+                return true;
+            }
+        });
     }
 
 
@@ -29,4 +45,35 @@ public class MainActivity extends AppCompatActivity
         PCRAsyncTask pcrAsyncTask = new PCRAsyncTask(this);
         pcrAsyncTask.execute();
     }
+
+    /**
+     * Opens the lab query screen, which searches the results we've already synced for every patient in the roster.
+     */
+    public void showLabQuery(View view)
+    {
+        startActivity(new Intent(this, LabQueryActivity.class));
+    }
+
+    /**
+     * Lets the user pick a roster file, which is imported in onActivityResult.
+     */
+    public void importRoster(View view)
+    {
+        Intent pickRosterIntent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        pickRosterIntent.addCategory(Intent.CATEGORY_OPENABLE);
+        pickRosterIntent.setType("*/*"); // CSV and NDJSON files don't have reliable MIME types
+        startActivityForResult(pickRosterIntent, IMPORT_ROSTER_REQUEST);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data)
+    {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode == IMPORT_ROSTER_REQUEST && resultCode == RESULT_OK && data != null && data.getData() != null)
+        {
+            RosterImportAsyncTask rosterImportAsyncTask = new RosterImportAsyncTask(this);
+            rosterImportAsyncTask.execute(data.getData());
+        }
+    }
 }
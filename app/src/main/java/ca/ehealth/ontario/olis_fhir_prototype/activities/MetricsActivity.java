@@ -0,0 +1,55 @@
+package ca.ehealth.ontario.olis_fhir_prototype.activities;
+
+import android.support.v7.app.AppCompatActivity;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.TextView;
+
+import ca.ehealth.ontario.olis_fhir_prototype.R;
+import ca.ehealth.ontario.olis_fhir_prototype.services.MainThreadWatchdog;
+import ca.ehealth.ontario.olis_fhir_prototype.services.Metrics;
+
+/**
+ * This view shows the counters and latencies kept by Metrics (p50, p95, p99 and max, in milliseconds).
+ * It's meant for checking performance on a real device, so it's opened with a long press on the footer of MainActivity.
+ * In debug builds it also lists the FHIR work MainThreadWatchdog caught on the main thread, or taking longer than a frame in the background.
+ */
+public class MetricsActivity extends AppCompatActivity
+{
+    private TextView metricsText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+
+        metricsText = findViewById(R.id.metrics_text);
+    }
+
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+
+        refreshMetrics(null);
+    }
+
+    /**
+     * onClick for the "Refresh" button
+     */
+    public void refreshMetrics(View view)
+    {
+        metricsText.setText(Metrics.dump() + MainThreadWatchdog.dump());
+    }
+
+    /**
+     * onClick for the "Reset" button
+     */
+    public void resetMetrics(View view)
+    {
+        Metrics.reset();
+        MainThreadWatchdog.reset();
+        refreshMetrics(view);
+    }
+}
@@ -1,37 +1,186 @@
 package ca.ehealth.ontario.olis_fhir_prototype.activities;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
-import android.widget.ListView;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.widget.EditText;
 
 import java.util.ArrayList;
 
 import ca.ehealth.ontario.olis_fhir_prototype.R;
+import ca.ehealth.ontario.olis_fhir_prototype.adapters.AlternatingRowDecoration;
 import ca.ehealth.ontario.olis_fhir_prototype.adapters.PCRListAdapter;
 import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.PCRAsyncTask;
 
 /**
  * This activity will display a list of patients that are meant to be in an ER admissions list.
  *
  * An ArrayList of PCR patients will be fed into a custom adapter which handles how the
- * ListView will display the data.
+ * RecyclerView will display the data.
+ * Only the first page of the roster comes from the intent. The next page is loaded when the user scrolls near the end,
+ * and the search box reloads the list from the first page of matching patients as the user types.
+ * Searching and paging only read the local roster, the rows are looked up in PCR and OLIS as they're shown (see PCRListAdapter).
  */
-public class PCRListActivity extends AppCompatActivity
+public class PCRListActivity extends AppCompatActivity implements TextWatcher
 {
+    private static final int SEARCH_DELAY_MILLIS = 150; // wait for a short pause in typing before searching
+    private static final int PREFETCH_DISTANCE = 5; // start loading the next page when this many rows are left below the screen
+
+    private PCRListAdapter adapter;
+    private PCRAsyncTask pcrAsyncTask;
+    private Handler searchHandler = new Handler();
+    private String searchText = "";
+    private long lastRosterId; // the key to continue from for the next page
+    private boolean isLastPage;
+
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_pcr_list);
 
-        // get the patients sent from the async task
+        // get the first page of patients sent from the async task
         ArrayList<PCRPatientModel> patients = getIntent().getExtras().getParcelableArrayList("patients");
+        lastRosterId = getIntent().getLongExtra("lastRosterId", 0);
+        isLastPage = getIntent().getBooleanExtra("isLastPage", true);
 
-        // initialise listview and data array
-        ListView patientListView = findViewById(R.id.patients_list);
+        // initialise the list
+        RecyclerView patientListView = findViewById(R.id.patients_list);
 
-        // attach data to a the new adapter and then attach adapter to the ListView
-        PCRListAdapter adapter = new PCRListAdapter(PCRListActivity.this, patients, patientListView);
+        // attach data to a the new adapter and then attach adapter to the RecyclerView
+        adapter = new PCRListAdapter(PCRListActivity.this, patients);
+        patientListView.addItemDecoration(new AlternatingRowDecoration(this));
         patientListView.setAdapter(adapter);
+        patientListView.addOnScrollListener(loadMoreOnScroll);
+
+        EditText patientSearch = findViewById(R.id.patient_search);
+        patientSearch.addTextChangedListener(this);
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        searchHandler.removeCallbacks(runSearch);
+        adapter.shutdown();
+
+        if (pcrAsyncTask != null)
+        {
+            pcrAsyncTask.cancel(true);
+        }
+
+        super.onDestroy();
+    }
+
+    @Override
+    public void afterTextChanged(Editable editable)
+    {
+        searchText = editable.toString();
+
+        // the page being loaded and the key to continue from belong to the old text. Nothing is paged until the new search's first page is in,
+        // so a scroll in the meantime can't send the new text with the old key.
+        if (pcrAsyncTask != null)
+        {
+            pcrAsyncTask.cancel(true);
+            pcrAsyncTask = null;
+        }
+
+        lastRosterId = 0;
+        isLastPage = true;
+
+        // restart the delay on every keystroke
+        searchHandler.removeCallbacks(runSearch);
+        searchHandler.postDelayed(runSearch, SEARCH_DELAY_MILLIS);
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence charSequence, int start, int count, int after)
+    {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence charSequence, int start, int before, int count)
+    {
+    }
+
+    /**
+     * Loads the next page once the user gets close to the bottom of what's loaded.
+     */
+    private final RecyclerView.OnScrollListener loadMoreOnScroll = new RecyclerView.OnScrollListener()
+    {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy)
+        {
+            LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+
+            if (pcrAsyncTask == null && !isLastPage && layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - 1 - PREFETCH_DISTANCE)
+            {
+                loadPage(lastRosterId);
+            }
+        }
+    };
+
+    /**
+     * Starts the first page of a search for the current text.
+     */
+    private final Runnable runSearch = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            loadPage(0);
+        }
+    };
+
+    /**
+     * Starts loading a page for the current search text. Only the latest request matters, so one that's still running is cancelled.
+     * @param afterRosterId the roster id to continue after, 0 for the first page
+     */
+    private void loadPage(long afterRosterId)
+    {
+        if (pcrAsyncTask != null)
+        {
+            pcrAsyncTask.cancel(true);
+        }
+
+        pcrAsyncTask = new PCRAsyncTask(this);
+        pcrAsyncTask.execute(searchText, String.valueOf(afterRosterId));
+    }
+
+    /**
+     * Called by PCRAsyncTask when a page has been loaded.
+     * @param patients the patients on the page
+     * @param isFirstPage true if the page replaces the list (a new search) instead of adding to it
+     * @param lastRosterId the key to continue from for the next page
+     * @param isLastPage true if there's nothing left to load
+     */
+    public void showPatientPage(ArrayList<PCRPatientModel> patients, boolean isFirstPage, long lastRosterId, boolean isLastPage)
+    {
+        pcrAsyncTask = null;
+        this.lastRosterId = lastRosterId;
+        this.isLastPage = isLastPage;
+
+        adapter.addPatients(patients, isFirstPage);
+    }
+
+    /**
+     * Called by PCRAsyncTask when a page couldn't be loaded. Scrolling tries the same page again, and a failed search
+     * clears the list rather than leaving the results of the previous search under the new text.
+     * @param isFirstPage true if the page was the first page of a new search
+     */
+    public void onPageFailed(boolean isFirstPage)
+    {
+        pcrAsyncTask = null;
+        isLastPage = false;
+
+        if (isFirstPage)
+        {
+            lastRosterId = 0;
+            adapter.addPatients(new ArrayList<PCRPatientModel>(), true);
+        }
     }
 }
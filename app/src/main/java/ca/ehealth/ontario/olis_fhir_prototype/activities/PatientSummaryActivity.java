@@ -4,39 +4,42 @@ import android.app.Activity;
 import android.app.DatePickerDialog;
 import android.content.Intent;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.DatePicker;
+import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.TextView;
 
-import org.hl7.fhir.dstu3.model.Bundle;
-import org.hl7.fhir.dstu3.model.DiagnosticReport;
 import org.joda.time.DateTime;
 import org.joda.time.Days;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
-import java.text.DateFormatSymbols;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.List;
 import java.util.Locale;
 
 import ca.ehealth.ontario.olis_fhir_prototype.R;
+import ca.ehealth.ontario.olis_fhir_prototype.adapters.AlternatingRowDecoration;
 import ca.ehealth.ontario.olis_fhir_prototype.adapters.DiagnosticReportListAdapter;
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
 import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
 import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.DiagnosticReportListIndex;
+import ca.ehealth.ontario.olis_fhir_prototype.services.FHIRBackgroundExecutor;
 import ca.ehealth.ontario.olis_fhir_prototype.services.OLISAsyncTask;
-import ca.ehealth.ontario.olis_fhir_prototype.services.OLISService;
+import ca.ehealth.ontario.olis_fhir_prototype.services.ReportListAsyncTask;
 
 /**
  * This view is responsible for listing a summary for a specific patient and also showing a list of OLIS Diagnostic Reports.
+ * The loaded reports can be sorted and filtered without a new OLIS query, only changing the dates queries OLIS again.
  */
 public class PatientSummaryActivity extends AppCompatActivity implements DatePickerDialog.OnDateSetListener
 {
@@ -45,6 +48,16 @@ public class PatientSummaryActivity extends AppCompatActivity implements DatePic
     private ImageView lastDatePickerClicked; // will save the last date picker that was clicked on
     private DatePickerHolder datePickerHolder = new DatePickerHolder();
     private PCRPatientModel patientQueried;
+    private DiagnosticReportListAdapter diagnosticReportListAdapter; // created once, each refresh only hands it a new list
+    private DiagnosticReportListIndex reportListIndex = new DiagnosticReportListIndex(new ArrayList<OLISDiagnosticReportModel>()); // the loaded reports, ready to sort and filter
+    private ReportListAsyncTask reportListAsyncTask;
+
+    // sort and filter controls above the report list
+    private Spinner sortSpinner;
+    private Spinner organizationSpinner;
+    private ArrayAdapter<String> organizationAdapter;
+    private EditText testFilter;
+    private CheckBox abnormalOnlyCheckBox;
 
     /**
      * This onCreate is a little big, but here is the breakdown:
@@ -65,52 +78,27 @@ public class PatientSummaryActivity extends AppCompatActivity implements DatePic
          * ************************************************************************************************************************/
         Intent intent = getIntent();
         patientQueried = intent.getExtras().getParcelable("patient");
-        String olisResultBundleString = intent.getStringExtra("olisReport");
 
-        // use OLIS service to convert bundle string to a Bundle
-        setListViewData(OLISService.StringToBundle(olisResultBundleString));
+        // the adapter is attached once, refreshes are diffed against what's already showing
+        RecyclerView diagnosticReportList = findViewById(R.id.diagnostic_report_list);
+        diagnosticReportListAdapter = new DiagnosticReportListAdapter(this);
+        diagnosticReportList.addItemDecoration(new AlternatingRowDecoration(this));
+        diagnosticReportList.setAdapter(diagnosticReportListAdapter);
+        setUpReportFilters();
+
+        // OLISAsyncTask synced the reports, they're loaded from the local store in the background (a big list can't go through the Intent)
+        reportListAsyncTask = new ReportListAsyncTask(this);
+        reportListAsyncTask.executeOnExecutor(FHIRBackgroundExecutor.getExecutor(), patientQueried.getHealthCardNumber());
 
         /* *********************************************************************************************************************************************
          * 2) Set the start and end query dates. For the start date, get the current date minus 120 days. The end date will be set to today's date.
          * ********************************************************************************************************************************************/
-        // get today's date as a calendar object
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(new Date());
-
-        // get the date formats for year, month, month to display, and day
-        SimpleDateFormat sdfYear = new SimpleDateFormat("yyyy", Locale.CANADA);
-        SimpleDateFormat sdfMonth = new SimpleDateFormat("MM",  Locale.CANADA);
-        SimpleDateFormat sdfMonthDisplay = new SimpleDateFormat("MMM",  Locale.CANADA); //for display purposes
-        SimpleDateFormat sdfDay = new SimpleDateFormat("dd",  Locale.CANADA);
-
-        // apply date formats and then turn them into int values
-        // then set them as the end query dates
-        datePickerHolder.queryEndYear = Integer.parseInt(sdfYear.format(calendar.getTime()));
-        datePickerHolder.queryEndMonth = Integer.parseInt(sdfMonth.format(calendar.getTime())) - 1; // .getTime gets us a 1 indexed month, but datePickerDialog wants a 0 index month
-        datePickerHolder.queryEndMonthDisplay = sdfMonthDisplay.format(calendar.getTime());
-        datePickerHolder.queryEndDay = Integer.parseInt(sdfDay.format(calendar.getTime()));
-
-        // get patient's birthdate Date Object using format for patient's birthdate
-        SimpleDateFormat sdfBirthDate = new SimpleDateFormat("yyyy-MM-dd", Locale.CANADA);
-        Date birthDate = new Date();
-
-        try
-        {
-            birthDate = sdfBirthDate.parse(patientQueried.getDateOfBirthForQuery());
-        }
-        catch (ParseException e)
-        {
-            e.printStackTrace();
-        }
+        // the end query date is today
+        setEndDate(EpochDateFormat.today());
 
-        calendar.setTime(birthDate);
-
-        // reapply date formats with new calendar and get int values
-        // then set them as the start query dates
-        datePickerHolder.queryStartYear = Integer.parseInt(sdfYear.format(calendar.getTime()));
-        datePickerHolder.queryStartMonth = Integer.parseInt(sdfMonth.format(calendar.getTime())) - 1; // .getTime gets us a 1 indexed month, but datePickerDialog wants a 0 index month
-        datePickerHolder.queryStartMonthDisplay = sdfMonthDisplay.format(calendar.getTime());
-        datePickerHolder.queryStartDay = Integer.parseInt(sdfDay.format(calendar.getTime()));
+        // the start query date is the patient's birth date, or today if PCR didn't send one
+        int birthDate = patientQueried.getDateOfBirthEpochDay();
+        setStartDate(birthDate != EpochDateFormat.NO_DATE ? birthDate : EpochDateFormat.today());
 
         // now lets set the textViews to reflect the dates
         setNewDates();
@@ -136,6 +124,13 @@ public class PatientSummaryActivity extends AppCompatActivity implements DatePic
         }
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        reportListAsyncTask.cancel(true);
+        super.onDestroy();
+    }
+
     /**
      * This method executes when a new date is selected from the dateDialogPicker.
      * Here is where we want to set the new date and execute a new query to the OLIS repository.
@@ -147,9 +142,8 @@ public class PatientSummaryActivity extends AppCompatActivity implements DatePic
     @Override
     public void onDateSet(DatePicker view, int year, int month, int dayOfMonth)
     {
-        // convert new month into a 3 letter string
-        String monthLong = new DateFormatSymbols(Locale.CANADA).getMonths()[month];
-        String monthShort = monthLong.substring(0, 3);
+        // convert new month into a 3 letter string, the picker's months are 0 indexed
+        String monthShort = EpochDateFormat.getMonthName(month + 1);
 
         // set new the date vars
         if (lastDatePickerClicked.getId() == R.id.startCalendarIcon)
@@ -171,13 +165,35 @@ public class PatientSummaryActivity extends AppCompatActivity implements DatePic
         setNewDates();
 
         // initialize the whenHandedOver dates for  new OLIS query
-        // make sure to use %02d for month and day so that it is formatted properly for the query (incldues leading zeroes)
-        String startDate = String.format(Locale.CANADA, "%d-%02d-%02d", datePickerHolder.queryStartYear, datePickerHolder.queryStartMonth + 1, datePickerHolder.queryStartDay);
-        String endDate = String.format(Locale.CANADA, "%d-%02d-%02d", datePickerHolder.queryEndYear, datePickerHolder.queryEndMonth + 1, datePickerHolder.queryEndDay);
+        // formatQuery pads the month and day so that it is formatted properly for the query (includes leading zeroes)
+        String startDate = EpochDateFormat.formatQuery(EpochDateFormat.toEpochDay(datePickerHolder.queryStartYear, datePickerHolder.queryStartMonth + 1, datePickerHolder.queryStartDay));
+        String endDate = EpochDateFormat.formatQuery(EpochDateFormat.toEpochDay(datePickerHolder.queryEndYear, datePickerHolder.queryEndMonth + 1, datePickerHolder.queryEndDay));
 
         // start the new OLIS query
         OLISAsyncTask OLISAsyncTask = new OLISAsyncTask(this, patientQueried);
-        OLISAsyncTask.execute(startDate, endDate);
+        OLISAsyncTask.executeOnExecutor(FHIRBackgroundExecutor.getExecutor(), startDate, endDate);
+    }
+
+    /**
+     * Splits an epoch day into the start query date fields. The date picker wants a 0 indexed month.
+     */
+    private void setStartDate(int epochDay)
+    {
+        datePickerHolder.queryStartYear = EpochDateFormat.getYear(epochDay);
+        datePickerHolder.queryStartMonth = EpochDateFormat.getMonth(epochDay) - 1;
+        datePickerHolder.queryStartMonthDisplay = EpochDateFormat.getMonthName(EpochDateFormat.getMonth(epochDay));
+        datePickerHolder.queryStartDay = EpochDateFormat.getDayOfMonth(epochDay);
+    }
+
+    /**
+     * Splits an epoch day into the end query date fields. The date picker wants a 0 indexed month.
+     */
+    private void setEndDate(int epochDay)
+    {
+        datePickerHolder.queryEndYear = EpochDateFormat.getYear(epochDay);
+        datePickerHolder.queryEndMonth = EpochDateFormat.getMonth(epochDay) - 1;
+        datePickerHolder.queryEndMonthDisplay = EpochDateFormat.getMonthName(EpochDateFormat.getMonth(epochDay));
+        datePickerHolder.queryEndDay = EpochDateFormat.getDayOfMonth(epochDay);
     }
 
     /**
@@ -227,45 +243,130 @@ public class PatientSummaryActivity extends AppCompatActivity implements DatePic
     }
 
     /**
-     * This method takes in a OLIS Bundle object and populates the Reports list view with its data
+     * This method takes in the mapped OLIS reports and populates the Reports list with them
      * Mainly used to update old data with new data when a new date range is provided by the user
-     * @param resultBundle the new data to fill the list view
+     * @param diagnosticReports the new data to fill the list, mapped off the UI thread by ReportListAsyncTask or OLISAsyncTask
      */
-    public void setListViewData(Bundle resultBundle)
+    public void setListViewData(ArrayList<OLISDiagnosticReportModel> diagnosticReports)
     {
-        // initialise listview and data array
-        ListView diagnosticReportList = findViewById(R.id.diagnostic_report_list);
-        ArrayList<OLISDiagnosticReportModel> diagnosticReports = new ArrayList<>();
+        // the sort and filter keys are pulled out once here, so changing the filters afterwards doesn't touch the models
+        reportListIndex = new DiagnosticReportListIndex(diagnosticReports);
+        setOrganizationChoices(reportListIndex.getOrganizationNames());
+        applyReportFilters();
+    }
+
+    /**
+     * Clear the OLIS Diagnostic Reports list
+     */
+    public void setListViewNoResults()
+    {
+        setListViewData(new ArrayList<OLISDiagnosticReportModel>());
+    }
+
+    /**
+     * Finds the sort and filter controls and refreshes the list whenever one of them changes.
+     */
+    private void setUpReportFilters()
+    {
+        sortSpinner = findViewById(R.id.report_sort_spinner);
+        organizationSpinner = findViewById(R.id.report_organization_spinner);
+        testFilter = findViewById(R.id.report_test_filter);
+        abnormalOnlyCheckBox = findViewById(R.id.report_abnormal_checkbox);
+
+        organizationAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, new ArrayList<String>());
+        organizationAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        organizationSpinner.setAdapter(organizationAdapter);
 
-        if (resultBundle.getTotal() > 0)
+        // both spinners do the same thing when a new item is picked
+        AdapterView.OnItemSelectedListener spinnerListener = new AdapterView.OnItemSelectedListener()
         {
-            //populate array list with OLIS Diagnostic Reports
-            for (Bundle.BundleEntryComponent entry : resultBundle.getEntry())
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id)
             {
-                DiagnosticReport diagnosticReportResource = null;
+                applyReportFilters();
+            }
 
-                // get OLIS Diagnostic Reports resource from our result bundle
-                if (entry.getResource() instanceof DiagnosticReport)
-                {
-                    diagnosticReports.add(new OLISDiagnosticReportModel((DiagnosticReport) entry.getResource()));
-                }
+            @Override
+            public void onNothingSelected(AdapterView<?> parent)
+            {
+                applyReportFilters();
             }
-        }
+        };
 
-        // attach data to a the new adapter and then attach adapter to the ListView
-        DiagnosticReportListAdapter diagnosticReportListAdapter = new DiagnosticReportListAdapter(this, diagnosticReports, diagnosticReportList);
-        diagnosticReportList.setAdapter(diagnosticReportListAdapter);
+        sortSpinner.setOnItemSelectedListener(spinnerListener);
+        organizationSpinner.setOnItemSelectedListener(spinnerListener);
+
+        testFilter.addTextChangedListener(new TextWatcher()
+        {
+            @Override
+            public void beforeTextChanged(CharSequence charSequence, int start, int count, int after)
+            {
+                // Not needed
+            }
+
+            @Override
+            public void onTextChanged(CharSequence charSequence, int start, int before, int count)
+            {
+                // Not needed
+            }
+
+            @Override
+            public void afterTextChanged(Editable editable)
+            {
+                applyReportFilters();
+            }
+        });
+
+        abnormalOnlyCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener()
+        {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked)
+            {
+                applyReportFilters();
+            }
+        });
     }
 
     /**
-     * Clear the OLIS Diagnostic Reports listView
+     * Fills the organization spinner with the organizations of the loaded reports, keeping the current choice if it's still there.
+     * The first item shows every organization.
      */
-    public void setListViewNoResults()
+    private void setOrganizationChoices(ArrayList<String> organizationNames)
+    {
+        String selectedOrganization = getSelectedOrganization();
+
+        organizationAdapter.clear();
+        organizationAdapter.add("All organizations");
+        organizationAdapter.addAll(organizationNames);
+
+        int selectedPosition = selectedOrganization != null ? organizationNames.indexOf(selectedOrganization) + 1 : 0;
+        organizationSpinner.setSelection(selectedPosition);
+    }
+
+    /**
+     * @return the organization picked in the spinner, or null if every organization should be shown
+     */
+    private String getSelectedOrganization()
     {
-        ListView diagnosticReportList = findViewById(R.id.diagnostic_report_list);
-        List<String> noDispensesList = new ArrayList<>();
-        ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, noDispensesList);
-        diagnosticReportList.setAdapter(adapter);
+        int position = organizationSpinner.getSelectedItemPosition();
+
+        return position > 0 && position < organizationAdapter.getCount() ? organizationAdapter.getItem(position) : null;
+    }
+
+    /**
+     * Shows the loaded reports that pass the filters, in the chosen order. This never queries OLIS, so it's quick enough to run on every key press.
+     */
+    private void applyReportFilters()
+    {
+        int sortOrder = Math.max(sortSpinner.getSelectedItemPosition(), DiagnosticReportListIndex.SORT_BY_DATE);
+
+        ArrayList<OLISDiagnosticReportModel> filteredReports = reportListIndex.query(sortOrder,
+                testFilter.getText().toString(),
+                abnormalOnlyCheckBox.isChecked(),
+                getSelectedOrganization());
+
+        // only the reports that changed since the last list are rebound
+        diagnosticReportListAdapter.setDiagnosticReports(filteredReports);
     }
 
     /**
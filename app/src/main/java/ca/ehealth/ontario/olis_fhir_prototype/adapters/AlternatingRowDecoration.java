@@ -0,0 +1,41 @@
+package ca.ehealth.ontario.olis_fhir_prototype.adapters;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import ca.ehealth.ontario.olis_fhir_prototype.R;
+
+/**
+ * Draws the alternating row background behind every odd row of a RecyclerView.
+ *
+ * This used to be done while binding a row, but DiffUtil doesn't rebind rows that only moved,
+ * so a report added near the top would leave every row under it with the wrong color.
+ * Drawing it here uses each row's current position instead.
+ */
+public class AlternatingRowDecoration extends RecyclerView.ItemDecoration
+{
+    private final Paint rowBackgroundPaint = new Paint();
+
+    public AlternatingRowDecoration(Context context)
+    {
+        rowBackgroundPaint.setColor(context.getResources().getColor(R.color.colorRowBackground));
+    }
+
+    @Override
+    public void onDraw(Canvas canvas, RecyclerView parent, RecyclerView.State state)
+    {
+        for (int i = 0; i < parent.getChildCount(); i++)
+        {
+            View row = parent.getChildAt(i);
+            int position = parent.getChildAdapterPosition(row);
+
+            if (position != RecyclerView.NO_POSITION && position % 2 == 1)
+            {
+                canvas.drawRect(row.getLeft(), row.getTop() + row.getTranslationY(), row.getRight(), row.getBottom() + row.getTranslationY(), rowBackgroundPaint);
+            }
+        }
+    }
+}
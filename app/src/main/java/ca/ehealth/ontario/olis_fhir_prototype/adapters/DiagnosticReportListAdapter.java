@@ -2,12 +2,12 @@ package ca.ehealth.ontario.olis_fhir_prototype.adapters;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.support.v7.recyclerview.extensions.ListAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.BaseAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
@@ -15,137 +15,187 @@ import java.util.ArrayList;
 import ca.ehealth.ontario.olis_fhir_prototype.R;
 import ca.ehealth.ontario.olis_fhir_prototype.activities.DiagnosticReportDetailsActivity;
 import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.Metrics;
 
 /**
- * This adapter was meant for the listview responsible for displaying a list of reports from OLIS
+ * This adapter was meant for the RecyclerView responsible for displaying a list of reports from OLIS
  * for a given patient. Displayed in PatientSummaryActivity.
+ *
+ * The adapter is created once and given each new list of reports with setDiagnosticReports().
+ * DiffUtil compares it with the old list on a background thread, so a new date range only animates and rebinds
+ * the reports that were added, removed or changed. Reports are identified by their DiagnosticReport id.
  */
-public class DiagnosticReportListAdapter extends BaseAdapter implements AdapterView.OnItemClickListener
+public class DiagnosticReportListAdapter extends ListAdapter<OLISDiagnosticReportModel, DiagnosticReportListAdapter.ViewHolder>
 {
-    private ArrayList<OLISDiagnosticReportModel> diagnosticReports;
     private LayoutInflater layoutInflater;
     private Activity inActivity;
 
     /**
-     * Nothing fancy about this constructor. Just need to save the data and context,
-     * while also inflating our row layout view in order to inject data into it.
+     * Nothing fancy about this constructor. Just need to save the context, the reports are given with setDiagnosticReports().
      *
-     * @param activity          The activity that created this adapter (should be PatientSummaryActivity)
-     * @param diagnosticReports Is an arraylist of patient lab reports, with each row item consisting of:
-     *                          -Practitioner
-     *                          -Organization
-     *                          -Date
-     * @param listview          the listview to load data into
+     * @param activity The activity that created this adapter (should be PatientSummaryActivity)
      */
-    public DiagnosticReportListAdapter(Activity activity, ArrayList<OLISDiagnosticReportModel> diagnosticReports, ListView listview)
+    public DiagnosticReportListAdapter(Activity activity)
     {
-        this.diagnosticReports = diagnosticReports;
-        listview.setOnItemClickListener(this);
+        super(DIFF_CALLBACK);
+        setHasStableIds(true);
 
-        // needed for onClickItem
+        // needed for onClick
         inActivity = activity;
 
         // needed for view holder
-        layoutInflater = LayoutInflater.from(activity.getApplicationContext());
+        layoutInflater = LayoutInflater.from(activity);
     }
 
-    @Override
-    public int getCount()
+    /**
+     * Replaces the reports in the list.
+     *
+     * @param diagnosticReports Is an arraylist of patient lab reports, with each row item consisting of:
+     *                          -Practitioner
+     *                          -Organization
+     *                          -Date
+     */
+    public void setDiagnosticReports(ArrayList<OLISDiagnosticReportModel> diagnosticReports)
     {
-        return diagnosticReports.size();
+        // DiffUtil needs a list of its own to compare the next one against
+        submitList(new ArrayList<>(diagnosticReports));
     }
 
     /**
-     * Gets an item based on a given position.
+     * The item ID is a 64 bit hash of the report id, so the same report keeps the same ID across refreshes.
+     * Reports without an id fall back to a hash of what's shown in the row plus its position, since two of those can show the same thing
+     * and stable IDs have to be unique. Such a row gets a new ID when it moves, which only costs it its move animation.
      *
      * @param position
-     * @return the requested list item object
+     * @return the ID of the requested item.
      */
     @Override
-    public Object getItem(int position)
+    public long getItemId(int position)
     {
-        return diagnosticReports.get(position);
+        OLISDiagnosticReportModel diagnosticReport = getItem(position);
+
+        if (diagnosticReport.getReportId() != null)
+        {
+            return hash64(diagnosticReport.getReportId());
+        }
+
+        return hash64(diagnosticReport.getPractitionerName() + "|" + diagnosticReport.getOrganizationName() + "|" + diagnosticReport.getTestReleaseMillis()
+                + "|" + position);
     }
 
     /**
-     * Get list item id with for an item in a certain position.
-     * <p>
-     * For now, the item ID is also the position number.
-     *
-     * @param position
-     * @return the ID of the requested item.
+     * Inflates a row layout and saves its text views in a ViewHolder, so findViewById is only called once per row view.
      */
     @Override
-    public long getItemId(int position)
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType)
     {
-        return position;
+        View inflatedView = layoutInflater.inflate(R.layout.list_row_lab_report, parent, false);
+        return new ViewHolder(inflatedView);
     }
 
     /**
      * Here is where we actually insert the data into a row layout.
-     * We use a custom class called ViewHolder which will hold all of the text views that hold the data.
-     * <p>
-     * First we check to see if we already have an inflated row view.
-     * If we do, then just reuse our viewHolder and save the previous instance (with getTag). This way we are not calling findViewById again.
-     * If we don't, then we initialize it and get fresh text views for our view holder (setTag).
-     * <p>
-     * Once we've finished setting/getting the view tag, use the text view references in our ViewHolder to 'setText' the data into the text views
      *
-     * @param position     of the list item in the data
-     * @param inflatedView the inflated row layout view
-     * @param parent
-     * @return the inflated row view with data inserted
+     * @param holder   the row to fill
+     * @param position of the list item in the data
      */
     @Override
-    public View getView(int position, View inflatedView, ViewGroup parent)
+    public void onBindViewHolder(ViewHolder holder, int position)
     {
-        ViewHolder holder;
-
-        if (inflatedView == null)
-        {
-            inflatedView = layoutInflater.inflate(R.layout.list_row_lab_report, parent, false);
-            holder = new ViewHolder();
+        long startTime = Metrics.startTimer();
+        OLISDiagnosticReportModel diagnosticReport = getItem(position);
 
-            holder.practitionerName = inflatedView.findViewById(R.id.practitionerItem);
-            holder.organizationName = inflatedView.findViewById(R.id.organizationItem);
-            holder.testDate = inflatedView.findViewById(R.id.dateItem);
+        holder.practitionerName.setText(diagnosticReport.getPractitionerName());
+        holder.organizationName.setText(diagnosticReport.getOrganizationName());
+        holder.testDate.setText(diagnosticReport.getTestReleaseDate());
+        Metrics.ADAPTER_BIND.recordSince(startTime);
 
-            inflatedView.setTag(holder);
-        }
-        else
-        {
-            holder = (ViewHolder) inflatedView.getTag();
-        }
+        // the alternating row color is drawn by AlternatingRowDecoration
+    }
 
-        holder.practitionerName.setText(diagnosticReports.get(position).getPractitionerName());
-        holder.organizationName.setText(diagnosticReports.get(position).getOrganizationName());
-        holder.testDate.setText(diagnosticReports.get(position).getTestReleaseDate());
+    /**
+     * 64 bit FNV-1a hash, String.hashCode() is only 32 bits and collides too easily for item IDs.
+     */
+    private static long hash64(String value)
+    {
+        long hash = 0xcbf29ce484222325L;
 
-        // set the color of the row for alternating effect
-        if (position % 2 == 1)
+        for (int i = 0; i < value.length(); i++)
         {
-            inflatedView.setBackgroundColor(inflatedView.getResources().getColor(R.color.colorRowBackground));
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
         }
 
-        return inflatedView;
+        return hash;
+    }
+
+    private static boolean isSameText(String oldValue, String newValue)
+    {
+        return oldValue == null ? newValue == null : oldValue.equals(newValue);
     }
 
     /**
-     * This method will send the user to the DiagnosticReportDetailsActivity when they click on a
-     * lab report from the listview of lab reports (in PatientSummary)
+     * Tells DiffUtil which reports are the same report, and whether anything in their summary has changed.
      */
-    @Override
-    public void onItemClick(AdapterView<?> parent, View view, int position, long id)
+    private static final DiffUtil.ItemCallback<OLISDiagnosticReportModel> DIFF_CALLBACK = new DiffUtil.ItemCallback<OLISDiagnosticReportModel>()
     {
-        Intent intent = new Intent(inActivity.getApplicationContext(), DiagnosticReportDetailsActivity.class);
-        intent.putExtra("olisReport", diagnosticReports.get(position));
-        inActivity.startActivity(intent);
-    }
+        @Override
+        public boolean areItemsTheSame(OLISDiagnosticReportModel oldReport, OLISDiagnosticReportModel newReport)
+        {
+            if (oldReport.getReportId() != null || newReport.getReportId() != null)
+            {
+                return isSameText(oldReport.getReportId(), newReport.getReportId());
+            }
 
-    static class ViewHolder
+            // without ids, the best we can do is treat identical reports as the same report
+            return areContentsTheSame(oldReport, newReport);
+        }
+
+        @Override
+        public boolean areContentsTheSame(OLISDiagnosticReportModel oldReport, OLISDiagnosticReportModel newReport)
+        {
+            return isSameText(oldReport.getPractitionerName(), newReport.getPractitionerName())
+                    && isSameText(oldReport.getOrganizationName(), newReport.getOrganizationName())
+                    && oldReport.getTestReleaseMillis() == newReport.getTestReleaseMillis()
+                    && isSameText(oldReport.getTestPerformed(), newReport.getTestPerformed());
+        }
+    };
+
+    /**
+     * Holds the text views of a row. Clicking a row will send the user to the DiagnosticReportDetailsActivity
+     * for that lab report.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener
     {
         TextView practitionerName;
         TextView organizationName;
         TextView testDate;
+
+        ViewHolder(View inflatedView)
+        {
+            super(inflatedView);
+
+            practitionerName = inflatedView.findViewById(R.id.practitionerItem);
+            organizationName = inflatedView.findViewById(R.id.organizationItem);
+            testDate = inflatedView.findViewById(R.id.dateItem);
+
+            inflatedView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view)
+        {
+            int position = getAdapterPosition();
+
+            // the row may have been removed by a refresh since it was drawn
+            if (position == RecyclerView.NO_POSITION)
+            {
+                return;
+            }
+
+            Intent intent = new Intent(inActivity.getApplicationContext(), DiagnosticReportDetailsActivity.class);
+            intent.putExtra("olisReport", getItem(position));
+            inActivity.startActivity(intent);
+        }
     }
 }
@@ -0,0 +1,115 @@
+package ca.ehealth.ontario.olis_fhir_prototype.adapters;
+
+import android.app.Activity;
+import android.support.v7.recyclerview.extensions.ListAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+
+import ca.ehealth.ontario.olis_fhir_prototype.R;
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
+import ca.ehealth.ontario.olis_fhir_prototype.models.LabQueryResultModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.Metrics;
+
+/**
+ * This adapter was meant for the RecyclerView responsible for displaying the patients matched by a lab query.
+ * Displayed in LabQueryActivity. Each patient shows up once, so they're identified by their roster id.
+ */
+public class LabQueryResultAdapter extends ListAdapter<LabQueryResultModel, LabQueryResultAdapter.ViewHolder>
+{
+    private LayoutInflater layoutInflater;
+
+    /**
+     * @param activity the activity that created this adapter (should be LabQueryActivity)
+     */
+    public LabQueryResultAdapter(Activity activity)
+    {
+        super(DIFF_CALLBACK);
+        setHasStableIds(true);
+
+        // needed for view holder
+        layoutInflater = LayoutInflater.from(activity);
+    }
+
+    /**
+     * Replaces the matched patients in the list.
+     */
+    public void setResults(ArrayList<LabQueryResultModel> results)
+    {
+        // DiffUtil needs a list of its own to compare the next one against
+        submitList(new ArrayList<>(results));
+    }
+
+    @Override
+    public long getItemId(int position)
+    {
+        return getItem(position).getRosterId();
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType)
+    {
+        View inflatedView = layoutInflater.inflate(R.layout.list_row_lab_query_result, parent, false);
+        return new ViewHolder(inflatedView);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position)
+    {
+        long startTime = Metrics.startTimer();
+        LabQueryResultModel result = getItem(position);
+
+        holder.name.setText(result.getPatientName());
+        holder.healthCardNumber.setText(result.getHealthCardNumber());
+        holder.value.setText(result.getValueDisplay());
+        holder.date.setText(EpochDateFormat.formatDisplay(result.getIssuedMillis()));
+        Metrics.ADAPTER_BIND.recordSince(startTime);
+
+        // the alternating row color is drawn by AlternatingRowDecoration
+    }
+
+    /**
+     * Tells DiffUtil which rows are the same patient, and whether anything shown in their row has changed.
+     */
+    private static final DiffUtil.ItemCallback<LabQueryResultModel> DIFF_CALLBACK = new DiffUtil.ItemCallback<LabQueryResultModel>()
+    {
+        @Override
+        public boolean areItemsTheSame(LabQueryResultModel oldResult, LabQueryResultModel newResult)
+        {
+            return oldResult.getRosterId() == newResult.getRosterId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(LabQueryResultModel oldResult, LabQueryResultModel newResult)
+        {
+            return oldResult.getValueDisplay().equals(newResult.getValueDisplay())
+                    && oldResult.getIssuedMillis() == newResult.getIssuedMillis();
+        }
+    };
+
+    /**
+     * Holds the text views of a row.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder
+    {
+        TextView name;
+        TextView healthCardNumber;
+        TextView value;
+        TextView date;
+
+        ViewHolder(View inflatedView)
+        {
+            super(inflatedView);
+
+            name = inflatedView.findViewById(R.id.nameItem);
+            healthCardNumber = inflatedView.findViewById(R.id.hcnItem);
+            value = inflatedView.findViewById(R.id.valueItem);
+            date = inflatedView.findViewById(R.id.dateItem);
+        }
+    }
+}
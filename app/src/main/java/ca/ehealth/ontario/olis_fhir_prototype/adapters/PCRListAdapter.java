@@ -1,73 +1,111 @@
 package ca.ehealth.ontario.olis_fhir_prototype.adapters;
 
 import android.app.Activity;
-import android.content.Context;
+import android.support.v7.recyclerview.extensions.ListAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.BaseAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import ca.ehealth.ontario.olis_fhir_prototype.R;
 import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.FHIRBackgroundExecutor;
+import ca.ehealth.ontario.olis_fhir_prototype.services.Metrics;
 import ca.ehealth.ontario.olis_fhir_prototype.services.OLISAsyncTask;
+import ca.ehealth.ontario.olis_fhir_prototype.services.PatientDetailsLoader;
 
 /**
- * This adapter was meant for the listview responsible for displaying a list of patients from PCR.
+ * This adapter was meant for the RecyclerView responsible for displaying a list of patients from PCR.
  * Displayed in PCRListActivity
+ *
+ * Every new list is compared with the old one by DiffUtil on a background thread, so a new page or a new search
+ * only rebinds the rows that actually changed. Patients are identified by their roster id.
+ *
+ * The pages only hold what the local roster has. A row is looked up in PCR and OLIS (by PatientDetailsLoader) when it's first shown,
+ * and rebound with the demographics and lab total once they're in. A row that scrolls off before its turn isn't looked up.
  */
-public class PCRListAdapter extends BaseAdapter implements AdapterView.OnItemClickListener
+public class PCRListAdapter extends ListAdapter<PCRPatientModel, PCRListAdapter.ViewHolder> implements PatientDetailsLoader.Listener
 {
-    private ArrayList<PCRPatientModel> patientList;
     private LayoutInflater layoutInflater;
     private Activity inActivity;
+    private PatientDetailsLoader patientDetailsLoader;
+    private List<PCRPatientModel> patients = new ArrayList<>(); // the latest list given to submitList(), which may still be being diffed
 
     /**
-     * Nothing fancy about this constructor. Just need to save the data and context,
-     * while also inflating our row view in order to inject data into it.
+     * Nothing fancy about this constructor. Just need to save the first page and context.
      *
      * @param activity    the inActivity that created this adapter (should be PCRListActivity)
      * @param patientData is an arraylist of patient demographics(Name, Gender, Date of birth)
-     * @param listview    the listview using this adapter
      */
-    public PCRListAdapter(Activity activity, ArrayList<PCRPatientModel> patientData, ListView listview)
+    public PCRListAdapter(Activity activity, ArrayList<PCRPatientModel> patientData)
     {
-        patientList = patientData;
-        listview.setOnItemClickListener(this);
+        super(DIFF_CALLBACK);
+        setHasStableIds(true);
 
-        // needed for onClickItem
+        // needed for onClick
         inActivity = activity;
 
         // needed for view holder
-        layoutInflater = LayoutInflater.from(activity.getApplicationContext());
+        layoutInflater = LayoutInflater.from(activity);
+        patientDetailsLoader = new PatientDetailsLoader(activity, this);
+
+        patients.addAll(patientData);
+        submitList(new ArrayList<>(patients));
     }
 
-    @Override
-    public int getCount()
+    /**
+     * Stops looking up rows. Call it from the activity's onDestroy().
+     */
+    public void shutdown()
     {
-        return patientList.size();
+        patientDetailsLoader.shutdown();
     }
 
     /**
-     * Gets an item based on a given position.
+     * Adds another page of patients to the end of the list, or replaces the whole list with it.
+     * DiffUtil needs a new list to compare against the old one, so the current list is never changed in place.
      *
-     * @param position
-     * @return the requested list item object
+     * @param page the page of patients loaded by PCRAsyncTask
+     * @param replaceList true when the page is the first page of a new search
+     */
+    public void addPatients(ArrayList<PCRPatientModel> page, boolean replaceList)
+    {
+        if (replaceList)
+        {
+            // the old rows are gone, so are their lookups that haven't been sent yet
+            patientDetailsLoader.cancelAll();
+            patients.clear();
+        }
+
+        patients.addAll(page);
+        submitList(new ArrayList<>(patients));
+    }
+
+    /**
+     * Puts a finished lookup into its row, if the row is still in the list.
      */
     @Override
-    public Object getItem(int position)
+    public void onPatientLoaded(long rosterId, PCRPatientModel pcrPatient)
     {
-        return patientList.get(position);
+        for (int i = 0; i < patients.size(); i++)
+        {
+            if (patients.get(i).getRosterId() == rosterId)
+            {
+                patients.set(i, patients.get(i).withLookUp(pcrPatient));
+                submitList(new ArrayList<>(patients));
+                return;
+            }
+        }
     }
 
     /**
-     * Get list item id with for an item in a certain position.
-     * <p>
-     * For now, the item ID is also the position number.
+     * The roster id is the patient's row in the local patients table, so it stays the same across pages and searches.
      *
      * @param position
      * @return the ID of the requested item.
@@ -75,79 +113,186 @@ public class PCRListAdapter extends BaseAdapter implements AdapterView.OnItemCli
     @Override
     public long getItemId(int position)
     {
-        return position;
+        return getItem(position).getRosterId();
+    }
+
+    /**
+     * Inflates a row layout and saves its text views in a ViewHolder, so findViewById is only called once per row view.
+     */
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType)
+    {
+        View inflatedView = layoutInflater.inflate(R.layout.list_row_pcr_patientlist, parent, false);
+        return new ViewHolder(inflatedView);
     }
 
     /**
      * Here is where we actually insert the data into a row layout.
-     * We use a custom class called ViewHolder which will hold all of the text views that hold the data.
-     * <p>
-     * First we check to see if we already have an inflated row view.
-     * If we do, then just reuse our viewHolder and save the previous instance (with getTag). This way we are not calling findViewById again.
-     * If we don't, then we initialize it and get fresh text views for our view holder (setTag).
-     * <p>
-     * Once we've finished setting/getting the view tag, use the text view references in our ViewHolder to 'setText' the data into the text views
      *
-     * @param position     of the list item in the data
-     * @param inflatedView the inflated row layout view
-     * @param parent
-     * @return the inflated row view with data inserted
+     * @param holder   the row to fill
+     * @param position of the list item in the data
      */
     @Override
-    public View getView(int position, View inflatedView, ViewGroup parent)
+    public void onBindViewHolder(ViewHolder holder, int position)
     {
-        ViewHolder holder;
+        long startTime = Metrics.startTimer();
+        PCRPatientModel patient = getItem(position);
 
-        if (inflatedView == null)
-        {
-            inflatedView = layoutInflater.inflate(R.layout.list_row_pcr_patientlist, null);
-            holder = new ViewHolder();
+        holder.boundPatient = patient;
 
-            holder.name = (TextView) inflatedView.findViewById(R.id.nameItem);
-            holder.gender = (TextView) inflatedView.findViewById(R.id.genderItem);
-            holder.dateOfBirth = (TextView) inflatedView.findViewById(R.id.dobItem);
-            holder.labTotal = (TextView) inflatedView.findViewById(R.id.resultsItem);
+        // insert data into the text views
+        holder.name.setText(patient.getName());
 
-            inflatedView.setTag(holder);
-        }
-        else
+        switch (patient.getLookupState())
         {
-            holder = (ViewHolder) inflatedView.getTag();
+            case PCRPatientModel.LOOKUP_FOUND:
+                holder.dateOfBirth.setText(patient.getDateOfBirth());
+                holder.gender.setText(patient.getGender());
+                holder.labTotal.setText(String.valueOf(patient.getLabTotal()));
+                break;
+
+            case PCRPatientModel.LOOKUP_NOT_FOUND:
+                holder.dateOfBirth.setText("Not found in PCR");
+                holder.gender.setText("");
+                holder.labTotal.setText("-");
+                break;
+
+            case PCRPatientModel.LOOKUP_FAILED:
+                // not retried on its own, or a row would keep asking a server that's down every time it's bound
+                holder.dateOfBirth.setText("PCR or OLIS unavailable, tap to retry");
+                holder.gender.setText("");
+                holder.labTotal.setText("-");
+                break;
+
+            default:
+                // not looked up yet, so ask now that the row is on screen
+                holder.dateOfBirth.setText("Looking up...");
+                holder.gender.setText("");
+                holder.labTotal.setText("-");
+                patientDetailsLoader.load(patient);
+                break;
         }
 
-        // insert data into the text views
-        holder.name.setText(patientList.get(position).getName());
-        holder.dateOfBirth.setText(patientList.get(position).getDateOfBirth());
-        holder.gender.setText(patientList.get(position).getGender());
-        holder.labTotal.setText(String.valueOf(patientList.get(position).getLabTotal()));
+        Metrics.ADAPTER_BIND.recordSince(startTime);
 
+        // the alternating row color is drawn by AlternatingRowDecoration
+    }
 
-        // set the color of the row for alternating effect
-        if (position % 2 == 1)
+    /**
+     * Looks a patient up again after PCR or OLIS couldn't be reached.
+     */
+    private void onPatientRetry(PCRPatientModel patient)
+    {
+        for (int i = 0; i < patients.size(); i++)
         {
-            // id for the even-row background color
-            int rowBackgroundColor = inflatedView.getResources().getColor(R.color.colorRowBackground);
-            inflatedView.setBackgroundColor(rowBackgroundColor);
-        }
+            if (patients.get(i).getRosterId() == patient.getRosterId())
+            {
+                PCRPatientModel pendingPatient = patients.get(i).withLookUp(null);
+                pendingPatient.setLookupState(PCRPatientModel.LOOKUP_PENDING);
 
-        return inflatedView;
+                // binding the pending row starts the lookup
+                patients.set(i, pendingPatient);
+                submitList(new ArrayList<>(patients));
+                return;
+            }
+        }
     }
 
     /**
-     * This method will start a new OLIS Async task which will take the user to PatientSummaryActivity
+     * The row went off screen, so its patient doesn't need to be looked up anymore.
      */
     @Override
-    public void onItemClick(AdapterView<?> parent, View view, int position, long id)
+    public void onViewRecycled(ViewHolder holder)
+    {
+        if (holder.boundPatient != null && holder.boundPatient.getLookupState() != PCRPatientModel.LOOKUP_FOUND)
+        {
+            patientDetailsLoader.cancel(holder.boundPatient);
+        }
+
+        holder.boundPatient = null;
+    }
+
+    /**
+     * Tells DiffUtil which patients are the same patient, and whether anything shown in their row has changed.
+     */
+    private static final DiffUtil.ItemCallback<PCRPatientModel> DIFF_CALLBACK = new DiffUtil.ItemCallback<PCRPatientModel>()
+    {
+        @Override
+        public boolean areItemsTheSame(PCRPatientModel oldPatient, PCRPatientModel newPatient)
+        {
+            return oldPatient.getRosterId() == newPatient.getRosterId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(PCRPatientModel oldPatient, PCRPatientModel newPatient)
+        {
+            return isSameText(oldPatient.getName(), newPatient.getName())
+                    && oldPatient.getDateOfBirthEpochDay() == newPatient.getDateOfBirthEpochDay()
+                    && isSameText(oldPatient.getGender(), newPatient.getGender())
+                    && oldPatient.getLabTotal() == newPatient.getLabTotal()
+                    && oldPatient.getLookupState() == newPatient.getLookupState();
+        }
+    };
+
+    private static boolean isSameText(String oldValue, String newValue)
     {
-        OLISAsyncTask olisAsyncTask = new OLISAsyncTask(inActivity, patientList.get(position));
-        olisAsyncTask.execute();
+        return oldValue == null ? newValue == null : oldValue.equals(newValue);
     }
 
-    static class ViewHolder
+    /**
+     * Holds the text views of a row. Clicking a row will start a new OLIS Async task which will take the user to PatientSummaryActivity
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener
     {
         TextView name;
         TextView gender;
         TextView dateOfBirth;
         TextView labTotal;
+        PCRPatientModel boundPatient; // the patient shown in the row, to cancel its lookup when the row is recycled
+
+        ViewHolder(View inflatedView)
+        {
+            super(inflatedView);
+
+            name = inflatedView.findViewById(R.id.nameItem);
+            gender = inflatedView.findViewById(R.id.genderItem);
+            dateOfBirth = inflatedView.findViewById(R.id.dobItem);
+            labTotal = inflatedView.findViewById(R.id.resultsItem);
+
+            inflatedView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view)
+        {
+            int position = getAdapterPosition();
+
+            // the row may have been removed by a new search since it was drawn
+            if (position == RecyclerView.NO_POSITION)
+            {
+                return;
+            }
+
+            PCRPatientModel patient = getItem(position);
+
+            // the OLIS query needs the birth date and gender from PCR
+            switch (patient.getLookupState())
+            {
+                case PCRPatientModel.LOOKUP_FAILED:
+                    onPatientRetry(patient);
+                    return;
+
+                case PCRPatientModel.LOOKUP_NOT_FOUND:
+                    Toast.makeText(inActivity, "This patient isn't known to PCR", Toast.LENGTH_SHORT).show();
+                    return;
+
+                case PCRPatientModel.LOOKUP_PENDING:
+                    Toast.makeText(inActivity, "Still looking this patient up", Toast.LENGTH_SHORT).show();
+                    return;
+            }
+
+            OLISAsyncTask olisAsyncTask = new OLISAsyncTask(inActivity, patient);
+            olisAsyncTask.executeOnExecutor(FHIRBackgroundExecutor.getExecutor());
+        }
     }
-}
\ No newline at end of file
+}
@@ -3,15 +3,21 @@ package ca.ehealth.ontario.olis_fhir_prototype.customdialogs;
 import android.app.Activity;
 import android.app.Dialog;
 import android.os.Bundle;
+import android.view.View;
 import android.view.Window;
+import android.widget.TextView;
 
 import ca.ehealth.ontario.olis_fhir_prototype.R;
 
 /**
  * Very simple dialog for showing a rotating progress circle.
+ * A message can be shown under the circle for long running work, e.g. how far along an import is.
  */
 public class ProgressCircleDialog extends Dialog
 {
+    private String progressMessage;
+    private TextView progressItemTextView; // only set once onCreate has run
+
     public ProgressCircleDialog(Activity activity)
     {
         super(activity);
@@ -23,5 +29,27 @@ public class ProgressCircleDialog extends Dialog
         super.onCreate(savedInstanceState);
         requestWindowFeature(Window.FEATURE_NO_TITLE); // no title required
         setContentView(R.layout.custom_dialog_progress_bar);
+
+        progressItemTextView = findViewById(R.id.progressItem);
+        showProgressMessage();
+    }
+
+    /**
+     * simple method to set the message under the progress circle. It can be called before or after the dialog is shown.
+     * @param progressMessage
+     */
+    public void setProgressMessage(String progressMessage)
+    {
+        this.progressMessage = progressMessage;
+        showProgressMessage();
+    }
+
+    private void showProgressMessage()
+    {
+        if (progressItemTextView != null && progressMessage != null)
+        {
+            progressItemTextView.setText(progressMessage);
+            progressItemTextView.setVisibility(View.VISIBLE);
+        }
     }
 }
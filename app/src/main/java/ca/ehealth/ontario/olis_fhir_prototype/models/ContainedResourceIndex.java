@@ -0,0 +1,188 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.ProcedureRequest;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class indexes the contained resources of one DiagnosticReport by their local id ("#id"), so the report's references
+ * can be followed directly instead of scanning every contained resource for each thing we're looking for.
+ *
+ * OLIS links everything from the report itself:
+ * -result                       the Observations, in the order they should be shown
+ * -basedOn                      the ProcedureRequest (test performed)
+ * -performer.actor              the Practitioner and/or Organization
+ * -ProcedureRequest.requester   the ordering Practitioner and their Organization, if the report doesn't name a performer
+ *
+ * When a reference is missing, the first contained resource of the right type is used, which is what the mapping did before.
+ */
+public class ContainedResourceIndex
+{
+    private final DiagnosticReport diagnosticReport;
+    private final Map<String, Resource> resourcesById;
+    private final List<Observation> containedObservations = new ArrayList<>();
+    private Practitioner firstPractitioner;
+    private Organization firstOrganization;
+    private ProcedureRequest firstProcedureRequest;
+
+    /**
+     * Indexes the report's contained resources in one pass.
+     */
+    public ContainedResourceIndex(DiagnosticReport diagnosticReport)
+    {
+        this.diagnosticReport = diagnosticReport;
+        List<Resource> containedResources = diagnosticReport.getContained();
+        resourcesById = new HashMap<>(containedResources.size() * 2);
+
+        for (Resource containedResource : containedResources)
+        {
+            if (containedResource.getIdElement().getIdPart() != null)
+            {
+                resourcesById.put(toLocalReference(containedResource.getIdElement().getIdPart()), containedResource);
+            }
+
+            if (containedResource instanceof Observation)
+            {
+                containedObservations.add((Observation) containedResource);
+            }
+            else if (containedResource instanceof Practitioner && firstPractitioner == null)
+            {
+                firstPractitioner = (Practitioner) containedResource;
+            }
+            else if (containedResource instanceof Organization && firstOrganization == null)
+            {
+                firstOrganization = (Organization) containedResource;
+            }
+            else if (containedResource instanceof ProcedureRequest && firstProcedureRequest == null)
+            {
+                firstProcedureRequest = (ProcedureRequest) containedResource;
+            }
+        }
+    }
+
+    /**
+     * @return the contained resource a reference points to, or null if it isn't one of this report's contained resources
+     */
+    public Resource resolve(Reference reference)
+    {
+        if (reference == null)
+        {
+            return null;
+        }
+
+        // the parser already links references to contained resources, otherwise look the id up
+        if (reference.getResource() instanceof Resource)
+        {
+            return (Resource) reference.getResource();
+        }
+
+        if (reference.getReference() == null)
+        {
+            return null;
+        }
+
+        return resourcesById.get(toLocalReference(reference.getReference()));
+    }
+
+    /**
+     * @return the report's result Observations in report order, or every contained Observation if the report doesn't reference any
+     */
+    public List<Observation> getObservations()
+    {
+        List<Observation> observations = new ArrayList<>(diagnosticReport.getResult().size());
+
+        for (Reference resultReference : diagnosticReport.getResult())
+        {
+            Resource result = resolve(resultReference);
+
+            if (result instanceof Observation)
+            {
+                observations.add((Observation) result);
+            }
+        }
+
+        return observations.isEmpty() ? containedObservations : observations;
+    }
+
+    /**
+     * @return the ProcedureRequest the report is based on, or null if there isn't one
+     */
+    public ProcedureRequest getProcedureRequest()
+    {
+        for (Reference basedOn : diagnosticReport.getBasedOn())
+        {
+            Resource request = resolve(basedOn);
+
+            if (request instanceof ProcedureRequest)
+            {
+                return (ProcedureRequest) request;
+            }
+        }
+
+        return firstProcedureRequest;
+    }
+
+    /**
+     * @return the Practitioner who performed the test, or the one who ordered it, or null if there isn't one
+     */
+    public Practitioner getPractitioner()
+    {
+        Resource practitioner = findPerformer(Practitioner.class);
+        ProcedureRequest procedureRequest = getProcedureRequest();
+
+        if (practitioner == null && procedureRequest != null && procedureRequest.hasRequester())
+        {
+            practitioner = resolve(procedureRequest.getRequester().getAgent());
+        }
+
+        return practitioner instanceof Practitioner ? (Practitioner) practitioner : firstPractitioner;
+    }
+
+    /**
+     * @return the Organization that performed the test, or the one the test was ordered for, or null if there isn't one
+     */
+    public Organization getOrganization()
+    {
+        Resource organization = findPerformer(Organization.class);
+        ProcedureRequest procedureRequest = getProcedureRequest();
+
+        if (organization == null && procedureRequest != null && procedureRequest.hasRequester())
+        {
+            organization = resolve(procedureRequest.getRequester().getOnBehalfOf());
+        }
+
+        return organization instanceof Organization ? (Organization) organization : firstOrganization;
+    }
+
+    private Resource findPerformer(Class<? extends Resource> performerType)
+    {
+        for (DiagnosticReport.DiagnosticReportPerformerComponent performer : diagnosticReport.getPerformer())
+        {
+            Resource actor = resolve(performer.getActor());
+
+            if (performerType.isInstance(actor))
+            {
+                return actor;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Parsed contained resources keep the '#' in their id, ones built in code usually don't, so both are stored as "#id".
+     */
+    private static String toLocalReference(String id)
+    {
+        return id.startsWith("#") ? id : "#" + id;
+    }
+}
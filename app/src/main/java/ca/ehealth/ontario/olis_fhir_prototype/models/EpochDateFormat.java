@@ -0,0 +1,261 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import java.util.TimeZone;
+
+/**
+ * This class converts between dates and epoch days (days since 1970-01-01), and formats them the two ways this app needs:
+ * -display: 05-Feb-1987(dd-MMM-yyyy)
+ * -query:   1987-02-05(yyyy-MM-dd)
+ *
+ * The models keep their dates as epoch days or epoch millis, so sorting and range checks are plain number comparisons.
+ * Everything here is simple arithmetic on ints, so unlike SimpleDateFormat it's safe to share between threads,
+ * and formatting a date allocates nothing but the returned String.
+ * Month names are fixed English abbreviations, so the display doesn't change with the device's locale data (e.g. "Feb." vs "Feb").
+ */
+public class EpochDateFormat
+{
+    public static final int NO_DATE = Integer.MIN_VALUE; // epoch day used when a date is unknown
+    public static final long NO_TIME = Long.MIN_VALUE; // epoch millis used when a time is unknown
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final String[] MONTH_NAMES = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private EpochDateFormat()
+    {
+        // only static methods
+    }
+
+    /**
+     * @param year  e.g. 1987
+     * @param month 1 to 12
+     * @param day   1 to 31
+     * @return the epoch day of the date
+     */
+    public static int toEpochDay(int year, int month, int day)
+    {
+        // days from civil, counting years from March so the leap day is the last day of the year
+        int marchYear = month <= 2 ? year - 1 : year;
+        int era = (marchYear >= 0 ? marchYear : marchYear - 399) / 400;
+        int yearOfEra = marchYear - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the epoch day of the given instant, in the device's time zone
+     */
+    public static int toEpochDay(long epochMillis)
+    {
+        long localMillis = epochMillis + TimeZone.getDefault().getOffset(epochMillis);
+        long epochDay = localMillis / MILLIS_PER_DAY;
+
+        // round towards the earlier day for times before 1970
+        if (localMillis % MILLIS_PER_DAY < 0)
+        {
+            epochDay--;
+        }
+
+        return (int) epochDay;
+    }
+
+    /**
+     * @return the epoch millis of midnight at the start of the epoch day, in the device's time zone
+     */
+    public static long toStartOfDayMillis(int epochDay)
+    {
+        long utcMidnight = epochDay * MILLIS_PER_DAY;
+        TimeZone timeZone = TimeZone.getDefault();
+
+        // the offset at local midnight can differ from the one at UTC midnight around a daylight saving change, so check it twice
+        long localMidnight = utcMidnight - timeZone.getOffset(utcMidnight);
+        return utcMidnight - timeZone.getOffset(localMidnight);
+    }
+
+    /**
+     * @return today's epoch day, in the device's time zone
+     */
+    public static int today()
+    {
+        return toEpochDay(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the year of an epoch day, e.g. 1987
+     */
+    public static int getYear(int epochDay)
+    {
+        return (int) (toCivil(epochDay) >> 16);
+    }
+
+    /**
+     * @return the month of an epoch day, 1 to 12
+     */
+    public static int getMonth(int epochDay)
+    {
+        return (int) ((toCivil(epochDay) >> 8) & 0xFF);
+    }
+
+    /**
+     * @return the day of the month of an epoch day, 1 to 31
+     */
+    public static int getDayOfMonth(int epochDay)
+    {
+        return (int) (toCivil(epochDay) & 0xFF);
+    }
+
+    /**
+     * @param month 1 to 12
+     * @return the three letter month name, e.g. Feb
+     */
+    public static String getMonthName(int month)
+    {
+        return MONTH_NAMES[month - 1];
+    }
+
+    /**
+     * @return the date like 05-Feb-1987(dd-MMM-yyyy), or "n/a" if there isn't one
+     */
+    public static String formatDisplay(int epochDay)
+    {
+        if (epochDay == NO_DATE)
+        {
+            return "n/a";
+        }
+
+        long civil = toCivil(epochDay);
+        char[] formatted = new char[11];
+        writeTwoDigits(formatted, 0, (int) (civil & 0xFF));
+        formatted[2] = '-';
+        MONTH_NAMES[(int) ((civil >> 8) & 0xFF) - 1].getChars(0, 3, formatted, 3);
+        formatted[6] = '-';
+        writeFourDigits(formatted, 7, (int) (civil >> 16));
+
+        return new String(formatted);
+    }
+
+    /**
+     * @return the date like 1987-02-05(yyyy-MM-dd), or "n/a" if there isn't one
+     */
+    public static String formatQuery(int epochDay)
+    {
+        if (epochDay == NO_DATE)
+        {
+            return "n/a";
+        }
+
+        long civil = toCivil(epochDay);
+        char[] formatted = new char[10];
+        writeFourDigits(formatted, 0, (int) (civil >> 16));
+        formatted[4] = '-';
+        writeTwoDigits(formatted, 5, (int) ((civil >> 8) & 0xFF));
+        formatted[7] = '-';
+        writeTwoDigits(formatted, 8, (int) (civil & 0xFF));
+
+        return new String(formatted);
+    }
+
+    /**
+     * @return the time's date like 05-Feb-1987(dd-MMM-yyyy) in the device's time zone, or "n/a" if there isn't one
+     */
+    public static String formatDisplay(long epochMillis)
+    {
+        return epochMillis == NO_TIME ? "n/a" : formatDisplay(toEpochDay(epochMillis));
+    }
+
+    /**
+     * Parses a date like 19870205(yyyyMMdd), which is how PCR sends birth dates.
+     * @return the epoch day, or NO_DATE if the text isn't a valid date
+     */
+    public static int parseBasic(String text)
+    {
+        if (text == null || text.length() != 8)
+        {
+            return NO_DATE;
+        }
+
+        return toValidEpochDay(parseDigits(text, 0, 4), parseDigits(text, 4, 6), parseDigits(text, 6, 8));
+    }
+
+    /**
+     * Parses a date like 1987-02-05(yyyy-MM-dd).
+     * @return the epoch day, or NO_DATE if the text isn't a valid date
+     */
+    public static int parseQuery(String text)
+    {
+        if (text == null || text.length() != 10 || text.charAt(4) != '-' || text.charAt(7) != '-')
+        {
+            return NO_DATE;
+        }
+
+        return toValidEpochDay(parseDigits(text, 0, 4), parseDigits(text, 5, 7), parseDigits(text, 8, 10));
+    }
+
+    private static int toValidEpochDay(int year, int month, int day)
+    {
+        if (year < 0 || month < 1 || month > 12 || day < 1)
+        {
+            return NO_DATE;
+        }
+
+        int epochDay = toEpochDay(year, month, day);
+
+        // catches days past the end of the month, e.g. 1987-02-30
+        return getDayOfMonth(epochDay) == day ? epochDay : NO_DATE;
+    }
+
+    /**
+     * Converts an epoch day to its civil date, packed as year << 16 | month << 8 | day so no object has to be created.
+     */
+    private static long toCivil(int epochDay)
+    {
+        int shiftedDay = epochDay + 719468;
+        int era = (shiftedDay >= 0 ? shiftedDay : shiftedDay - 146096) / 146097;
+        int dayOfEra = shiftedDay - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        return ((long) year << 16) | (month << 8) | day;
+    }
+
+    /**
+     * @return the number in text[start, end), or -1 if there's anything but digits there
+     */
+    private static int parseDigits(String text, int start, int end)
+    {
+        int value = 0;
+
+        for (int i = start; i < end; i++)
+        {
+            char c = text.charAt(i);
+
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    private static void writeTwoDigits(char[] formatted, int offset, int value)
+    {
+        formatted[offset] = (char) ('0' + value / 10 % 10);
+        formatted[offset + 1] = (char) ('0' + value % 10);
+    }
+
+    private static void writeFourDigits(char[] formatted, int offset, int value)
+    {
+        formatted[offset] = (char) ('0' + value / 1000 % 10);
+        formatted[offset + 1] = (char) ('0' + value / 100 % 10);
+        formatted[offset + 2] = (char) ('0' + value / 10 % 10);
+        formatted[offset + 3] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,110 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+/**
+ * This model represents one patient matched by a lab query across the roster (see LabQueryService),
+ * along with the result that matched.
+ */
+public class LabQueryResultModel
+{
+    private long rosterId; // _id of the patient in the local patients table
+    private String patientName;
+    private String healthCardNumber;
+    private String testName;
+    private double value = Double.NaN; // NaN for results that don't have a number yet, e.g. pending ones
+    private String unit;
+    private String status; // the observation status, e.g. final, preliminary
+    private long issuedMillis = EpochDateFormat.NO_TIME;
+
+    public LabQueryResultModel()
+    {
+        // use defaults
+    }
+
+    /**
+     * @return the value and unit for display, e.g. "7.4 %", or the status if there's no value yet
+     */
+    public String getValueDisplay()
+    {
+        if (Double.isNaN(value))
+        {
+            return status != null ? status : "n/a";
+        }
+
+        // whole numbers are shown without a trailing ".0"
+        String number = value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+
+        return unit != null ? number + " " + unit : number;
+    }
+
+    /* *******************************************************************************************
+     *  Getters
+     * *******************************************************************************************/
+    public long getRosterId()
+    {
+        return rosterId;
+    }
+    public String getPatientName()
+    {
+        return patientName;
+    }
+    public String getHealthCardNumber()
+    {
+        return healthCardNumber;
+    }
+    public String getTestName()
+    {
+        return testName;
+    }
+    public double getValue()
+    {
+        return value;
+    }
+    public String getUnit()
+    {
+        return unit;
+    }
+    public String getStatus()
+    {
+        return status;
+    }
+    public long getIssuedMillis()
+    {
+        return issuedMillis;
+    }
+
+    /* *******************************************************************************************
+     *  Setters
+     * *******************************************************************************************/
+    public void setRosterId(long rosterId)
+    {
+        this.rosterId = rosterId;
+    }
+    public void setPatientName(String patientName)
+    {
+        this.patientName = patientName;
+    }
+    public void setHealthCardNumber(String healthCardNumber)
+    {
+        this.healthCardNumber = healthCardNumber;
+    }
+    public void setTestName(String testName)
+    {
+        this.testName = testName;
+    }
+    public void setValue(double value)
+    {
+        this.value = value;
+    }
+    public void setUnit(String unit)
+    {
+        this.unit = unit;
+    }
+    public void setStatus(String status)
+    {
+        this.status = status;
+    }
+    public void setIssuedMillis(long issuedMillis)
+    {
+        this.issuedMillis = issuedMillis;
+    }
+}
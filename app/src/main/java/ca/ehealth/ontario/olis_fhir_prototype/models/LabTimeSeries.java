@@ -0,0 +1,228 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import java.util.Arrays;
+
+/**
+ * This model holds every numeric result of one test for one patient, oldest first, ready to be drawn as a chart.
+ * The points are kept in two parallel arrays (time and value) instead of one object per point,
+ * so years of results are just two arrays no matter how many points there are.
+ *
+ * The min, max and last aggregates are updated as points are added, so they never need another pass.
+ */
+public class LabTimeSeries
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final String testCode;
+    private final String testName;
+    private final String unit;
+    private long[] times; // epoch millis, never decreasing
+    private double[] values;
+    private int size = 0;
+    private double minValue = Double.NaN;
+    private double maxValue = Double.NaN;
+
+    /**
+     * @param testCode the observation code, e.g. a LOINC code
+     * @param testName the code's display name, can be null
+     * @param unit     the unit every value is in, can be null
+     */
+    public LabTimeSeries(String testCode, String testName, String unit)
+    {
+        this(testCode, testName, unit, INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many points the series will hold, so the arrays never have to grow
+     */
+    public LabTimeSeries(String testCode, String testName, String unit, int capacity)
+    {
+        this.testCode = testCode;
+        this.testName = testName;
+        this.unit = unit;
+        times = new long[Math.max(capacity, 1)];
+        values = new double[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Adds a result to the end of the series. Points have to be added oldest first.
+     * @param time  when the result was issued, in epoch millis
+     * @param value the numeric result
+     */
+    public void add(long time, double value)
+    {
+        if (size > 0 && time < times[size - 1])
+        {
+            throw new IllegalArgumentException("Points have to be added oldest first");
+        }
+
+        if (size == times.length)
+        {
+            // grow by half again, like ArrayList does
+            int capacity = size + (size >> 1) + 1;
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        times[size] = time;
+        values[size] = value;
+        size++;
+
+        if (size == 1 || value < minValue)
+        {
+            minValue = value;
+        }
+
+        if (size == 1 || value > maxValue)
+        {
+            maxValue = value;
+        }
+    }
+
+    /**
+     * Reduces the series to at most maxPoints points for drawing. The first and last points are always kept,
+     * and the points in between are split into equal buckets that each keep their lowest and highest value,
+     * so spikes still show up on the chart.
+     *
+     * @param maxPoints how many points the chart can use, at least 4
+     * @return this series if it's small enough already, otherwise a new smaller series
+     */
+    public LabTimeSeries downsample(int maxPoints)
+    {
+        if (maxPoints < 4)
+        {
+            throw new IllegalArgumentException("maxPoints has to be at least 4, was " + maxPoints);
+        }
+
+        if (size <= maxPoints)
+        {
+            return this;
+        }
+
+        LabTimeSeries downsampled = new LabTimeSeries(testCode, testName, unit, maxPoints);
+        downsampled.add(times[0], values[0]);
+
+        // the points between the first and last one go into buckets of (nearly) equal size
+        int innerCount = size - 2;
+        int bucketCount = (maxPoints - 2) / 2;
+
+        for (int bucket = 0; bucket < bucketCount; bucket++)
+        {
+            int start = 1 + (int) ((long) bucket * innerCount / bucketCount);
+            int end = 1 + (int) ((long) (bucket + 1) * innerCount / bucketCount);
+            int minIndex = start;
+            int maxIndex = start;
+
+            for (int i = start + 1; i < end; i++)
+            {
+                if (values[i] < values[minIndex])
+                {
+                    minIndex = i;
+                }
+
+                if (values[i] > values[maxIndex])
+                {
+                    maxIndex = i;
+                }
+            }
+
+            // add the two in time order so the series stays sorted
+            downsampled.add(times[Math.min(minIndex, maxIndex)], values[Math.min(minIndex, maxIndex)]);
+
+            if (minIndex != maxIndex)
+            {
+                downsampled.add(times[Math.max(minIndex, maxIndex)], values[Math.max(minIndex, maxIndex)]);
+            }
+        }
+
+        downsampled.add(times[size - 1], values[size - 1]);
+
+        return downsampled;
+    }
+
+    /* *******************************************************************************************
+     *  Getters
+     * *******************************************************************************************/
+    public String getTestCode()
+    {
+        return testCode;
+    }
+    public String getTestName()
+    {
+        return testName;
+    }
+    public String getUnit()
+    {
+        return unit;
+    }
+    public int size()
+    {
+        return size;
+    }
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+    public long getTime(int index)
+    {
+        checkIndex(index);
+        return times[index];
+    }
+    public double getValue(int index)
+    {
+        checkIndex(index);
+        return values[index];
+    }
+    /**
+     * @return the lowest value, or NaN if the series is empty
+     */
+    public double getMinValue()
+    {
+        return minValue;
+    }
+    /**
+     * @return the highest value, or NaN if the series is empty
+     */
+    public double getMaxValue()
+    {
+        return maxValue;
+    }
+    /**
+     * @return the most recent value, or NaN if the series is empty
+     */
+    public double getLastValue()
+    {
+        return size > 0 ? values[size - 1] : Double.NaN;
+    }
+    /**
+     * @return when the most recent value was issued, or EpochDateFormat.NO_TIME if the series is empty
+     */
+    public long getLastTime()
+    {
+        return size > 0 ? times[size - 1] : EpochDateFormat.NO_TIME;
+    }
+
+    /**
+     * Copies the times into an array the caller can keep, e.g. to hand to a chart library.
+     */
+    public long[] copyTimes()
+    {
+        return Arrays.copyOf(times, size);
+    }
+
+    /**
+     * Copies the values into an array the caller can keep, e.g. to hand to a chart library.
+     */
+    public double[] copyValues()
+    {
+        return Arrays.copyOf(values, size);
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+}
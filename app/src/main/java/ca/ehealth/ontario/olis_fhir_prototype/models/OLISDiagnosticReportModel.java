@@ -10,18 +10,17 @@ import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.dstu3.model.Organization;
 import org.hl7.fhir.dstu3.model.Practitioner;
 import org.hl7.fhir.dstu3.model.ProcedureRequest;
-import org.hl7.fhir.dstu3.model.Quantity;
-import org.hl7.fhir.dstu3.model.Resource;
-import org.hl7.fhir.dstu3.model.SimpleQuantity;
-import org.hl7.fhir.exceptions.FHIRException;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This model represents a single DiagnosticReport resource returned by OLIS.
  * Implements parcelable so that it can be moved between activities.
+ *
+ * It's built in two tiers. The summary (practitioner, organization, test and release date) is mapped right away for the report list.
+ * The details (every result with its acceptable range) are only decoded by loadDetails() when a report is opened,
+ * so building a long list doesn't decode values nobody looks at.
  */
 public class OLISDiagnosticReportModel implements Parcelable
 {
@@ -30,7 +29,15 @@ public class OLISDiagnosticReportModel implements Parcelable
     private String testPerformed;
     private String testResult;
     private String acceptableRange;
-    private String testReleaseDate;
+    private long testReleaseMillis = EpochDateFormat.NO_TIME; // kept as epoch millis so reports can be compared and sorted without parsing
+    private String testReleaseDisplay; // formatted on first use, the list shows it every time a row is bound
+    private String reportId; // the DiagnosticReport's logical id, so a report can be recognized after a refresh
+    private String healthCardNumber; // the patient the report belongs to, needed with reportId to find the stored report again
+    private boolean isAbnormal = false; // true if any result was flagged abnormal, mapped with the summary so the list can be filtered on it
+    private byte rangeFlag = ReferenceRangeEvaluator.FLAG_UNKNOWN; // the most severe numeric result, from ReferenceRangeEvaluator.flagReports()
+    private double rangeDeviation = 0; // how far outside its range that result is, in range widths
+    private boolean isDetailLoaded = false; // true once testResult and acceptableRange have been decoded
+    private ArrayList<OLISObservationModel> observations = new ArrayList<>(); // every result of the report, once the details are loaded
 
     public OLISDiagnosticReportModel()
     {
@@ -40,67 +47,112 @@ public class OLISDiagnosticReportModel implements Parcelable
     /**
      *  simple constructor for manually creating a DiagnosticReport
      */
-    public OLISDiagnosticReportModel(String practitionerName, String organizationName, String testPerformed, String testResult, String acceptableRange, String testReleaseDate)
+    public OLISDiagnosticReportModel(String practitionerName, String organizationName, String testPerformed, String testResult, String acceptableRange, long testReleaseMillis)
     {
         setPractitionerName(practitionerName);
         setOrganizationName(organizationName);
         setTestPerformed(testPerformed);
         setTestResult(testResult);
         setAcceptableRange(acceptableRange);
-        setTestReleaseDate(testReleaseDate);
+        setTestReleaseMillis(testReleaseMillis);
+        isDetailLoaded = true;
     }
 
     /**
-     * This constructor takes in a given DiagnosticReport resource and extracts the data with mapper methods
+     * This constructor takes in a given DiagnosticReport resource and extracts the summary data with mapper methods.
+     * Call loadDetails() with the same report to fill in the details.
      */
-    public OLISDiagnosticReportModel(DiagnosticReport diagnosticReportResult)
+    public OLISDiagnosticReportModel(DiagnosticReport diagnosticReportResult, String healthCardNumber)
     {
+        setHealthCardNumber(healthCardNumber);
+
+        if (diagnosticReportResult.getIdElement() != null)
+        {
+            setReportId(diagnosticReportResult.getIdElement().getIdPart());
+        }
+
+        // follow the report's references through an index of its contained resources, instead of scanning them for each one
+        ContainedResourceIndex containedResources = new ContainedResourceIndex(diagnosticReportResult);
+
         /* *******************************************************************************************
-         *  DiagnosticReport - Loop through contained resources
+         *  The Practitioner resource
          * *******************************************************************************************/
-        if (diagnosticReportResult.getContained() != null && !diagnosticReportResult.getContained().isEmpty())
+        Practitioner practitioner = containedResources.getPractitioner();
+
+        if (practitioner != null)
         {
-            for (Resource containedResource : diagnosticReportResult.getContained())
-            {
-                /* *******************************************************************************************
-                 *  The Practitioner resource
-                 * *******************************************************************************************/
-                if (containedResource instanceof Practitioner)
-                {
-                    mapPractitioner((Practitioner) containedResource);
-                }
-
-                /* *******************************************************************************************
-                 *  The Organization resource
-                 * *******************************************************************************************/
-                else if (containedResource instanceof Organization)
-                {
-                    mapOrganization((Organization) containedResource);
-                }
-
-                /* *******************************************************************************************
-                 *  The ProcedureRequest resource
-                 * *******************************************************************************************/
-                else if (containedResource instanceof ProcedureRequest)
-                {
-                    mapProcedureRequest((ProcedureRequest) containedResource);
-                }
-
-                /* *******************************************************************************************
-                 *  The Observation resource
-                 * *******************************************************************************************/
-                else if (containedResource instanceof Observation)
-                {
-                    mapObservation((Observation) containedResource);
-                }
-            }
+            mapPractitioner(practitioner);
+        }
+
+        /* *******************************************************************************************
+         *  The Organization resource
+         * *******************************************************************************************/
+        Organization organization = containedResources.getOrganization();
+
+        if (organization != null)
+        {
+            mapOrganization(organization);
+        }
+
+        /* *******************************************************************************************
+         *  The ProcedureRequest resource
+         * *******************************************************************************************/
+        ProcedureRequest procedureRequest = containedResources.getProcedureRequest();
+
+        if (procedureRequest != null)
+        {
+            mapProcedureRequest(procedureRequest);
+        }
+
+        /* *******************************************************************************************
+         *  The release date, from the Observations
+         * *******************************************************************************************/
+        List<Observation> results = containedResources.getObservations();
+        mapReleaseDate(diagnosticReportResult, results);
+
+        /* *******************************************************************************************
+         *  The abnormal flag, from the Observations
+         * *******************************************************************************************/
+        mapAbnormalFlag(results);
+    }
+
+    /**
+     * Decodes the detail fields from every result of the report, so panels keep all of their results.
+     * @param diagnosticReportResult the same DiagnosticReport this model was built from
+     */
+    public void loadDetails(DiagnosticReport diagnosticReportResult)
+    {
+        List<Observation> results = new ContainedResourceIndex(diagnosticReportResult).getObservations();
+        observations = new ArrayList<>(results.size());
+
+        for (Observation observation : results)
+        {
+            observations.add(new OLISObservationModel(observation));
         }
+
+        setTestResult(joinObservations(false));
+        setAcceptableRange(joinObservations(true));
+        isDetailLoaded = true;
     }
 
     /* *******************************************************************************************
      * Resource mappings
      * *******************************************************************************************/
     private void mapPractitioner(Practitioner practitioner)
+    {
+        String practitionerName = getPractitionerName(practitioner);
+
+        if (practitionerName != null)
+        {
+            setPractitionerName(practitionerName);
+        }
+    }
+
+    /**
+     * Also used by LocalFHIRStore, so the practitioners table holds the same name the list shows.
+     * @return the first given name and the family name, or null if either one is missing
+     */
+    public static String getPractitionerName(Practitioner practitioner)
     {
         // Extract practitionerName name
         // OLIS FHIR Specification: practioner.name[x].given[x], practioner.name[x].family
@@ -112,8 +164,10 @@ public class OLISDiagnosticReportModel implements Parcelable
 
         {
             HumanName name = practitioner.getName().get(0);
-            setPractitionerName(name.getGiven().get(0) + " " + name.getFamily());
+            return name.getGiven().get(0) + " " + name.getFamily();
         }
+
+        return null;
     }
 
     private void mapOrganization(Organization organization)
@@ -133,7 +187,7 @@ public class OLISDiagnosticReportModel implements Parcelable
         // OLIS FHIR Specification: procedure.code.coding[x].code, procedure.code.coding[x].display
         if (procedureRequest.getCode() != null
                 && procedureRequest.getCode().getCoding() != null
-                && !procedureRequest.getCode().getCoding().get(0).isEmpty()
+                && !procedureRequest.getCode().getCoding().isEmpty()
                 && procedureRequest.getCode().getCoding().get(0).getCode() != null
                 && procedureRequest.getCode().getCoding().get(0).getDisplay() != null)
         {
@@ -142,54 +196,84 @@ public class OLISDiagnosticReportModel implements Parcelable
         }
     }
 
-    private void mapObservation(Observation observation)
+    private void mapReleaseDate(DiagnosticReport diagnosticReport, List<Observation> results)
     {
-        // Extract acceptable quantity range
-        // OLIS FHIR Specification: observation.referenceRange[x].low.value, observation.referenceRange[x].low.unit
-        //                          observation.referenceRange[x].high.value, observation.referenceRange[x].high.unit
-        if (observation.getReferenceRange() != null
-                && !observation.getReferenceRange().isEmpty()
-                && observation.getReferenceRange().get(0).getLow() !=null
-                && observation.getReferenceRange().get(0).getHigh() !=null)
+        // Extract the release date, a report is released when its last result is
+        // OLIS FHIR Specification: observation.issued, diagnosticReport.issued
+        long releaseMillis = EpochDateFormat.NO_TIME;
+
+        for (Observation observation : results)
         {
-            SimpleQuantity lowObject = observation.getReferenceRange().get(0).getLow();
-            SimpleQuantity highObject = observation.getReferenceRange().get(0).getHigh();
-            setAcceptableRange(lowObject.getValue() + " " + lowObject.getUnit() + " -- " + highObject.getValue() + " " + highObject.getUnit());
+            if (observation.getIssued() != null && observation.getIssued().getTime() > releaseMillis)
+            {
+                releaseMillis = observation.getIssued().getTime();
+            }
         }
 
-        try
+        if (releaseMillis == EpochDateFormat.NO_TIME && diagnosticReport.getIssued() != null)
         {
-            // Extract test testResult
-            // OLIS FHIR Specification: observation.valueQuantity.value, observation.interpretation.coding[x].display
-            //                          observation.valueQuantity.unit
-            if (observation.getValueQuantity() != null
-                    && observation.getValueQuantity().getValue() != null
-                    && observation.getValueQuantity().getUnit() != null
-                    && observation.getInterpretation() != null
-                    && observation.getInterpretation().getCoding() !=null
-                    && !observation.getInterpretation().getCoding().isEmpty()
-                    && observation.getInterpretation().getCoding().get(0).getDisplay() != null)
+            releaseMillis = diagnosticReport.getIssued().getTime();
+        }
+
+        // only the number is kept, it's formatted when the report is shown
+        setTestReleaseMillis(releaseMillis);
+    }
+
+    private void mapAbnormalFlag(List<Observation> results)
+    {
+        // Each result is compared to its own reference range, the lab's interpretation code is only used when there's nothing to compare
+        // OLIS FHIR Specification: observation.valueQuantity.value, observation.referenceRange[x], observation.interpretation.coding[x].code
+        for (Observation observation : results)
+        {
+            byte rangeFlag = ReferenceRangeEvaluator.evaluate(observation);
+
+            if (ReferenceRangeEvaluator.isAbnormalFlag(rangeFlag))
             {
-                Quantity valueQuantity = observation.getValueQuantity();
-                String resultInterpretation = observation.getInterpretation().getCoding().get(0).getDisplay();
-                setTestResult(valueQuantity.getValue() + " " + valueQuantity.getUnit() + " (" + resultInterpretation + ")");
+                setAbnormal(true);
+                return;
             }
 
-            if (observation.getIssued() != null)
+            if (rangeFlag == ReferenceRangeEvaluator.FLAG_UNKNOWN
+                    && observation.hasInterpretation()
+                    && observation.getInterpretation().hasCoding()
+                    && OLISObservationModel.isAbnormalCode(observation.getInterpretation().getCoding().get(0).getCode()))
             {
-                Calendar calendar = Calendar.getInstance();
-                calendar.setTime(observation.getIssued());
-                SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyy", Locale.CANADA);
-
-                setTestReleaseDate(dateFormat.format(observation.getIssued().getTime()));
+                setAbnormal(true);
+                return;
             }
         }
-        catch (FHIRException e)
+    }
+
+    /**
+     * Puts each observation's result (or range) on its own line. Panels get the test name in front of each line.
+     */
+    private String joinObservations(boolean isRange)
+    {
+        StringBuilder joined = new StringBuilder();
+
+        for (OLISObservationModel observation : observations)
         {
-            // Only using a try-catch because we're forced to
-            e.printStackTrace();
+            String value = isRange ? observation.getAcceptableRange() : observation.getTestResult();
+
+            if (value == null)
+            {
+                continue;
+            }
+
+            if (joined.length() > 0)
+            {
+                joined.append('\n');
+            }
+
+            if (observations.size() > 1 && observation.getTestName() != null)
+            {
+                joined.append(observation.getTestName()).append(": ");
+            }
+
+            joined.append(value);
         }
 
+        return joined.length() > 0 ? joined.toString() : null;
     }
 
     /* *******************************************************************************************
@@ -215,9 +299,52 @@ public class OLISDiagnosticReportModel implements Parcelable
     {
         return acceptableRange;
     }
+    /**
+     * @return the release date for display: 24-May-2018(dd-MMM-yyyy), or "n/a" if there isn't one
+     */
     public String getTestReleaseDate()
     {
-        return testReleaseDate;
+        if (testReleaseDisplay == null)
+        {
+            testReleaseDisplay = EpochDateFormat.formatDisplay(testReleaseMillis);
+        }
+
+        return testReleaseDisplay;
+    }
+    public long getTestReleaseMillis()
+    {
+        return testReleaseMillis;
+    }
+    public String getReportId()
+    {
+        return reportId;
+    }
+    public String getHealthCardNumber()
+    {
+        return healthCardNumber;
+    }
+    public boolean isAbnormal()
+    {
+        return isAbnormal;
+    }
+    /**
+     * @return the ReferenceRangeEvaluator flag of the report's most severe numeric result, FLAG_UNKNOWN if it hasn't been flagged
+     */
+    public byte getRangeFlag()
+    {
+        return rangeFlag;
+    }
+    public double getRangeDeviation()
+    {
+        return rangeDeviation;
+    }
+    public boolean isDetailLoaded()
+    {
+        return isDetailLoaded;
+    }
+    public ArrayList<OLISObservationModel> getObservations()
+    {
+        return observations;
     }
 
     /* *******************************************************************************************
@@ -243,9 +370,37 @@ public class OLISDiagnosticReportModel implements Parcelable
     {
         this.acceptableRange = acceptableRange;
     }
-    public void setTestReleaseDate(String testReleaseDate)
+    public void setTestReleaseMillis(long testReleaseMillis)
+    {
+        this.testReleaseMillis = testReleaseMillis;
+        testReleaseDisplay = null;
+    }
+    public void setAbnormal(boolean isAbnormal)
+    {
+        this.isAbnormal = isAbnormal;
+    }
+    public void setRangeFlag(byte rangeFlag, double rangeDeviation)
+    {
+        this.rangeFlag = rangeFlag;
+        this.rangeDeviation = rangeDeviation;
+    }
+    public void setReportId(String reportId)
+    {
+        this.reportId = reportId;
+    }
+    public void setHealthCardNumber(String healthCardNumber)
+    {
+        this.healthCardNumber = healthCardNumber;
+    }
+
+    /**
+     * Marks the details as loaded without a DiagnosticReport, e.g. for a model read back from a ReportSnapshotCodec snapshot.
+     * Unlike loadDetails(), testResult and acceptableRange are left as they are.
+     */
+    public void setDetails(ArrayList<OLISObservationModel> observations)
     {
-        this.testReleaseDate = testReleaseDate;
+        this.observations = observations;
+        isDetailLoaded = true;
     }
 
     /* *******************************************************************************************
@@ -261,10 +416,16 @@ public class OLISDiagnosticReportModel implements Parcelable
     {
         setPractitionerName(in.readString());
         setOrganizationName(in.readString());
-        setTestReleaseDate(in.readString());
+        setTestReleaseMillis(in.readLong());
         setTestPerformed(in.readString());
         setAcceptableRange(in.readString());
         setTestResult(in.readString());
+        setReportId(in.readString());
+        setHealthCardNumber(in.readString());
+        isAbnormal = in.readByte() != 0;
+        setRangeFlag(in.readByte(), in.readDouble());
+        isDetailLoaded = in.readByte() != 0;
+        in.readTypedList(observations, OLISObservationModel.CREATOR);
     }
 
     /**
@@ -277,10 +438,17 @@ public class OLISDiagnosticReportModel implements Parcelable
     {
         dest.writeString(getPractitionerName());
         dest.writeString(getOrganizationName());
-        dest.writeString(getTestReleaseDate());
+        dest.writeLong(getTestReleaseMillis());
         dest.writeString(getTestPerformed());
         dest.writeString(getAcceptableRange());
         dest.writeString(getTestResult());
+        dest.writeString(getReportId());
+        dest.writeString(getHealthCardNumber());
+        dest.writeByte((byte) (isAbnormal() ? 1 : 0));
+        dest.writeByte(getRangeFlag());
+        dest.writeDouble(getRangeDeviation());
+        dest.writeByte((byte) (isDetailLoaded() ? 1 : 0));
+        dest.writeTypedList(observations);
     }
 
     /**
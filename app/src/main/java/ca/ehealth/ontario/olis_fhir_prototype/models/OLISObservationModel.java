@@ -0,0 +1,242 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.SimpleQuantity;
+import org.hl7.fhir.dstu3.model.StringType;
+
+/**
+ * This model represents one result (Observation) of a DiagnosticReport, already formatted for display.
+ * Only the few strings we show are kept, so a panel with hundreds of results stays small,
+ * plus the numbers behind a quantity result (NaN when there aren't any) so it can be flagged or charted without the resource.
+ * Implements parcelable so that it can be moved between activities along with its report.
+ */
+public class OLISObservationModel implements Parcelable
+{
+    private String testName;
+    private String testResult;
+    private String interpretationCode; // e.g. N, H, L, HH, LL, A
+    private String acceptableRange;
+    private double value = Double.NaN;
+    private String unit;
+    private double rangeLow = Double.NaN;
+    private double rangeHigh = Double.NaN;
+
+    public OLISObservationModel()
+    {
+        // use defaults
+    }
+
+    /**
+     * This constructor takes in a given Observation resource and extracts the data we show
+     */
+    public OLISObservationModel(Observation observation)
+    {
+        // Extract test name
+        // OLIS FHIR Specification: observation.code.coding[x].display, observation.code.text
+        if (observation.hasCode())
+        {
+            if (observation.getCode().hasText())
+            {
+                setTestName(observation.getCode().getText());
+            }
+            else if (observation.getCode().hasCoding())
+            {
+                setTestName(observation.getCode().getCoding().get(0).getDisplay());
+            }
+        }
+
+        // Extract acceptable quantity range
+        // OLIS FHIR Specification: observation.referenceRange[x].low.value, observation.referenceRange[x].low.unit
+        //                          observation.referenceRange[x].high.value, observation.referenceRange[x].high.unit
+        if (observation.hasReferenceRange()
+                && observation.getReferenceRange().get(0).hasLow()
+                && observation.getReferenceRange().get(0).hasHigh())
+        {
+            SimpleQuantity lowObject = observation.getReferenceRange().get(0).getLow();
+            SimpleQuantity highObject = observation.getReferenceRange().get(0).getHigh();
+            setAcceptableRange(lowObject.getValue() + " " + lowObject.getUnit() + " -- " + highObject.getValue() + " " + highObject.getUnit());
+        }
+
+        // a one-sided or critical-only range still has its numbers, even without the text above
+        setRangeLow(ReferenceRangeEvaluator.getLow(observation));
+        setRangeHigh(ReferenceRangeEvaluator.getHigh(observation));
+
+        // Extract test result
+        // OLIS FHIR Specification: observation.valueQuantity.value, observation.valueQuantity.unit, observation.valueString
+        //                          observation.interpretation.coding[x].code, observation.interpretation.coding[x].display
+        String resultInterpretation = null;
+
+        if (observation.hasInterpretation() && observation.getInterpretation().hasCoding())
+        {
+            Coding interpretationCoding = observation.getInterpretation().getCoding().get(0);
+            setInterpretationCode(interpretationCoding.getCode());
+            resultInterpretation = interpretationCoding.getDisplay();
+        }
+
+        if (observation.getValue() instanceof Quantity && ((Quantity) observation.getValue()).getValue() != null)
+        {
+            Quantity valueQuantity = (Quantity) observation.getValue();
+            setValue(valueQuantity.getValue().doubleValue());
+            setUnit(valueQuantity.getUnit());
+            setTestResult(valueQuantity.getValue() + (valueQuantity.getUnit() != null ? " " + valueQuantity.getUnit() : ""));
+        }
+        else if (observation.getValue() instanceof StringType)
+        {
+            setTestResult(((StringType) observation.getValue()).getValue());
+        }
+
+        if (getTestResult() != null && resultInterpretation != null)
+        {
+            setTestResult(getTestResult() + " (" + resultInterpretation + ")");
+        }
+    }
+
+    /* *******************************************************************************************
+     *  Getters
+     * *******************************************************************************************/
+    public String getTestName()
+    {
+        return testName;
+    }
+    public String getTestResult()
+    {
+        return testResult;
+    }
+    public String getInterpretationCode()
+    {
+        return interpretationCode;
+    }
+    public String getAcceptableRange()
+    {
+        return acceptableRange;
+    }
+    public double getValue()
+    {
+        return value;
+    }
+    public String getUnit()
+    {
+        return unit;
+    }
+    public double getRangeLow()
+    {
+        return rangeLow;
+    }
+    public double getRangeHigh()
+    {
+        return rangeHigh;
+    }
+    /**
+     * @return true if the result was flagged as anything but normal (e.g. H, L, A)
+     */
+    public boolean isAbnormal()
+    {
+        return isAbnormalCode(interpretationCode);
+    }
+
+    /**
+     * Only N (normal) or no interpretation at all counts as normal.
+     */
+    public static boolean isAbnormalCode(String interpretationCode)
+    {
+        return interpretationCode != null && !interpretationCode.isEmpty() && !"N".equalsIgnoreCase(interpretationCode);
+    }
+
+    /* *******************************************************************************************
+     *  Setters
+     * *******************************************************************************************/
+    public void setTestName(String testName)
+    {
+        this.testName = testName;
+    }
+    public void setTestResult(String testResult)
+    {
+        this.testResult = testResult;
+    }
+    public void setInterpretationCode(String interpretationCode)
+    {
+        this.interpretationCode = interpretationCode;
+    }
+    public void setAcceptableRange(String acceptableRange)
+    {
+        this.acceptableRange = acceptableRange;
+    }
+    public void setValue(double value)
+    {
+        this.value = value;
+    }
+    public void setUnit(String unit)
+    {
+        this.unit = unit;
+    }
+    public void setRangeLow(double rangeLow)
+    {
+        this.rangeLow = rangeLow;
+    }
+    public void setRangeHigh(double rangeHigh)
+    {
+        this.rangeHigh = rangeHigh;
+    }
+
+    /* *******************************************************************************************
+     *  Parcelable stuff goes under here
+     * *******************************************************************************************/
+    /**
+     * Constructor when a parcel object is being given for the Parcelable implementation.
+     * the in.XXXX() statements must occur in the same order as the writeXXXX() statements in writeToParcel().
+     * @param in the parcel coming in
+     */
+    private OLISObservationModel(Parcel in)
+    {
+        setTestName(in.readString());
+        setTestResult(in.readString());
+        setInterpretationCode(in.readString());
+        setAcceptableRange(in.readString());
+        setValue(in.readDouble());
+        setUnit(in.readString());
+        setRangeLow(in.readDouble());
+        setRangeHigh(in.readDouble());
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeString(getTestName());
+        dest.writeString(getTestResult());
+        dest.writeString(getInterpretationCode());
+        dest.writeString(getAcceptableRange());
+        dest.writeDouble(getValue());
+        dest.writeString(getUnit());
+        dest.writeDouble(getRangeLow());
+        dest.writeDouble(getRangeHigh());
+    }
+
+    /**
+     * Auto generated method stub required by parcelable
+     */
+    public static final Creator<OLISObservationModel> CREATOR = new Creator<OLISObservationModel>()
+    {
+        @Override
+        public OLISObservationModel createFromParcel(Parcel in)
+        {
+            return new OLISObservationModel(in);
+        }
+
+        @Override
+        public OLISObservationModel[] newArray(int size)
+        {
+            return new OLISObservationModel[size];
+        }
+    };
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+}
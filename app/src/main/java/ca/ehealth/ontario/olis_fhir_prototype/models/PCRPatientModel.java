@@ -3,22 +3,27 @@ package ca.ehealth.ontario.olis_fhir_prototype.models;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-
 /**
  * This model represents a single patient returned by PCR.
  * Implements parcelable so that it can be moved between activities.
+ * The birth date is kept as an epoch day and only formatted when it's shown or sent in a query.
+ * A patient in the list starts out with only what the local roster has (name and HCN), the rest is filled in by PatientDetailsLoader.
  */
 public class PCRPatientModel implements Parcelable
 {
+    public static final int LOOKUP_PENDING = 0; // only the roster's name and HCN so far
+    public static final int LOOKUP_FOUND = 1; // PCR knows the patient, and the lab total is filled in
+    public static final int LOOKUP_NOT_FOUND = 2; // PCR doesn't know the patient
+    public static final int LOOKUP_FAILED = 3; // PCR or OLIS couldn't be reached
+
     private String name = "n/a";
     private String gender = "n/a";
-    private String dateOfBirth = "n/a";
+    private int dateOfBirthEpochDay = EpochDateFormat.NO_DATE;
+    private String dateOfBirthDisplay; // formatted on first use, the list shows it every time a row is bound
     private String healthCardNumber = "n/a";
     private int labTotal = 0;
+    private long rosterId = 0; // _id of the patient in the local patients table, used to page through the roster
+    private int lookupState = LOOKUP_PENDING;
     
     public PCRPatientModel()
 	{
@@ -26,11 +31,11 @@ public class PCRPatientModel implements Parcelable
     }
 
     // simple constructor for manually creating a PCR patient
-    public PCRPatientModel(String name, String gender, String dateOfBirth, String healthCardNumber, int labTotal)
+    public PCRPatientModel(String name, String gender, int dateOfBirthEpochDay, String healthCardNumber, int labTotal)
 	{
         setName(name);
         setGender(gender);
-        setDateOfBirth(dateOfBirth);
+        setDateOfBirthEpochDay(dateOfBirthEpochDay);
         setHealthCardNumber(healthCardNumber);
         setLabTotal(labTotal);
     }
@@ -44,34 +49,28 @@ public class PCRPatientModel implements Parcelable
 	{
         return gender;
     }
+    /**
+     * @return the birth date for display: 24-May-1987(dd-MMM-yyyy)
+     */
     public String getDateOfBirth()
 	{
-        return dateOfBirth;
-    }
-    public String getDateOfBirthForQuery()
-    {
-        String dateOfBirthForQuery = "n/a";
-
-        try
+        if (dateOfBirthDisplay == null)
         {
-            // format pattern that is returned by PCR (after being formatted by PCRService): 24-May-1987
-            SimpleDateFormat formatReceived = new SimpleDateFormat("dd-MMM-yyyy", Locale.CANADA);
-
-            // parse out the Date object from the birth date using the format object
-            Date birthDate = formatReceived.parse(dateOfBirth);
-
-            // apply a format like: 05-Feb-1987 to the string
-            formatReceived.applyPattern("yyyy-MM-dd");
-
-            // finally, we can save the date with new format applied
-            dateOfBirthForQuery =  formatReceived.format(birthDate);
-        }
-        catch (ParseException e)
-        {
-            e.printStackTrace();
+            dateOfBirthDisplay = EpochDateFormat.formatDisplay(dateOfBirthEpochDay);
         }
 
-        return dateOfBirthForQuery;
+        return dateOfBirthDisplay;
+    }
+    /**
+     * @return the birth date for OLIS queries: 1987-05-24(yyyy-MM-dd)
+     */
+    public String getDateOfBirthForQuery()
+    {
+        return EpochDateFormat.formatQuery(dateOfBirthEpochDay);
+    }
+    public int getDateOfBirthEpochDay()
+    {
+        return dateOfBirthEpochDay;
     }
     public String getHealthCardNumber()
     {
@@ -81,6 +80,14 @@ public class PCRPatientModel implements Parcelable
     {
         return labTotal;
     }
+    public long getRosterId()
+    {
+        return rosterId;
+    }
+    public int getLookupState()
+    {
+        return lookupState;
+    }
 
     // setters
     public void setName(String firstName)
@@ -91,15 +98,53 @@ public class PCRPatientModel implements Parcelable
 	{
         this.gender = gender;
     }
-    public void setDateOfBirth(String dateOfBirth)
+    public void setDateOfBirthEpochDay(int dateOfBirthEpochDay)
 	{
-        this.dateOfBirth = dateOfBirth;
+        this.dateOfBirthEpochDay = dateOfBirthEpochDay;
+        dateOfBirthDisplay = null;
     }
     public void setHealthCardNumber(String healthCardNumber) { this.healthCardNumber = healthCardNumber; }
     public void setLabTotal(int labTotal)
     {
         this.labTotal = labTotal;
     }
+    public void setRosterId(long rosterId)
+    {
+        this.rosterId = rosterId;
+    }
+    public void setLookupState(int lookupState)
+    {
+        this.lookupState = lookupState;
+    }
+
+    /**
+     * @param pcrPatient what PatientDetailsLoader found for this patient, or null if PCR or OLIS couldn't be reached
+     * @return a copy of this roster patient with the lookup filled in. The list's models aren't changed in place, so DiffUtil sees the change.
+     */
+    public PCRPatientModel withLookUp(PCRPatientModel pcrPatient)
+    {
+        PCRPatientModel lookedUpPatient = new PCRPatientModel(name, gender, dateOfBirthEpochDay, healthCardNumber, labTotal);
+        lookedUpPatient.setRosterId(rosterId);
+
+        if (pcrPatient == null)
+        {
+            lookedUpPatient.setLookupState(LOOKUP_FAILED);
+        }
+        else if (pcrPatient.getName() == null || pcrPatient.getName().trim().equals(""))
+        {
+            lookedUpPatient.setLookupState(LOOKUP_NOT_FOUND);
+        }
+        else
+        {
+            lookedUpPatient.setName(pcrPatient.getName());
+            lookedUpPatient.setGender(pcrPatient.getGender());
+            lookedUpPatient.setDateOfBirthEpochDay(pcrPatient.getDateOfBirthEpochDay());
+            lookedUpPatient.setLabTotal(pcrPatient.getLabTotal());
+            lookedUpPatient.setLookupState(LOOKUP_FOUND);
+        }
+
+        return lookedUpPatient;
+    }
 
     /* **************************************************************************************************************************
      * Parcelable stuff goes under here
@@ -113,9 +158,11 @@ public class PCRPatientModel implements Parcelable
     {
         setName(in.readString());
         setGender(in.readString());
-        setDateOfBirth(in.readString());
+        setDateOfBirthEpochDay(in.readInt());
         setHealthCardNumber(in.readString());
         setLabTotal(in.readInt());
+        setRosterId(in.readLong());
+        setLookupState(in.readInt());
     }
 
     /**
@@ -156,8 +203,10 @@ public class PCRPatientModel implements Parcelable
     {
         dest.writeString(getName());
         dest.writeString(getGender());
-        dest.writeString(getDateOfBirth());
+        dest.writeInt(getDateOfBirthEpochDay());
         dest.writeString(getHealthCardNumber());
         dest.writeInt(getLabTotal());
+        dest.writeLong(getRosterId());
+        dest.writeInt(getLookupState());
     }
 }
\ No newline at end of file
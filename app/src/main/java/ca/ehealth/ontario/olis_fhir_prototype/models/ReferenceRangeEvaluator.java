@@ -0,0 +1,452 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.SimpleQuantity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class flags numeric results as low, high or critical by comparing them to their reference range ourselves,
+ * instead of relying on the interpretation coding the lab sent (which isn't always there).
+ *
+ * The results are kept in columns (one primitive array per field) and evaluate() flags all of them in one loop
+ * over those arrays, so checking every loaded observation is a few comparisons per row.
+ * Missing numbers are stored as NaN, and every comparison with NaN is false, so missing bounds simply never trigger.
+ * LocalFHIRStore.loadEvaluatedObservations() fills it from the numbers stored with every observation, so no report is decoded,
+ * and flagReports() hands the results to the report list so it can be sorted by severity and filtered to the abnormal reports.
+ *
+ * Critical limits come from a reference range with the type "critical" when the lab sends one.
+ * Otherwise a result outside its normal range is critical when the lab's interpretation says so (HH, LL or AA).
+ */
+public class ReferenceRangeEvaluator
+{
+    public static final byte FLAG_UNKNOWN = 0; // no numeric value, or nothing to compare it to
+    public static final byte FLAG_NORMAL = 1;
+    public static final byte FLAG_LOW = 2;
+    public static final byte FLAG_HIGH = 3;
+    public static final byte FLAG_CRITICAL_LOW = 4;
+    public static final byte FLAG_CRITICAL_HIGH = 5;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // one entry per observation
+    private String[] reportIds;
+    private String[] testNames;
+    private long[] times;
+    private double[] values;
+    private double[] lows;
+    private double[] highs;
+    private double[] criticalLows;
+    private double[] criticalHighs;
+    private boolean[] isLabCritical; // the lab's interpretation was HH, LL or AA
+    private byte[] flags;
+    private double[] deviations; // how far outside the range the value is, in range widths
+    private int size = 0;
+
+    public ReferenceRangeEvaluator()
+    {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many observations will be added, so the columns never have to grow
+     */
+    public ReferenceRangeEvaluator(int capacity)
+    {
+        int columnSize = Math.max(capacity, 1);
+        reportIds = new String[columnSize];
+        testNames = new String[columnSize];
+        times = new long[columnSize];
+        values = new double[columnSize];
+        lows = new double[columnSize];
+        highs = new double[columnSize];
+        criticalLows = new double[columnSize];
+        criticalHighs = new double[columnSize];
+        isLabCritical = new boolean[columnSize];
+        flags = new byte[columnSize];
+        deviations = new double[columnSize];
+    }
+
+    /**
+     * Adds an observation. Use NaN for any number that's missing. Call evaluate() once everything has been added.
+     */
+    public void add(String reportId, String testName, long time, double value, double low, double high, double criticalLow, double criticalHigh, String interpretationCode)
+    {
+        if (size == values.length)
+        {
+            grow();
+        }
+
+        reportIds[size] = reportId;
+        testNames[size] = testName;
+        times[size] = time;
+        values[size] = value;
+        lows[size] = low;
+        highs[size] = high;
+        criticalLows[size] = criticalLow;
+        criticalHighs[size] = criticalHigh;
+        isLabCritical[size] = isCriticalCode(interpretationCode);
+        size++;
+    }
+
+    /**
+     * Flags every observation that's been added, in one pass over the columns.
+     */
+    public void evaluate()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            flags[i] = evaluate(values[i], lows[i], highs[i], criticalLows[i], criticalHighs[i], isLabCritical[i]);
+            deviations[i] = getDeviation(values[i], lows[i], highs[i]);
+        }
+    }
+
+    /**
+     * Flags a single result.
+     * @param isLabCritical true if the lab's interpretation was HH, LL or AA, used when there are no critical limits
+     * @return one of the FLAG constants
+     */
+    public static byte evaluate(double value, double low, double high, double criticalLow, double criticalHigh, boolean isLabCritical)
+    {
+        // NaN != NaN, so this is the missing value check
+        if (value != value)
+        {
+            return FLAG_UNKNOWN;
+        }
+
+        // before the normal range, a lab can send critical limits without one
+        if (value <= criticalLow)
+        {
+            return FLAG_CRITICAL_LOW;
+        }
+
+        if (value >= criticalHigh)
+        {
+            return FLAG_CRITICAL_HIGH;
+        }
+
+        if (low != low && high != high)
+        {
+            return FLAG_UNKNOWN;
+        }
+
+        if (value < low)
+        {
+            return criticalLow != criticalLow && isLabCritical ? FLAG_CRITICAL_LOW : FLAG_LOW;
+        }
+
+        if (value > high)
+        {
+            return criticalHigh != criticalHigh && isLabCritical ? FLAG_CRITICAL_HIGH : FLAG_HIGH;
+        }
+
+        return FLAG_NORMAL;
+    }
+
+    /**
+     * Flags an Observation resource straight from its value and first reference range.
+     * @return one of the FLAG constants
+     */
+    public static byte evaluate(Observation observation)
+    {
+        String interpretationCode = null;
+
+        if (observation.hasInterpretation() && observation.getInterpretation().hasCoding())
+        {
+            interpretationCode = observation.getInterpretation().getCoding().get(0).getCode();
+        }
+
+        return evaluate(getValue(observation), getLow(observation), getHigh(observation),
+                getCriticalLow(observation), getCriticalHigh(observation), isCriticalCode(interpretationCode));
+    }
+
+    /**
+     * @return true for any flag outside the normal range
+     */
+    public static boolean isAbnormalFlag(byte flag)
+    {
+        return flag >= FLAG_LOW;
+    }
+
+    /**
+     * @return true for the critical flags
+     */
+    public static boolean isCriticalFlag(byte flag)
+    {
+        return flag >= FLAG_CRITICAL_LOW;
+    }
+
+    /**
+     * @param minimumFlag FLAG_LOW for every abnormal result, FLAG_CRITICAL_LOW for critical results only
+     * @param bySeverity  true to put critical results first and then the furthest out of range, false to keep the order they were added in
+     * @return the positions of the matching observations
+     */
+    public int[] getAbnormalPositions(byte minimumFlag, boolean bySeverity)
+    {
+        int[] positions = new int[size];
+        int count = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            if (flags[i] >= minimumFlag && isAbnormalFlag(flags[i]))
+            {
+                positions[count++] = i;
+            }
+        }
+
+        positions = Arrays.copyOf(positions, count);
+
+        if (bySeverity)
+        {
+            // insertion sort by position is stable, and abnormal results are a small part of the whole
+            for (int i = 1; i < count; i++)
+            {
+                int position = positions[i];
+                int j = i - 1;
+
+                while (j >= 0 && isMoreSevere(position, positions[j]))
+                {
+                    positions[j + 1] = positions[j];
+                    j--;
+                }
+
+                positions[j + 1] = position;
+            }
+        }
+
+        return positions;
+    }
+
+    /**
+     * Gives every report the flag and deviation of its most severe result, so the list can be sorted and filtered on them
+     * (see DiagnosticReportListIndex). Reports are matched on their id, so a report without one, or without any numeric result, stays FLAG_UNKNOWN.
+     * Call evaluate() first.
+     */
+    public void flagReports(List<OLISDiagnosticReportModel> reports)
+    {
+        HashMap<String, Integer> worstPositions = new HashMap<>();
+
+        for (int i = 0; i < size; i++)
+        {
+            Integer worstPosition = worstPositions.get(reportIds[i]);
+
+            if (worstPosition == null || isMoreSevere(i, worstPosition))
+            {
+                worstPositions.put(reportIds[i], i);
+            }
+        }
+
+        for (OLISDiagnosticReportModel report : reports)
+        {
+            Integer worstPosition = report.getReportId() != null ? worstPositions.get(report.getReportId()) : null;
+
+            if (worstPosition != null)
+            {
+                report.setRangeFlag(flags[worstPosition], deviations[worstPosition]);
+            }
+        }
+    }
+
+    /**
+     * @return 3 for critical, 2 for low or high, 1 for normal and 0 when the result couldn't be flagged
+     */
+    public static int getSeverity(byte flag)
+    {
+        if (isCriticalFlag(flag))
+        {
+            return 3;
+        }
+
+        if (isAbnormalFlag(flag))
+        {
+            return 2;
+        }
+
+        return flag == FLAG_NORMAL ? 1 : 0;
+    }
+
+    private boolean isMoreSevere(int first, int second)
+    {
+        int firstSeverity = getSeverity(flags[first]);
+        int secondSeverity = getSeverity(flags[second]);
+
+        if (firstSeverity != secondSeverity)
+        {
+            return firstSeverity > secondSeverity;
+        }
+
+        return deviations[first] > deviations[second];
+    }
+
+    /**
+     * @return how far outside [low, high] the value is, as a multiple of the range's width (or of the bound, if there's only one). 0 inside the range
+     */
+    private static double getDeviation(double value, double low, double high)
+    {
+        double width = high - low;
+
+        if (value < low)
+        {
+            return (low - value) / (width > 0 ? width : Math.max(Math.abs(low), 1));
+        }
+
+        if (value > high)
+        {
+            return (value - high) / (width > 0 ? width : Math.max(Math.abs(high), 1));
+        }
+
+        return 0;
+    }
+
+    private void grow()
+    {
+        int capacity = size + (size >> 1) + 1;
+        reportIds = Arrays.copyOf(reportIds, capacity);
+        testNames = Arrays.copyOf(testNames, capacity);
+        times = Arrays.copyOf(times, capacity);
+        values = Arrays.copyOf(values, capacity);
+        lows = Arrays.copyOf(lows, capacity);
+        highs = Arrays.copyOf(highs, capacity);
+        criticalLows = Arrays.copyOf(criticalLows, capacity);
+        criticalHighs = Arrays.copyOf(criticalHighs, capacity);
+        isLabCritical = Arrays.copyOf(isLabCritical, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        deviations = Arrays.copyOf(deviations, capacity);
+    }
+
+    /* *******************************************************************************************
+     *  Reading the numbers out of an Observation, NaN when they're missing
+     *  OLIS FHIR Specification: observation.valueQuantity.value
+     *                           observation.referenceRange[x].low.value, observation.referenceRange[x].high.value, observation.referenceRange[x].type
+     * *******************************************************************************************/
+    public static double getValue(Observation observation)
+    {
+        if (observation.getValue() instanceof Quantity && ((Quantity) observation.getValue()).getValue() != null)
+        {
+            return ((Quantity) observation.getValue()).getValue().doubleValue();
+        }
+
+        return Double.NaN;
+    }
+
+    public static double getLow(Observation observation)
+    {
+        Observation.ObservationReferenceRangeComponent range = getRange(observation, false);
+        return range != null && range.hasLow() ? toDouble(range.getLow()) : Double.NaN;
+    }
+
+    public static double getHigh(Observation observation)
+    {
+        Observation.ObservationReferenceRangeComponent range = getRange(observation, false);
+        return range != null && range.hasHigh() ? toDouble(range.getHigh()) : Double.NaN;
+    }
+
+    public static double getCriticalLow(Observation observation)
+    {
+        Observation.ObservationReferenceRangeComponent range = getRange(observation, true);
+        return range != null && range.hasLow() ? toDouble(range.getLow()) : Double.NaN;
+    }
+
+    public static double getCriticalHigh(Observation observation)
+    {
+        Observation.ObservationReferenceRangeComponent range = getRange(observation, true);
+        return range != null && range.hasHigh() ? toDouble(range.getHigh()) : Double.NaN;
+    }
+
+    /**
+     * @param isCritical true for the range typed "critical", false for the first range that isn't
+     */
+    private static Observation.ObservationReferenceRangeComponent getRange(Observation observation, boolean isCritical)
+    {
+        for (Observation.ObservationReferenceRangeComponent range : observation.getReferenceRange())
+        {
+            if (isCriticalRange(range) == isCritical)
+            {
+                return range;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isCriticalRange(Observation.ObservationReferenceRangeComponent range)
+    {
+        if (!range.hasType())
+        {
+            return false;
+        }
+
+        for (Coding coding : range.getType().getCoding())
+        {
+            if ("critical".equalsIgnoreCase(coding.getCode()))
+            {
+                return true;
+            }
+        }
+
+        return "critical".equalsIgnoreCase(range.getType().getText());
+    }
+
+    private static double toDouble(SimpleQuantity quantity)
+    {
+        return quantity.getValue() != null ? quantity.getValue().doubleValue() : Double.NaN;
+    }
+
+    private static boolean isCriticalCode(String interpretationCode)
+    {
+        return "HH".equalsIgnoreCase(interpretationCode) || "LL".equalsIgnoreCase(interpretationCode) || "AA".equalsIgnoreCase(interpretationCode);
+    }
+
+    /* *******************************************************************************************
+     *  Getters
+     * *******************************************************************************************/
+    public int size()
+    {
+        return size;
+    }
+    public String getReportId(int position)
+    {
+        return reportIds[checkPosition(position)];
+    }
+    public String getTestName(int position)
+    {
+        return testNames[checkPosition(position)];
+    }
+    public long getTime(int position)
+    {
+        return times[checkPosition(position)];
+    }
+    public double getValue(int position)
+    {
+        return values[checkPosition(position)];
+    }
+    public double getLow(int position)
+    {
+        return lows[checkPosition(position)];
+    }
+    public double getHigh(int position)
+    {
+        return highs[checkPosition(position)];
+    }
+    /**
+     * @return one of the FLAG constants, FLAG_UNKNOWN until evaluate() has been called
+     */
+    public byte getFlag(int position)
+    {
+        return flags[checkPosition(position)];
+    }
+
+    private int checkPosition(int position)
+    {
+        if (position < 0 || position >= size)
+        {
+            throw new IndexOutOfBoundsException("Position: " + position + ", size: " + size);
+        }
+
+        return position;
+    }
+}
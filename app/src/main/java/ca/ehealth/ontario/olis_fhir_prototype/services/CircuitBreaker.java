@@ -0,0 +1,144 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+/**
+ * This class stops us from sending requests to a server that keeps failing, so callers fail fast instead of each one
+ * waiting out its timeout (and its retries) against a server that's down.
+ *
+ * -CLOSED: requests go through. After failureThreshold failures in a row it opens.
+ * -OPEN: requests are refused right away. After openMillis it lets one trial request through (HALF_OPEN).
+ * -HALF_OPEN: if the trial works it closes again, if it fails it opens for another openMillis.
+ *
+ * Only failures that say something about the server's health should be recorded (timeouts, connection errors, 5xx).
+ * A 404 means the server is fine, so it's a success as far as the breaker is concerned.
+ */
+public class CircuitBreaker
+{
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private volatile int failureThreshold;
+    private volatile long openMillis;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean isTrialInFlight;
+
+    /**
+     * @param name             e.g. olis, used in messages
+     * @param failureThreshold failures in a row before it opens
+     * @param openMillis       how long it stays open before it tries again
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis)
+    {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true if the request may go ahead. Every request that's let through has to be followed by recordSuccess(), recordFailure() or releaseTrial().
+     */
+    public synchronized boolean allowRequest()
+    {
+        switch (state)
+        {
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                if (System.nanoTime() - openedAtNanos < openMillis * 1000000L)
+                {
+                    return false;
+                }
+
+                // time to see if the server is back, with a single request
+                state = State.HALF_OPEN;
+                isTrialInFlight = true;
+                return true;
+
+            default:
+                // everyone else waits for the trial request to finish
+                if (isTrialInFlight)
+                {
+                    return false;
+                }
+
+                isTrialInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess()
+    {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        isTrialInFlight = false;
+    }
+
+    /**
+     * @return true if this failure opened the breaker
+     */
+    public synchronized boolean recordFailure()
+    {
+        consecutiveFailures++;
+        isTrialInFlight = false;
+
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold))
+        {
+            state = State.OPEN;
+            openedAtNanos = System.nanoTime();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Ends a request that was let through without a verdict on the server, e.g. because it threw an Error.
+     * If it was the trial request, the next request becomes the trial instead, so the breaker isn't left HALF_OPEN for good.
+     */
+    public synchronized void releaseTrial()
+    {
+        isTrialInFlight = false;
+    }
+
+    /**
+     * Closes the breaker, e.g. after pointing the service at another server.
+     */
+    public synchronized void reset()
+    {
+        recordSuccess();
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getFailureThreshold()
+    {
+        return failureThreshold;
+    }
+    public void setFailureThreshold(int failureThreshold)
+    {
+        this.failureThreshold = failureThreshold;
+    }
+    public long getOpenMillis()
+    {
+        return openMillis;
+    }
+    public void setOpenMillis(long openMillis)
+    {
+        this.openMillis = openMillis;
+    }
+}
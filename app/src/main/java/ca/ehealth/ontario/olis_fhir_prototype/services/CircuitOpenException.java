@@ -0,0 +1,12 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+/**
+ * Thrown instead of sending a request while the server's CircuitBreaker is open. Nothing was sent, so this comes back right away.
+ */
+public class CircuitOpenException extends ServiceUnavailableException
+{
+    public CircuitOpenException(String serviceName)
+    {
+        super(serviceName, serviceName + " has been failing, requests are paused for a moment", null);
+    }
+}
@@ -0,0 +1,13 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+/**
+ * Thrown instead of sending a request that waited too long for a slot under the server's ConcurrencyLimiter.
+ * Nothing was sent, so it says nothing about the server's health, only that we already have as many requests in flight as it can take.
+ */
+public class ConcurrencyLimitException extends ServiceUnavailableException
+{
+    public ConcurrencyLimitException(String serviceName, String message)
+    {
+        super(serviceName, message, null);
+    }
+}
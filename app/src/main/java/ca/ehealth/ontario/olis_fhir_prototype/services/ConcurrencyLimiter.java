@@ -0,0 +1,263 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits how many requests we have in flight to one server (OLIS or PCR), and finds that limit on its own,
+ * so a roster load spread over many threads or devices neither leaves the server idle nor piles onto it.
+ *
+ * The limit follows the server's latency:
+ * -a moving average of the last few latencies is compared to a baseline, the lowest that average has been (how fast the server is when it's not busy).
+ *  It's a geometric average, so one very slow request moves it less than a plain average would.
+ *  The baseline creeps up over time (it can double in a minute), so a server that got slower for good becomes the new normal.
+ * -while the average stays under tolerance times the baseline (plus slackMillis, a few ms more is jitter, not queueing),
+ *  the limit grows by 1 for every limit's worth of answers, but only if it's actually being used
+ * -once it goes over, the server is queueing our requests, so the limit shrinks in proportion
+ * -a request that failed for a reason that might be load (a timeout or a 5xx) shrinks the limit by backoffRatio
+ * Requests over the limit wait in line, for up to maxWaitMillis, then fail with a ConcurrencyLimitException without being sent.
+ *
+ * A hedged copy of an attempt (see HedgingPolicy) takes a slot of its own with tryAcquire(), so it counts as the request it is.
+ *
+ * Usage (ResiliencePolicy does this around every attempt):
+ *   concurrencyLimiter.acquire();
+ *   long startTime = Metrics.startTimer();
+ *   ...
+ *   concurrencyLimiter.release(startTime, isOverloaded);
+ */
+public class ConcurrencyLimiter
+{
+    private static final double SHORT_SMOOTHING = 0.05;
+    private static final int WARM_UP_SAMPLES = 40; // before this many the average is still mostly its first few latencies
+    private static final double BASELINE_DRIFT_PER_NANO = Math.log(2) / 60e9; // the baseline can double in a minute
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    private final String name;
+    private volatile int minLimit = 1;
+    private volatile int maxLimit = 64;
+    private volatile long maxWaitMillis = 5000;
+    private volatile double tolerance = 2;
+    private volatile long slackMillis = 10;
+    private volatile double backoffRatio = 0.9;
+
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private double shortLogLatency;
+    private double baselineLogLatency;
+    private long baselineNanos;
+    private int sampleCount;
+
+    private final AtomicLong limitGauge;
+    private final AtomicLong inFlightGauge;
+    private final AtomicLong queuedGauge;
+    private final AtomicLong timeoutCount;
+    private final LatencyHistogram waitHistogram;
+
+    /**
+     * Starts at 8 requests in flight, and moves between 1 and 64.
+     * @param name e.g. olis, also the prefix of its metrics: the gauges olis.limit, olis.inFlight and olis.queued,
+     *             the counter olis.queueTimeouts and the histogram olis.queueWait
+     */
+    public ConcurrencyLimiter(String name)
+    {
+        this.name = name;
+        limitGauge = Metrics.gauge(name + ".limit");
+        inFlightGauge = Metrics.gauge(name + ".inFlight");
+        queuedGauge = Metrics.gauge(name + ".queued");
+        timeoutCount = Metrics.counter(name + ".queueTimeouts");
+        waitHistogram = Metrics.histogram(name + ".queueWait");
+        setLimit(8);
+    }
+
+    /**
+     * Takes a slot for a request, waiting in line if the limit is reached. Every acquire() has to be followed by a release().
+     * @throws ConcurrencyLimitException if no slot came free within maxWaitMillis, or the thread was interrupted while waiting
+     */
+    public synchronized void acquire()
+    {
+        if (inFlight >= (int) limit)
+        {
+            long startTime = Metrics.startTimer();
+            long deadline = startTime + maxWaitMillis * 1000000L;
+            queuedGauge.set(++queued);
+
+            try
+            {
+                while (inFlight >= (int) limit)
+                {
+                    long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+
+                    if (remainingMillis <= 0)
+                    {
+                        timeoutCount.incrementAndGet();
+                        throw new ConcurrencyLimitException(name, name + " is busy, the request waited " + maxWaitMillis + " ms for its turn");
+                    }
+
+                    wait(remainingMillis);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // the task was cancelled, don't send anything
+                Thread.currentThread().interrupt();
+                throw new ConcurrencyLimitException(name, "Interrupted while waiting for " + name);
+            }
+            finally
+            {
+                queuedGauge.set(--queued);
+                waitHistogram.recordSince(startTime);
+            }
+        }
+
+        inFlightGauge.set(++inFlight);
+    }
+
+    /**
+     * Takes a slot only if one is free right now and nobody is waiting in line for one, e.g. for a hedged copy of a request,
+     * which is only worth sending if it doesn't have to queue.
+     * @return true if it got a slot, which has to be given back with release() like any other
+     */
+    public synchronized boolean tryAcquire()
+    {
+        if (inFlight >= (int) limit || queued > 0)
+        {
+            return false;
+        }
+
+        inFlightGauge.set(++inFlight);
+        return true;
+    }
+
+    /**
+     * Gives back a slot without saying anything about the server, e.g. when the CircuitBreaker stopped the request from being sent.
+     */
+    public synchronized void release()
+    {
+        inFlightGauge.set(--inFlight);
+        notifyAll();
+    }
+
+    /**
+     * Gives back a slot and adjusts the limit to how the request went.
+     * @param startTime    Metrics.startTimer() from just after acquire()
+     * @param isOverloaded true if the request failed in a way that might mean the server is overloaded (see ResiliencePolicy.isTransientFailure())
+     */
+    public synchronized void release(long startTime, boolean isOverloaded)
+    {
+        // the limit only has a reason to grow if we were close to it
+        boolean wasLimited = inFlight * 2 >= limit;
+        inFlightGauge.set(--inFlight);
+
+        if (isOverloaded)
+        {
+            setLimit(limit * backoffRatio);
+        }
+        else
+        {
+            adjustLimit(System.nanoTime() - startTime, wasLimited);
+        }
+
+        notifyAll();
+    }
+
+    // guarded by this
+    private void adjustLimit(long latencyNanos, boolean wasLimited)
+    {
+        long now = System.nanoTime();
+
+        // averaging the logs gives the geometric average
+        double logLatency = Math.log(Math.max(1, latencyNanos / 1000.0));
+        shortLogLatency = sampleCount == 0 ? logLatency : shortLogLatency + (logLatency - shortLogLatency) * SHORT_SMOOTHING;
+
+        if (sampleCount < WARM_UP_SAMPLES)
+        {
+            if (++sampleCount == WARM_UP_SAMPLES)
+            {
+                baselineLogLatency = shortLogLatency;
+                baselineNanos = now;
+            }
+
+            return;
+        }
+
+        // it creeps up with time rather than with requests, so a burst of our own requests can't teach it that queueing is normal
+        baselineLogLatency = Math.min(shortLogLatency, baselineLogLatency + (now - baselineNanos) * BASELINE_DRIFT_PER_NANO);
+        baselineNanos = now;
+
+        double acceptableMicros = tolerance * Math.exp(baselineLogLatency) + slackMillis * 1000.0;
+        double gradient = Math.max(0.5, Math.min(1.0, acceptableMicros / Math.exp(shortLogLatency)));
+
+        if (gradient < 1.0)
+        {
+            setLimit(limit - limit * (1.0 - gradient) * LIMIT_SMOOTHING);
+        }
+        else if (wasLimited)
+        {
+            // one more slot for every limit's worth of answers, like TCP, so the average has time to see what it did
+            setLimit(limit + 1.0 / limit);
+        }
+    }
+
+    // guarded by this
+    private void setLimit(double newLimit)
+    {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limitGauge.set((int) limit);
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+    public synchronized int getQueued()
+    {
+        return queued;
+    }
+
+    /**
+     * @param initialLimit where to start, low enough that the server surely keeps up, so the first latencies show how fast it is when it's not busy
+     * @param minLimit     never go lower than this
+     * @param maxLimit     never go higher than this
+     */
+    public synchronized void setLimits(int initialLimit, int minLimit, int maxLimit)
+    {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        setLimit(initialLimit);
+        notifyAll();
+    }
+
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @param maxWaitMillis how long a request can wait in line before it gives up
+     */
+    public void setMaxWaitMillis(long maxWaitMillis)
+    {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * @param tolerance how much slower than usual the latest requests can get before the limit shrinks, e.g. 2
+     */
+    public void setTolerance(double tolerance)
+    {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param slackMillis how much slower than tolerance allows the latest requests can still get, so a fast server's jitter doesn't shrink the limit
+     */
+    public void setSlackMillis(long slackMillis)
+    {
+        this.slackMillis = slackMillis;
+    }
+}
@@ -0,0 +1,268 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+import ca.ehealth.ontario.olis_fhir_prototype.models.ReferenceRangeEvaluator;
+
+/**
+ * This class sorts and filters the reports that are already loaded in PatientSummaryActivity, so changing how the list is
+ * shown never needs another OLIS query.
+ *
+ * Everything that's compared is pulled out of the models once, when the index is built:
+ * -release date     as epoch millis
+ * -test, organization and practitioner    as lower case strings, so comparing them doesn't fold case every time
+ * -abnormal flag    as a boolean, set if the lab flagged a result or ReferenceRangeEvaluator found one outside its range
+ * -severity         the range flag and deviation of the report's most severe result (see ReferenceRangeEvaluator.flagReports())
+ * Each sort order is worked out the first time it's asked for and then kept, so switching back and forth is just a walk over an int[].
+ * The test name sort order doubles as a prefix index: the tests that start with a prefix are one contiguous range of it,
+ * found with a binary search.
+ */
+public class DiagnosticReportListIndex
+{
+    public static final int SORT_BY_DATE = 0; // newest first
+    public static final int SORT_BY_TEST = 1;
+    public static final int SORT_BY_ORGANIZATION = 2;
+    public static final int SORT_BY_PRACTITIONER = 3;
+    public static final int SORT_BY_SEVERITY = 4; // critical first, then the furthest out of range, newest first among equals
+    private static final int SORT_ORDER_COUNT = 5;
+
+    private final OLISDiagnosticReportModel[] reports;
+    private final long[] releaseMillis;
+    private final String[] testKeys;
+    private final String[] organizationKeys;
+    private final String[] practitionerKeys;
+    private final boolean[] isAbnormal;
+    private final int[] severities; // ReferenceRangeEvaluator.getSeverity() of the range flag
+    private final double[] deviations;
+    private final int[][] sortOrders = new int[SORT_ORDER_COUNT][]; // report positions in each sort order, filled in when first used
+
+    /**
+     * Pulls the sort and filter keys out of the reports. The list itself isn't kept, so it can be changed afterwards.
+     */
+    public DiagnosticReportListIndex(List<OLISDiagnosticReportModel> diagnosticReports)
+    {
+        int reportCount = diagnosticReports.size();
+        reports = diagnosticReports.toArray(new OLISDiagnosticReportModel[reportCount]);
+        releaseMillis = new long[reportCount];
+        testKeys = new String[reportCount];
+        organizationKeys = new String[reportCount];
+        practitionerKeys = new String[reportCount];
+        isAbnormal = new boolean[reportCount];
+        severities = new int[reportCount];
+        deviations = new double[reportCount];
+
+        for (int i = 0; i < reportCount; i++)
+        {
+            releaseMillis[i] = reports[i].getTestReleaseMillis();
+            testKeys[i] = toKey(reports[i].getTestPerformed());
+            organizationKeys[i] = toKey(reports[i].getOrganizationName());
+            practitionerKeys[i] = toKey(reports[i].getPractitionerName());
+            isAbnormal[i] = reports[i].isAbnormal() || ReferenceRangeEvaluator.isAbnormalFlag(reports[i].getRangeFlag());
+            severities[i] = ReferenceRangeEvaluator.getSeverity(reports[i].getRangeFlag());
+            deviations[i] = reports[i].getRangeDeviation();
+        }
+    }
+
+    /**
+     * @return how many reports are in the index, before any filter
+     */
+    public int size()
+    {
+        return reports.length;
+    }
+
+    /**
+     * @return the organizations of the reports without duplicates, sorted for a drop down list
+     */
+    public ArrayList<String> getOrganizationNames()
+    {
+        // keyed by the lower case name, so "LifeLabs" and "LIFELABS" are listed once
+        TreeMap<String, String> organizationNames = new TreeMap<>();
+
+        for (int i = 0; i < reports.length; i++)
+        {
+            if (reports[i].getOrganizationName() != null && !organizationNames.containsKey(organizationKeys[i]))
+            {
+                organizationNames.put(organizationKeys[i], reports[i].getOrganizationName());
+            }
+        }
+
+        return new ArrayList<>(organizationNames.values());
+    }
+
+    /**
+     * @param sortOrder        one of the SORT_BY constants
+     * @param testPrefix       only keep reports whose test name starts with this, ignoring case. null or empty keeps every test
+     * @param abnormalOnly     only keep reports with at least one abnormal result
+     * @param organizationName only keep reports from this organization, ignoring case. null keeps every organization
+     * @return a new list of the matching reports, in the requested order
+     */
+    public ArrayList<OLISDiagnosticReportModel> query(int sortOrder, String testPrefix, boolean abnormalOnly, String organizationName)
+    {
+        boolean[] testMatches = null; // null means every test matches
+
+        if (testPrefix != null && !testPrefix.trim().isEmpty())
+        {
+            testMatches = findTestPrefix(toKey(testPrefix.trim()));
+        }
+
+        String organizationKey = organizationName != null ? toKey(organizationName) : null;
+        int[] order = getSortOrder(sortOrder);
+        ArrayList<OLISDiagnosticReportModel> matches = new ArrayList<>(reports.length);
+
+        for (int position : order)
+        {
+            if ((testMatches == null || testMatches[position])
+                    && (!abnormalOnly || isAbnormal[position])
+                    && (organizationKey == null || organizationKey.equals(organizationKeys[position])))
+            {
+                matches.add(reports[position]);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Finds the range of the test name order whose keys start with the prefix.
+     * @return which report positions have a matching test name
+     */
+    private boolean[] findTestPrefix(String prefixKey)
+    {
+        int[] testOrder = getSortOrder(SORT_BY_TEST);
+        boolean[] matches = new boolean[reports.length];
+
+        // the first key that's >= the prefix is where the range starts
+        int start = lowerBound(testOrder, prefixKey);
+
+        for (int i = start; i < testOrder.length && testKeys[testOrder[i]].startsWith(prefixKey); i++)
+        {
+            matches[testOrder[i]] = true;
+        }
+
+        return matches;
+    }
+
+    private int lowerBound(int[] testOrder, String key)
+    {
+        int low = 0;
+        int high = testOrder.length;
+
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if (testKeys[testOrder[middle]].compareTo(key) < 0)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private synchronized int[] getSortOrder(int sortOrder)
+    {
+        if (sortOrder < 0 || sortOrder >= SORT_ORDER_COUNT)
+        {
+            throw new IllegalArgumentException("Unknown sort order: " + sortOrder);
+        }
+
+        if (sortOrders[sortOrder] == null)
+        {
+            int[] order = new int[reports.length];
+
+            for (int i = 0; i < order.length; i++)
+            {
+                order[i] = i;
+            }
+
+            // merge sort is stable, so reports with the same key stay in the order OLIS sent them
+            mergeSort(order, new int[order.length], 0, order.length, sortOrder);
+            sortOrders[sortOrder] = order;
+        }
+
+        return sortOrders[sortOrder];
+    }
+
+    /**
+     * Sorts order[start, end) by the keys of the positions in it. Sorting the int positions means nothing gets boxed.
+     */
+    private void mergeSort(int[] order, int[] scratch, int start, int end, int sortOrder)
+    {
+        if (end - start < 2)
+        {
+            return;
+        }
+
+        int middle = (start + end) >>> 1;
+        mergeSort(order, scratch, start, middle, sortOrder);
+        mergeSort(order, scratch, middle, end, sortOrder);
+
+        // the halves are already in order
+        if (compare(order[middle - 1], order[middle], sortOrder) <= 0)
+        {
+            return;
+        }
+
+        System.arraycopy(order, start, scratch, start, end - start);
+        int left = start;
+        int right = middle;
+
+        for (int i = start; i < end; i++)
+        {
+            if (right >= end || (left < middle && compare(scratch[left], scratch[right], sortOrder) <= 0))
+            {
+                order[i] = scratch[left++];
+            }
+            else
+            {
+                order[i] = scratch[right++];
+            }
+        }
+    }
+
+    private int compare(int first, int second, int sortOrder)
+    {
+        switch (sortOrder)
+        {
+            case SORT_BY_DATE:
+                // newest first, reports without a date (NO_TIME is the smallest long) go last
+                return Long.compare(releaseMillis[second], releaseMillis[first]);
+            case SORT_BY_TEST:
+                return testKeys[first].compareTo(testKeys[second]);
+            case SORT_BY_ORGANIZATION:
+                return organizationKeys[first].compareTo(organizationKeys[second]);
+            case SORT_BY_SEVERITY:
+                if (severities[first] != severities[second])
+                {
+                    return Integer.compare(severities[second], severities[first]);
+                }
+
+                if (deviations[first] != deviations[second])
+                {
+                    return Double.compare(deviations[second], deviations[first]);
+                }
+
+                return compare(first, second, SORT_BY_DATE);
+            default:
+                return practitionerKeys[first].compareTo(practitionerKeys[second]);
+        }
+    }
+
+    /**
+     * Missing values become the highest char so they sort after every name instead of before.
+     */
+    private static String toKey(String value)
+    {
+        return value != null ? value.toLowerCase(Locale.CANADA) : "\uffff";
+    }
+}
@@ -0,0 +1,170 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+
+/**
+ * This class turns the DiagnosticReports in an OLIS Bundle into the models shown in the report list.
+ * It's meant to be called from a background thread (e.g. OLISAsyncTask.doInBackground), so the UI thread only gets the finished list.
+ *
+ * Mapping a report walks all of its contained resources, so large Bundles are split into chunks that are mapped in parallel.
+ * Each chunk writes into its own slots of one array, so the models come out in the same order as the Bundle.
+ *
+ * Only the list summary of each report is mapped here. The details are decoded when a report is opened, see ReportDetailsAsyncTask.
+ */
+public class DiagnosticReportMapper
+{
+    private static final int PARALLEL_THRESHOLD = 64; // below this, starting threads costs more than it saves
+    private static final int MIN_CHUNK_SIZE = 16;
+    private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService mappingExecutor;
+
+    /**
+     * @param resultBundle an OLIS search result, anything that isn't a DiagnosticReport is ignored
+     * @param healthCardNumber the patient the reports belong to, used to find a report again in LocalFHIRStore
+     * @return one model per DiagnosticReport, in Bundle order
+     */
+    public static ArrayList<OLISDiagnosticReportModel> mapReports(Bundle resultBundle, final String healthCardNumber)
+    {
+        // Metrics.REPORT_MAP times each report, possibly on the mapping threads, this is the whole call on the caller's thread
+        long startTime = Metrics.startTimer();
+        final List<DiagnosticReport> diagnosticReports = new ArrayList<>();
+
+        if (resultBundle != null)
+        {
+            for (Bundle.BundleEntryComponent entry : resultBundle.getEntry())
+            {
+                if (entry.getResource() instanceof DiagnosticReport)
+                {
+                    diagnosticReports.add((DiagnosticReport) entry.getResource());
+                }
+            }
+        }
+
+        final OLISDiagnosticReportModel[] mappedReports = new OLISDiagnosticReportModel[diagnosticReports.size()];
+        int chunkCount = Math.min(THREAD_COUNT, mappedReports.length / MIN_CHUNK_SIZE);
+
+        if (mappedReports.length < PARALLEL_THRESHOLD || chunkCount < 2)
+        {
+            mapRange(diagnosticReports, healthCardNumber, mappedReports, 0, mappedReports.length);
+        }
+        else
+        {
+            List<Future<?>> chunks = new ArrayList<>(chunkCount);
+            int chunkSize = (mappedReports.length + chunkCount - 1) / chunkCount;
+
+            for (int start = 0; start < mappedReports.length; start += chunkSize)
+            {
+                final int chunkStart = start;
+                final int chunkEnd = Math.min(start + chunkSize, mappedReports.length);
+
+                chunks.add(getMappingExecutor().submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        mapRange(diagnosticReports, healthCardNumber, mappedReports, chunkStart, chunkEnd);
+                        return null;
+                    }
+                }));
+            }
+
+            waitForChunks(chunks);
+        }
+
+        MainThreadWatchdog.check("report.mapReports", startTime);
+        return new ArrayList<>(Arrays.asList(mappedReports));
+    }
+
+    /**
+     * Maps reports [start, end). Every report belongs to exactly one chunk, so no two threads ever touch the same resource.
+     */
+    private static void mapRange(List<DiagnosticReport> diagnosticReports, String healthCardNumber, OLISDiagnosticReportModel[] mappedReports, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            long startTime = Metrics.startTimer();
+            OLISDiagnosticReportModel mappedReport = new OLISDiagnosticReportModel(diagnosticReports.get(i), healthCardNumber);
+
+            // a report without an id can't be looked up again later, so its details have to be decoded now
+            if (mappedReport.getReportId() == null)
+            {
+                mappedReport.loadDetails(diagnosticReports.get(i));
+            }
+
+            mappedReports[i] = mappedReport;
+            Metrics.REPORT_MAP.recordSince(startTime);
+        }
+
+        Metrics.REPORTS_MAPPED.addAndGet(end - start);
+    }
+
+    private static void waitForChunks(List<Future<?>> chunks)
+    {
+        try
+        {
+            for (Future<?> chunk : chunks)
+            {
+                chunk.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // the task was cancelled, the remaining chunks aren't needed anymore
+            for (Future<?> chunk : chunks)
+            {
+                chunk.cancel(true);
+            }
+
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Mapping DiagnosticReports was interrupted", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalStateException("Mapping DiagnosticReports failed", e.getCause());
+        }
+    }
+
+    /**
+     * One pool is shared by every mapping so threads are only started once. They're daemon threads so they never keep the app alive.
+     */
+    private static synchronized ExecutorService getMappingExecutor()
+    {
+        if (mappingExecutor == null)
+        {
+            mappingExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory()
+            {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "report-mapper-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return mappingExecutor;
+    }
+}
@@ -0,0 +1,193 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the app's FHIR work (syncing with OLIS, loading, decoding and mapping stored reports) on one small pool of
+ * background threads, and hands the result back on the main thread. Everything goes through submit(), so the work can't pile up
+ * on AsyncTask's shared thread, and how long it waits for a thread is recorded in Metrics.FHIR_QUEUE_WAIT.
+ * MainThreadWatchdog reports any FHIR work that still ends up on the main thread.
+ *
+ * Usage, e.g. in an activity:
+ *   FHIRBackgroundExecutor.submit(new Callable<DiagnosticReport>()
+ *   {
+ *       public DiagnosticReport call() { return localFHIRStore.loadReport(...); }
+ *   }, new FHIRBackgroundExecutor.Callback<DiagnosticReport>()
+ *   {
+ *       public void onResult(DiagnosticReport report) { ...update the views... }
+ *       public void onError(Exception e) { ...show an error... }
+ *   });
+ *
+ * The AsyncTasks that do FHIR work are started on it instead of AsyncTask's own executor:
+ *   new ReportListAsyncTask(this).executeOnExecutor(FHIRBackgroundExecutor.getExecutor(), healthCardNumber);
+ *
+ * The callback holds whatever it refers to (e.g. the activity) until the work is done, so cancel the returned Future in onDestroy().
+ */
+public class FHIRBackgroundExecutor
+{
+    private static final int THREAD_COUNT = 2; // FHIR work is mostly one big Bundle at a time, the rest of the cores are for the mapper
+
+    private static ExecutorService executorService;
+    private static Handler mainThreadHandler;
+
+    // for AsyncTask.executeOnExecutor(), it sends the task through submit() like any other work
+    private static final Executor executor = new Executor()
+    {
+        @Override
+        public void execute(Runnable task)
+        {
+            submit(Executors.callable(task), null);
+        }
+    };
+
+    /**
+     * Gets the result of the work, on the main thread. Neither method is called if the work was cancelled.
+     */
+    public interface Callback<T>
+    {
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+
+    private FHIRBackgroundExecutor()
+    {
+    }
+
+    /**
+     * Runs the work on one of the FHIR threads. Safe to call from any thread.
+     * @param callback gets the result on the main thread, or null if the work hands back its own result (e.g. an AsyncTask)
+     * @return the work, to cancel it (e.g. when the activity waiting for it is destroyed)
+     */
+    public static <T> Future<T> submit(final Callable<T> work, final Callback<T> callback)
+    {
+        final long queuedTime = Metrics.startTimer();
+
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                Metrics.FHIR_QUEUE_WAIT.recordSince(queuedTime);
+                return work.call();
+            }
+        })
+        {
+            // called on the background thread once the work is done, failed or was cancelled
+            @Override
+            protected void done()
+            {
+                if (callback == null || isCancelled())
+                {
+                    return;
+                }
+
+                T result = null;
+                Exception failure = null;
+
+                try
+                {
+                    result = get();
+                }
+                catch (ExecutionException e)
+                {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                catch (InterruptedException e)
+                {
+                    // can't happen, the work is already done
+                    failure = e;
+                }
+
+                final T finalResult = result;
+                final Exception finalFailure = failure;
+
+                getMainThreadHandler().post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // it may have been cancelled while this was waiting for the main thread
+                        if (isCancelled())
+                        {
+                            return;
+                        }
+
+                        if (finalFailure != null)
+                        {
+                            callback.onError(finalFailure);
+                        }
+                        else
+                        {
+                            callback.onResult(finalResult);
+                        }
+                    }
+                });
+            }
+        };
+
+        getExecutorService().execute(task);
+        return task;
+    }
+
+    /**
+     * @return an Executor that sends everything through submit(), for AsyncTask.executeOnExecutor()
+     */
+    public static Executor getExecutor()
+    {
+        return executor;
+    }
+
+    private static synchronized Handler getMainThreadHandler()
+    {
+        if (mainThreadHandler == null)
+        {
+            mainThreadHandler = new Handler(Looper.getMainLooper());
+        }
+
+        return mainThreadHandler;
+    }
+
+    private static synchronized ExecutorService getExecutorService()
+    {
+        if (executorService == null)
+        {
+            final AtomicInteger threadNumber = new AtomicInteger();
+
+            executorService = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    Thread thread = new Thread(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            // below the UI thread, like AsyncTask's threads
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "fhir-background-" + threadNumber.incrementAndGet());
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return executorService;
+    }
+}
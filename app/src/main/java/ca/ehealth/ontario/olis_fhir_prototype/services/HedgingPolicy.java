@@ -0,0 +1,369 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class cuts the tail latency of a read: if it hasn't answered by the time most requests have (say the 95th percentile so far),
+ * the same request is sent again and whichever answer comes back first is used. The other one is cancelled.
+ *
+ * Hedges are paid for out of a budget, so the extra load on the server stays bounded: every request adds budgetRatio
+ * (e.g. 0.1) to the budget, up to maxBudget, and every hedge spends 1. With a ratio of 0.1, at most about 1 request in 10 is sent twice.
+ *
+ * The delay comes from a LatencyHistogram of the same requests, which this class records into itself. Only the copy whose answer
+ * is used is recorded, so the cancelled loser of every hedge doesn't drag the percentile towards its own cut-off latency.
+ * Until it has minSamples values, defaultDelayMillis is used.
+ * The request has to be safe to run twice at the same time, on other threads than the caller's.
+ *
+ * With a ConcurrencyLimiter, the hedge takes a slot of its own (the caller already holds one for the first copy, see ResiliencePolicy),
+ * so both copies count against the limit while they're in flight. If no slot is free right away the request isn't hedged,
+ * the server already has all the requests it can take. The hedge gives its slot back when it ends, with its own latency.
+ */
+public class HedgingPolicy
+{
+    private final String name;
+    private final LatencyHistogram latencyHistogram;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private volatile boolean isEnabled;
+    private volatile double percentile = 95;
+    private volatile long minDelayMillis = 50;
+    private volatile long defaultDelayMillis = 1000;
+    private volatile int minSamples = 20;
+    private volatile double budgetRatio = 0.1;
+    private volatile double maxBudget = 10;
+
+    // guarded by this. Starts full, so the first slow requests can be hedged too.
+    private double budget = maxBudget;
+
+    private final AtomicLong hedgeCount;
+    private final AtomicLong hedgeWinCount;
+    private final AtomicLong deniedCount;
+
+    private final ExecutorService executor;
+
+    /**
+     * Starts disabled: hedges at p95 (at least 50 ms, 1 s until 20 requests have been timed) with a budget of 1 hedge per 10 requests.
+     * @param name             e.g. olis, also the prefix of its counters in Metrics (olis.hedges, olis.hedgeWins, olis.hedgeDenied)
+     * @param latencyHistogram where the request's latencies are recorded, e.g. Metrics.OLIS_QUERY. Nothing else should record into it.
+     */
+    public HedgingPolicy(String name, LatencyHistogram latencyHistogram)
+    {
+        this(name, latencyHistogram, null);
+    }
+
+    /**
+     * @param concurrencyLimiter the limiter the caller takes its slot from (e.g. ResiliencePolicy.getConcurrencyLimiter()), for the hedge's own slot
+     */
+    public HedgingPolicy(String name, LatencyHistogram latencyHistogram, ConcurrencyLimiter concurrencyLimiter)
+    {
+        this.name = name;
+        this.latencyHistogram = latencyHistogram;
+        this.concurrencyLimiter = concurrencyLimiter;
+        hedgeCount = Metrics.counter(name + ".hedges");
+        hedgeWinCount = Metrics.counter(name + ".hedgeWins");
+        deniedCount = Metrics.counter(name + ".hedgeDenied");
+
+        // the caller blocks until one of its requests is done, so there are never more than two threads per caller
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, HedgingPolicy.this.name + "-hedge-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs the request, and a second copy of it if the first is slow and the budget allows it. Runs it on the calling thread when disabled.
+     * @return the first answer to come back
+     * @throws InterruptedException if the calling thread was interrupted while waiting, both copies are cancelled then
+     * @throws Exception            the request's exception, if both copies failed (or the only one did)
+     */
+    public <T> T execute(Callable<T> request) throws Exception
+    {
+        if (!isEnabled)
+        {
+            long startTime = Metrics.startTimer();
+
+            try
+            {
+                return request.call();
+            }
+            finally
+            {
+                latencyHistogram.recordSince(startTime);
+            }
+        }
+
+        depositBudget(budgetRatio);
+
+        CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        TimedRequest<T> primaryRequest = new TimedRequest<>(request, null); // its slot is the caller's
+        TimedRequest<T> hedgeRequest = new TimedRequest<>(request, concurrencyLimiter);
+        Future<T> primary = completionService.submit(primaryRequest);
+        Future<T> hedge = null;
+
+        try
+        {
+            Future<T> used = completionService.poll(getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+
+            if (used == null)
+            {
+                if (!withdrawBudget())
+                {
+                    deniedCount.incrementAndGet();
+                }
+                else if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire())
+                {
+                    // the server has all the requests the limiter allows, a hedge would only add to its queue
+                    depositBudget(1);
+                    deniedCount.incrementAndGet();
+                }
+                else
+                {
+                    hedge = completionService.submit(hedgeRequest);
+                    hedgeCount.incrementAndGet();
+                }
+
+                used = completionService.take();
+            }
+
+            if (hedge != null)
+            {
+                try
+                {
+                    used.get(); // it's done, this doesn't wait
+                }
+                catch (ExecutionException e)
+                {
+                    // one copy failed, the other one may still get an answer
+                    used = completionService.take();
+                }
+            }
+
+            try
+            {
+                T result = used.get();
+
+                if (used == hedge)
+                {
+                    hedgeWinCount.incrementAndGet();
+                }
+
+                return result;
+            }
+            catch (ExecutionException e)
+            {
+                throw unwrap(e);
+            }
+            finally
+            {
+                // only the copy we're answering with, the other one is cancelled or its failure was ignored
+                latencyHistogram.recordMicros((used == primary ? primaryRequest : hedgeRequest).getLatencyMicros());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // the caller was cancelled while it waited, the finally below cancels both copies
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        finally
+        {
+            // the loser's answer is thrown away. Interrupting it is the best we can do, a blocking socket read won't always notice.
+            primary.cancel(true);
+
+            if (hedge != null)
+            {
+                hedge.cancel(true);
+                hedgeRequest.releaseIfNeverStarted();
+            }
+        }
+    }
+
+    /**
+     * @return how long to wait before hedging: the configured percentile of the latencies so far, but at least minDelayMillis
+     */
+    public long getHedgeDelayMillis()
+    {
+        if (latencyHistogram.getCount() < minSamples)
+        {
+            return defaultDelayMillis;
+        }
+
+        return Math.max(minDelayMillis, latencyHistogram.getPercentileMicros(percentile) / 1000);
+    }
+
+    private synchronized void depositBudget(double amount)
+    {
+        budget = Math.min(maxBudget, budget + amount);
+    }
+
+    private synchronized boolean withdrawBudget()
+    {
+        if (budget < 1)
+        {
+            return false;
+        }
+
+        budget--;
+        return true;
+    }
+
+    /**
+     * Times one copy of the request on the thread that runs it, so each copy's latency is its own rather than the caller's wait.
+     * A copy with its own limiter slot gives it back when it ends, or through releaseIfNeverStarted() if it was cancelled before it ran.
+     */
+    private static class TimedRequest<T> implements Callable<T>
+    {
+        private final Callable<T> request;
+        private final ConcurrencyLimiter concurrencyLimiter; // the copy's own slot, null if the caller holds it
+        private final AtomicBoolean isStarted = new AtomicBoolean();
+        private volatile long startNanos;
+        private volatile long endNanos;
+
+        private TimedRequest(Callable<T> request, ConcurrencyLimiter concurrencyLimiter)
+        {
+            this.request = request;
+            this.concurrencyLimiter = concurrencyLimiter;
+        }
+
+        @Override
+        public T call() throws Exception
+        {
+            if (!isStarted.compareAndSet(false, true))
+            {
+                // cancelled while it was queued, and its slot was already given back
+                throw new CancellationException();
+            }
+
+            startNanos = Metrics.startTimer();
+            boolean isOverloaded = false;
+            boolean isCancelled = false;
+
+            try
+            {
+                return request.call();
+            }
+            catch (InterruptedException e)
+            {
+                isCancelled = true;
+                throw e;
+            }
+            catch (Exception e)
+            {
+                isOverloaded = ResiliencePolicy.isTransientFailure(e);
+                throw e;
+            }
+            finally
+            {
+                endNanos = System.nanoTime();
+
+                if (concurrencyLimiter != null)
+                {
+                    if (isCancelled || Thread.currentThread().isInterrupted())
+                    {
+                        // the loser, cut short, how long it took says nothing about the server
+                        concurrencyLimiter.release();
+                    }
+                    else
+                    {
+                        concurrencyLimiter.release(startNanos, isOverloaded);
+                    }
+                }
+            }
+        }
+
+        private void releaseIfNeverStarted()
+        {
+            if (isStarted.compareAndSet(false, true) && concurrencyLimiter != null)
+            {
+                concurrencyLimiter.release();
+            }
+        }
+
+        /**
+         * @return how long the copy took, only once its Future is done
+         */
+        private long getLatencyMicros()
+        {
+            return (endNanos - startNanos) / 1000;
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e)
+    {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    public boolean isEnabled()
+    {
+        return isEnabled;
+    }
+    public void setEnabled(boolean isEnabled)
+    {
+        this.isEnabled = isEnabled;
+    }
+    public double getPercentile()
+    {
+        return percentile;
+    }
+
+    /**
+     * @param percentile e.g. 95 to hedge the requests slower than 95% of the ones before them
+     */
+    public void setPercentile(double percentile)
+    {
+        this.percentile = percentile;
+    }
+
+    /**
+     * @param minDelayMillis     never hedge sooner than this, however fast the requests have been
+     * @param defaultDelayMillis the delay until there are enough latencies to go by
+     * @param minSamples         how many latencies are enough
+     */
+    public void setDelays(long minDelayMillis, long defaultDelayMillis, int minSamples)
+    {
+        this.minDelayMillis = minDelayMillis;
+        this.defaultDelayMillis = defaultDelayMillis;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * @param budgetRatio hedges earned per request, e.g. 0.1 for at most 1 hedge per 10 requests
+     * @param maxBudget   how many unspent hedges can be saved up for a burst of slow requests
+     */
+    public void setBudget(double budgetRatio, double maxBudget)
+    {
+        this.budgetRatio = budgetRatio;
+        this.maxBudget = maxBudget;
+
+        synchronized (this)
+        {
+            budget = Math.min(budget, maxBudget);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+import ca.ehealth.ontario.olis_fhir_prototype.activities.LabQueryActivity;
+import ca.ehealth.ontario.olis_fhir_prototype.models.LabQueryResultModel;
+
+/**
+ * This class runs one LabQueryService query in the background and hands the matching patients to LabQueryActivity.
+ * Nothing is sent to OLIS, the query only reads the local database.
+ */
+public class LabQueryAsyncTask extends AsyncTask<Void, Void, ArrayList<LabQueryResultModel>>
+{
+    private LabQueryService labQueryService;
+    private String testCode;
+    private double threshold;
+    private int dayCount;
+    private boolean isPendingQuery;
+    private long elapsedMillis;
+
+    // We want to keep a WeakReference to the activity context first, and then when we need it we check to see if it is still valid.
+    // This is done to prevent memory leaks which would be caused by using something like: private Context myContext;
+    private final WeakReference<Activity> weakReference;
+
+    /**
+     * Finds the patients with a result above the threshold in the last dayCount days.
+     */
+    public static LabQueryAsyncTask resultsAbove(Activity inActivity, String testCode, double threshold, int dayCount)
+    {
+        LabQueryAsyncTask labQueryAsyncTask = new LabQueryAsyncTask(inActivity, testCode);
+        labQueryAsyncTask.threshold = threshold;
+        labQueryAsyncTask.dayCount = dayCount;
+        return labQueryAsyncTask;
+    }
+
+    /**
+     * Finds the patients with results that aren't final yet.
+     */
+    public static LabQueryAsyncTask pendingResults(Activity inActivity, String testCode)
+    {
+        LabQueryAsyncTask labQueryAsyncTask = new LabQueryAsyncTask(inActivity, testCode);
+        labQueryAsyncTask.isPendingQuery = true;
+        return labQueryAsyncTask;
+    }
+
+    private LabQueryAsyncTask(Activity inActivity, String testCode)
+    {
+        weakReference = new WeakReference<>(inActivity);
+        labQueryService = new LabQueryService(inActivity);
+        this.testCode = testCode;
+    }
+
+    protected ArrayList<LabQueryResultModel> doInBackground(Void... voids)
+    {
+        long startTime = SystemClock.elapsedRealtime();
+        ArrayList<LabQueryResultModel> results = new ArrayList<>();
+
+        try
+        {
+            results = isPendingQuery ? labQueryService.findPendingResults(testCode) : labQueryService.findResultsAbove(testCode, threshold, dayCount);
+        }
+        catch (Exception e)
+        {
+            Log.d("LabQueryAsyncTask", e.toString());
+        }
+
+        elapsedMillis = SystemClock.elapsedRealtime() - startTime;
+
+        return results;
+    }
+
+    /**
+     * @param results this was retrieved in doInBackround()
+     */
+    protected void onPostExecute(ArrayList<LabQueryResultModel> results)
+    {
+        Activity activity = weakReference.get();
+
+        // use weak reference to get a strong reference
+        //if its no longer valid, then end this task
+        if (activity == null || activity.isFinishing() || activity.isDestroyed())
+        {
+            // activity is no longer valid, don't do anything!
+            return;
+        }
+
+        ((LabQueryActivity) activity).showResults(results, elapsedMillis);
+    }
+}
@@ -0,0 +1,103 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
+import ca.ehealth.ontario.olis_fhir_prototype.models.LabQueryResultModel;
+
+/**
+ * This class answers lab questions across the whole roster from the reports we've already synced, e.g.
+ * -which of my patients have an HbA1c above 7 in the last 90 days
+ * -who has potassium results that are still pending
+ * Asking OLIS would take one query per patient. Locally each question is a single indexed query on the observations table,
+ * which only reads the rows of the test being asked about (see the version 6 indexes in LocalSQLOpenHelper).
+ *
+ * Only patients in the local roster are returned, one row each. Queries the local database, so call it from a background thread.
+ */
+public class LabQueryService
+{
+    // observation statuses for results that aren't final yet
+    private static final String PENDING_STATUSES = "('registered', 'preliminary')";
+
+    // the latest matching result per patient: SQLite fills the other columns from the row MAX() picked.
+    // The indexes are named because with GROUP BY hcn the planner tends to pick the per-patient index instead,
+    // which reads every patient's rows and was several times slower on a large roster.
+    private static final String SQL_ABOVE = "SELECT p._id, p.name, o.hcn, COALESCE(o.code_display, o.code), o.value, o.unit, o.status, MAX(o.issued) "
+            + "FROM observations o INDEXED BY observations_code_issued_value_idx JOIN patients p ON p.hcn = o.hcn "
+            + "WHERE o.code = ? AND o.issued >= ? AND o.value > ? "
+            + "GROUP BY o.hcn ORDER BY o.value DESC";
+    private static final String SQL_PENDING = "SELECT p._id, p.name, o.hcn, COALESCE(o.code_display, o.code), o.value, o.unit, o.status, MAX(o.issued) "
+            + "FROM observations o INDEXED BY observations_code_status_idx JOIN patients p ON p.hcn = o.hcn "
+            + "WHERE o.code = ? AND o.status IN " + PENDING_STATUSES + " "
+            + "GROUP BY o.hcn ORDER BY MAX(o.issued) DESC";
+
+    private LocalSQLOpenHelper sqLiteOpenHelper;
+
+    public LabQueryService(Context context)
+    {
+        sqLiteOpenHelper = LocalSQLOpenHelper.getInstance(context);
+    }
+
+    /**
+     * Finds the patients with a result for the test above a threshold, issued in the last few days.
+     *
+     * @param testCode  the observation code of the test, e.g. 4548-4 for HbA1c
+     * @param threshold only results strictly above this count
+     * @param dayCount  how many days back to look, counting today
+     * @return one row per patient with their latest result above the threshold, highest value first
+     */
+    public ArrayList<LabQueryResultModel> findResultsAbove(String testCode, double threshold, int dayCount)
+    {
+        // midnight at the start of the first day, in the device's time zone
+        int firstDay = EpochDateFormat.today() - Math.max(dayCount - 1, 0);
+        long sinceMillis = EpochDateFormat.toStartOfDayMillis(firstDay);
+
+        return runQuery(SQL_ABOVE, new String[]{testCode, String.valueOf(sinceMillis), String.valueOf(threshold)});
+    }
+
+    /**
+     * Finds the patients with results for the test that are registered or preliminary, but not final yet.
+     *
+     * @param testCode the observation code of the test, e.g. 2823-3 for potassium
+     * @return one row per patient with their latest pending result, newest first
+     */
+    public ArrayList<LabQueryResultModel> findPendingResults(String testCode)
+    {
+        return runQuery(SQL_PENDING, new String[]{testCode});
+    }
+
+    private ArrayList<LabQueryResultModel> runQuery(String sql, String[] selectionArgs)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        ArrayList<LabQueryResultModel> results = new ArrayList<>();
+
+        Cursor cursor = db.rawQuery(sql, selectionArgs);
+
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                LabQueryResultModel result = new LabQueryResultModel();
+                result.setRosterId(cursor.getLong(0));
+                result.setPatientName(cursor.getString(1));
+                result.setHealthCardNumber(cursor.getString(2));
+                result.setTestName(cursor.getString(3));
+                result.setValue(cursor.isNull(4) ? Double.NaN : cursor.getDouble(4));
+                result.setUnit(cursor.getString(5));
+                result.setStatus(cursor.getString(6));
+                result.setIssuedMillis(cursor.isNull(7) ? EpochDateFormat.NO_TIME : cursor.getLong(7));
+                results.add(result);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return results;
+    }
+}
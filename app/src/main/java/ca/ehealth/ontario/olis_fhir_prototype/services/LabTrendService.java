@@ -0,0 +1,128 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.LabTimeSeries;
+
+/**
+ * This class reads a patient's numeric results back out of the observations table (written by LocalFHIRStore) as time series,
+ * one per test, so they can be trended without parsing the display strings of the report models.
+ *
+ * A test is identified by its observation code and unit, so results reported in different units never end up on the same chart.
+ * A result without an issued time uses its report's collection or release time instead.
+ *
+ * Queries the local database, so call it from a background thread.
+ */
+public class LabTrendService
+{
+    // the result's own time, falling back to when the report's specimen was collected or the report was released
+    private static final String POINT_TIME = "COALESCE(o.issued, r.effective, r.issued)";
+    private static final String FROM_POINTS = "FROM observations o LEFT JOIN reports r ON r.hcn = o.hcn AND r.report_id = o.report_id "
+            + "WHERE o.hcn = ? AND o.value IS NOT NULL AND o.code IS NOT NULL AND " + POINT_TIME + " IS NOT NULL ";
+    private static final String CODE_FILTER = "AND o.code = ? ";
+
+    // one row per series, in the same order the points come back in
+    private static final String SQL_SERIES = "SELECT o.code, MAX(o.code_display), o.unit, COUNT(*) " + FROM_POINTS + "%s"
+            + "GROUP BY o.code, o.unit ORDER BY o.code, o.unit";
+    private static final String SQL_POINTS = "SELECT " + POINT_TIME + ", o.value " + FROM_POINTS + "%s"
+            + "ORDER BY o.code, o.unit, " + POINT_TIME;
+
+    private LocalSQLOpenHelper sqLiteOpenHelper;
+
+    public LabTrendService(Context context)
+    {
+        this(LocalSQLOpenHelper.getInstance(context));
+    }
+
+    /**
+     * @param sqLiteOpenHelper the database to read, e.g. an in-memory one seeded by a test
+     */
+    LabTrendService(LocalSQLOpenHelper sqLiteOpenHelper)
+    {
+        this.sqLiteOpenHelper = sqLiteOpenHelper;
+    }
+
+    /**
+     * @param healthCardNumber the patient to load
+     * @return one series per test the patient has numeric results for, ordered by test code
+     */
+    public ArrayList<LabTimeSeries> loadTrends(String healthCardNumber)
+    {
+        return readSeries("", new String[]{healthCardNumber});
+    }
+
+    /**
+     * @param healthCardNumber the patient to load
+     * @param testCode         the observation code of the test, e.g. a LOINC code
+     * @return the test's series, one per unit it was reported in (usually just one), or an empty list if there are no results
+     */
+    public ArrayList<LabTimeSeries> loadTrend(String healthCardNumber, String testCode)
+    {
+        return readSeries(CODE_FILTER, new String[]{healthCardNumber, testCode});
+    }
+
+    /**
+     * Reads the series in two queries. The first gets each series' test, unit and point count, so every series is created
+     * at its final size. The second only reads the time and value columns, in the same order, and hands them out by count.
+     * That way reading a point is just a getLong and a getDouble, no object is created per point.
+     */
+    private ArrayList<LabTimeSeries> readSeries(String codeFilter, String[] selectionArgs)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        ArrayList<LabTimeSeries> allSeries = new ArrayList<>();
+        ArrayList<Integer> pointCounts = new ArrayList<>();
+
+        // both queries have to see the same rows, so a sync can't write in between them
+        db.beginTransactionNonExclusive();
+
+        try
+        {
+            Cursor seriesCursor = db.rawQuery(String.format(SQL_SERIES, codeFilter), selectionArgs);
+
+            try
+            {
+                while (seriesCursor.moveToNext())
+                {
+                    int pointCount = seriesCursor.getInt(3);
+                    allSeries.add(new LabTimeSeries(seriesCursor.getString(0), seriesCursor.getString(1), seriesCursor.getString(2), pointCount));
+                    pointCounts.add(pointCount);
+                }
+            }
+            finally
+            {
+                seriesCursor.close();
+            }
+
+            Cursor pointCursor = db.rawQuery(String.format(SQL_POINTS, codeFilter), selectionArgs);
+
+            try
+            {
+                for (int i = 0; i < allSeries.size(); i++)
+                {
+                    LabTimeSeries series = allSeries.get(i);
+
+                    for (int point = pointCounts.get(i); point > 0 && pointCursor.moveToNext(); point--)
+                    {
+                        series.add(pointCursor.getLong(0), pointCursor.getDouble(1));
+                    }
+                }
+            }
+            finally
+            {
+                pointCursor.close();
+            }
+
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+
+        return allSeries;
+    }
+}
@@ -0,0 +1,190 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts how long something took, in microseconds, without locking, so it can be recorded from any thread on a hot path.
+ *
+ * The buckets are log-linear, the same idea as HdrHistogram: every power of two is split into 16 equal sub-buckets,
+ * so any recorded value is off by at most 1/16 (about 6%) when it's read back, from 1 microsecond up to about 12 days.
+ * Anything longer goes in one overflow bucket, which is read back as the max.
+ * Recording is a few bit operations and one atomic increment. Reading a percentile walks the 593 buckets once.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // 16
+    private static final int MAGNITUDE_COUNT = 40; // 2^40 microseconds is about 12 days, anything longer goes in the overflow bucket
+    private static final int OVERFLOW_BUCKET = (MAGNITUDE_COUNT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+    private static final int BUCKET_COUNT = OVERFLOW_BUCKET + 1;
+
+    private final String name;
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private volatile boolean isWatched; // see MainThreadWatchdog
+
+    LatencyHistogram(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Records the time since a start time taken with System.nanoTime() (see Metrics.startTimer()).
+     */
+    public void recordSince(long startNanos)
+    {
+        recordMicros((System.nanoTime() - startNanos) / 1000);
+
+        if (isWatched)
+        {
+            MainThreadWatchdog.check(name, startNanos);
+        }
+    }
+
+    /**
+     * Records one value, in microseconds. Negative values are counted as 0.
+     */
+    public void recordMicros(long micros)
+    {
+        long value = Math.max(micros, 0);
+
+        bucketCounts.incrementAndGet(getBucketIndex(value));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(value);
+
+        // only loops when another thread raised the max at the same moment
+        long currentMax = maxMicros.get();
+
+        while (value > currentMax && !maxMicros.compareAndSet(currentMax, value))
+        {
+            currentMax = maxMicros.get();
+        }
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99 for p99
+     * @return the highest value that could be in the bucket holding that percentile, in microseconds, or 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile)
+    {
+        long count = totalCount.get();
+
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        // the rank of the value we're after, counting from 1
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += bucketCounts.get(i);
+
+            if (seen >= rank)
+            {
+                // never report more than what was actually recorded
+                return Math.min(getBucketUpperBound(i), maxMicros.get());
+            }
+        }
+
+        // the buckets were being recorded into while we read them
+        return maxMicros.get();
+    }
+
+    /**
+     * @param isWatched true to have MainThreadWatchdog check every recordSince() for being on the main thread
+     */
+    void setWatched(boolean isWatched)
+    {
+        this.isWatched = isWatched;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+    public long getMaxMicros()
+    {
+        return maxMicros.get();
+    }
+
+    /**
+     * @return the average in microseconds, or 0 if nothing was recorded
+     */
+    public long getMeanMicros()
+    {
+        long count = totalCount.get();
+        return count > 0 ? totalMicros.get() / count : 0;
+    }
+
+    /**
+     * Forgets everything recorded so far. Values recorded while this runs may or may not be kept.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            bucketCounts.set(i, 0);
+        }
+
+        totalCount.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Values below 16 get a bucket each. Above that, the highest set bit picks the power of two,
+     * and the next 4 bits pick one of its 16 sub-buckets.
+     */
+    static int getBucketIndex(long micros)
+    {
+        if (micros < SUB_BUCKET_COUNT)
+        {
+            return (int) micros;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros); // 4 or more here
+
+        if (magnitude >= MAGNITUDE_COUNT)
+        {
+            return OVERFLOW_BUCKET;
+        }
+
+        int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return the highest value that goes in the bucket, Long.MAX_VALUE for the overflow bucket
+     */
+    static long getBucketUpperBound(int bucketIndex)
+    {
+        if (bucketIndex < SUB_BUCKET_COUNT)
+        {
+            return bucketIndex;
+        }
+
+        if (bucketIndex == OVERFLOW_BUCKET)
+        {
+            return Long.MAX_VALUE;
+        }
+
+        int magnitude = bucketIndex / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        long subBucket = bucketIndex % SUB_BUCKET_COUNT;
+        int shift = magnitude - SUB_BUCKET_BITS;
+
+        return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,472 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Period;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.ProcedureRequest;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.StringType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.ContainedResourceIndex;
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+import ca.ehealth.ontario.olis_fhir_prototype.models.ReferenceRangeEvaluator;
+
+/**
+ * This class writes the OLIS DiagnosticReports we receive into the local database.
+ * Besides the encoded report, the parts we want to query locally are split out into normalized tables:
+ * -reports (status, code, effective and issued time)
+ * -observations (code, numeric value, unit, interpretation, issued time, reference range)
+ * -practitioners (kept up to date with the latest name we get for them)
+ * -organizations
+ *
+ * Reports are written in batches inside a single transaction with precompiled statements.
+ * If the caller already has a transaction open, the batch becomes part of it.
+ * Writing a patient's reports also drops their report list snapshot (see ReportSnapshotCache).
+ */
+public class LocalFHIRStore
+{
+    private LocalSQLOpenHelper sqLiteOpenHelper;
+    private ReportSnapshotCache reportSnapshotCache;
+
+    public LocalFHIRStore(Context context)
+    {
+        sqLiteOpenHelper = LocalSQLOpenHelper.getInstance(context);
+        reportSnapshotCache = new ReportSnapshotCache(context);
+    }
+
+    /**
+     * Stores every DiagnosticReport in an OLIS result Bundle for the given patient.
+     *
+     * @param healthCardNumber the patient the reports belong to
+     * @param olisResults a Bundle as returned by OLIS
+     * @return the number of reports written
+     */
+    public int writeReports(String healthCardNumber, Bundle olisResults)
+    {
+        List<DiagnosticReport> diagnosticReports = new ArrayList<>();
+
+        for (Bundle.BundleEntryComponent entry : olisResults.getEntry())
+        {
+            if (entry.getResource() instanceof DiagnosticReport)
+            {
+                diagnosticReports.add((DiagnosticReport) entry.getResource());
+            }
+        }
+
+        return writeReports(healthCardNumber, diagnosticReports);
+    }
+
+    /**
+     * Stores the given DiagnosticReports for a patient. A report we already have (same id) is replaced along with its observations.
+     *
+     * @param healthCardNumber the patient the reports belong to
+     * @param diagnosticReports the reports to write
+     * @return the number of reports written
+     */
+    public int writeReports(String healthCardNumber, List<DiagnosticReport> diagnosticReports)
+    {
+        if (diagnosticReports.isEmpty())
+        {
+            return 0;
+        }
+
+        // the patient's list snapshot is out of date as soon as any of their reports change.
+        // Invalidated here so a list that's being loaded right now isn't stored over the change...
+        reportSnapshotCache.invalidate(healthCardNumber);
+
+        SQLiteDatabase db = sqLiteOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+
+        try
+        {
+            ReportWriter reportWriter = new ReportWriter(db);
+
+            for (DiagnosticReport diagnosticReport : diagnosticReports)
+            {
+                reportWriter.write(healthCardNumber, diagnosticReport);
+            }
+
+            reportWriter.close();
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+
+            // ...and again once the transaction is over, since a list loaded while it was open still read the old reports
+            reportSnapshotCache.invalidate(healthCardNumber);
+        }
+
+        return diagnosticReports.size();
+    }
+
+    /**
+     * Loads a single stored report, e.g. to show its details.
+     *
+     * @param healthCardNumber the patient the report belongs to
+     * @param reportId the report's logical id
+     * @return the DiagnosticReport, or null if we don't have it
+     */
+    public DiagnosticReport loadReport(String healthCardNumber, String reportId)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        DiagnosticReport diagnosticReport = null;
+
+        Cursor cursor = db.query("reports", new String[]{"resource"}, "hcn = ? AND report_id = ?", new String[]{healthCardNumber, reportId}, null, null, null);
+
+        if (cursor.moveToFirst())
+        {
+            diagnosticReport = OLISService.StringToReport(cursor.getString(0));
+        }
+
+        cursor.close();
+
+        return diagnosticReport;
+    }
+
+    /**
+     * Loads every numeric result of a patient with its reference range and flags them all, without decoding any report.
+     * OLISSyncService uses it to give the report list its range flags (see ReferenceRangeEvaluator.flagReports()).
+     *
+     * @param healthCardNumber the patient to load
+     * @return the evaluated results, newest first
+     */
+    public ReferenceRangeEvaluator loadEvaluatedObservations(String healthCardNumber)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT o.report_id, COALESCE(o.code_display, o.code), COALESCE(o.issued, r.effective, r.issued), o.value, "
+                + "o.range_low, o.range_high, o.critical_low, o.critical_high, o.interpretation "
+                + "FROM observations o LEFT JOIN reports r ON r.hcn = o.hcn AND r.report_id = o.report_id "
+                + "WHERE o.hcn = ? AND o.value IS NOT NULL ORDER BY 3 DESC", new String[]{healthCardNumber});
+
+        ReferenceRangeEvaluator evaluator = new ReferenceRangeEvaluator(cursor.getCount());
+
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                evaluator.add(cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.isNull(2) ? EpochDateFormat.NO_TIME : cursor.getLong(2),
+                        cursor.getDouble(3),
+                        getDoubleOrNaN(cursor, 4),
+                        getDoubleOrNaN(cursor, 5),
+                        getDoubleOrNaN(cursor, 6),
+                        getDoubleOrNaN(cursor, 7),
+                        cursor.getString(8));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        evaluator.evaluate();
+
+        return evaluator;
+    }
+
+    private static double getDoubleOrNaN(Cursor cursor, int column)
+    {
+        return cursor.isNull(column) ? Double.NaN : cursor.getDouble(column);
+    }
+
+    /**
+     * Reports are stored by their logical id. If OLIS didn't give the report an id, the encoded report itself is used
+     * so that receiving the exact same report twice still doesn't store it twice.
+     */
+    static String getReportId(DiagnosticReport diagnosticReport, String reportJson)
+    {
+        if (diagnosticReport.getIdElement() != null && diagnosticReport.getIdElement().getIdPart() != null)
+        {
+            return diagnosticReport.getIdElement().getIdPart();
+        }
+
+        return "json-" + Integer.toHexString(reportJson.hashCode());
+    }
+
+    /**
+     * The report's effective time is when the specimen was collected.
+     * @return the collection time, or null if there isn't one
+     */
+    static Date getEffectiveDate(DiagnosticReport diagnosticReport)
+    {
+        if (diagnosticReport.getEffective() instanceof DateTimeType)
+        {
+            return ((DateTimeType) diagnosticReport.getEffective()).getValue();
+        }
+        else if (diagnosticReport.getEffective() instanceof Period)
+        {
+            return ((Period) diagnosticReport.getEffective()).getStart();
+        }
+
+        return null;
+    }
+
+    /**
+     * Holds the compiled statements for one batch of writes.
+     * Practitioner and organization ids are remembered for the batch, since the same few show up on most reports.
+     */
+    private static class ReportWriter
+    {
+        private final SQLiteStatement insertReport;
+        private final SQLiteStatement deleteObservations;
+        private final SQLiteStatement insertObservation;
+        private final SQLiteStatement updatePractitioner;
+        private final SQLiteStatement insertPractitioner;
+        private final SQLiteStatement findPractitioner;
+        private final SQLiteStatement updateOrganization;
+        private final SQLiteStatement insertOrganization;
+        private final SQLiteStatement findOrganization;
+        private final Map<String, Long> practitionerIds = new HashMap<>();
+        private final Map<String, Long> organizationIds = new HashMap<>();
+
+        private ReportWriter(SQLiteDatabase db)
+        {
+            insertReport = db.compileStatement("INSERT OR REPLACE INTO reports (hcn, report_id, resource, status, code, code_display, effective, issued, practitioner_id, organization_id) "
+                    + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            deleteObservations = db.compileStatement("DELETE FROM observations WHERE hcn = ? AND report_id = ?");
+            insertObservation = db.compileStatement("INSERT INTO observations (hcn, report_id, code, code_display, status, value, value_text, unit, interpretation, issued, "
+                    + "range_low, range_high, critical_low, critical_high) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            // a missing name doesn't wipe out the one we already have
+            updatePractitioner = db.compileStatement("UPDATE practitioners SET name = COALESCE(?, name) WHERE practitioner_key = ?");
+            insertPractitioner = db.compileStatement("INSERT INTO practitioners (practitioner_key, name) VALUES (?, ?)");
+            findPractitioner = db.compileStatement("SELECT _id FROM practitioners WHERE practitioner_key = ?");
+            updateOrganization = db.compileStatement("UPDATE organizations SET name = COALESCE(?, name) WHERE organization_key = ?");
+            insertOrganization = db.compileStatement("INSERT INTO organizations (organization_key, name) VALUES (?, ?)");
+            findOrganization = db.compileStatement("SELECT _id FROM organizations WHERE organization_key = ?");
+        }
+
+        private void write(String healthCardNumber, DiagnosticReport diagnosticReport)
+        {
+            String reportJson = OLISService.ReportToString(diagnosticReport);
+            String reportId = getReportId(diagnosticReport, reportJson);
+            ContainedResourceIndex containedResources = new ContainedResourceIndex(diagnosticReport);
+            Practitioner practitioner = containedResources.getPractitioner();
+            Organization organization = containedResources.getOrganization();
+            ProcedureRequest procedureRequest = containedResources.getProcedureRequest();
+            Long practitionerId = practitioner != null ? writePractitioner(practitioner) : null;
+            Long organizationId = organization != null ? writeOrganization(organization) : null;
+            Coding testCoding = getFirstCoding(diagnosticReport.getCode());
+
+            // the report code is usually there, but OLIS also puts the test performed on the ProcedureRequest
+            if (testCoding == null && procedureRequest != null)
+            {
+                testCoding = getFirstCoding(procedureRequest.getCode());
+            }
+
+            // replace the old observations of this report, if we had it already
+            deleteObservations.bindString(1, healthCardNumber);
+            deleteObservations.bindString(2, reportId);
+            deleteObservations.executeUpdateDelete();
+
+            // a result without its own issued time takes the time the specimen was collected, or the report was released
+            Date reportTime = getEffectiveDate(diagnosticReport) != null ? getEffectiveDate(diagnosticReport) : diagnosticReport.getIssued();
+
+            for (Observation observation : containedResources.getObservations())
+            {
+                writeObservation(healthCardNumber, reportId, observation, reportTime);
+            }
+
+            insertReport.bindString(1, healthCardNumber);
+            insertReport.bindString(2, reportId);
+            insertReport.bindString(3, reportJson);
+            bindStringOrNull(insertReport, 4, diagnosticReport.getStatus() != null ? diagnosticReport.getStatus().toCode() : null);
+            bindStringOrNull(insertReport, 5, testCoding != null ? testCoding.getCode() : null);
+            bindStringOrNull(insertReport, 6, testCoding != null ? testCoding.getDisplay() : null);
+            bindDateOrNull(insertReport, 7, getEffectiveDate(diagnosticReport));
+            bindDateOrNull(insertReport, 8, diagnosticReport.getIssued());
+            bindLongOrNull(insertReport, 9, practitionerId);
+            bindLongOrNull(insertReport, 10, organizationId);
+            insertReport.executeInsert();
+        }
+
+        private void writeObservation(String healthCardNumber, String reportId, Observation observation, Date reportTime)
+        {
+            Coding observationCoding = getFirstCoding(observation.getCode());
+            Coding interpretationCoding = getFirstCoding(observation.getInterpretation());
+
+            insertObservation.clearBindings();
+            insertObservation.bindString(1, healthCardNumber);
+            insertObservation.bindString(2, reportId);
+            bindStringOrNull(insertObservation, 3, observationCoding != null ? observationCoding.getCode() : null);
+            bindStringOrNull(insertObservation, 4, observationCoding != null ? observationCoding.getDisplay() : null);
+            bindStringOrNull(insertObservation, 5, observation.getStatus() != null ? observation.getStatus().toCode() : null);
+
+            // numeric results go in value so they can be compared and trended, anything else is kept as text
+            if (observation.getValue() instanceof Quantity && ((Quantity) observation.getValue()).getValue() != null)
+            {
+                Quantity valueQuantity = (Quantity) observation.getValue();
+                insertObservation.bindDouble(6, valueQuantity.getValue().doubleValue());
+                bindStringOrNull(insertObservation, 8, valueQuantity.getUnit());
+            }
+            else if (observation.getValue() instanceof StringType)
+            {
+                bindStringOrNull(insertObservation, 7, ((StringType) observation.getValue()).getValue());
+            }
+
+            bindStringOrNull(insertObservation, 9, interpretationCoding != null ? interpretationCoding.getCode() : null);
+            bindDateOrNull(insertObservation, 10, observation.getIssued() != null ? observation.getIssued() : reportTime);
+
+            // the reference range as numbers, so results can be flagged without decoding the report again
+            bindDoubleOrNull(insertObservation, 11, ReferenceRangeEvaluator.getLow(observation));
+            bindDoubleOrNull(insertObservation, 12, ReferenceRangeEvaluator.getHigh(observation));
+            bindDoubleOrNull(insertObservation, 13, ReferenceRangeEvaluator.getCriticalLow(observation));
+            bindDoubleOrNull(insertObservation, 14, ReferenceRangeEvaluator.getCriticalHigh(observation));
+            insertObservation.executeInsert();
+        }
+
+        private Long writePractitioner(Practitioner practitioner)
+        {
+            String name = OLISDiagnosticReportModel.getPractitionerName(practitioner);
+            return upsert(practitionerIds, updatePractitioner, insertPractitioner, findPractitioner, getKey(practitioner.getIdentifier(), name), name);
+        }
+
+        private Long writeOrganization(Organization organization)
+        {
+            String name = organization.getName();
+            return upsert(organizationIds, updateOrganization, insertOrganization, findOrganization, getKey(organization.getIdentifier(), name), name);
+        }
+
+        /**
+         * Practitioners and organizations are contained resources, so their ids are only unique within one report.
+         * Use their first identifier to tell them apart instead, or their name if they don't have one.
+         * Falling back to the name means two different people (or labs) with the same name and no identifier share a row.
+         * That's on purpose: the row only holds the name, so sharing it loses nothing, and keying them by their contained id
+         * instead would add a new row for every report they're on.
+         */
+        private String getKey(List<Identifier> identifiers, String name)
+        {
+            if (!identifiers.isEmpty() && identifiers.get(0).getValue() != null)
+            {
+                return identifiers.get(0).getSystem() + "|" + identifiers.get(0).getValue();
+            }
+
+            return name != null ? "name:" + name : null;
+        }
+
+        /**
+         * Adds the practitioner or organization, or gives the one we already have the latest name, the first time it's seen in this write.
+         * The update goes first like PatientRosterService.importRoster does, so an existing row keeps its _id.
+         */
+        private Long upsert(Map<String, Long> knownIds, SQLiteStatement update, SQLiteStatement insert, SQLiteStatement find, String key, String name)
+        {
+            if (key == null)
+            {
+                return null;
+            }
+
+            Long rowId = knownIds.get(key);
+
+            if (rowId == null)
+            {
+                bindStringOrNull(update, 1, name);
+                update.bindString(2, key);
+
+                if (update.executeUpdateDelete() == 0)
+                {
+                    insert.bindString(1, key);
+                    bindStringOrNull(insert, 2, name);
+                    insert.executeInsert();
+                }
+
+                find.bindString(1, key);
+                rowId = find.simpleQueryForLong();
+                knownIds.put(key, rowId);
+            }
+
+            return rowId;
+        }
+
+        private void close()
+        {
+            insertReport.close();
+            deleteObservations.close();
+            insertObservation.close();
+            updatePractitioner.close();
+            insertPractitioner.close();
+            findPractitioner.close();
+            updateOrganization.close();
+            insertOrganization.close();
+            findOrganization.close();
+        }
+    }
+
+    /**
+     * Unlike getCodingFirstRep(), this doesn't add an empty coding to the resource when there isn't one.
+     */
+    private static Coding getFirstCoding(CodeableConcept codeableConcept)
+    {
+        return codeableConcept != null && codeableConcept.hasCoding() ? codeableConcept.getCoding().get(0) : null;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value)
+    {
+        if (value != null)
+        {
+            statement.bindString(index, value);
+        }
+        else
+        {
+            statement.bindNull(index);
+        }
+    }
+
+    private static void bindLongOrNull(SQLiteStatement statement, int index, Long value)
+    {
+        if (value != null)
+        {
+            statement.bindLong(index, value);
+        }
+        else
+        {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * NaN is how the range getters say a number is missing.
+     */
+    private static void bindDoubleOrNull(SQLiteStatement statement, int index, double value)
+    {
+        if (!Double.isNaN(value))
+        {
+            statement.bindDouble(index, value);
+        }
+        else
+        {
+            statement.bindNull(index);
+        }
+    }
+
+    private static void bindDateOrNull(SQLiteStatement statement, int index, Date value)
+    {
+        if (value != null)
+        {
+            statement.bindLong(index, value.getTime());
+        }
+        else
+        {
+            statement.bindNull(index);
+        }
+    }
+}
@@ -6,17 +6,97 @@ import android.database.sqlite.SQLiteDatabase;
 
 /**
  * This class is used to initialize our local database and fill it with test data.
- * We're only storing the name and HCN. Other information is acquired from querying PCR and OLIS.
+ * For patients we're only storing the name and HCN. Other information is acquired from querying PCR and OLIS.
+ * The OLIS reports we've already downloaded are kept in the reports table so that a refresh only has to ask for newer ones (see OLISSyncService).
+ * Their observations, practitioners and organizations are also split out into their own tables so they can be queried locally (see LocalFHIRStore).
  */
 public class LocalSQLOpenHelper extends android.database.sqlite.SQLiteOpenHelper
 {
     public static final String DATABASE_NAME = "LocalPatients.db";
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 6;
     private static final String SQL_CREATE = "CREATE TABLE patients ( _id INTEGER PRIMARY KEY, name TEXT, hcn TEXT)";
 
+    // version 2: OLIS reports stored per patient, plus the point we last synced up to
+    private static final String SQL_CREATE_REPORTS = "CREATE TABLE reports ( hcn TEXT NOT NULL, report_id TEXT NOT NULL, resource TEXT NOT NULL, PRIMARY KEY (hcn, report_id))";
+    private static final String SQL_CREATE_REPORT_SYNC = "CREATE TABLE report_sync ( hcn TEXT PRIMARY KEY, last_updated TEXT, last_collected TEXT)";
+
+    // version 3: normalized report data. Dates are stored as epoch milliseconds so they sort and compare as numbers.
+    private static final String SQL_CREATE_PRACTITIONERS = "CREATE TABLE practitioners ( _id INTEGER PRIMARY KEY, practitioner_key TEXT NOT NULL UNIQUE, name TEXT)";
+    private static final String SQL_CREATE_ORGANIZATIONS = "CREATE TABLE organizations ( _id INTEGER PRIMARY KEY, organization_key TEXT NOT NULL UNIQUE, name TEXT)";
+    private static final String[] SQL_ALTER_REPORTS = {
+            "ALTER TABLE reports ADD COLUMN status TEXT",
+            "ALTER TABLE reports ADD COLUMN code TEXT",
+            "ALTER TABLE reports ADD COLUMN code_display TEXT",
+            "ALTER TABLE reports ADD COLUMN effective INTEGER",
+            "ALTER TABLE reports ADD COLUMN issued INTEGER",
+            "ALTER TABLE reports ADD COLUMN practitioner_id INTEGER REFERENCES practitioners(_id)",
+            "ALTER TABLE reports ADD COLUMN organization_id INTEGER REFERENCES organizations(_id)"
+    };
+    private static final String SQL_CREATE_OBSERVATIONS = "CREATE TABLE observations ( _id INTEGER PRIMARY KEY, hcn TEXT NOT NULL, report_id TEXT NOT NULL, "
+            + "code TEXT, code_display TEXT, status TEXT, value REAL, value_text TEXT, unit TEXT, interpretation TEXT, issued INTEGER)";
+    private static final String[] SQL_CREATE_REPORT_INDEXES = {
+            "CREATE INDEX reports_hcn_issued_idx ON reports (hcn, issued)",
+            "CREATE INDEX observations_report_idx ON observations (hcn, report_id)",
+            "CREATE INDEX observations_hcn_code_issued_idx ON observations (hcn, code, issued)",
+            "CREATE INDEX observations_code_issued_idx ON observations (code, issued)"
+    };
+
+    // version 4: full-text index over patient names and HCNs. It's an external content table, so the text is only stored
+    // once in patients, and the triggers keep the index in step with every insert, update and delete.
+    private static final String[] SQL_CREATE_PATIENT_SEARCH = {
+            "CREATE INDEX patients_hcn_idx ON patients (hcn)",
+            "CREATE VIRTUAL TABLE patients_fts USING fts4(content=\"patients\", name, hcn)",
+            "CREATE TRIGGER patients_fts_before_update BEFORE UPDATE ON patients BEGIN DELETE FROM patients_fts WHERE docid = old._id; END",
+            "CREATE TRIGGER patients_fts_before_delete BEFORE DELETE ON patients BEGIN DELETE FROM patients_fts WHERE docid = old._id; END",
+            "CREATE TRIGGER patients_fts_after_update AFTER UPDATE ON patients BEGIN INSERT INTO patients_fts (docid, name, hcn) VALUES (new._id, new.name, new.hcn); END",
+            "CREATE TRIGGER patients_fts_after_insert AFTER INSERT ON patients BEGIN INSERT INTO patients_fts (docid, name, hcn) VALUES (new._id, new.name, new.hcn); END",
+            "INSERT INTO patients_fts (patients_fts) VALUES ('rebuild')" // index the patients we already have
+    };
+
+    // version 5: observation reference ranges as numbers (read with ReferenceRangeEvaluator), so a query can compare results to their range
+    private static final String[] SQL_ALTER_OBSERVATIONS = {
+            "ALTER TABLE observations ADD COLUMN range_low REAL",
+            "ALTER TABLE observations ADD COLUMN range_high REAL",
+            "ALTER TABLE observations ADD COLUMN critical_low REAL",
+            "ALTER TABLE observations ADD COLUMN critical_high REAL"
+    };
+
+    // version 6: indexes for questions across the whole roster (see LabQueryService), e.g. "recent HbA1c above 7" or "pending potassium".
+    // Each one starts with the test code, so a query only ever reads the rows of the one test it asks about.
+    private static final String[] SQL_CREATE_LAB_QUERY_INDEXES = {
+            "CREATE INDEX observations_code_issued_value_idx ON observations (code, issued, value, hcn)", // covers the date and value filters
+            "CREATE INDEX observations_code_status_idx ON observations (code, status)"
+    };
+
+    private static LocalSQLOpenHelper instance;
+
     LocalSQLOpenHelper(Context context)
     {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param databaseName the database file, or null for one that only lives in memory (for tests)
+     */
+    LocalSQLOpenHelper(Context context, String databaseName)
+    {
+        super(context, databaseName, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Every task that writes to the local database should share this instance so that they all go through one connection.
+     * Using several helpers at once would give each its own connection, and their writes would lock each other out.
+     * @param context any context, only the application context is kept
+     * @return the shared helper
+     */
+    static synchronized LocalSQLOpenHelper getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new LocalSQLOpenHelper(context.getApplicationContext());
+        }
+
+        return instance;
     }
 
     /**
@@ -29,6 +109,7 @@ public class LocalSQLOpenHelper extends android.database.sqlite.SQLiteOpenHelper
     public void onCreate(SQLiteDatabase db)
     {
         db.execSQL(SQL_CREATE);
+        onUpgrade(db, 1, DATABASE_VERSION);
 
         ContentValues contentValues = new ContentValues(); // to hold a list of column:value pairs for database inserts.
 
@@ -61,9 +142,75 @@ public class LocalSQLOpenHelper extends android.database.sqlite.SQLiteOpenHelper
 //        db.insert("patients", null, contentValues);
     }
 
+    /**
+     * Each step brings the schema up one version, so a database from any older version of the app ends up with every table.
+     * onCreate also runs through here after creating the patients table.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
+        if (oldVersion < 2)
+        {
+            db.execSQL(SQL_CREATE_REPORTS);
+            db.execSQL(SQL_CREATE_REPORT_SYNC);
+        }
+
+        if (oldVersion < 3)
+        {
+            db.execSQL(SQL_CREATE_PRACTITIONERS);
+            db.execSQL(SQL_CREATE_ORGANIZATIONS);
+            db.execSQL(SQL_CREATE_OBSERVATIONS);
+
+            for (String alterReports : SQL_ALTER_REPORTS)
+            {
+                db.execSQL(alterReports);
+            }
+
+            for (String createIndex : SQL_CREATE_REPORT_INDEXES)
+            {
+                db.execSQL(createIndex);
+            }
+
+            // reports stored by version 2 have nothing in the new columns, so forget the sync points
+            // and the next sync downloads them again through LocalFHIRStore
+            db.execSQL("DELETE FROM report_sync");
+        }
+
+        if (oldVersion < 4)
+        {
+            for (String createPatientSearch : SQL_CREATE_PATIENT_SEARCH)
+            {
+                db.execSQL(createPatientSearch);
+            }
+        }
+
+        if (oldVersion < 5)
+        {
+            for (String alterObservations : SQL_ALTER_OBSERVATIONS)
+            {
+                db.execSQL(alterObservations);
+            }
+
+            // observations stored before this version have no ranges, so download their reports again on the next sync
+            if (oldVersion >= 3)
+            {
+                db.execSQL("DELETE FROM report_sync");
+            }
+        }
+
+        if (oldVersion < 6)
+        {
+            // observations_code_issued_idx is a prefix of the new covering index, so it isn't needed anymore
+            db.execSQL("DROP INDEX IF EXISTS observations_code_issued_idx");
+
+            for (String createIndex : SQL_CREATE_LAB_QUERY_INDEXES)
+            {
+                db.execSQL(createIndex);
+            }
 
+            // results without their own issued time now take their report's, so they show up in date range queries
+            db.execSQL("UPDATE observations SET issued = (SELECT COALESCE(r.effective, r.issued) FROM reports r "
+                    + "WHERE r.hcn = observations.hcn AND r.report_id = observations.report_id) WHERE issued IS NULL");
+        }
     }
 }
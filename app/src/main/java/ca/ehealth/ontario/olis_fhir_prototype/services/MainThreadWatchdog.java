@@ -0,0 +1,167 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reports FHIR work that ends up on the UI thread, where a big Bundle can freeze the screen for seconds.
+ * It's installed in debug builds only (see PrototypeApplication), and does nothing until then.
+ *
+ * Every FHIR encode and decode (Metrics.FHIR_ENCODE and FHIR_DECODE), every mapping of a result Bundle (DiagnosticReportMapper)
+ * and every decoding of a report's details (Metrics.REPORT_DETAILS) is checked when it finishes:
+ * -on the main thread, it's a bug. It's logged with its whole stack trace and counted under watchdog.mainThread,
+ *  like StrictMode's penaltyLog(), so the app keeps running and the call site can be found in the log or in dump().
+ * -on another thread, it's only counted if it took longer than a frame (16 ms), which is fine in the background
+ *  but shows what would freeze the screen if it ever moved to the UI thread.
+ * Violations are tallied per call site, dump() shows them under the metrics (see MetricsActivity).
+ *
+ * FHIR work belongs on FHIRBackgroundExecutor, either through submit() or in an AsyncTask started on its executor
+ * (e.g. OLISAsyncTask, ReportListAsyncTask, ReportDetailsAsyncTask).
+ */
+public class MainThreadWatchdog
+{
+    private static final String TAG = "MainThreadWatchdog";
+    private static final int ATTRIBUTED_FRAME_COUNT = 3; // how many of the callers to name in a call site
+
+    private static volatile boolean isInstalled;
+    private static volatile Thread mainThread;
+    private static volatile long frameBudgetNanos = 16000000L;
+
+    private static final AtomicLong mainThreadCount = Metrics.counter("watchdog.mainThread");
+    private static final AtomicLong overBudgetCount = Metrics.counter("watchdog.overBudget");
+    private static final ConcurrentHashMap<String, AtomicLong> violationsBySite = new ConcurrentHashMap<>();
+
+    private MainThreadWatchdog()
+    {
+    }
+
+    /**
+     * Starts checking. Call it once, e.g. from Application.onCreate().
+     * @param frameBudgetMillis how long a call can take before it's too long for a frame, e.g. 16
+     */
+    public static void install(long frameBudgetMillis)
+    {
+        mainThread = Looper.getMainLooper().getThread();
+        frameBudgetNanos = frameBudgetMillis * 1000000L;
+        isInstalled = true;
+    }
+
+    public static boolean isInstalled()
+    {
+        return isInstalled;
+    }
+
+    /**
+     * Checks a call that just finished. Costs one volatile read when the watchdog isn't installed.
+     * @param operation  what the call was, e.g. fhir.decode
+     * @param startNanos when it started, from Metrics.startTimer()
+     */
+    public static void check(String operation, long startNanos)
+    {
+        if (!isInstalled)
+        {
+            return;
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        boolean isOnMainThread = Thread.currentThread() == mainThread;
+
+        if (!isOnMainThread && elapsedNanos <= frameBudgetNanos)
+        {
+            return;
+        }
+
+        // only violations pay for a stack trace
+        String message = operation + " took " + elapsedNanos / 1000000L + " ms on " + Thread.currentThread().getName();
+        Throwable stackTrace = new Throwable(message);
+        String site = (isOnMainThread ? "main " : "background ") + operation + " at " + getCallSite(stackTrace.getStackTrace());
+
+        if (isOnMainThread)
+        {
+            mainThreadCount.incrementAndGet();
+        }
+        else
+        {
+            overBudgetCount.incrementAndGet();
+        }
+
+        Metrics.getOrCreate(violationsBySite, site, Metrics.NEW_ATOMIC_LONG).incrementAndGet();
+
+        if (isOnMainThread)
+        {
+            Log.e(TAG, "FHIR work on the main thread, move it to FHIRBackgroundExecutor: " + site, stackTrace);
+        }
+    }
+
+    /**
+     * @return the first few frames that aren't the watchdog or Metrics, e.g. OLISService.StringToReport < LocalFHIRStore.loadReport
+     */
+    private static String getCallSite(StackTraceElement[] frames)
+    {
+        StringBuilder stringBuilder = new StringBuilder();
+        int attributedCount = 0;
+
+        for (StackTraceElement frame : frames)
+        {
+            String className = frame.getClassName();
+
+            if (className.equals(MainThreadWatchdog.class.getName()) || className.equals(LatencyHistogram.class.getName()))
+            {
+                continue;
+            }
+
+            if (attributedCount > 0)
+            {
+                stringBuilder.append(" < ");
+            }
+
+            stringBuilder.append(className.substring(className.lastIndexOf('.') + 1)).append('.').append(frame.getMethodName())
+                    .append(':').append(frame.getLineNumber());
+
+            if (++attributedCount == ATTRIBUTED_FRAME_COUNT)
+            {
+                break;
+            }
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Forgets the tally per call site. The counters in Metrics are reset by Metrics.reset().
+     */
+    public static void reset()
+    {
+        violationsBySite.clear();
+    }
+
+    /**
+     * @return one line per call site with its number of violations, sorted, or nothing if the watchdog isn't installed
+     */
+    public static String dump()
+    {
+        if (!isInstalled)
+        {
+            return "";
+        }
+
+        ArrayList<String> sites = new ArrayList<>(violationsBySite.keySet());
+        Collections.sort(sites);
+
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(String.format(Locale.CANADA, "%nwatchdog, frame budget %d ms%n", frameBudgetNanos / 1000000L));
+
+        for (String site : sites)
+        {
+            stringBuilder.append(String.format(Locale.CANADA, "%7d %s%n", violationsBySite.get(site).get(), site));
+        }
+
+        return stringBuilder.toString();
+    }
+}
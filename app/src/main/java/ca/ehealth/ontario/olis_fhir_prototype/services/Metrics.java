@@ -0,0 +1,220 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the counters and latency histograms for the hot paths of the app, so we can see where the time goes on a real device:
+ * -the PCR query and the parsing of its XML response
+ * -the OLIS query, and the FHIR JSON encoding and decoding around it
+ * -mapping DiagnosticReports to OLISDiagnosticReportModels, and reading and writing the report list snapshots
+ * -how long FHIR work waits for one of FHIRBackgroundExecutor's threads
+ * -binding rows in the lists
+ * Gauges hold a current value (e.g. how many OLIS requests are in flight) rather than a count, so reset() leaves them alone.
+ * Everything is recorded without locking, so it's safe to call from the AsyncTasks and the UI thread at the same time.
+ * The numbers only live in memory, MetricsActivity shows them.
+ *
+ * Usage:
+ *   long startTime = Metrics.startTimer();
+ *   ...
+ *   Metrics.PCR_QUERY.recordSince(startTime);
+ */
+public class Metrics
+{
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    // before the counters below, which are created with it while the class is initialized
+    static final Factory<Object, AtomicLong> NEW_ATOMIC_LONG = new Factory<Object, AtomicLong>()
+    {
+        @Override
+        public AtomicLong create(Object key)
+        {
+            return new AtomicLong();
+        }
+    };
+    private static final Factory<String, LatencyHistogram> NEW_HISTOGRAM = new Factory<String, LatencyHistogram>()
+    {
+        @Override
+        public LatencyHistogram create(String name)
+        {
+            return new LatencyHistogram(name);
+        }
+    };
+
+    /* ******************************************************************************************************************* */
+    /*                                                  latencies                                                          */
+    /* ******************************************************************************************************************* */
+
+    public static final LatencyHistogram PCR_QUERY = histogram("pcr.query");
+    public static final LatencyHistogram PCR_PARSE = histogram("pcr.parse");
+    public static final LatencyHistogram OLIS_QUERY = histogram("olis.query");
+    public static final LatencyHistogram FHIR_ENCODE = watched(histogram("fhir.encode"));
+    public static final LatencyHistogram FHIR_DECODE = watched(histogram("fhir.decode"));
+    public static final LatencyHistogram REPORT_MAP = histogram("report.map");
+    public static final LatencyHistogram REPORT_DETAILS = watched(histogram("report.details"));
+    public static final LatencyHistogram ADAPTER_BIND = histogram("adapter.bind");
+    public static final LatencyHistogram SNAPSHOT_READ = histogram("snapshot.read");
+    public static final LatencyHistogram SNAPSHOT_WRITE = histogram("snapshot.write");
+    public static final LatencyHistogram FHIR_QUEUE_WAIT = histogram("fhir.queueWait"); // from FHIRBackgroundExecutor.submit() until a thread takes it
+
+    /* ******************************************************************************************************************* */
+    /*                                                   counters                                                          */
+    /* ******************************************************************************************************************* */
+
+    public static final AtomicLong PCR_ERRORS = counter("pcr.errors");
+    public static final AtomicLong OLIS_ERRORS = counter("olis.errors");
+    public static final AtomicLong OLIS_NOT_MODIFIED = counter("olis.notModified");
+    public static final AtomicLong OLIS_FALLBACKS = counter("olis.fallbacks");
+    public static final AtomicLong REPORTS_MAPPED = counter("report.mapped");
+    public static final AtomicLong SNAPSHOT_MISSES = counter("snapshot.misses");
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * Looks the key up, and if it isn't there yet puts a new value in for it. If two threads get there at once,
+     * both get the value that made it into the map.
+     * @param factory creates the new value, it may be called and the value thrown away when another thread wins
+     * @return the value in the map for the key
+     */
+    static <K, V> V getOrCreate(ConcurrentMap<K, V> map, K key, Factory<? super K, ? extends V> factory)
+    {
+        V value = map.get(key);
+
+        if (value == null)
+        {
+            V newValue = factory.create(key);
+            value = map.putIfAbsent(key, newValue);
+
+            if (value == null)
+            {
+                value = newValue;
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Creates the value getOrCreate() puts in for a key it doesn't have yet.
+     */
+    interface Factory<K, V>
+    {
+        V create(K key);
+    }
+
+    /**
+     * @return the start time to pass to LatencyHistogram.recordSince()
+     */
+    public static long startTimer()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return the histogram with the name, created the first time it's asked for
+     */
+    public static LatencyHistogram histogram(String name)
+    {
+        return getOrCreate(histograms, name, NEW_HISTOGRAM);
+    }
+
+    /**
+     * Marks a histogram of work that shouldn't happen on the main thread, so MainThreadWatchdog checks it (when it's installed).
+     */
+    private static LatencyHistogram watched(LatencyHistogram histogram)
+    {
+        histogram.setWatched(true);
+        return histogram;
+    }
+
+    /**
+     * @return the counter with the name, created the first time it's asked for
+     */
+    public static AtomicLong counter(String name)
+    {
+        return getOrCreate(counters, name, NEW_ATOMIC_LONG);
+    }
+
+    /**
+     * @return the gauge with the name, created the first time it's asked for. Its owner keeps it up to date with set().
+     */
+    public static AtomicLong gauge(String name)
+    {
+        return getOrCreate(gauges, name, NEW_ATOMIC_LONG);
+    }
+
+    /**
+     * Puts every counter and histogram back to 0. Gauges keep their current values.
+     */
+    public static void reset()
+    {
+        for (LatencyHistogram histogram : histograms.values())
+        {
+            histogram.reset();
+        }
+
+        for (AtomicLong counter : counters.values())
+        {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * @return one line per histogram (count, p50, p95, p99 and max in milliseconds), then one line per counter, then one per gauge, sorted by name
+     */
+    public static String dump()
+    {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(String.format(Locale.CANADA, "%-18s %7s %8s %8s %8s %8s%n", "name", "count", "p50", "p95", "p99", "max"));
+
+        for (String name : getSortedNames(histograms))
+        {
+            LatencyHistogram histogram = histograms.get(name);
+
+            stringBuilder.append(String.format(Locale.CANADA, "%-18s %7d %8.1f %8.1f %8.1f %8.1f%n",
+                    name,
+                    histogram.getCount(),
+                    toMillis(histogram.getPercentileMicros(50)),
+                    toMillis(histogram.getPercentileMicros(95)),
+                    toMillis(histogram.getPercentileMicros(99)),
+                    toMillis(histogram.getMaxMicros())));
+        }
+
+        stringBuilder.append(String.format(Locale.CANADA, "%n"));
+
+        for (String name : getSortedNames(counters))
+        {
+            stringBuilder.append(String.format(Locale.CANADA, "%-18s %7d%n", name, counters.get(name).get()));
+        }
+
+        stringBuilder.append(String.format(Locale.CANADA, "%n"));
+
+        for (String name : getSortedNames(gauges))
+        {
+            stringBuilder.append(String.format(Locale.CANADA, "%-18s %7d%n", name, gauges.get(name).get()));
+        }
+
+        return stringBuilder.toString();
+    }
+
+    private static ArrayList<String> getSortedNames(Map<String, ?> map)
+    {
+        ArrayList<String> names = new ArrayList<>(map.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    private static double toMillis(long micros)
+    {
+        return micros / 1000.0;
+    }
+}
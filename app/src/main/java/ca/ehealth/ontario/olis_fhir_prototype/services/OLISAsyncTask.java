@@ -4,20 +4,25 @@ import android.app.Activity;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.util.Log;
+import android.widget.Toast;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.OperationOutcome;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
 import ca.ehealth.ontario.olis_fhir_prototype.activities.PatientSummaryActivity;
 import ca.ehealth.ontario.olis_fhir_prototype.customdialogs.ExceptionErrorDialog;
 import ca.ehealth.ontario.olis_fhir_prototype.customdialogs.ProgressCircleDialog;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
 import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
 /**
  * The purpose of this class is to run an OLIS query as an asynchronous task (in the background)
  * and return a result to be displayed.
+ * The DiagnosticReports are also mapped into list models in the background, so the UI thread only has to show them.
+ * Start it with executeOnExecutor(FHIRBackgroundExecutor.getExecutor(), ...), so it runs with the rest of the FHIR work.
  */
 public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
 {
@@ -25,10 +30,14 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
     // This is done to prevent memory leaks which would be caused by using something like: private Context myContext;
     private final WeakReference<Activity> weakReference;
     private PCRPatientModel patientToQuery;
+    private OLISSyncService olisSyncService;
+    private LocalFHIRStore localFHIRStore;
     private ProgressCircleDialog progressCircleDialog;
     private ExceptionErrorDialog errorDialog;
     private int exceptionCodeHolder = -69;
     private boolean isUpdatingData = false; // flag indicating whether this query is replacing old data with new data
+    private boolean isShowingStoredReports = false; // OLIS couldn't be reached, so the reports are the ones we stored last time
+    private ArrayList<OLISDiagnosticReportModel> diagnosticReports; // the result Bundle mapped for the report list
 
     /**
      * Simple constructor that saves a weak reference of launching activity and the patient object to be queried.
@@ -40,6 +49,8 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
     {
         weakReference = new WeakReference<>(inActivity);
         this.patientToQuery = patientToQuery;
+        olisSyncService = new OLISSyncService(inActivity);
+        localFHIRStore = new LocalFHIRStore(inActivity);
         progressCircleDialog = new ProgressCircleDialog(inActivity);
         errorDialog = new ExceptionErrorDialog(inActivity);
     }
@@ -54,7 +65,10 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
 
     /**
      * This function will start a new instance of the OLISService and use that to query OLIS.
-     * It will use the health card number from the patientToQuery object
+     * It will use the health card number from the patientToQuery object.
+     * Without a date range, only reports newer than our last sync are downloaded, and the returned Bundle is empty.
+     * PatientSummaryActivity then loads the stored set itself (see ReportListAsyncTask), a 10k report list is far too big for an Intent.
+     * Either way, if OLIS can't be reached the reports we stored before are used instead (only the ones in the date range, if there is one).
      * @param strings an array of string parameters which are passed in with the .execute() function from the async task.
      * @return a FHIR Bundle containing the medication dispenses
      */
@@ -76,12 +90,29 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
             // if we have start & end date query strings
             if(strings.length == 2)
             {
-                olisQueryResults = olisService.executeQuery(healthCardNumber, birthDate, gender, strings[0], strings[1]);
+                try
+                {
+                    olisQueryResults = olisService.executeQuery(healthCardNumber, birthDate, gender, strings[0], strings[1]);
+                    localFHIRStore.writeReports(healthCardNumber, olisQueryResults); // keep the local store filled as results arrive
+                }
+                catch (RuntimeException e)
+                {
+                    // same fallback as a sync without a range, only the stored reports collected in the range
+                    if (!olisSyncService.canUseStoredReports(e, healthCardNumber))
+                    {
+                        throw e;
+                    }
+
+                    olisQueryResults = olisSyncService.loadReports(healthCardNumber, strings[0], strings[1]);
+                    isShowingStoredReports = true;
+                }
+
                 isUpdatingData = true;
             }
             else
             {
-                olisQueryResults = olisService.executeQuery(healthCardNumber, birthDate, gender);
+                isShowingStoredReports = !olisSyncService.syncReportsOrUseStored(healthCardNumber, birthDate, gender);
+                return new Bundle();
             }
 
             if (olisQueryResults.getEntry() == null /*|| olisQueryResults.getEntry().isEmpty()*/)
@@ -89,16 +120,30 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
                 // data was not found
                 exceptionCodeHolder = 404;
             }
+            else
+            {
+                // big Bundles are mapped in parallel chunks
+                diagnosticReports = DiagnosticReportMapper.mapReports(olisQueryResults, healthCardNumber);
+                olisSyncService.flagReports(healthCardNumber, diagnosticReports);
+            }
+        }
+        // OLIS has been failing or is too busy, so nothing was sent (or it failed again after retrying)
+        catch (ServiceUnavailableException e)
+        {
+            Log.d("OLISAsyncTask", e.toString());
+            exceptionCodeHolder = 503;
         }
         // catch the FHIR exceptions and save their codes
         catch (BaseServerResponseException e)
         {
-            Log.d("silly", e.toString());
+            // already counted in Metrics.OLIS_ERRORS by OLISService
+            Log.d("OLISAsyncTask", e.toString());
             exceptionCodeHolder = e.getStatusCode();
         }
         catch (Exception e)
         {
-            Log.d("silly", e.toString());
+            Metrics.OLIS_ERRORS.incrementAndGet();
+            Log.d("OLISAsyncTask", e.toString());
             exceptionCodeHolder = 17438; // a random code to indicate a general exception was caught
         }
 
@@ -154,6 +199,11 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
                             ("Connection Error! Connection timed out. Possible reasons can widely vary. Please try again and ensure you  have a proper internet connection. ");
                     break;
 
+                case 503: // ServiceUnavailableException, CircuitOpenException, ConcurrencyLimitException
+                    errorDialog.showErrorMessage
+                            ("Service Unavailable! OLIS has been failing, timing out or is too busy, even after a few tries. Please wait a moment and try again.");
+                    break;
+
                 default:
                     errorDialog.showErrorMessage("Unexpected error! Status code: " + exceptionCodeHolder);
                     break;
@@ -164,6 +214,11 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
             return;
         }
 
+        if (isShowingStoredReports)
+        {
+            Toast.makeText(activity, "OLIS isn't answering, showing the reports from the last sync", Toast.LENGTH_LONG).show();
+        }
+
         // handling the result in here
         try
         {
@@ -189,13 +244,10 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
                 }
             }
 
-            // if not updating data, then start a new activity with the result
+            // if not updating data, then start a new activity for the synced patient
             if(!isUpdatingData)
             {
-                // sometimes BundleToString takes awhile to finish, so show the progress bar
-
-                // Our OLIS service has a bundleToString method which makes it easier to move the data to a new activity
-                patientSummaryIntent.putExtra("olisReport", OLISService.BundleToString(result));
+                // only the patient goes in the Intent, the activity loads their reports from the local store in the background
                 patientSummaryIntent.putExtra("patient", patientToQuery); // we need to display the demographics data in the next activity
 
                 activity.startActivity(patientSummaryIntent);
@@ -203,7 +255,7 @@ public class OLISAsyncTask extends AsyncTask<String, Void, Bundle>
             // since we're updating data, no need to start a new activity. Just call setListViewData to update the data
             else
             {
-                ((PatientSummaryActivity) activity).setListViewData(result);
+                ((PatientSummaryActivity) activity).setListViewData(diagnosticReports);
             }
         }
         catch (Exception e)
@@ -0,0 +1,233 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/**
+ * This class lets OLIS tell us when nothing has changed, instead of sending us the whole DiagnosticReport Bundle again.
+ *
+ * For every search URL we remember the ETag and Last-Modified headers along with the parsed Bundle.
+ * The next time the same URL is searched, we send them back as If-None-Match and If-Modified-Since.
+ * If OLIS answers with 304 Not Modified, OLISService hands back the Bundle we already have.
+ *
+ * The cache is limited by how many reports it holds rather than how many searches, since one patient's Bundle can be thousands of reports.
+ * A Bundle bigger than the whole limit isn't cached at all. Delta syncs (with _lastUpdated) aren't cached either: every one asks
+ * for a new time, so the same URL never comes around twice.
+ *
+ * It's registered on the FHIR client as an interceptor. The client runs the request and the response on the calling
+ * thread, so the URL and headers of the current search are kept in ThreadLocals until OLISService collects them.
+ */
+public class OLISResultCache implements IClientInterceptor
+{
+    private static final int MAX_ENTRIES = 4; // a few recent searches, e.g. going back and forth between date ranges
+    private static final int MAX_REPORTS = 1000; // across all entries, a parsed report with its contained resources is a few KB
+    private static final String DELTA_PARAMETER = "_lastUpdated=";
+
+    // in access order, so the least recently used search is first in line to go
+    private final LinkedHashMap<String, CachedResult> cachedResults = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedReportCount = 0; // guarded by cachedResults
+
+    private final ThreadLocal<String> currentUrl = new ThreadLocal<>();
+    private final ThreadLocal<CachedResult> currentValidators = new ThreadLocal<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Adds the conditional headers if we have a cached result for this URL.
+     */
+    @Override
+    public void interceptRequest(IHttpRequest request)
+    {
+        String url = request.getUri();
+        currentUrl.set(isCacheable(url) ? url : null);
+        currentValidators.remove();
+
+        CachedResult cachedResult = get(url);
+
+        if (cachedResult != null)
+        {
+            if (cachedResult.eTag != null)
+            {
+                request.addHeader("If-None-Match", cachedResult.eTag);
+            }
+            if (cachedResult.lastModified != null)
+            {
+                request.addHeader("If-Modified-Since", cachedResult.lastModified);
+            }
+        }
+    }
+
+    /**
+     * Saves the validators of a full response. The Bundle isn't parsed yet at this point, so it gets attached in storeResult().
+     */
+    @Override
+    public void interceptResponse(IHttpResponse response)
+    {
+        if (response.getStatus() == 200)
+        {
+            String eTag = getFirstHeader(response, "ETag");
+            String lastModified = getFirstHeader(response, "Last-Modified");
+
+            if (eTag != null || lastModified != null)
+            {
+                currentValidators.set(new CachedResult(eTag, lastModified, null));
+            }
+        }
+    }
+
+    /**
+     * Called by OLISService once a full response has been parsed.
+     * If OLIS gave us validators for it, the result is cached under the URL that was just searched.
+     *
+     * @param results the parsed Bundle
+     */
+    void storeResult(Bundle results)
+    {
+        String url = currentUrl.get();
+        CachedResult validators = currentValidators.get();
+        missCount.incrementAndGet();
+
+        if (url != null)
+        {
+            synchronized (cachedResults)
+            {
+                remove(url);
+
+                // without validators the server stopped vouching for this search, so whatever we had is gone either way
+                if (validators != null && getReportCount(results) <= MAX_REPORTS)
+                {
+                    CachedResult cachedResult = new CachedResult(validators.eTag, validators.lastModified, results);
+                    cachedResults.put(url, cachedResult);
+                    cachedReportCount += cachedResult.reportCount;
+                    evict();
+                }
+            }
+        }
+
+        clearCurrent();
+    }
+
+    /**
+     * Called by OLISService when OLIS answered 304 Not Modified.
+     *
+     * @return the cached Bundle for the URL that was just searched, or null if we don't have one
+     */
+    Bundle getNotModifiedResult()
+    {
+        CachedResult cachedResult = get(currentUrl.get());
+        clearCurrent();
+
+        if (cachedResult == null)
+        {
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return cachedResult.results;
+    }
+
+    /**
+     * @return how many searches were answered from the cache after a 304
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * @return how many searches had to download and parse a full Bundle
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    private CachedResult get(String url)
+    {
+        if (url == null)
+        {
+            return null;
+        }
+
+        synchronized (cachedResults)
+        {
+            return cachedResults.get(url);
+        }
+    }
+
+    /**
+     * Drops the least recently used searches until the cache is back under both limits. Has to hold the cachedResults lock.
+     */
+    private void evict()
+    {
+        Iterator<CachedResult> iterator = cachedResults.values().iterator();
+
+        while (iterator.hasNext() && (cachedResults.size() > MAX_ENTRIES || cachedReportCount > MAX_REPORTS))
+        {
+            cachedReportCount -= iterator.next().reportCount;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Has to hold the cachedResults lock.
+     */
+    private void remove(String url)
+    {
+        CachedResult removed = cachedResults.remove(url);
+
+        if (removed != null)
+        {
+            cachedReportCount -= removed.reportCount;
+        }
+    }
+
+    private static boolean isCacheable(String url)
+    {
+        return url != null && !url.contains(DELTA_PARAMETER);
+    }
+
+    private static int getReportCount(Bundle results)
+    {
+        return results != null ? results.getEntry().size() : 0;
+    }
+
+    private void clearCurrent()
+    {
+        currentUrl.remove();
+        currentValidators.remove();
+    }
+
+    private static String getFirstHeader(IHttpResponse response, String name)
+    {
+        List<String> values = response.getHeaders(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * The validators OLIS gave us for a search, and the Bundle they belong to.
+     */
+    private static class CachedResult
+    {
+        private final String eTag;
+        private final String lastModified;
+        private final Bundle results;
+        private final int reportCount; // its share of MAX_REPORTS
+
+        private CachedResult(String eTag, String lastModified, Bundle results)
+        {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.results = results;
+            this.reportCount = getReportCount(results);
+        }
+    }
+}
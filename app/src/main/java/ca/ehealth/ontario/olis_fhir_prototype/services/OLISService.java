@@ -6,27 +6,42 @@ import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.DiagnosticReport;
 
 import java.io.UnsupportedEncodingException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import ca.uhn.fhir.rest.client.interceptor.AdditionalRequestHeadersInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 
 public class OLISService
 {
-    private final String endPointBase = "http://lite.innovation-lab.ca:9443/consumer/v1";
+    static private final String DEFAULT_END_POINT_BASE = "http://lite.innovation-lab.ca:9443/consumer/v1";
+    static private volatile String endPointBase = DEFAULT_END_POINT_BASE;
     private final String diagnosticReportSearchURL = "DiagnosticReport?patient.identifier=https://fhir.infoway-inforoute.ca/NamingSystem/ca-on-patient-hcn|";
     private final String senderId = "your unique identifier";
     static private final FhirContext fhirContext = FhirContext.forDstu3();
+    static private final OLISResultCache resultCache = new OLISResultCache(); // shared, since a new OLISService is made for every task
+    static private final int HTTP_NOT_MODIFIED = 304;
+    static private final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    static private final int DEFAULT_READ_TIMEOUT_MILLIS = 30000; // a patient's whole history can be a big Bundle
+    static private final ResiliencePolicy resiliencePolicy = new ResiliencePolicy("olis");
+    static private final HedgingPolicy hedgingPolicy = new HedgingPolicy("olis", Metrics.OLIS_QUERY, resiliencePolicy.getConcurrencyLimiter());
     private IGenericClient client;
 
+    static
+    {
+        // The HAPI FHIR library sends an initial metadata query for validation any time a client preforms a query.
+        // In order to query this must be disabled on the client factory. It's done once here rather than in the constructor,
+        // because the factory is created lazily without locking, and OLISServices made on several threads at once could each get one.
+        fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        setTimeouts(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
     /**
      * Initializes FHIR client,
      * Generates pin for Immunization_Context, sets required HTTP headers and registers headers to client
@@ -36,10 +51,6 @@ public class OLISService
     {
         client = fhirContext.newRestfulGenericClient(endPointBase);
 
-        // The HAPI FHIR library sends an initial metadata query for validation any time a client preforms a query.
-        // In order to query this must be disabled on the client:
-        fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
-
         String jwt = "";
 
         // generate a jwt token for our request header
@@ -76,6 +87,7 @@ public class OLISService
 
 
         client.registerInterceptor(headers);
+        client.registerInterceptor(resultCache);
     }
 
     /**
@@ -86,10 +98,7 @@ public class OLISService
      */
     public Bundle executeQuery(String healthCardNumber, String birthDate, String gender, String specimenCollectionStartDate, String specimenCollectionEndDate)
     {
-        return client.search()
-                .byUrl(buildQueryUrl(healthCardNumber, birthDate, gender, specimenCollectionStartDate, specimenCollectionEndDate))
-                .returnBundle(Bundle.class)
-                .execute();
+        return executeSearch(buildQueryUrl(healthCardNumber, birthDate, gender, specimenCollectionStartDate, specimenCollectionEndDate));
     }
 
     /**
@@ -101,16 +110,162 @@ public class OLISService
      */
     public Bundle executeQuery(String healthCardNumber, String birthDate, String gender)
     {
-        return client.search()
-                .byUrl(buildQueryUrl(healthCardNumber, birthDate, gender, null, null))
-                .returnBundle(Bundle.class)
-                .execute();
+        return executeSearch(buildQueryUrl(healthCardNumber, birthDate, gender, null, null));
+    }
+
+    /**
+     * Performs a GET operation that only asks OLIS for reports newer than our last sync with it.
+     * When we know the last time OLIS gave us an update (lastUpdated) we filter on _lastUpdated,
+     * otherwise we fall back to the last specimen collection date we've seen.
+     * If we have neither, this is the same as the full history query.
+     *
+     * @param lastUpdated an instant like 2018-07-02T14:10:00.000Z, or null
+     * @param lastCollectedDate a date like 2018-07-02(yyyy-MM-dd), or null
+     * @return returns the query results
+     */
+    public Bundle executeDeltaQuery(String healthCardNumber, String birthDate, String gender, String lastUpdated, String lastCollectedDate)
+    {
+        String queryUrl;
+
+        if (lastUpdated != null)
+        {
+            queryUrl = buildQueryUrl(healthCardNumber, birthDate, gender, null, null) + "&_lastUpdated=gt" + lastUpdated;
+        }
+        else
+        {
+            // the collection date filter is inclusive, so reports from that day come back again. They're merged by id anyway.
+            queryUrl = buildQueryUrl(healthCardNumber, birthDate, gender, lastCollectedDate, null);
+        }
+
+        return executeSearch(queryUrl);
+    }
+
+    /**
+     * Runs the search through the ResiliencePolicy: it's retried if it times out or OLIS answers with a 5xx,
+     * and it fails right away with a CircuitOpenException while OLIS has been failing.
+     * Each attempt goes through the HedgingPolicy, which sends a second copy of it if it's slower than usual (when it's enabled).
+     * Both copies run the whole of executeSearchOnce() on their own thread, so resultCache's ThreadLocals stay with their own request,
+     * and each holds its own slot of the ConcurrencyLimiter (the hedge isn't sent if there's none free).
+     * The HedgingPolicy records the attempt's latency in Metrics.OLIS_QUERY, and a failed attempt is counted here,
+     * so a hedged attempt counts once however many copies were sent.
+     *
+     * @param queryUrl the query string built by buildQueryUrl()
+     * @return returns the query results
+     */
+    private Bundle executeSearch(final String queryUrl)
+    {
+        return resiliencePolicy.execute(new Callable<Bundle>()
+        {
+            @Override
+            public Bundle call() throws Exception
+            {
+                try
+                {
+                    return hedgingPolicy.execute(new Callable<Bundle>()
+                    {
+                        @Override
+                        public Bundle call()
+                        {
+                            return executeSearchOnce(queryUrl);
+                        }
+                    });
+                }
+                catch (BaseServerResponseException e)
+                {
+                    Metrics.OLIS_ERRORS.incrementAndGet();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the search once, sending along the validators of any earlier result for the same URL.
+     * If OLIS answers 304 Not Modified, the earlier result is returned instead of downloading it again.
+     */
+    private Bundle executeSearchOnce(String queryUrl)
+    {
+        try
+        {
+            Bundle results = client.search()
+                    .byUrl(queryUrl)
+                    .returnBundle(Bundle.class)
+                    .execute();
+
+            resultCache.storeResult(results);
+            return results;
+        }
+        catch (BaseServerResponseException e)
+        {
+            Bundle cachedResults = e.getStatusCode() == HTTP_NOT_MODIFIED ? resultCache.getNotModifiedResult() : null;
+
+            if (cachedResults == null)
+            {
+                throw e;
+            }
+
+            Metrics.OLIS_NOT_MODIFIED.incrementAndGet();
+            return cachedResults;
+        }
+    }
+
+    /**
+     * Points every OLISService created after this at another FHIR server, e.g. the local stand-in server in the standin module.
+     *
+     * @param newEndPointBase the FHIR base URL, or null to go back to Innovation Lab
+     */
+    static public void setEndPointBase(String newEndPointBase)
+    {
+        endPointBase = newEndPointBase != null ? newEndPointBase : DEFAULT_END_POINT_BASE;
+
+        // the new server hasn't failed us yet
+        resiliencePolicy.getCircuitBreaker().reset();
+    }
+
+    static public String getEndPointBase()
+    {
+        return endPointBase;
+    }
+
+    /**
+     * Sets how long every OLISService created after this waits to connect, and then for each read of the answer.
+     * A search that runs out of time fails with a FhirClientConnectionException, and is retried.
+     */
+    static public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis)
+    {
+        fhirContext.getRestfulClientFactory().setConnectTimeout(connectTimeoutMillis);
+        fhirContext.getRestfulClientFactory().setSocketTimeout(readTimeoutMillis);
+    }
+
+    /**
+     * @return the retry and circuit breaker settings for OLIS, e.g. to change the number of attempts
+     */
+    static public ResiliencePolicy getResiliencePolicy()
+    {
+        return resiliencePolicy;
+    }
+
+    /**
+     * @return the hedging settings for OLIS searches, e.g. to enable it or change its percentile and budget
+     */
+    static public HedgingPolicy getHedgingPolicy()
+    {
+        return hedgingPolicy;
+    }
+
+    /**
+     * @return the cache of OLIS search results, e.g. to check its hit and miss counters
+     */
+    static public OLISResultCache getResultCache()
+    {
+        return resultCache;
     }
 
     /**
      * This method will take in query parameters and build a query string for the .search().byUrl() method.
+     * Package-private so the benchmarks module can measure it.
      */
-    private String buildQueryUrl(String healthCardNumber, String birthDate, String gender, String specimenCollectionStartDate, String specimenCollectionEndDate)
+    String buildQueryUrl(String healthCardNumber, String birthDate, String gender, String specimenCollectionStartDate, String specimenCollectionEndDate)
     {
         StringBuilder stringBuilder = new StringBuilder();
 
@@ -139,30 +294,15 @@ public class OLISService
 
     /**
      * This method returns today's date minus the number of days supplied as a parameter.
-     * The date is generated using the Calendar and SimpleDateFormat objects.
+     * The date is counted in epoch days, so no Calendar or SimpleDateFormat has to be created for each query.
      *
      * @param dayCount the number of days to count backwards from today.
      * @return a date string in the format: 2018-02-24(yyyy-MM-dd)
      */
     private String getDate(int dayCount)
     {
-        //date to return
-        String myDate;
-
-        // get today's date as a calendar object
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(new Date());
-
-        // get today's date minus 120 days
-        calendar.add(Calendar.DAY_OF_MONTH, dayCount);
-
-        // get the date format: e.g. 2018-02-24
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.CANADA);
-
-        // apply date format with new calendar and set as the start query date
-        myDate = dateFormat.format(calendar.getTime());
-
-        return myDate;
+        // today's date plus dayCount days (e.g. -120), in the format: e.g. 2018-02-24
+        return EpochDateFormat.formatQuery(EpochDateFormat.today() + dayCount);
     }
 
     /**
@@ -173,7 +313,10 @@ public class OLISService
      */
     public String parse(DiagnosticReport resource)
     {
-        return fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(resource);
+        long startTime = Metrics.startTimer();
+        String result = fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(resource);
+        Metrics.FHIR_ENCODE.recordSince(startTime);
+        return result;
     }
 
     /**
@@ -184,7 +327,10 @@ public class OLISService
      */
     public DiagnosticReport parse(String jsonResource)
     {
-        return fhirContext.newJsonParser().parseResource(DiagnosticReport.class, jsonResource);
+        long startTime = Metrics.startTimer();
+        DiagnosticReport result = fhirContext.newJsonParser().parseResource(DiagnosticReport.class, jsonResource);
+        Metrics.FHIR_DECODE.recordSince(startTime);
+        return result;
     }
 
     /**
@@ -195,7 +341,38 @@ public class OLISService
      */
     static public String BundleToString(Bundle dataBundle)
     {
-        return fhirContext.newJsonParser().encodeResourceToString(dataBundle);
+        long startTime = Metrics.startTimer();
+        String result = fhirContext.newJsonParser().encodeResourceToString(dataBundle);
+        Metrics.FHIR_ENCODE.recordSince(startTime);
+        return result;
+    }
+
+    /**
+     * Converts a single DiagnosticReport to a String, used for storing reports in the local database
+     *
+     * @param diagnosticReport the report to encode
+     * @return the report encoded as a String
+     */
+    static public String ReportToString(DiagnosticReport diagnosticReport)
+    {
+        long startTime = Metrics.startTimer();
+        String result = fhirContext.newJsonParser().encodeResourceToString(diagnosticReport);
+        Metrics.FHIR_ENCODE.recordSince(startTime);
+        return result;
+    }
+
+    /**
+     * Converts a String back to a single DiagnosticReport
+     *
+     * @param dataString the report encoded as a String
+     * @return the decoded DiagnosticReport
+     */
+    static public DiagnosticReport StringToReport(String dataString)
+    {
+        long startTime = Metrics.startTimer();
+        DiagnosticReport result = fhirContext.newJsonParser().parseResource(DiagnosticReport.class, dataString);
+        Metrics.FHIR_DECODE.recordSince(startTime);
+        return result;
     }
 
     /**
@@ -206,6 +383,9 @@ public class OLISService
      */
     static public Bundle StringToBundle(String dataString)
     {
-        return (Bundle) fhirContext.newJsonParser().parseResource(dataString);
+        long startTime = Metrics.startTimer();
+        Bundle result = (Bundle) fhirContext.newJsonParser().parseResource(dataString);
+        Metrics.FHIR_DECODE.recordSince(startTime);
+        return result;
     }
 }
@@ -0,0 +1,298 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+import org.hl7.fhir.dstu3.model.InstantType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+
+/**
+ * This class keeps a local copy of the OLIS DiagnosticReports we've downloaded for each patient, so that a refresh
+ * only asks OLIS for reports that are newer than the last successful sync and merges them into what we already have.
+ *
+ * The sync point is saved per patient in the report_sync table. We prefer the server's _lastUpdated time,
+ * and fall back to the latest specimen collection date when OLIS doesn't give us one.
+ */
+public class OLISSyncService
+{
+    private LocalSQLOpenHelper sqLiteOpenHelper;
+    private LocalFHIRStore localFHIRStore;
+    private ReportSnapshotCache reportSnapshotCache;
+    private OLISService olisService;
+
+    public OLISSyncService(Context context)
+    {
+        sqLiteOpenHelper = LocalSQLOpenHelper.getInstance(context);
+        localFHIRStore = new LocalFHIRStore(context);
+        reportSnapshotCache = new ReportSnapshotCache(context);
+        olisService = new OLISService();
+    }
+
+    /**
+     * Queries OLIS for anything new since the last sync and merges it into the stored reports.
+     * The stored reports and the new sync point are written in one transaction, so if anything fails
+     * the next sync will simply ask for the same reports again.
+     *
+     * @param healthCardNumber the patient's HCN, which is also how reports are stored
+     * @param birthDate the patient's birth date for the query: 2018-02-24(yyyy-MM-dd)
+     * @param gender the patient's gender for the query
+     * @return how many reports were added or replaced
+     */
+    public int syncReports(String healthCardNumber, String birthDate, String gender)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getWritableDatabase();
+        String[] selectionArgs = {healthCardNumber};
+        String lastUpdated = null;
+        String lastCollected = null;
+
+        // find out where we left off last time
+        Cursor cursor = db.query("report_sync", new String[]{"last_updated", "last_collected"}, "hcn = ?", selectionArgs, null, null, null);
+
+        if (cursor.moveToFirst())
+        {
+            lastUpdated = cursor.getString(cursor.getColumnIndex("last_updated"));
+            lastCollected = cursor.getString(cursor.getColumnIndex("last_collected"));
+        }
+
+        cursor.close();
+
+        Bundle newReports = olisService.executeDeltaQuery(healthCardNumber, birthDate, gender, lastUpdated, lastCollected);
+
+        List<DiagnosticReport> diagnosticReports = new ArrayList<>();
+        Date newestUpdate = null;
+        String newestCollected = lastCollected;
+
+        for (Bundle.BundleEntryComponent entry : newReports.getEntry())
+        {
+            if (!(entry.getResource() instanceof DiagnosticReport))
+            {
+                continue;
+            }
+
+            DiagnosticReport diagnosticReport = (DiagnosticReport) entry.getResource();
+            diagnosticReports.add(diagnosticReport);
+
+            Date reportUpdated = diagnosticReport.getMeta().getLastUpdated();
+            if (reportUpdated != null && (newestUpdate == null || reportUpdated.after(newestUpdate)))
+            {
+                newestUpdate = reportUpdated;
+            }
+
+            String reportCollected = getCollectedDate(diagnosticReport);
+            if (reportCollected != null && (newestCollected == null || reportCollected.compareTo(newestCollected) > 0))
+            {
+                newestCollected = reportCollected;
+            }
+        }
+
+        db.beginTransaction();
+
+        try
+        {
+            // merge the new reports into the stored ones, this joins our transaction
+            localFHIRStore.writeReports(healthCardNumber, diagnosticReports);
+
+            // the time OLIS ran the search is the safest sync point, otherwise use the newest report we were given
+            if (newReports.getMeta().getLastUpdated() != null)
+            {
+                newestUpdate = newReports.getMeta().getLastUpdated();
+            }
+
+            // only move the sync point forward, an empty result shouldn't make us forget where we were
+            ContentValues contentValues = new ContentValues();
+            contentValues.put("hcn", healthCardNumber);
+            contentValues.put("last_updated", newestUpdate != null ? toInstantString(newestUpdate) : lastUpdated);
+            contentValues.put("last_collected", newestCollected);
+            db.insertWithOnConflict("report_sync", null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+
+        return diagnosticReports.size();
+    }
+
+    /**
+     * Same as syncReports(), except that when OLIS can't be reached (or its circuit breaker is open) and we've stored reports
+     * for this patient before, those are used instead of failing. They may be out of date, but that beats an error dialog.
+     *
+     * @return true if OLIS was synced, false if it couldn't be and the stored reports are all we have
+     * @throws RuntimeException the sync's own exception if it wasn't OLIS being unavailable, or if nothing is stored to fall back on
+     */
+    public boolean syncReportsOrUseStored(String healthCardNumber, String birthDate, String gender)
+    {
+        try
+        {
+            syncReports(healthCardNumber, birthDate, gender);
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            if (!canUseStoredReports(e, healthCardNumber))
+            {
+                throw e;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Decides whether a failed OLIS query can fall back to the stored reports: it has to be OLIS being unavailable
+     * (retries used up, breaker open or too busy), and we have to have stored reports for this patient before.
+     * Counts the fallback in Metrics.OLIS_FALLBACKS when it can.
+     *
+     * @param failure what the query threw
+     * @return true to use the stored reports, false to let the caller rethrow the failure
+     */
+    public boolean canUseStoredReports(RuntimeException failure, String healthCardNumber)
+    {
+        boolean isUnavailable = failure instanceof ServiceUnavailableException || ResiliencePolicy.isTransientFailure(failure);
+
+        if (!isUnavailable || countReports(healthCardNumber) == 0)
+        {
+            return false;
+        }
+
+        Metrics.OLIS_FALLBACKS.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Builds a searchset Bundle out of every report we have stored for this patient,
+     * so it can be used the same way as a Bundle returned straight from OLIS.
+     *
+     * @param healthCardNumber the patient's HCN
+     * @return a Bundle with one entry per stored DiagnosticReport
+     */
+    public Bundle loadReports(String healthCardNumber)
+    {
+        return loadReports("hcn = ?", new String[]{healthCardNumber});
+    }
+
+    /**
+     * Like loadReports(healthCardNumber), but only the reports whose specimen was collected in the date range,
+     * the same ones OLIS would return for it. A report without a collection time goes by when it was released.
+     *
+     * @param startDate the first day: 2018-02-24(yyyy-MM-dd)
+     * @param endDate the last day, included: 2018-03-24(yyyy-MM-dd)
+     * @return a Bundle with one entry per stored DiagnosticReport in the range
+     */
+    public Bundle loadReports(String healthCardNumber, String startDate, String endDate)
+    {
+        long startMillis = EpochDateFormat.toStartOfDayMillis(EpochDateFormat.parseQuery(startDate));
+        long endMillis = EpochDateFormat.toStartOfDayMillis(EpochDateFormat.parseQuery(endDate) + 1);
+
+        return loadReports("hcn = ? AND COALESCE(effective, issued) >= ? AND COALESCE(effective, issued) < ?",
+                new String[]{healthCardNumber, String.valueOf(startMillis), String.valueOf(endMillis)});
+    }
+
+    private Bundle loadReports(String selection, String[] selectionArgs)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        Bundle storedReports = new Bundle();
+        storedReports.setType(Bundle.BundleType.SEARCHSET);
+
+        Cursor cursor = db.query("reports", new String[]{"resource"}, selection, selectionArgs, null, null, null);
+        int resourceColumn = cursor.getColumnIndex("resource");
+
+        while (cursor.moveToNext())
+        {
+            storedReports.addEntry().setResource(OLISService.StringToReport(cursor.getString(resourceColumn)));
+        }
+
+        cursor.close();
+        storedReports.setTotal(storedReports.getEntry().size());
+
+        return storedReports;
+    }
+
+    /**
+     * Gets the report list models for every report we have stored for this patient. If we've shown the patient before and
+     * nothing was written for them since, the list comes from their snapshot instead of being decoded and mapped again.
+     * Call it from a background thread, without a snapshot this decodes every stored report.
+     *
+     * @param healthCardNumber the patient's HCN
+     * @return one model per stored DiagnosticReport
+     */
+    public ArrayList<OLISDiagnosticReportModel> loadReportList(String healthCardNumber)
+    {
+        ArrayList<OLISDiagnosticReportModel> diagnosticReports = reportSnapshotCache.load(healthCardNumber);
+
+        if (diagnosticReports == null)
+        {
+            long snapshotGeneration = reportSnapshotCache.getGeneration(healthCardNumber);
+
+            // big Bundles are mapped in parallel chunks
+            diagnosticReports = DiagnosticReportMapper.mapReports(loadReports(healthCardNumber), healthCardNumber);
+
+            // the snapshot keeps the range flags, so they're only worked out when it's built
+            flagReports(healthCardNumber, diagnosticReports);
+            reportSnapshotCache.store(healthCardNumber, snapshotGeneration, diagnosticReports);
+        }
+
+        return diagnosticReports;
+    }
+
+    /**
+     * Flags every numeric result we have stored for this patient against its reference range in one pass, and gives each report
+     * its most severe one, so the list can be sorted by severity. Only the stored numbers are read, no report is decoded.
+     *
+     * @param healthCardNumber the patient's HCN
+     * @param diagnosticReports some or all of the patient's report list
+     */
+    public void flagReports(String healthCardNumber, List<OLISDiagnosticReportModel> diagnosticReports)
+    {
+        localFHIRStore.loadEvaluatedObservations(healthCardNumber).flagReports(diagnosticReports);
+    }
+
+    /**
+     * @param healthCardNumber the patient's HCN
+     * @return the number of reports we have stored for this patient, without decoding any of them
+     */
+    public int countReports(String healthCardNumber)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        return (int) DatabaseUtils.queryNumEntries(db, "reports", "hcn = ?", new String[]{healthCardNumber});
+    }
+
+    /**
+     * The report's effective time is when the specimen was collected.
+     * @return the collection date in the query format: 2018-02-24(yyyy-MM-dd), or null if there isn't one
+     */
+    private String getCollectedDate(DiagnosticReport diagnosticReport)
+    {
+        Date collected = LocalFHIRStore.getEffectiveDate(diagnosticReport);
+
+        if (collected == null)
+        {
+            return null;
+        }
+
+        return EpochDateFormat.formatQuery(EpochDateFormat.toEpochDay(collected.getTime()));
+    }
+
+    /**
+     * @return the date as a UTC instant, e.g. 2018-07-02T14:10:00.000Z. Using UTC keeps '+' out of the query string.
+     */
+    private String toInstantString(Date date)
+    {
+        InstantType instant = new InstantType(date);
+        instant.setTimeZoneZulu(true);
+        return instant.getValueAsString();
+    }
+}
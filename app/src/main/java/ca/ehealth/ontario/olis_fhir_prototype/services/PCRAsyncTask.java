@@ -2,12 +2,8 @@ package ca.ehealth.ontario.olis_fhir_prototype.services;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
-
-import org.apache.http.HttpResponse;
-import org.hl7.fhir.dstu3.model.Bundle;
+import android.util.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -18,13 +14,23 @@ import ca.ehealth.ontario.olis_fhir_prototype.customdialogs.ProgressCircleDialog
 import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
 
 /**
- * This class handles our async task to retrieve the data from the PCR web service
+ * This class handles our async task to retrieve the data from the PCR web service.
+ * Patients are loaded one page of the local roster at a time. Only the roster is read here, the patients are looked up
+ * in PCR and OLIS one row at a time once they're on screen (see PatientDetailsLoader).
+ *
+ * Started from MainActivity it loads the first page and opens PCRListActivity.
+ * Started from PCRListActivity it hands the page back to the list, either to replace it (a new search) or to add to it (scrolling).
  */
 public class PCRAsyncTask extends AsyncTask<String, Void, ArrayList<PCRPatientModel>>
 {
-    private LocalSQLOpenHelper sqLiteOpenHelper;
+    private PatientRosterService patientRosterService;
     private ProgressCircleDialog progressCircleDialog;
     private ExceptionErrorDialog errorDialog;
+    private boolean isUpdatingList = false; // flag indicating whether this page goes to an existing PCRListActivity
+    private boolean isFirstPage = true;
+    private long lastRosterId = 0; // the key to continue from for the next page
+    private boolean isLastPage = false;
+    private boolean isPageFailed = false; // set if the roster couldn't be read
 
     // We want to keep a WeakReference to the activity context first, and then when we need it we check to see if it is still valid.
     // This is done to prevent memory leaks which would be caused be using something like: private Context myContext;
@@ -33,9 +39,10 @@ public class PCRAsyncTask extends AsyncTask<String, Void, ArrayList<PCRPatientMo
     public PCRAsyncTask(Activity inActivity)
     {
         this.weakReference = new WeakReference<>(inActivity);
-        sqLiteOpenHelper = new LocalSQLOpenHelper(inActivity.getApplicationContext());
+        patientRosterService = new PatientRosterService(inActivity);
         progressCircleDialog = new ProgressCircleDialog(inActivity);
         errorDialog = new ExceptionErrorDialog(inActivity);
+        isUpdatingList = inActivity instanceof PCRListActivity;
     }
 
     @Override
@@ -43,48 +50,49 @@ public class PCRAsyncTask extends AsyncTask<String, Void, ArrayList<PCRPatientMo
     {
         super.onPreExecute();
 
-        progressCircleDialog.show();
+        // the list is already showing when we're only loading another page, so don't block it (or the search box) with a dialog
+        if (!isUpdatingList)
+        {
+            progressCircleDialog.show();
+        }
     }
 
+    /**
+     * Loads the next page of the local roster. Nothing is sent to PCR or OLIS here, so a search keystroke only costs one indexed query.
+     * The rows are looked up in PCR and OLIS as they come on screen, see PatientDetailsLoader.
+     * @param strings optional: the search text, then the roster id to continue after (as a string)
+     * @return the patients on this page, with only the roster id, name and HCN filled in, or an empty page if the roster couldn't be read
+     */
     protected ArrayList<PCRPatientModel> doInBackground(String... strings)
     {
-        // initialize the local DB, the results array and save the userRole value
-        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-        ArrayList<PCRPatientModel> results = new ArrayList<>(); // patients received from PCR to be returned by this method
+        String searchText = strings.length > 0 ? strings[0] : null;
+        lastRosterId = strings.length > 1 ? Long.parseLong(strings[1]) : 0;
+        isFirstPage = lastRosterId == 0;
 
-        // lets loop through the database with a cursor, which requires a projection (our columns)
-        String[] projection = {"_id, name, hcn"};
-        Cursor cursor = db.query("patients", projection, null, null, null, null, null);
-
-        while (cursor.moveToNext())
+        try
         {
-            String healthCardNumber = cursor.getString(cursor.getColumnIndex("hcn"));
-
-            // query PCR and parse xml data
-            HttpResponse pcrHttpResponse = PCRService.executeQuery(healthCardNumber);
-            PCRPatientModel pcrPatient = PCRService.parseHttpResponse(pcrHttpResponse);
-            pcrPatient.setHealthCardNumber(healthCardNumber);
+            ArrayList<PCRPatientModel> rosterPage = patientRosterService.loadPage(searchText, lastRosterId, PatientRosterService.PAGE_SIZE);
+            isLastPage = rosterPage.size() < PatientRosterService.PAGE_SIZE;
 
-            // query OLIS for lab totals
-            if (!pcrPatient.getName().trim().equals(""))
+            if (!rosterPage.isEmpty())
             {
-                OLISService olisService = new OLISService();
-                Bundle olisResults = olisService.executeQuery(pcrPatient.getHealthCardNumber(), pcrPatient.getDateOfBirthForQuery(), pcrPatient.getGender());
-                pcrPatient.setLabTotal(olisResults.getTotal());
-
-                results.add(pcrPatient);
+                lastRosterId = rosterPage.get(rosterPage.size() - 1).getRosterId();
             }
-        }
-
-        cursor.close();
 
-        // return the result bundle for onPostExecute
-        return results;
+            // return the page for onPostExecute
+            return rosterPage;
+        }
+        catch (RuntimeException e)
+        {
+            // e.g. the database is locked by a roster import, the page can be asked for again
+            Log.d("PCRAsyncTask", e.toString());
+            isPageFailed = true;
+            return new ArrayList<>();
+        }
     }
 
     /**
-     * This method takes the result and sends it to the ResultFragment.
-     * Replaces RequestFragment with ResultFragment.
+     * Opens PCRListActivity with the first page, or gives the page to the PCRListActivity that asked for it.
      * @param results this was retrieved in doInBackround()
      */
     protected void onPostExecute(ArrayList<PCRPatientModel> results)
@@ -99,15 +107,32 @@ public class PCRAsyncTask extends AsyncTask<String, Void, ArrayList<PCRPatientMo
             return;
         }
 
-        if (results.size() > 0)
+        if (isPageFailed)
+        {
+            errorDialog.showErrorMessage("The patient roster couldn't be read. Please try again.");
+
+            // the list still has to know the page is done, or it never asks for another one
+            if (isUpdatingList)
+            {
+                ((PCRListActivity) activity).onPageFailed(isFirstPage);
+            }
+        }
+        else if (isUpdatingList)
+        {
+            ((PCRListActivity) activity).showPatientPage(results, isFirstPage, lastRosterId, isLastPage);
+        }
+        else if (results.size() > 0)
         {
+            // only one page is sent along, the list loads the rest itself as the user scrolls
             Intent pcrListIntent = new Intent(activity, PCRListActivity.class);
             pcrListIntent.putExtra("patients", results);
+            pcrListIntent.putExtra("lastRosterId", lastRosterId);
+            pcrListIntent.putExtra("isLastPage", isLastPage);
             activity.startActivity(pcrListIntent);
         }
         else
         {
-            errorDialog.showErrorMessage("No PCR Patients were found!");
+            errorDialog.showErrorMessage("No patients in the roster! Import a roster file first.");
         }
 
         if (progressCircleDialog.isShowing())
@@ -116,4 +141,4 @@ public class PCRAsyncTask extends AsyncTask<String, Void, ArrayList<PCRPatientMo
             progressCircleDialog.dismiss();
         }
     }
-}
\ No newline at end of file
+}
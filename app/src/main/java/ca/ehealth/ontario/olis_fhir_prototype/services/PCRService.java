@@ -5,9 +5,13 @@ import android.util.Log;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HTTP;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserFactory;
@@ -19,24 +23,67 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
 import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
 
 public class PCRService
 {
-    private static final String pcrEndPoint = "http://lite.innovation-lab.ca:8080/on";
+    private static final String DEFAULT_PCR_END_POINT = "http://lite.innovation-lab.ca:8080/on";
+    private static volatile String pcrEndPoint = DEFAULT_PCR_END_POINT;
     private static final String senderId = "Your unique Identifier";
+    private static volatile int connectTimeoutMillis = 10000;
+    private static volatile int readTimeoutMillis = 20000;
+    private static final ResiliencePolicy resiliencePolicy = new ResiliencePolicy("pcr");
 
     public PCRService()
     {
     }
 
+    /**
+     * Points every query made after this at another PCR server, e.g. the local stand-in server in the standin module.
+     *
+     * @param newEndPoint the URL the SOAP request is posted to, or null to go back to Innovation Lab
+     */
+    public static void setEndPoint(String newEndPoint)
+    {
+        pcrEndPoint = newEndPoint != null ? newEndPoint : DEFAULT_PCR_END_POINT;
+
+        // the new server hasn't failed us yet
+        resiliencePolicy.getCircuitBreaker().reset();
+    }
+
+    public static String getEndPoint()
+    {
+        return pcrEndPoint;
+    }
+
+    /**
+     * Sets how long every query made after this waits to connect, and then for each read of the answer.
+     */
+    public static void setTimeouts(int newConnectTimeoutMillis, int newReadTimeoutMillis)
+    {
+        connectTimeoutMillis = newConnectTimeoutMillis;
+        readTimeoutMillis = newReadTimeoutMillis;
+    }
+
+    /**
+     * @return the retry and circuit breaker settings for PCR, e.g. to change the number of attempts
+     */
+    public static ResiliencePolicy getResiliencePolicy()
+    {
+        return resiliencePolicy;
+    }
+
     /**
      * This method takes in a health card number to query the PCR repository.
      * Uses the Get Client Demographics Query-IN101101CA Interaction:
      * https://www.innovation-lab.ca/get-client-demographics-query/
+     * The query only reads, so it's retried if it times out or PCR answers with a 5xx (see ResiliencePolicy).
      * @param healthCardNumber patient health card number to be used in the query search parameter
-     * @return an HttpResponse object in XML format
+     * @return an HttpResponse object in XML format, never null
+     * @throws ServiceUnavailableException if PCR couldn't be reached or kept failing, or a CircuitOpenException if it's been failing lately
      */
     public static HttpResponse executeQuery(String healthCardNumber)
     {
@@ -46,7 +93,7 @@ public class PCRService
         SimpleDateFormat logDateFormat = new SimpleDateFormat("yyyyMMddkkmmssZ", Locale.CANADA);
         String creationDateTime = logDateFormat.format(calendar.getTime());
 
-        String xmlRequest = "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
+        final String xmlRequest = "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
                 " <S:Header xmlns:wsa=\"http://www.w3.org/2005/08/addressing\">\n" +
                 "  <wsa:Action>urn:hl7-org:v3:PRPA_IN101101CA.MR200903</wsa:Action>\n" +
                 "  <wsa:ReplyTo>\n" +
@@ -126,28 +173,66 @@ public class PCRService
                 " </S:Body>\n" +
                 "</S:Envelope>";
 
-        HttpResponse httpResponse = null;
+        final String endPoint = pcrEndPoint; // the same one for every attempt, even if it's changed while we're here
+
+        return resiliencePolicy.execute(new Callable<HttpResponse>()
+        {
+            @Override
+            public HttpResponse call() throws IOException
+            {
+                return post(endPoint, xmlRequest);
+            }
+        });
+    }
+
+    /**
+     * Sends the SOAP request once.
+     * @throws IOException if PCR couldn't be reached, didn't answer in time, or answered with a 5xx
+     */
+    private static HttpResponse post(String endPoint, String xmlRequest) throws IOException
+    {
+        long startTime = Metrics.startTimer();
 
         try
         {
             // Initialize http stuff and set headers
-            HttpClient httpClient = new DefaultHttpClient();
-            HttpPost httpPost = new HttpPost(pcrEndPoint);
+            HttpParams httpParams = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(httpParams, connectTimeoutMillis);
+            HttpConnectionParams.setSoTimeout(httpParams, readTimeoutMillis);
+            HttpClient httpClient = new DefaultHttpClient(httpParams);
+            HttpPost httpPost = new HttpPost(endPoint);
             StringEntity stringEntity = new StringEntity(xmlRequest, HTTP.UTF_8);
             stringEntity.setContentType("text/xml");
-            httpPost.addHeader("SOAPAction", pcrEndPoint);
+            httpPost.addHeader("SOAPAction", endPoint);
             httpPost.setEntity(stringEntity);
 
             // make the http request
-            httpResponse = httpClient.execute(httpPost);
+            HttpResponse httpResponse = httpClient.execute(httpPost);
+            int statusCode = httpResponse.getStatusLine().getStatusCode();
+
+            if (ResiliencePolicy.isTransientStatus(statusCode))
+            {
+                // a SOAP fault, a proxy error or being throttled, there's no patient in it either way. It used to be read as "not found".
+                // Throwing lets ResiliencePolicy retry it, the same as it would an OLIS 5xx or 429.
+                if (httpResponse.getEntity() != null)
+                {
+                    httpResponse.getEntity().consumeContent();
+                }
+
+                throw new HttpResponseException(statusCode, "PCR answered " + httpResponse.getStatusLine());
+            }
 
+            return httpResponse;
         }
         catch (IOException e)
         {
-            e.printStackTrace();
+            Metrics.PCR_ERRORS.incrementAndGet();
+            throw e;
+        }
+        finally
+        {
+            Metrics.PCR_QUERY.recordSince(startTime);
         }
-
-        return httpResponse;
     }
 
     /**
@@ -166,6 +251,7 @@ public class PCRService
         PCRPatientModel newPCRPatient = new PCRPatientModel();
         XmlPullParser xmlPullParser;
         int xmlEvent = 0;
+        long startTime = Metrics.startTimer();
 
         try
         {
@@ -179,7 +265,7 @@ public class PCRService
 
             String givenName = "";
             String familyName = "";
-            String birthTime = "";
+            int birthTime = EpochDateFormat.NO_DATE;
             String gender = ""; // administrativeGenderCode will be checked to generate gender
 
             // loop through xml and parse out data
@@ -209,13 +295,8 @@ public class PCRService
 
                         case "hl7:birthTime":
                             // format pattern that is returned by PCR: 19940115(yyyyMMdd)
-                            SimpleDateFormat formatReceived = new SimpleDateFormat("yyyyMMdd", Locale.CANADA);
-                            // parse out the Date object from the dispense date using the format object
-                            Date birthDate = formatReceived.parse(xmlPullParser.getAttributeValue(null, "value"));
-                            // apply a format like: 05-Feb-1987 to the string
-                            formatReceived.applyPattern("dd-MMM-YYYY");
-                            // finally, we can save the date with new format applied
-                            birthTime = formatReceived.format(birthDate);
+                            // it's kept as an epoch day, the model formats it when it's shown
+                            birthTime = EpochDateFormat.parseBasic(xmlPullParser.getAttributeValue(null, "value"));
                             break;
 
                         case "hl7:administrativeGenderCode":
@@ -245,13 +326,19 @@ public class PCRService
 
             newPCRPatient.setName(givenName + " " + familyName);
             newPCRPatient.setGender(gender);
-            newPCRPatient.setDateOfBirth(birthTime);
+            newPCRPatient.setDateOfBirthEpochDay(birthTime);
         }
         catch (Exception e)
         {
             //System.out.println(e.toString());
+            Metrics.PCR_ERRORS.incrementAndGet();
             Log.e("httpRequestException", e.toString());
         }
+        finally
+        {
+            // reading the response body happens here too, so this includes the download
+            Metrics.PCR_PARSE.recordSince(startTime);
+        }
 
         return newPCRPatient;
     }
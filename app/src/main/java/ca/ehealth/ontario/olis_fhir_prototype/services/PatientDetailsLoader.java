@@ -0,0 +1,231 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+
+/**
+ * This class looks up the patients of the patient list in PCR and OLIS, one row at a time, as the rows come on screen.
+ * Searching and paging only read the local roster (see PCRAsyncTask), so they never wait on the network. The demographics
+ * and lab total of a row are filled in here once it's actually shown, and a row that scrolls off before its turn is never sent.
+ *
+ * Usage (PCRListAdapter does this):
+ *   patientDetailsLoader.load(patient);     // in onBindViewHolder, for a patient that hasn't been looked up
+ *   patientDetailsLoader.cancel(patient);   // in onViewRecycled
+ *   patientDetailsLoader.shutdown();        // when the list is destroyed
+ * Results are handed to the Listener on the main thread.
+ */
+public class PatientDetailsLoader
+{
+    private static final int THREAD_COUNT = 4; // a screen of rows at a time, the concurrency limiters keep PCR and OLIS from being flooded
+
+    private final Listener listener;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor;
+    private final ThreadLocal<PatientLookupPipeline> patientLookupPipeline; // a pipeline isn't meant to be shared between threads
+    private final Map<Long, Lookup> pendingLookups = new HashMap<>(); // by roster id, only touched on the main thread
+    private boolean isShutDown = false;
+
+    /**
+     * Gets the results of the lookups, on the main thread.
+     */
+    public interface Listener
+    {
+        /**
+         * @param rosterId   the row the lookup was for
+         * @param pcrPatient the patient as PCR knows them with their lab total, or null if PCR or OLIS couldn't be reached
+         */
+        void onPatientLoaded(long rosterId, PCRPatientModel pcrPatient);
+    }
+
+    public PatientDetailsLoader(Context context, Listener listener)
+    {
+        this.listener = listener;
+        final OLISSyncService olisSyncService = new OLISSyncService(context);
+
+        // sync OLIS reports for lab totals, only reports newer than the last sync are downloaded.
+        // If OLIS is down, the lab total is whatever we stored last time.
+        final PatientLookupPipeline.ReportCounter reportCounter = new PatientLookupPipeline.ReportCounter()
+        {
+            @Override
+            public int countReports(PCRPatientModel pcrPatient)
+            {
+                olisSyncService.syncReportsOrUseStored(pcrPatient.getHealthCardNumber(), pcrPatient.getDateOfBirthForQuery(), pcrPatient.getGender());
+                return olisSyncService.countReports(pcrPatient.getHealthCardNumber());
+            }
+        };
+
+        patientLookupPipeline = new ThreadLocal<PatientLookupPipeline>()
+        {
+            @Override
+            protected PatientLookupPipeline initialValue()
+            {
+                return new PatientLookupPipeline(reportCounter);
+            }
+        };
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        executor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+                Thread thread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // below the UI thread, like AsyncTask's threads
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "patient-details-" + threadNumber.incrementAndGet());
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts looking the patient up, unless it's already being looked up. Call it on the main thread.
+     * @param patient a row of the list, with its roster id and HCN
+     */
+    public void load(PCRPatientModel patient)
+    {
+        if (isShutDown || pendingLookups.containsKey(patient.getRosterId()))
+        {
+            return;
+        }
+
+        Lookup lookup = new Lookup(patient.getRosterId(), patient.getHealthCardNumber());
+        pendingLookups.put(patient.getRosterId(), lookup);
+        executor.execute(lookup);
+    }
+
+    /**
+     * Drops the patient's lookup, e.g. because the row scrolled off screen before it was sent.
+     */
+    public void cancel(PCRPatientModel patient)
+    {
+        Lookup pendingLookup = pendingLookups.get(patient.getRosterId());
+
+        if (pendingLookup != null)
+        {
+            // a lookup that's already running finishes, but its result is dropped
+            pendingLookup.cancel(false);
+            pendingLookups.remove(patient.getRosterId());
+        }
+    }
+
+    /**
+     * Drops every lookup, e.g. because a new search replaced the list.
+     */
+    public void cancelAll()
+    {
+        Iterator<Lookup> iterator = pendingLookups.values().iterator();
+
+        while (iterator.hasNext())
+        {
+            // a lookup that's already running finishes, but its result is dropped
+            iterator.next().cancel(false);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * One patient's lookup. Once it's done it hands the result to the main thread, unless it was cancelled.
+     */
+    private class Lookup extends FutureTask<PCRPatientModel>
+    {
+        private final long rosterId;
+
+        private Lookup(final long rosterId, final String healthCardNumber)
+        {
+            super(new Callable<PCRPatientModel>()
+            {
+                @Override
+                public PCRPatientModel call()
+                {
+                    // PCR, then OLIS for the patients PCR knows
+                    return patientLookupPipeline.get().lookUp(healthCardNumber);
+                }
+            });
+
+            this.rosterId = rosterId;
+        }
+
+        // called on the background thread once the lookup is done, failed or was cancelled
+        @Override
+        protected void done()
+        {
+            if (isCancelled())
+            {
+                return;
+            }
+
+            PCRPatientModel pcrPatient = null;
+
+            try
+            {
+                pcrPatient = get();
+            }
+            catch (ExecutionException e)
+            {
+                // PCR or OLIS is down, the row says so and is tried again the next time it's shown
+                Log.d("PatientDetailsLoader", e.getCause().toString());
+            }
+            catch (InterruptedException e)
+            {
+                // can't happen, the lookup is already done
+                Thread.currentThread().interrupt();
+            }
+
+            final PCRPatientModel result = pcrPatient;
+
+            mainThreadHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // the row may have asked again after this lookup was cancelled, that one isn't done yet
+                    if (pendingLookups.get(rosterId) == Lookup.this)
+                    {
+                        pendingLookups.remove(rosterId);
+                    }
+
+                    if (!isShutDown)
+                    {
+                        listener.onPatientLoaded(rosterId, result);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops every lookup and drops the results of the ones that were running. Call it from the activity's onDestroy().
+     */
+    public void shutdown()
+    {
+        isShutDown = true;
+        pendingLookups.clear();
+        executor.shutdownNow();
+    }
+}
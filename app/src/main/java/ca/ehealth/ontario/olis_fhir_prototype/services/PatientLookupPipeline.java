@@ -0,0 +1,100 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.apache.http.HttpResponse;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+
+/**
+ * This class looks one patient up the way the patient list needs them: PCR for who they are, then OLIS for how many lab reports they have.
+ * It doesn't need a Cursor, an Activity or the local database, so the same pipeline runs in PatientDetailsLoader on a device
+ * and in the headless batch runner (the batch module) on a plain JVM.
+ *
+ * Where the lab total comes from is up to the ReportCounter:
+ * -the app syncs the reports into the local database and counts what's stored (OLISSyncService)
+ * -the default queries OLIS for the whole history and counts the DiagnosticReports in the answer
+ *
+ * One pipeline isn't meant to be shared between threads, give each thread its own.
+ */
+public class PatientLookupPipeline
+{
+    private ReportCounter reportCounter;
+
+    /**
+     * Counts reports straight from OLIS, nothing is stored.
+     */
+    public PatientLookupPipeline()
+    {
+        this(new OLISReportCounter());
+    }
+
+    public PatientLookupPipeline(ReportCounter reportCounter)
+    {
+        this.reportCounter = reportCounter;
+    }
+
+    /**
+     * @param healthCardNumber the patient's HCN
+     * @return the patient as PCR knows them, with their lab total. The name is blank if PCR doesn't know them, and OLIS isn't asked.
+     */
+    public PCRPatientModel lookUp(String healthCardNumber)
+    {
+        // query PCR and parse xml data
+        HttpResponse pcrHttpResponse = PCRService.executeQuery(healthCardNumber);
+        PCRPatientModel pcrPatient = PCRService.parseHttpResponse(pcrHttpResponse);
+        pcrPatient.setHealthCardNumber(healthCardNumber);
+
+        if (isFound(pcrPatient))
+        {
+            pcrPatient.setLabTotal(reportCounter.countReports(pcrPatient));
+        }
+
+        return pcrPatient;
+    }
+
+    /**
+     * @return true if PCR knew the patient
+     */
+    public static boolean isFound(PCRPatientModel pcrPatient)
+    {
+        return pcrPatient.getName() != null && !pcrPatient.getName().trim().equals("");
+    }
+
+    /**
+     * Works out a patient's lab total once PCR has found them.
+     */
+    public interface ReportCounter
+    {
+        /**
+         * @param pcrPatient the patient as PCR knows them, with their HCN set
+         * @return how many lab reports they have
+         */
+        int countReports(PCRPatientModel pcrPatient);
+    }
+
+    /**
+     * Asks OLIS for the patient's whole history every time and counts the DiagnosticReports in the answer.
+     */
+    private static class OLISReportCounter implements ReportCounter
+    {
+        private OLISService olisService = new OLISService();
+
+        @Override
+        public int countReports(PCRPatientModel pcrPatient)
+        {
+            Bundle results = olisService.executeQuery(pcrPatient.getHealthCardNumber(), pcrPatient.getDateOfBirthForQuery(), pcrPatient.getGender());
+            int reportCount = 0;
+
+            for (Bundle.BundleEntryComponent entry : results.getEntry())
+            {
+                if (entry.getResource() instanceof DiagnosticReport)
+                {
+                    reportCount++;
+                }
+            }
+
+            return reportCount;
+        }
+    }
+}
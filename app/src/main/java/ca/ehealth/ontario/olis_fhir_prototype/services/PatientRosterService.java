@@ -0,0 +1,190 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+
+/**
+ * This class answers questions about the local patient roster (the patients table) without touching PCR or OLIS.
+ */
+public class PatientRosterService
+{
+    public static final int PAGE_SIZE = 50; // a few screens of rows, only the rows that are shown get looked up in PCR and OLIS
+    private static final int IMPORT_PROGRESS_INTERVAL = 500; // rows between progress updates during an import
+
+    private LocalSQLOpenHelper sqLiteOpenHelper;
+
+    public PatientRosterService(Context context)
+    {
+        sqLiteOpenHelper = LocalSQLOpenHelper.getInstance(context);
+    }
+
+    /**
+     * Loads one page of the roster, in the order patients were added.
+     * Pages are found by key (the last _id we've seen) rather than by offset, so loading page 500 is as quick as loading page 1
+     * and only one page of rows is ever held in memory.
+     *
+     * If there's search text, only patients whose name or HCN starts with what the user typed are included, using the
+     * patients_fts full-text index. Every word typed has to match, so "mad fos" finds Madison Foster and "1868" finds HCN 1868176460.
+     *
+     * @param searchText whatever is in the search box, may be null or empty
+     * @param afterRosterId the _id of the last patient on the previous page, 0 for the first page
+     * @param pageSize the maximum number of patients to return
+     * @return the patients on this page, with only the roster id, name and HCN filled in
+     */
+    public ArrayList<PCRPatientModel> loadPage(String searchText, long afterRosterId, int pageSize)
+    {
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        ArrayList<PCRPatientModel> rosterPage = new ArrayList<>(pageSize);
+        String matchQuery = buildMatchQuery(searchText);
+        Cursor cursor;
+
+        if (matchQuery == null)
+        {
+            cursor = db.rawQuery("SELECT _id, name, hcn FROM patients WHERE _id > ? ORDER BY _id LIMIT ?",
+                    new String[]{String.valueOf(afterRosterId), String.valueOf(pageSize)});
+        }
+        else
+        {
+            // the full-text index uses the patient's _id as its docid
+            cursor = db.rawQuery("SELECT docid, name, hcn FROM patients_fts WHERE patients_fts MATCH ? AND docid > ? ORDER BY docid LIMIT ?",
+                    new String[]{matchQuery, String.valueOf(afterRosterId), String.valueOf(pageSize)});
+        }
+
+        while (cursor.moveToNext())
+        {
+            PCRPatientModel rosterPatient = new PCRPatientModel();
+            rosterPatient.setRosterId(cursor.getLong(0));
+            rosterPatient.setName(cursor.getString(1));
+            rosterPatient.setHealthCardNumber(cursor.getString(2));
+            rosterPage.add(rosterPatient);
+        }
+
+        cursor.close();
+
+        return rosterPage;
+    }
+
+    /**
+     * Loads a roster file into the patients table. The file can be either:
+     * -CSV with a name and an HCN on each line (a header line naming the columns is optional, and can put them in either order)
+     * -NDJSON with one object per line, e.g. {"name": "Madison Foster", "hcn": "1868176460"}
+     *
+     * The whole file is imported in one transaction with compiled statements, which is what makes tens of thousands of rows take
+     * seconds instead of minutes. Patients are matched on HCN: a patient we already have gets the new name, anyone else is added.
+     * Lines without both a name and an HCN are skipped and counted.
+     *
+     * @param rosterStream the roster file
+     * @param listener told how far along we are every few hundred lines, and once more at the end. May be null.
+     * @return the number of patients added or updated
+     * @throws IOException if the file can't be read, in which case nothing is imported
+     */
+    public int importRoster(InputStream rosterStream, RosterImportListener listener) throws IOException
+    {
+        RosterFileReader rosterFileReader = new RosterFileReader(rosterStream);
+        SQLiteDatabase db = sqLiteOpenHelper.getWritableDatabase();
+        SQLiteStatement updatePatient = db.compileStatement("UPDATE patients SET name = ? WHERE hcn = ?");
+        SQLiteStatement insertPatient = db.compileStatement("INSERT INTO patients (name, hcn) VALUES (?, ?)");
+        int importedCount = 0;
+
+        db.beginTransaction();
+
+        try
+        {
+            while (rosterFileReader.next())
+            {
+                // upsert on HCN. The update goes first so that the full-text index triggers see an update, not a delete and insert.
+                updatePatient.bindString(1, rosterFileReader.getName());
+                updatePatient.bindString(2, rosterFileReader.getHealthCardNumber());
+
+                if (updatePatient.executeUpdateDelete() == 0)
+                {
+                    insertPatient.bindString(1, rosterFileReader.getName());
+                    insertPatient.bindString(2, rosterFileReader.getHealthCardNumber());
+                    insertPatient.executeInsert();
+                }
+
+                importedCount++;
+
+                if (listener != null && importedCount % IMPORT_PROGRESS_INTERVAL == 0)
+                {
+                    listener.onProgress(importedCount, rosterFileReader.getSkippedCount());
+                }
+            }
+
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+            updatePatient.close();
+            insertPatient.close();
+            rosterFileReader.close();
+        }
+
+        if (listener != null)
+        {
+            listener.onProgress(importedCount, rosterFileReader.getSkippedCount());
+        }
+
+        return importedCount;
+    }
+
+    /**
+     * Turns the search text into an FTS prefix query: each word becomes word*.
+     * Only letters and digits are kept, so nothing the user types can break the MATCH syntax.
+     *
+     * @return the MATCH expression, or null if the text had no letters or digits
+     */
+    static String buildMatchQuery(String searchText)
+    {
+        if (searchText == null)
+        {
+            return null;
+        }
+
+        StringBuilder matchQuery = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+
+        for (int i = 0; i <= searchText.length(); i++)
+        {
+            char c = i < searchText.length() ? searchText.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c))
+            {
+                word.append(c);
+            }
+            else if (word.length() > 0)
+            {
+                if (matchQuery.length() > 0)
+                {
+                    matchQuery.append(' ');
+                }
+
+                matchQuery.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+
+        return matchQuery.length() > 0 ? matchQuery.toString() : null;
+    }
+
+    /**
+     * Lets whoever started an import know how far along it is.
+     */
+    public interface RosterImportListener
+    {
+        /**
+         * @param importedCount patients added or updated so far
+         * @param skippedCount lines skipped so far because they were missing a name or an HCN
+         */
+        void onProgress(int importedCount, int skippedCount);
+    }
+}
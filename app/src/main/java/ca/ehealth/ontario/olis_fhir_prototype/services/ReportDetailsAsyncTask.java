@@ -0,0 +1,79 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+
+import java.lang.ref.WeakReference;
+
+import ca.ehealth.ontario.olis_fhir_prototype.activities.DiagnosticReportDetailsActivity;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+
+/**
+ * This class decodes the details of a single report (test result and acceptable range) in the background.
+ * The report list only maps the summary of each report, so the full DiagnosticReport is loaded from LocalFHIRStore
+ * when DiagnosticReportDetailsActivity opens it. It's started on FHIRBackgroundExecutor's executor.
+ */
+public class ReportDetailsAsyncTask extends AsyncTask<OLISDiagnosticReportModel, Void, OLISDiagnosticReportModel>
+{
+    private LocalFHIRStore localFHIRStore;
+
+    // We want to keep a WeakReference to the activity context first, and then when we need it we check to see if it is still valid.
+    // This is done to prevent memory leaks which would be caused by using something like: private Context myContext;
+    private final WeakReference<Activity> weakReference;
+
+    public ReportDetailsAsyncTask(Activity inActivity)
+    {
+        weakReference = new WeakReference<>(inActivity);
+        localFHIRStore = new LocalFHIRStore(inActivity);
+    }
+
+    /**
+     * @param labReports the report summary to fill in
+     * @return the same model with its details loaded, or as it was if the stored report couldn't be found
+     */
+    protected OLISDiagnosticReportModel doInBackground(OLISDiagnosticReportModel... labReports)
+    {
+        OLISDiagnosticReportModel labReport = labReports[0];
+        long startTime = Metrics.startTimer();
+
+        try
+        {
+            DiagnosticReport diagnosticReport = localFHIRStore.loadReport(labReport.getHealthCardNumber(), labReport.getReportId());
+
+            if (diagnosticReport != null)
+            {
+                labReport.loadDetails(diagnosticReport);
+            }
+        }
+        catch (Exception e)
+        {
+            Log.d("ReportDetailsAsyncTask", e.toString());
+        }
+
+        // reading the stored report, decoding it and mapping its details
+        Metrics.REPORT_DETAILS.recordSince(startTime);
+
+        return labReport;
+    }
+
+    /**
+     * @param labReport this was retrieved in doInBackround()
+     */
+    protected void onPostExecute(OLISDiagnosticReportModel labReport)
+    {
+        Activity activity = weakReference.get();
+
+        // use weak reference to get a strong reference
+        //if its no longer valid, then end this task
+        if (activity == null || activity.isFinishing() || activity.isDestroyed())
+        {
+            // activity is no longer valid, don't do anything!
+            return;
+        }
+
+        ((DiagnosticReportDetailsActivity) activity).showDetails(labReport);
+    }
+}
@@ -0,0 +1,91 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+import ca.ehealth.ontario.olis_fhir_prototype.activities.PatientSummaryActivity;
+import ca.ehealth.ontario.olis_fhir_prototype.customdialogs.ExceptionErrorDialog;
+import ca.ehealth.ontario.olis_fhir_prototype.customdialogs.ProgressCircleDialog;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+
+/**
+ * This class loads a patient's stored reports for PatientSummaryActivity in the background (see OLISSyncService.loadReportList()).
+ * OLISAsyncTask only sends the patient to the activity, since a mapped list of thousands of reports is too big to go through an Intent.
+ * It's started on FHIRBackgroundExecutor's executor.
+ */
+public class ReportListAsyncTask extends AsyncTask<String, Void, ArrayList<OLISDiagnosticReportModel>>
+{
+    private OLISSyncService olisSyncService;
+    private ProgressCircleDialog progressCircleDialog;
+    private ExceptionErrorDialog errorDialog;
+
+    // We want to keep a WeakReference to the activity context first, and then when we need it we check to see if it is still valid.
+    // This is done to prevent memory leaks which would be caused by using something like: private Context myContext;
+    private final WeakReference<Activity> weakReference;
+
+    public ReportListAsyncTask(Activity inActivity)
+    {
+        weakReference = new WeakReference<>(inActivity);
+        olisSyncService = new OLISSyncService(inActivity);
+        progressCircleDialog = new ProgressCircleDialog(inActivity);
+        errorDialog = new ExceptionErrorDialog(inActivity);
+    }
+
+    @Override
+    protected void onPreExecute()
+    {
+        super.onPreExecute();
+
+        progressCircleDialog.show();
+    }
+
+    /**
+     * @param healthCardNumbers the patient's HCN
+     * @return the patient's report list, or null if the stored reports couldn't be read
+     */
+    protected ArrayList<OLISDiagnosticReportModel> doInBackground(String... healthCardNumbers)
+    {
+        try
+        {
+            return olisSyncService.loadReportList(healthCardNumbers[0]);
+        }
+        catch (Exception e)
+        {
+            Log.d("ReportListAsyncTask", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @param diagnosticReports this was retrieved from doInBackground()
+     */
+    protected void onPostExecute(ArrayList<OLISDiagnosticReportModel> diagnosticReports)
+    {
+        // Use weak reference of the launching activity to get a strong reference
+        //if its no longer valid, then end this task
+        Activity activity = weakReference.get();
+        if (activity == null || activity.isFinishing() || activity.isDestroyed())
+        {
+            // activity is no longer valid, don't do anything!
+            return;
+        }
+
+        if (progressCircleDialog.isShowing())
+        {
+            // no longer loading, close progress circle dialog
+            progressCircleDialog.dismiss();
+        }
+
+        if (diagnosticReports == null)
+        {
+            errorDialog.showErrorMessage("The stored reports for this patient couldn't be read. Please try again.");
+            return;
+        }
+
+        ((PatientSummaryActivity) activity).setListViewData(diagnosticReports);
+    }
+}
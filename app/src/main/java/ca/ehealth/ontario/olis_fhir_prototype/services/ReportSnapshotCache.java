@@ -0,0 +1,194 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+
+/**
+ * This class keeps each patient's mapped report list as a ReportSnapshotCodec snapshot in the app's cache directory,
+ * so opening a patient we've seen before doesn't have to decode and map every stored DiagnosticReport again.
+ * For a patient with 10k reports that's the difference between seconds of HAPI parsing and reading one small file.
+ *
+ * The stored reports in LocalFHIRStore are still the real copy. Whenever a patient's reports are written,
+ * LocalFHIRStore calls invalidate() (before and after its transaction) and the snapshot is built again the next time the list is loaded.
+ * Android can clear the cache directory whenever it likes, a missing snapshot is just a miss.
+ *
+ * Usage (OLISSyncService.loadReportList() does this):
+ *   ArrayList<OLISDiagnosticReportModel> reports = reportSnapshotCache.load(healthCardNumber);
+ *   if (reports == null)
+ *   {
+ *       long generation = reportSnapshotCache.getGeneration(healthCardNumber);
+ *       reports = ...load and map the stored reports...
+ *       reportSnapshotCache.store(healthCardNumber, generation, reports);
+ *   }
+ */
+public class ReportSnapshotCache
+{
+    private static final String TAG = "ReportSnapshotCache";
+    private static final String DIRECTORY_NAME = "olis-snapshots";
+
+    // bumped by every invalidate(), so a list loaded before the reports changed isn't stored over the invalidation
+    private static final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final File directory;
+
+    public ReportSnapshotCache(Context context)
+    {
+        directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * @param healthCardNumber the patient's HCN
+     * @return the patient's report list, or null if there's no snapshot or it can't be read (it's deleted then)
+     */
+    public ArrayList<OLISDiagnosticReportModel> load(String healthCardNumber)
+    {
+        File snapshotFile = getFile(healthCardNumber);
+
+        if (!snapshotFile.isFile())
+        {
+            Metrics.SNAPSHOT_MISSES.incrementAndGet();
+            return null;
+        }
+
+        long startTime = Metrics.startTimer();
+
+        try
+        {
+            ArrayList<OLISDiagnosticReportModel> reports = ReportSnapshotCodec.decode(readFile(snapshotFile));
+            Metrics.SNAPSHOT_READ.recordSince(startTime);
+            return reports;
+        }
+        catch (IOException e)
+        {
+            // e.g. written by a newer version of the app, or cut short when the app was killed
+            Log.d(TAG, "Dropping the snapshot for " + healthCardNumber + ": " + e);
+            snapshotFile.delete();
+            Metrics.SNAPSHOT_MISSES.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @return the patient's generation, to pass to store() once the list has been loaded from LocalFHIRStore
+     */
+    public long getGeneration(String healthCardNumber)
+    {
+        return getGenerationCounter(healthCardNumber).get();
+    }
+
+    /**
+     * Saves the patient's report list, unless their reports were written since getGeneration() was called.
+     * A failure is only logged, the next load() will simply miss.
+     * @param healthCardNumber the patient's HCN
+     * @param generation       from getGeneration(), taken before the reports were loaded
+     * @param reports          the patient's report list
+     */
+    public void store(String healthCardNumber, long generation, List<OLISDiagnosticReportModel> reports)
+    {
+        long startTime = Metrics.startTimer();
+        byte[] snapshot = ReportSnapshotCodec.encode(reports);
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            Log.d(TAG, "Couldn't create " + directory);
+            return;
+        }
+
+        // written to a temporary file first and renamed, so load() never sees half a snapshot
+        File snapshotFile = getFile(healthCardNumber);
+        File temporaryFile = new File(directory, snapshotFile.getName() + ".tmp" + Thread.currentThread().getId());
+
+        try
+        {
+            FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+
+            try
+            {
+                outputStream.write(snapshot);
+            }
+            finally
+            {
+                outputStream.close();
+            }
+
+            synchronized (generations)
+            {
+                if (getGeneration(healthCardNumber) != generation || !temporaryFile.renameTo(snapshotFile))
+                {
+                    temporaryFile.delete();
+                    return;
+                }
+            }
+
+            Metrics.SNAPSHOT_WRITE.recordSince(startTime);
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, "Couldn't store the snapshot for " + healthCardNumber + ": " + e);
+            temporaryFile.delete();
+        }
+    }
+
+    /**
+     * Forgets the patient's snapshot, e.g. because new reports were just stored for them.
+     */
+    public void invalidate(String healthCardNumber)
+    {
+        synchronized (generations)
+        {
+            getGenerationCounter(healthCardNumber).incrementAndGet();
+            getFile(healthCardNumber).delete();
+        }
+    }
+
+    private File getFile(String healthCardNumber)
+    {
+        // the HCN is digits (and a version code) anyway, this only keeps anything else from becoming part of a path
+        return new File(directory, healthCardNumber.replaceAll("[^A-Za-z0-9]", "_") + ".bin");
+    }
+
+    private static AtomicLong getGenerationCounter(String healthCardNumber)
+    {
+        return Metrics.getOrCreate(generations, healthCardNumber, Metrics.NEW_ATOMIC_LONG);
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        FileInputStream inputStream = new FileInputStream(file);
+
+        try
+        {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+
+            while (offset < bytes.length)
+            {
+                int count = inputStream.read(bytes, offset, bytes.length - offset);
+
+                if (count < 0)
+                {
+                    break; // shorter than it was a moment ago, the codec will say it's cut short
+                }
+
+                offset += count;
+            }
+
+            return bytes;
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISObservationModel;
+import ca.ehealth.ontario.olis_fhir_prototype.models.ReferenceRangeEvaluator;
+
+/**
+ * This class writes the report list models to a compact binary snapshot and reads them back, so a patient's list can be shown
+ * again without decoding every stored DiagnosticReport with HAPI and mapping it (see ReportSnapshotCache).
+ * It only keeps what the models hold, not the whole FHIR resources, so it's no replacement for LocalFHIRStore.
+ *
+ * Layout, every count and length is an unsigned varint (7 bits per byte, lowest first):
+ * -magic (4 bytes "OLRS") and the format version (1 byte)
+ * -the string table: a count, then every distinct string as its UTF-8 length and bytes.
+ *  Names, tests and the health card number repeat across thousands of reports, so each is stored once.
+ * -the report count, then every report as its length and its record:
+ *  -flags: abnormal, details loaded, has a release time
+ *  -the strings as references into the table (index + 1, 0 is null): practitioner, organization, test performed,
+ *   test result, acceptable range, report id, health card number
+ *  -the release time as the difference from the report before, zigzag encoded, if it has one
+ *  -if the details are loaded, the observation count and each observation's name, result, interpretation code and range
+ *  -since version 2: the report's range flag (see ReferenceRangeEvaluator), followed by its deviation as 8 bytes if it's abnormal,
+ *   then if the details are loaded, for each observation a byte saying which of value, low and high it has, its unit,
+ *   and the ones it has as 8 byte doubles. The numbers are kept exactly, the display strings above can't be parsed back reliably.
+ *
+ * Since every record starts with its length, a later version can add fields to the end of a record and still be read here
+ * (the rest of the record is skipped). Anything that changes the fields already there needs a new VERSION.
+ * Version 1 snapshots are refused rather than read without their range flags, so they're rebuilt on the next load.
+ */
+public class ReportSnapshotCodec
+{
+    public static final int VERSION = 2;
+    private static final int OLDEST_READABLE_VERSION = 2;
+
+    private static final int MAGIC = 0x4F4C5253; // "OLRS"
+
+    private static final int FLAG_ABNORMAL = 1;
+    private static final int FLAG_DETAIL_LOADED = 1 << 1;
+    private static final int FLAG_HAS_TIME = 1 << 2;
+
+    private static final int HAS_VALUE = 1;
+    private static final int HAS_RANGE_LOW = 1 << 1;
+    private static final int HAS_RANGE_HIGH = 1 << 2;
+
+    private ReportSnapshotCodec()
+    {
+    }
+
+    /**
+     * @param reports the models of a patient's report list
+     * @return the snapshot
+     */
+    public static byte[] encode(List<OLISDiagnosticReportModel> reports)
+    {
+        StringTable stringTable = new StringTable();
+        ByteWriter records = new ByteWriter(reports.size() * 16);
+        ByteWriter record = new ByteWriter(256);
+        long previousMillis = 0;
+
+        for (OLISDiagnosticReportModel report : reports)
+        {
+            record.reset();
+            long releaseMillis = report.getTestReleaseMillis();
+            boolean hasTime = releaseMillis != EpochDateFormat.NO_TIME;
+
+            record.writeByte((report.isAbnormal() ? FLAG_ABNORMAL : 0)
+                    | (report.isDetailLoaded() ? FLAG_DETAIL_LOADED : 0)
+                    | (hasTime ? FLAG_HAS_TIME : 0));
+
+            record.writeVarint(stringTable.ref(report.getPractitionerName()));
+            record.writeVarint(stringTable.ref(report.getOrganizationName()));
+            record.writeVarint(stringTable.ref(report.getTestPerformed()));
+            record.writeVarint(stringTable.ref(report.getTestResult()));
+            record.writeVarint(stringTable.ref(report.getAcceptableRange()));
+            record.writeVarint(stringTable.ref(report.getReportId()));
+            record.writeVarint(stringTable.ref(report.getHealthCardNumber()));
+
+            // reports come out of the store roughly in order, so the difference is usually a few bytes instead of 8
+            if (hasTime)
+            {
+                long delta = releaseMillis - previousMillis;
+                record.writeVarLong((delta << 1) ^ (delta >> 63));
+                previousMillis = releaseMillis;
+            }
+
+            if (report.isDetailLoaded())
+            {
+                List<OLISObservationModel> observations = report.getObservations();
+                record.writeVarint(observations.size());
+
+                for (OLISObservationModel observation : observations)
+                {
+                    record.writeVarint(stringTable.ref(observation.getTestName()));
+                    record.writeVarint(stringTable.ref(observation.getTestResult()));
+                    record.writeVarint(stringTable.ref(observation.getInterpretationCode()));
+                    record.writeVarint(stringTable.ref(observation.getAcceptableRange()));
+                }
+            }
+
+            // version 2 fields
+            record.writeByte(report.getRangeFlag());
+
+            if (ReferenceRangeEvaluator.isAbnormalFlag(report.getRangeFlag()))
+            {
+                record.writeDouble(report.getRangeDeviation());
+            }
+
+            if (report.isDetailLoaded())
+            {
+                for (OLISObservationModel observation : report.getObservations())
+                {
+                    writeNumbers(record, stringTable, observation);
+                }
+            }
+
+            records.writeVarint(record.size());
+            records.write(record);
+        }
+
+        ByteWriter snapshot = new ByteWriter(stringTable.byteCount + records.size() + 16);
+        snapshot.writeInt(MAGIC);
+        snapshot.writeByte(VERSION);
+
+        snapshot.writeVarint(stringTable.strings.size());
+
+        for (byte[] utf8 : stringTable.strings)
+        {
+            snapshot.writeVarint(utf8.length);
+            snapshot.write(utf8, 0, utf8.length);
+        }
+
+        snapshot.writeVarint(reports.size());
+        snapshot.write(records);
+
+        return snapshot.toByteArray();
+    }
+
+    /**
+     * @param snapshot what encode() wrote, with this version (or a later one that only added fields)
+     * @return the models, in the order they were encoded
+     * @throws IOException if it isn't a snapshot, it's from version 1 or a newer version of the app, or it was cut short
+     */
+    public static ArrayList<OLISDiagnosticReportModel> decode(byte[] snapshot) throws IOException
+    {
+        ByteReader reader = new ByteReader(snapshot);
+
+        if (reader.readInt() != MAGIC)
+        {
+            throw new IOException("Not a report snapshot");
+        }
+
+        int version = reader.readByte();
+
+        if (version < OLDEST_READABLE_VERSION || version > VERSION)
+        {
+            throw new IOException("Report snapshot version " + version + " can't be read by version " + VERSION);
+        }
+
+        String[] strings = new String[reader.readCount() + 1]; // slot 0 stays null for the null references
+
+        for (int i = 1; i < strings.length; i++)
+        {
+            int length = reader.readCount();
+            strings[i] = new String(snapshot, reader.skip(length), length, StandardCharsets.UTF_8);
+        }
+
+        int reportCount = reader.readCount();
+        ArrayList<OLISDiagnosticReportModel> reports = new ArrayList<>(reportCount);
+        long previousMillis = 0;
+
+        for (int i = 0; i < reportCount; i++)
+        {
+            int recordLength = reader.readCount();
+            int recordEnd = reader.position + recordLength;
+
+            OLISDiagnosticReportModel report = new OLISDiagnosticReportModel();
+            int flags = reader.readByte();
+
+            report.setPractitionerName(reader.readString(strings));
+            report.setOrganizationName(reader.readString(strings));
+            report.setTestPerformed(reader.readString(strings));
+            report.setTestResult(reader.readString(strings));
+            report.setAcceptableRange(reader.readString(strings));
+            report.setReportId(reader.readString(strings));
+            report.setHealthCardNumber(reader.readString(strings));
+            report.setAbnormal((flags & FLAG_ABNORMAL) != 0);
+
+            if ((flags & FLAG_HAS_TIME) != 0)
+            {
+                long zigzag = reader.readVarLong();
+                previousMillis += (zigzag >>> 1) ^ -(zigzag & 1);
+                report.setTestReleaseMillis(previousMillis);
+            }
+
+            if ((flags & FLAG_DETAIL_LOADED) != 0)
+            {
+                int observationCount = reader.readCount();
+                ArrayList<OLISObservationModel> observations = new ArrayList<>(observationCount);
+
+                for (int j = 0; j < observationCount; j++)
+                {
+                    OLISObservationModel observation = new OLISObservationModel();
+                    observation.setTestName(reader.readString(strings));
+                    observation.setTestResult(reader.readString(strings));
+                    observation.setInterpretationCode(reader.readString(strings));
+                    observation.setAcceptableRange(reader.readString(strings));
+                    observations.add(observation);
+                }
+
+                report.setDetails(observations);
+            }
+
+            byte rangeFlag = (byte) reader.readByte();
+            report.setRangeFlag(rangeFlag, ReferenceRangeEvaluator.isAbnormalFlag(rangeFlag) ? reader.readDouble() : 0);
+
+            if (report.isDetailLoaded())
+            {
+                for (OLISObservationModel observation : report.getObservations())
+                {
+                    readNumbers(reader, strings, observation);
+                }
+            }
+
+            if (reader.position > recordEnd)
+            {
+                throw new IOException("Report snapshot record " + i + " is longer than its length");
+            }
+
+            // skip whatever a later version added to the record
+            reader.position = recordEnd;
+            reports.add(report);
+        }
+
+        return reports;
+    }
+
+    /**
+     * Writes the numbers behind an observation's result, only the ones it has.
+     */
+    private static void writeNumbers(ByteWriter record, StringTable stringTable, OLISObservationModel observation)
+    {
+        // NaN != NaN, so these are the missing number checks
+        boolean hasValue = observation.getValue() == observation.getValue();
+        boolean hasLow = observation.getRangeLow() == observation.getRangeLow();
+        boolean hasHigh = observation.getRangeHigh() == observation.getRangeHigh();
+
+        record.writeByte((hasValue ? HAS_VALUE : 0) | (hasLow ? HAS_RANGE_LOW : 0) | (hasHigh ? HAS_RANGE_HIGH : 0));
+        record.writeVarint(stringTable.ref(observation.getUnit()));
+
+        if (hasValue)
+        {
+            record.writeDouble(observation.getValue());
+        }
+
+        if (hasLow)
+        {
+            record.writeDouble(observation.getRangeLow());
+        }
+
+        if (hasHigh)
+        {
+            record.writeDouble(observation.getRangeHigh());
+        }
+    }
+
+    private static void readNumbers(ByteReader reader, String[] strings, OLISObservationModel observation) throws IOException
+    {
+        int present = reader.readByte();
+        observation.setUnit(reader.readString(strings));
+
+        if ((present & HAS_VALUE) != 0)
+        {
+            observation.setValue(reader.readDouble());
+        }
+
+        if ((present & HAS_RANGE_LOW) != 0)
+        {
+            observation.setRangeLow(reader.readDouble());
+        }
+
+        if ((present & HAS_RANGE_HIGH) != 0)
+        {
+            observation.setRangeHigh(reader.readDouble());
+        }
+    }
+
+    /**
+     * Gives every distinct string one slot, in the order they're first seen.
+     */
+    private static class StringTable
+    {
+        private final HashMap<String, Integer> refs = new HashMap<>();
+        private final ArrayList<byte[]> strings = new ArrayList<>();
+        private int byteCount;
+
+        private int ref(String value)
+        {
+            if (value == null)
+            {
+                return 0;
+            }
+
+            Integer ref = refs.get(value);
+
+            if (ref == null)
+            {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                strings.add(utf8);
+                byteCount += utf8.length + 5;
+                ref = strings.size();
+                refs.put(value, ref);
+            }
+
+            return ref;
+        }
+    }
+
+    /**
+     * A growable byte array, without the synchronization of ByteArrayOutputStream.
+     */
+    private static class ByteWriter
+    {
+        private byte[] bytes;
+        private int size;
+
+        private ByteWriter(int initialCapacity)
+        {
+            bytes = new byte[Math.max(16, initialCapacity)];
+        }
+
+        private void ensureCapacity(int extra)
+        {
+            if (size + extra > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        private void writeByte(int value)
+        {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeInt(int value)
+        {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        private void writeLong(long value)
+        {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        private void writeDouble(double value)
+        {
+            writeLong(Double.doubleToRawLongBits(value));
+        }
+
+        private void writeVarint(int value)
+        {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value)
+        {
+            ensureCapacity(10);
+
+            while ((value & ~0x7FL) != 0)
+            {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            bytes[size++] = (byte) value;
+        }
+
+        private void write(byte[] source, int offset, int length)
+        {
+            ensureCapacity(length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
+        }
+
+        private void write(ByteWriter other)
+        {
+            write(other.bytes, 0, other.size);
+        }
+
+        private int size()
+        {
+            return size;
+        }
+
+        private void reset()
+        {
+            size = 0;
+        }
+
+        private byte[] toByteArray()
+        {
+            return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads a snapshot in place. Every read checks the end, so a cut short file is an EOFException instead of garbage.
+     */
+    private static class ByteReader
+    {
+        private final byte[] bytes;
+        private int position;
+
+        private ByteReader(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        private int readByte() throws EOFException
+        {
+            if (position >= bytes.length)
+            {
+                throw new EOFException("Report snapshot is cut short");
+            }
+
+            return bytes[position++] & 0xFF;
+        }
+
+        private int readInt() throws EOFException
+        {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private long readLong() throws EOFException
+        {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        private double readDouble() throws EOFException
+        {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        private long readVarLong() throws IOException
+        {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+
+            throw new IOException("Report snapshot has a varint longer than 64 bits");
+        }
+
+        /**
+         * @return a count or length, which can't be more than what's left of the snapshot
+         */
+        private int readCount() throws IOException
+        {
+            long count = readVarLong();
+
+            if (count < 0 || count > bytes.length - position)
+            {
+                throw new IOException("Report snapshot has a count of " + count + " with " + (bytes.length - position) + " bytes left");
+            }
+
+            return (int) count;
+        }
+
+        private String readString(String[] strings) throws IOException
+        {
+            long ref = readVarLong();
+
+            if (ref < 0 || ref >= strings.length)
+            {
+                throw new IOException("Report snapshot refers to string " + ref + " of " + (strings.length - 1));
+            }
+
+            return strings[(int) ref];
+        }
+
+        /**
+         * Moves past length bytes.
+         * @return where they start
+         */
+        private int skip(int length) throws EOFException
+        {
+            if (length > bytes.length - position)
+            {
+                throw new EOFException("Report snapshot is cut short");
+            }
+
+            int start = position;
+            position += length;
+            return start;
+        }
+    }
+}
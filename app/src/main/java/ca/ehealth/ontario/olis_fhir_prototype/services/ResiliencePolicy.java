@@ -0,0 +1,251 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.apache.http.client.HttpResponseException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * This class runs the read requests to one server (OLIS or PCR): it retries the ones that failed for a reason that might go away,
+ * and it goes through the server's CircuitBreaker so nothing is sent while the server is known to be down.
+ * Every attempt also takes a slot from the server's ConcurrencyLimiter, so we never have more requests in flight than it can take.
+ * A HedgingPolicy inside the attempt takes another slot for its hedge, if it's given the same limiter.
+ *
+ * Retries wait a random time between 0 and baseDelayMillis * 2^(retry - 1), capped at maxDelayMillis ("full jitter" backoff),
+ * so devices that failed at the same moment don't all come back at the same moment.
+ * Only use it for reads, a retried write could happen twice.
+ *
+ * Usage:
+ *   Bundle results = resiliencePolicy.execute(new Callable<Bundle>()
+ *   {
+ *       public Bundle call() { return ...; }
+ *   });
+ */
+public class ResiliencePolicy
+{
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final String name;
+    private final CircuitBreaker circuitBreaker;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private volatile int maxAttempts = 3;
+    private volatile long baseDelayMillis = 200;
+    private volatile long maxDelayMillis = 2000;
+
+    private final AtomicLong retryCount;
+    private final AtomicLong rejectedCount;
+    private final AtomicLong openedCount;
+
+    /**
+     * Starts with 3 attempts, 200 ms to 2 s between them, a breaker that opens for 30 s after 5 failures in a row,
+     * and a limiter that starts at 8 requests in flight.
+     * @param name e.g. olis, also the prefix of its counters in Metrics (olis.retries, olis.rejected, olis.opened) and its limiter's
+     */
+    public ResiliencePolicy(String name)
+    {
+        this.name = name;
+        circuitBreaker = new CircuitBreaker(name, 5, 30000);
+        concurrencyLimiter = new ConcurrencyLimiter(name);
+        retryCount = Metrics.counter(name + ".retries");
+        rejectedCount = Metrics.counter(name + ".rejected");
+        openedCount = Metrics.counter(name + ".opened");
+    }
+
+    /**
+     * Runs the request, retrying it if it fails for a reason that might go away (see isTransientFailure()).
+     * @return what the request returned
+     * @throws CircuitOpenException       if the breaker is open, nothing was sent
+     * @throws ConcurrencyLimitException if it waited too long for a slot under the limiter, nothing was sent
+     * @throws RuntimeException     the request's own exception if it can't be retried or it's out of attempts.
+     *                              Checked exceptions (e.g. an IOException) come wrapped in a ServiceUnavailableException.
+     *                              An InterruptedException isn't retried or held against the server, the interrupt is kept.
+     */
+    public <T> T execute(Callable<T> request)
+    {
+        RuntimeException lastFailure = null;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++)
+        {
+            try
+            {
+                concurrencyLimiter.acquire();
+            }
+            catch (ConcurrencyLimitException e)
+            {
+                if (lastFailure != null)
+                {
+                    throw lastFailure;
+                }
+
+                throw e;
+            }
+
+            if (!circuitBreaker.allowRequest())
+            {
+                concurrencyLimiter.release();
+                rejectedCount.incrementAndGet();
+
+                // a retry that finds the breaker open gives up with the real failure, a first try is told why nothing was sent
+                if (lastFailure != null)
+                {
+                    throw lastFailure;
+                }
+
+                throw new CircuitOpenException(name);
+            }
+
+            long startTime = Metrics.startTimer();
+            boolean isOverloaded = false;
+            boolean isRecorded = false;
+
+            try
+            {
+                T result = request.call();
+                circuitBreaker.recordSuccess();
+                isRecorded = true;
+                return result;
+            }
+            catch (InterruptedException e)
+            {
+                // the caller was cancelled, that says nothing about the server, and there's no one left to retry for
+                Thread.currentThread().interrupt();
+                throw new ServiceUnavailableException(name, name + " request was interrupted", e);
+            }
+            catch (Exception e)
+            {
+                RuntimeException failure = e instanceof RuntimeException ? (RuntimeException) e : new ServiceUnavailableException(name, name + " request failed: " + e, e);
+
+                if (!isTransientFailure(e))
+                {
+                    // the server answered, it just didn't like the request, so it's healthy as far as the breaker is concerned
+                    circuitBreaker.recordSuccess();
+                    isRecorded = true;
+                    throw failure;
+                }
+
+                if (circuitBreaker.recordFailure())
+                {
+                    openedCount.incrementAndGet();
+                }
+
+                isRecorded = true;
+                isOverloaded = true;
+                lastFailure = failure;
+            }
+            finally
+            {
+                // before the backoff below, so a retry waiting to go doesn't hold a slot
+                if (isRecorded)
+                {
+                    concurrencyLimiter.release(startTime, isOverloaded);
+                }
+                else
+                {
+                    // an interrupt or an Error says nothing about the server, but it can't keep the trial (or its slot) either
+                    circuitBreaker.releaseTrial();
+                    concurrencyLimiter.release();
+                }
+            }
+
+            if (attempt < maxAttempts)
+            {
+                try
+                {
+                    Thread.sleep(getBackoffMillis(attempt));
+                }
+                catch (InterruptedException e)
+                {
+                    // the task was cancelled, stop retrying
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                retryCount.incrementAndGet();
+            }
+        }
+
+        throw lastFailure;
+    }
+
+    /**
+     * @return true for failures that might go away on their own: timeouts, connection errors, 5xx and 429 answers
+     */
+    public static boolean isTransientFailure(Throwable failure)
+    {
+        if (failure instanceof CircuitOpenException || failure instanceof ConcurrencyLimitException)
+        {
+            // nothing was sent, retrying right away would only be refused again
+            return false;
+        }
+
+        if (failure instanceof BaseServerResponseException)
+        {
+            // FhirClientConnectionException (timeouts, refused connections) has no status, so it's 0
+            int statusCode = ((BaseServerResponseException) failure).getStatusCode();
+            return statusCode == 0 || isTransientStatus(statusCode);
+        }
+
+        if (failure instanceof HttpResponseException)
+        {
+            // PCR's answers, an IOException like a dropped connection but with the status to go by
+            return isTransientStatus(((HttpResponseException) failure).getStatusCode());
+        }
+
+        return failure instanceof IOException || failure instanceof ServiceUnavailableException;
+    }
+
+    /**
+     * @return true for the HTTP statuses worth retrying: 5xx and 429 (throttled)
+     */
+    static boolean isTransientStatus(int statusCode)
+    {
+        return statusCode >= 500 || statusCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @return a random wait between 0 and the capped exponential delay for that retry
+     */
+    long getBackoffMillis(int retry)
+    {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retry - 1, 30));
+        return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+    }
+
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter()
+    {
+        return concurrencyLimiter;
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts 1 for no retries
+     */
+    public void setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * @param baseDelayMillis the most the first retry waits, doubled for each retry after it
+     * @param maxDelayMillis  the most any retry waits
+     */
+    public void setBackoff(long baseDelayMillis, long maxDelayMillis)
+    {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+}
@@ -0,0 +1,206 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads a roster file one patient at a time. The file can be either:
+ * -CSV with a name and an HCN on each line (a header line naming the columns is optional, and can put them in either order)
+ * -NDJSON with one object per line, e.g. {"name": "Madison Foster", "hcn": "1868176460"}
+ * Lines without both a name and an HCN are skipped and counted.
+ *
+ * It doesn't touch the database, so both Import Roster (PatientRosterService) and the headless batch runner use it.
+ *
+ * Usage:
+ *   while (rosterFileReader.next())
+ *   {
+ *       rosterFileReader.getName(), rosterFileReader.getHealthCardNumber()
+ *   }
+ */
+public class RosterFileReader implements Closeable
+{
+    private BufferedReader reader;
+    private int nameColumn = 0;
+    private int hcnColumn = 1;
+    private boolean isFirstLine = true;
+    private int skippedCount = 0;
+    private String name;
+    private String healthCardNumber;
+
+    public RosterFileReader(InputStream rosterStream) throws IOException
+    {
+        reader = new BufferedReader(new InputStreamReader(rosterStream, "UTF-8"));
+    }
+
+    /**
+     * Moves on to the next patient in the file.
+     * @return false once the end of the file is reached
+     */
+    public boolean next() throws IOException
+    {
+        String line;
+
+        while ((line = reader.readLine()) != null)
+        {
+            line = line.trim();
+
+            if (line.isEmpty())
+            {
+                continue;
+            }
+
+            String lineName;
+            String lineHealthCardNumber;
+
+            if (line.startsWith("{"))
+            {
+                try
+                {
+                    JSONObject rosterEntry = new JSONObject(line);
+                    lineName = rosterEntry.optString("name", null);
+                    lineHealthCardNumber = rosterEntry.optString("hcn", null);
+                }
+                catch (JSONException e)
+                {
+                    lineName = null;
+                    lineHealthCardNumber = null;
+                }
+            }
+            else
+            {
+                List<String> fields = splitCsvLine(line);
+
+                // a header line tells us which column is which
+                if (isFirstLine && isHeader(fields))
+                {
+                    nameColumn = indexOfIgnoreCase(fields, "name");
+                    hcnColumn = indexOfIgnoreCase(fields, "hcn");
+                    isFirstLine = false;
+                    continue;
+                }
+
+                lineName = nameColumn >= 0 && nameColumn < fields.size() ? fields.get(nameColumn) : null;
+                lineHealthCardNumber = hcnColumn >= 0 && hcnColumn < fields.size() ? fields.get(hcnColumn) : null;
+            }
+
+            isFirstLine = false;
+
+            if (lineName == null || lineName.trim().isEmpty() || lineHealthCardNumber == null || lineHealthCardNumber.trim().isEmpty())
+            {
+                skippedCount++;
+                continue;
+            }
+
+            name = lineName.trim();
+            healthCardNumber = lineHealthCardNumber.trim();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the current patient's name, trimmed
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the current patient's HCN, trimmed
+     */
+    public String getHealthCardNumber()
+    {
+        return healthCardNumber;
+    }
+
+    /**
+     * @return lines skipped so far because they were missing a name or an HCN
+     */
+    public int getSkippedCount()
+    {
+        return skippedCount;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+
+    /**
+     * Splits a CSV line into trimmed fields. Quoted fields may contain commas, and "" inside quotes is a quote.
+     */
+    static List<String> splitCsvLine(String line)
+    {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean isQuoted = false;
+
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+
+            if (isQuoted)
+            {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"')
+                {
+                    field.append('"');
+                    i++;
+                }
+                else if (c == '"')
+                {
+                    isQuoted = false;
+                }
+                else
+                {
+                    field.append(c);
+                }
+            }
+            else if (c == '"')
+            {
+                isQuoted = true;
+            }
+            else if (c == ',')
+            {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            }
+            else
+            {
+                field.append(c);
+            }
+        }
+
+        fields.add(field.toString().trim());
+
+        return fields;
+    }
+
+    private static boolean isHeader(List<String> fields)
+    {
+        return indexOfIgnoreCase(fields, "name") >= 0 || indexOfIgnoreCase(fields, "hcn") >= 0;
+    }
+
+    private static int indexOfIgnoreCase(List<String> fields, String column)
+    {
+        for (int i = 0; i < fields.size(); i++)
+        {
+            if (fields.get(i).equalsIgnoreCase(column))
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
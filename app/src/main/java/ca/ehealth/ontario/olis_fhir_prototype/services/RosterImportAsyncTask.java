@@ -0,0 +1,153 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import android.app.Activity;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+
+import ca.ehealth.ontario.olis_fhir_prototype.customdialogs.ExceptionErrorDialog;
+import ca.ehealth.ontario.olis_fhir_prototype.customdialogs.ProgressCircleDialog;
+
+/**
+ * This class handles our async task to import a roster file (CSV or NDJSON) into the local patients table.
+ * The progress circle shows how many patients have been imported so far.
+ */
+public class RosterImportAsyncTask extends AsyncTask<Uri, Integer, Integer> implements PatientRosterService.RosterImportListener
+{
+    private static final String TAG = "RosterImportAsyncTask";
+
+    private PatientRosterService patientRosterService;
+    private ProgressCircleDialog progressCircleDialog;
+    private ExceptionErrorDialog errorDialog;
+    private String errorMessage; // set if the import failed
+
+    // We want to keep a WeakReference to the activity context first, and then when we need it we check to see if it is still valid.
+    // This is done to prevent memory leaks which would be caused be using something like: private Context myContext;
+    private final WeakReference<Activity> weakReference;
+
+    public RosterImportAsyncTask(Activity inActivity)
+    {
+        this.weakReference = new WeakReference<>(inActivity);
+        patientRosterService = new PatientRosterService(inActivity);
+        progressCircleDialog = new ProgressCircleDialog(inActivity);
+        errorDialog = new ExceptionErrorDialog(inActivity);
+    }
+
+    @Override
+    protected void onPreExecute()
+    {
+        super.onPreExecute();
+        progressCircleDialog.setProgressMessage("Importing roster...");
+        progressCircleDialog.show();
+    }
+
+    /**
+     * Opens the roster file the user picked and imports it.
+     * @param uris the roster file to import
+     * @return the number of patients added or updated, or null if the import failed
+     */
+    protected Integer doInBackground(Uri... uris)
+    {
+        Activity activity = weakReference.get();
+
+        if (activity == null)
+        {
+            return null;
+        }
+
+        InputStream rosterStream = null;
+
+        try
+        {
+            rosterStream = activity.getContentResolver().openInputStream(uris[0]);
+
+            if (rosterStream == null)
+            {
+                errorMessage = "The roster file could not be opened.";
+                return null;
+            }
+
+            return patientRosterService.importRoster(rosterStream, this);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Log.e(TAG, "Roster import failed", e);
+            errorMessage = "The roster could not be imported: " + e.getMessage();
+            return null;
+        }
+        finally
+        {
+            // importRoster closes it when it's done, this is for when it fails before it gets that far
+            closeQuietly(rosterStream);
+        }
+    }
+
+    private static void closeQuietly(InputStream rosterStream)
+    {
+        if (rosterStream == null)
+        {
+            return;
+        }
+
+        try
+        {
+            rosterStream.close();
+        }
+        catch (IOException e)
+        {
+            // nothing more to do with it
+        }
+    }
+
+    /**
+     * Called by PatientRosterService on the background thread, so the counts are passed on to onProgressUpdate.
+     */
+    @Override
+    public void onProgress(int importedCount, int skippedCount)
+    {
+        publishProgress(importedCount, skippedCount);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... counts)
+    {
+        progressCircleDialog.setProgressMessage("Imported " + counts[0] + " patients" + (counts[1] > 0 ? ", skipped " + counts[1] + " lines" : ""));
+    }
+
+    /**
+     * Lets the user know how the import went.
+     * @param importedCount this was retrieved in doInBackround()
+     */
+    protected void onPostExecute(Integer importedCount)
+    {
+        Activity activity = weakReference.get();
+
+        // use weak reference to get a strong reference
+        //if its no longer valid, then end this task
+        if (activity == null || activity.isFinishing() || activity.isDestroyed())
+        {
+            // activity is no longer valid, don't do anything!
+            return;
+        }
+
+        if (progressCircleDialog.isShowing())
+        {
+            // no longer loading, close progress circle
+            progressCircleDialog.dismiss();
+        }
+
+        if (importedCount == null)
+        {
+            errorDialog.showErrorMessage(errorMessage);
+        }
+        else
+        {
+            Toast.makeText(activity, "Imported " + importedCount + " patients", Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+/**
+ * Thrown when a server couldn't be reached or kept failing, even after retrying (see ResiliencePolicy).
+ * PCR failures always come as one of these. OLIS failures keep their HAPI exceptions, except when its circuit breaker is open.
+ */
+public class ServiceUnavailableException extends RuntimeException
+{
+    private final String serviceName;
+
+    /**
+     * @param serviceName e.g. pcr
+     */
+    public ServiceUnavailableException(String serviceName, String message, Throwable cause)
+    {
+        super(message, cause);
+        this.serviceName = serviceName;
+    }
+
+    public String getServiceName()
+    {
+        return serviceName;
+    }
+}
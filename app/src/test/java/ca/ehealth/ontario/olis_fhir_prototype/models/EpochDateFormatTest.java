@@ -0,0 +1,174 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks EpochDateFormat's date arithmetic against java.util.Calendar, which does the same conversions the slow way.
+ */
+public class EpochDateFormatTest
+{
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp()
+    {
+        defaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown()
+    {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Test
+    public void toEpochDay_knownDates()
+    {
+        assertEquals(0, EpochDateFormat.toEpochDay(1970, 1, 1));
+        assertEquals(-1, EpochDateFormat.toEpochDay(1969, 12, 31));
+        assertEquals(-25567, EpochDateFormat.toEpochDay(1900, 1, 1));
+        assertEquals(10957, EpochDateFormat.toEpochDay(2000, 1, 1));
+        assertEquals(6244, EpochDateFormat.toEpochDay(1987, 2, 5));
+    }
+
+    @Test
+    public void leapYears_onlyEveryFourthCenturyIsALeapYear()
+    {
+        // 2000 is divisible by 400, so it has a Feb 29
+        assertEquals(2, EpochDateFormat.toEpochDay(2000, 3, 1) - EpochDateFormat.toEpochDay(2000, 2, 28));
+        assertEquals(EpochDateFormat.toEpochDay(2000, 2, 29), EpochDateFormat.parseQuery("2000-02-29"));
+
+        // 1900 is divisible by 100 but not 400, so it doesn't
+        assertEquals(1, EpochDateFormat.toEpochDay(1900, 3, 1) - EpochDateFormat.toEpochDay(1900, 2, 28));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseQuery("1900-02-29"));
+
+        assertEquals(EpochDateFormat.toEpochDay(2016, 2, 29), EpochDateFormat.parseBasic("20160229"));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseBasic("20170229"));
+
+        assertEquals(366, EpochDateFormat.toEpochDay(2001, 1, 1) - EpochDateFormat.toEpochDay(2000, 1, 1));
+        assertEquals(365, EpochDateFormat.toEpochDay(1901, 1, 1) - EpochDateFormat.toEpochDay(1900, 1, 1));
+    }
+
+    @Test
+    public void everyDayFrom1800To2100_matchesCalendar()
+    {
+        GregorianCalendar calendar = newUtcCalendar();
+        calendar.set(1800, Calendar.JANUARY, 1);
+        int endEpochDay = EpochDateFormat.toEpochDay(2100, 12, 31);
+
+        for (int epochDay = EpochDateFormat.toEpochDay(1800, 1, 1); epochDay <= endEpochDay; epochDay++)
+        {
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int day = calendar.get(Calendar.DAY_OF_MONTH);
+
+            assertEquals(calendar.getTimeInMillis(), epochDay * MILLIS_PER_DAY);
+            assertEquals(epochDay, EpochDateFormat.toEpochDay(year, month, day));
+            assertEquals(year, EpochDateFormat.getYear(epochDay));
+            assertEquals(month, EpochDateFormat.getMonth(epochDay));
+            assertEquals(day, EpochDateFormat.getDayOfMonth(epochDay));
+
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    @Test
+    public void format_andParseBack()
+    {
+        int epochDay = EpochDateFormat.toEpochDay(1987, 2, 5);
+
+        assertEquals("05-Feb-1987", EpochDateFormat.formatDisplay(epochDay));
+        assertEquals("1987-02-05", EpochDateFormat.formatQuery(epochDay));
+        assertEquals(epochDay, EpochDateFormat.parseQuery("1987-02-05"));
+        assertEquals(epochDay, EpochDateFormat.parseBasic("19870205"));
+
+        // before 1970
+        assertEquals("1900-01-01", EpochDateFormat.formatQuery(EpochDateFormat.toEpochDay(1900, 1, 1)));
+        assertEquals("31-Dec-1969", EpochDateFormat.formatDisplay(-1));
+
+        assertEquals("n/a", EpochDateFormat.formatDisplay(EpochDateFormat.NO_DATE));
+        assertEquals("n/a", EpochDateFormat.formatQuery(EpochDateFormat.NO_DATE));
+        assertEquals("n/a", EpochDateFormat.formatDisplay(EpochDateFormat.NO_TIME));
+    }
+
+    @Test
+    public void parse_rejectsInvalidText()
+    {
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseQuery(null));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseQuery("1987-2-5"));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseQuery("1987/02/05"));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseQuery("1987-13-01"));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseQuery("1987-04-31"));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseQuery("1987-00-10"));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseBasic("1987020"));
+        assertEquals(EpochDateFormat.NO_DATE, EpochDateFormat.parseBasic("1987O205"));
+    }
+
+    @Test
+    public void toEpochDay_fromMillis_usesTheDefaultTimeZone()
+    {
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+
+        assertEquals(0, EpochDateFormat.toEpochDay(0L));
+        assertEquals(-1, EpochDateFormat.toEpochDay(-1L)); // rounds towards the earlier day before 1970
+        assertEquals(-1, EpochDateFormat.toEpochDay(-MILLIS_PER_DAY));
+        assertEquals(-2, EpochDateFormat.toEpochDay(-MILLIS_PER_DAY - 1));
+
+        // midnight UTC is still the evening before in Toronto
+        TimeZone.setDefault(TimeZone.getTimeZone("America/Toronto"));
+        assertEquals(-1, EpochDateFormat.toEpochDay(0L));
+    }
+
+    @Test
+    public void startOfDayMillis_matchesCalendar_acrossDaylightSavingChanges()
+    {
+        TimeZone toronto = TimeZone.getTimeZone("America/Toronto");
+        TimeZone.setDefault(toronto);
+
+        GregorianCalendar calendar = new GregorianCalendar(toronto);
+        calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+        calendar.clear();
+        calendar.set(1960, Calendar.JANUARY, 1);
+
+        // every day for a few decades either side of 1970, including every daylight saving change
+        for (int epochDay = EpochDateFormat.toEpochDay(1960, 1, 1); epochDay <= EpochDateFormat.toEpochDay(2030, 12, 31); epochDay++)
+        {
+            long startOfDay = EpochDateFormat.toStartOfDayMillis(epochDay);
+
+            assertEquals(calendar.getTimeInMillis(), startOfDay);
+            assertEquals(epochDay, EpochDateFormat.toEpochDay(startOfDay));
+            assertEquals(epochDay, EpochDateFormat.toEpochDay(startOfDay + MILLIS_PER_DAY / 2));
+
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    @Test
+    public void getMonthName()
+    {
+        assertEquals("Jan", EpochDateFormat.getMonthName(1));
+        assertEquals("Dec", EpochDateFormat.getMonthName(12));
+    }
+
+    /**
+     * @return a calendar in UTC that uses the Gregorian rules all the way back, like EpochDateFormat
+     */
+    private static GregorianCalendar newUtcCalendar()
+    {
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+        calendar.clear();
+        return calendar;
+    }
+}
@@ -0,0 +1,161 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks LabTimeSeries' aggregates as points are added, and that downsampling keeps the ends and the spikes in time order.
+ */
+public class LabTimeSeriesTest
+{
+    @Test
+    public void empty()
+    {
+        LabTimeSeries series = new LabTimeSeries("2345-7", "Glucose", "mmol/L");
+
+        assertTrue(series.isEmpty());
+        assertTrue(Double.isNaN(series.getMinValue()));
+        assertTrue(Double.isNaN(series.getMaxValue()));
+        assertTrue(Double.isNaN(series.getLastValue()));
+        assertEquals(EpochDateFormat.NO_TIME, series.getLastTime());
+    }
+
+    @Test
+    public void aggregates_followThePoints()
+    {
+        LabTimeSeries series = new LabTimeSeries("2345-7", "Glucose", "mmol/L");
+
+        series.add(1000, 6.2);
+        assertEquals(6.2, series.getMinValue(), 0);
+        assertEquals(6.2, series.getMaxValue(), 0);
+
+        series.add(2000, 4.4);
+        series.add(3000, 9.8);
+        series.add(3000, 5.1); // the same time twice is fine
+
+        assertEquals(4, series.size());
+        assertEquals(4.4, series.getMinValue(), 0);
+        assertEquals(9.8, series.getMaxValue(), 0);
+        assertEquals(5.1, series.getLastValue(), 0);
+        assertEquals(3000, series.getLastTime());
+        assertEquals(2000, series.getTime(1));
+        assertEquals(4.4, series.getValue(1), 0);
+    }
+
+    @Test
+    public void grows_pastItsCapacity()
+    {
+        LabTimeSeries series = new LabTimeSeries("2345-7", "Glucose", "mmol/L", 0);
+
+        for (int i = 0; i < 100; i++)
+        {
+            series.add(i * 1000L, i);
+        }
+
+        assertEquals(100, series.size());
+        assertEquals(0, series.getMinValue(), 0);
+        assertEquals(99, series.getMaxValue(), 0);
+        assertEquals(42000, series.getTime(42));
+        assertEquals(100, series.copyTimes().length);
+        assertEquals(100, series.copyValues().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void olderPoint_isRejected()
+    {
+        LabTimeSeries series = new LabTimeSeries("2345-7", "Glucose", "mmol/L");
+        series.add(2000, 5);
+        series.add(1000, 5);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void indexPastTheEnd_isRejected()
+    {
+        // the arrays are bigger than the series, so this would read a 0 otherwise
+        LabTimeSeries series = new LabTimeSeries("2345-7", "Glucose", "mmol/L");
+        series.add(1000, 5);
+        series.getValue(1);
+    }
+
+    @Test
+    public void downsample_smallSeries_isReturnedAsIs()
+    {
+        LabTimeSeries series = newSeries(10);
+
+        assertSame(series, series.downsample(10));
+        assertSame(series, series.downsample(50));
+    }
+
+    @Test
+    public void downsample_keepsTheEndsAndTheSpikes()
+    {
+        LabTimeSeries series = newSeries(1000);
+        LabTimeSeries downsampled = series.downsample(20);
+
+        assertTrue(downsampled.size() <= 20);
+        assertEquals(series.getTestCode(), downsampled.getTestCode());
+        assertEquals(series.getUnit(), downsampled.getUnit());
+        assertEquals(series.getTime(0), downsampled.getTime(0));
+        assertEquals(series.getValue(0), downsampled.getValue(0), 0);
+        assertEquals(series.getLastTime(), downsampled.getLastTime());
+        assertEquals(series.getLastValue(), downsampled.getLastValue(), 0);
+
+        // the spikes newSeries puts in survive
+        assertEquals(series.getMinValue(), downsampled.getMinValue(), 0);
+        assertEquals(series.getMaxValue(), downsampled.getMaxValue(), 0);
+
+        // every point is one of the originals, still in time order (add would have thrown otherwise)
+        for (int i = 0; i < downsampled.size(); i++)
+        {
+            int original = (int) (downsampled.getTime(i) / 1000);
+            assertEquals(series.getValue(original), downsampled.getValue(i), 0);
+        }
+    }
+
+    @Test
+    public void downsample_flatSeries_keepsOnePointPerBucket()
+    {
+        LabTimeSeries series = new LabTimeSeries("2345-7", "Glucose", "mmol/L");
+
+        for (int i = 0; i < 100; i++)
+        {
+            series.add(i * 1000L, 5);
+        }
+
+        // the first and last, plus 4 buckets where the lowest and highest are the same point
+        assertEquals(6, series.downsample(10).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void downsample_tooFewPoints_isRejected()
+    {
+        newSeries(100).downsample(3);
+    }
+
+    /**
+     * @return a series of about 5 with a point every second, and one low and one high spike in the middle
+     */
+    private static LabTimeSeries newSeries(int size)
+    {
+        LabTimeSeries series = new LabTimeSeries("2345-7", "Glucose", "mmol/L", size);
+
+        for (int i = 0; i < size; i++)
+        {
+            double value = 5 + (i % 7) / 10.0;
+
+            if (i == size / 3)
+            {
+                value = 1.2;
+            }
+            else if (i == size * 2 / 3)
+            {
+                value = 31.5;
+            }
+
+            series.add(i * 1000L, value);
+        }
+
+        return series;
+    }
+}
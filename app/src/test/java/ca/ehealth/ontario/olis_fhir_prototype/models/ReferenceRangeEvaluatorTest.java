@@ -0,0 +1,210 @@
+package ca.ehealth.ontario.olis_fhir_prototype.models;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.SimpleQuantity;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how ReferenceRangeEvaluator flags results against their normal and critical ranges, including the ones it only has part of.
+ */
+public class ReferenceRangeEvaluatorTest
+{
+    private static final double NONE = Double.NaN;
+
+    @Test
+    public void insideAndOutsideTheNormalRange()
+    {
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, evaluate(5, 3.6, 6.1, NONE, NONE));
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, evaluate(3.6, 3.6, 6.1, NONE, NONE)); // the bounds are in range
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, evaluate(6.1, 3.6, 6.1, NONE, NONE));
+        assertEquals(ReferenceRangeEvaluator.FLAG_LOW, evaluate(3.5, 3.6, 6.1, NONE, NONE));
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, evaluate(7.9, 3.6, 6.1, NONE, NONE));
+    }
+
+    @Test
+    public void oneSidedRange()
+    {
+        // e.g. "< 5.2"
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, evaluate(1, NONE, 5.2, NONE, NONE));
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, evaluate(6, NONE, 5.2, NONE, NONE));
+
+        // e.g. "> 60"
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, evaluate(90, 60, NONE, NONE, NONE));
+        assertEquals(ReferenceRangeEvaluator.FLAG_LOW, evaluate(45, 60, NONE, NONE, NONE));
+    }
+
+    @Test
+    public void criticalRange()
+    {
+        assertEquals(ReferenceRangeEvaluator.FLAG_LOW, evaluate(3.0, 3.5, 5.0, 2.5, 6.5));
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_LOW, evaluate(2.5, 3.5, 5.0, 2.5, 6.5));
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, evaluate(6.0, 3.5, 5.0, 2.5, 6.5));
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH, evaluate(7.1, 3.5, 5.0, 2.5, 6.5));
+    }
+
+    @Test
+    public void criticalRangeWithoutANormalRange()
+    {
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_LOW, evaluate(2.0, NONE, NONE, 2.5, 6.5));
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH, evaluate(7.1, NONE, NONE, 2.5, 6.5));
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH, evaluate(7.1, NONE, NONE, NONE, 6.5));
+
+        // not critical, but with no normal range there's nothing else to say about it
+        assertEquals(ReferenceRangeEvaluator.FLAG_UNKNOWN, evaluate(4.0, NONE, NONE, 2.5, 6.5));
+    }
+
+    @Test
+    public void labInterpretation_onlyMakesItCriticalWithoutCriticalLimits()
+    {
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH, ReferenceRangeEvaluator.evaluate(7.9, 3.6, 6.1, NONE, NONE, true));
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_LOW, ReferenceRangeEvaluator.evaluate(2.0, 3.6, 6.1, NONE, NONE, true));
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, ReferenceRangeEvaluator.evaluate(7.9, 3.6, 6.1, NONE, 10, true));
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, ReferenceRangeEvaluator.evaluate(5, 3.6, 6.1, NONE, NONE, true));
+    }
+
+    @Test
+    public void missingValueOrRange_isUnknown()
+    {
+        assertEquals(ReferenceRangeEvaluator.FLAG_UNKNOWN, evaluate(NONE, 3.6, 6.1, 2.5, 6.5));
+        assertEquals(ReferenceRangeEvaluator.FLAG_UNKNOWN, evaluate(5, NONE, NONE, NONE, NONE));
+        assertFalse(ReferenceRangeEvaluator.isAbnormalFlag(ReferenceRangeEvaluator.FLAG_UNKNOWN));
+        assertFalse(ReferenceRangeEvaluator.isAbnormalFlag(ReferenceRangeEvaluator.FLAG_NORMAL));
+        assertTrue(ReferenceRangeEvaluator.isAbnormalFlag(ReferenceRangeEvaluator.FLAG_LOW));
+        assertTrue(ReferenceRangeEvaluator.isAbnormalFlag(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH));
+    }
+
+    @Test
+    public void observation_readsTheNormalAndCriticalRanges()
+    {
+        Observation observation = new Observation();
+        observation.setValue(new Quantity().setValue(7.1).setUnit("mmol/L"));
+        observation.addReferenceRange().setLow((SimpleQuantity) new SimpleQuantity().setValue(3.5)).setHigh((SimpleQuantity) new SimpleQuantity().setValue(5.0));
+
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, ReferenceRangeEvaluator.evaluate(observation));
+
+        observation.addReferenceRange().setHigh((SimpleQuantity) new SimpleQuantity().setValue(6.5)).setType(new CodeableConcept().setText("critical"));
+
+        assertEquals(3.5, ReferenceRangeEvaluator.getLow(observation), 0);
+        assertEquals(6.5, ReferenceRangeEvaluator.getCriticalHigh(observation), 0);
+        assertTrue(Double.isNaN(ReferenceRangeEvaluator.getCriticalLow(observation)));
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH, ReferenceRangeEvaluator.evaluate(observation));
+    }
+
+    @Test
+    public void observation_withOnlyACriticalRange()
+    {
+        Observation observation = new Observation();
+        observation.setValue(new Quantity().setValue(1.9));
+        observation.addReferenceRange().setLow((SimpleQuantity) new SimpleQuantity().setValue(2.5)).setType(new CodeableConcept().setText("critical"));
+
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_LOW, ReferenceRangeEvaluator.evaluate(observation));
+    }
+
+    @Test
+    public void columns_evaluatedInOnePass()
+    {
+        ReferenceRangeEvaluator evaluator = newEvaluator();
+
+        assertEquals(5, evaluator.size());
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, evaluator.getFlag(0));
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, evaluator.getFlag(1));
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_LOW, evaluator.getFlag(2));
+        assertEquals(ReferenceRangeEvaluator.FLAG_LOW, evaluator.getFlag(3));
+        assertEquals(ReferenceRangeEvaluator.FLAG_UNKNOWN, evaluator.getFlag(4));
+        assertEquals("r2", evaluator.getReportId(2));
+        assertEquals(3000, evaluator.getTime(2));
+    }
+
+    @Test
+    public void abnormalPositions_inOrderOrBySeverity()
+    {
+        ReferenceRangeEvaluator evaluator = newEvaluator();
+
+        assertArrayEquals(new int[]{1, 2, 3}, evaluator.getAbnormalPositions(ReferenceRangeEvaluator.FLAG_LOW, false));
+
+        // critical first, then the high glucose that's further out than the low potassium
+        assertArrayEquals(new int[]{2, 1, 3}, evaluator.getAbnormalPositions(ReferenceRangeEvaluator.FLAG_LOW, true));
+        assertArrayEquals(new int[]{2}, evaluator.getAbnormalPositions(ReferenceRangeEvaluator.FLAG_CRITICAL_LOW, true));
+    }
+
+    @Test
+    public void grows_pastItsCapacity()
+    {
+        ReferenceRangeEvaluator evaluator = new ReferenceRangeEvaluator(0);
+
+        for (int i = 0; i < 100; i++)
+        {
+            evaluator.add("r1", "Glucose", i, i, 10, 20, NONE, NONE, null);
+        }
+
+        evaluator.evaluate();
+
+        assertEquals(100, evaluator.size());
+        assertEquals(ReferenceRangeEvaluator.FLAG_LOW, evaluator.getFlag(9));
+        assertEquals(ReferenceRangeEvaluator.FLAG_NORMAL, evaluator.getFlag(15));
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, evaluator.getFlag(99));
+    }
+
+    @Test
+    public void flagReports_takesEachReportsWorstResult()
+    {
+        OLISDiagnosticReportModel first = newReport("r1");
+        OLISDiagnosticReportModel second = newReport("r2");
+        OLISDiagnosticReportModel third = newReport("r3");
+        OLISDiagnosticReportModel withoutResults = newReport("r4");
+        OLISDiagnosticReportModel withoutId = newReport(null);
+
+        newEvaluator().flagReports(Arrays.asList(first, second, third, withoutResults, withoutId));
+
+        // r1 has a normal and a high result
+        assertEquals(ReferenceRangeEvaluator.FLAG_HIGH, first.getRangeFlag());
+        assertEquals(1.0, first.getRangeDeviation(), 1e-9);
+        assertEquals(ReferenceRangeEvaluator.FLAG_CRITICAL_LOW, second.getRangeFlag());
+        assertEquals(ReferenceRangeEvaluator.FLAG_LOW, third.getRangeFlag()); // not the text result
+        assertEquals(ReferenceRangeEvaluator.FLAG_UNKNOWN, withoutResults.getRangeFlag());
+        assertEquals(ReferenceRangeEvaluator.FLAG_UNKNOWN, withoutId.getRangeFlag());
+    }
+
+    @Test
+    public void severity_ordersTheFlags()
+    {
+        assertEquals(0, ReferenceRangeEvaluator.getSeverity(ReferenceRangeEvaluator.FLAG_UNKNOWN));
+        assertEquals(1, ReferenceRangeEvaluator.getSeverity(ReferenceRangeEvaluator.FLAG_NORMAL));
+        assertEquals(2, ReferenceRangeEvaluator.getSeverity(ReferenceRangeEvaluator.FLAG_LOW));
+        assertEquals(2, ReferenceRangeEvaluator.getSeverity(ReferenceRangeEvaluator.FLAG_HIGH));
+        assertEquals(3, ReferenceRangeEvaluator.getSeverity(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH));
+    }
+
+    /**
+     * @return an evaluated normal, high, critical low, low and text result, in that order
+     */
+    private static ReferenceRangeEvaluator newEvaluator()
+    {
+        ReferenceRangeEvaluator evaluator = new ReferenceRangeEvaluator();
+        evaluator.add("r1", "Glucose", 1000, 5.0, 3.6, 6.1, NONE, NONE, "N");
+        evaluator.add("r1", "Glucose", 2000, 8.6, 3.6, 6.1, NONE, NONE, "H");
+        evaluator.add("r2", "Potassium", 3000, 2.4, 3.5, 5.0, 2.5, 6.5, null);
+        evaluator.add("r3", "Potassium", 4000, 3.2, 3.5, 5.0, 2.5, 6.5, "L");
+        evaluator.add("r3", "Comment", 4000, NONE, NONE, NONE, NONE, NONE, null);
+        evaluator.evaluate();
+        return evaluator;
+    }
+
+    private static OLISDiagnosticReportModel newReport(String reportId)
+    {
+        OLISDiagnosticReportModel report = new OLISDiagnosticReportModel();
+        report.setReportId(reportId);
+        return report;
+    }
+
+    private static byte evaluate(double value, double low, double high, double criticalLow, double criticalHigh)
+    {
+        return ReferenceRangeEvaluator.evaluate(value, low, high, criticalLow, criticalHigh, false);
+    }
+}
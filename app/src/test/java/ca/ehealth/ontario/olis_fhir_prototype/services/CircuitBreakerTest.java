@@ -0,0 +1,130 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Walks CircuitBreaker through its states. The open time is set to an hour while it should stay open,
+ * and to 0 when it's time for the trial, so nothing here depends on how fast the test runs.
+ */
+public class CircuitBreakerTest
+{
+    private static final long AN_HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void closed_letsEverythingThrough()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 3, AN_HOUR);
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(circuitBreaker.allowRequest());
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void opens_afterThresholdFailuresInARow()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 3, AN_HOUR);
+
+        assertFalse(circuitBreaker.recordFailure());
+        assertFalse(circuitBreaker.recordFailure());
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        assertTrue(circuitBreaker.recordFailure());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void aSuccess_startsTheCountOver()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 3, AN_HOUR);
+
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void open_letsOneTrialThroughOnceTheTimeIsUp()
+    {
+        CircuitBreaker circuitBreaker = openBreaker();
+        circuitBreaker.setOpenMillis(0);
+
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+        // everyone else waits for the trial
+        assertFalse(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void halfOpen_closesWhenTheTrialWorks()
+    {
+        CircuitBreaker circuitBreaker = openBreaker();
+        circuitBreaker.setOpenMillis(0);
+        circuitBreaker.allowRequest();
+
+        circuitBreaker.recordSuccess();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void halfOpen_opensAgainWhenTheTrialFails()
+    {
+        CircuitBreaker circuitBreaker = openBreaker();
+        circuitBreaker.setOpenMillis(0);
+        circuitBreaker.allowRequest();
+        circuitBreaker.setOpenMillis(AN_HOUR);
+
+        // a single failure is enough, the threshold is only for a closed breaker
+        assertTrue(circuitBreaker.recordFailure());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void halfOpen_releasedTrial_letsTheNextRequestTry()
+    {
+        CircuitBreaker circuitBreaker = openBreaker();
+        circuitBreaker.setOpenMillis(0);
+        circuitBreaker.allowRequest();
+
+        circuitBreaker.releaseTrial();
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void reset_closes()
+    {
+        CircuitBreaker circuitBreaker = openBreaker();
+
+        circuitBreaker.reset();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    private static CircuitBreaker openBreaker()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 1, AN_HOUR);
+        circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        return circuitBreaker;
+    }
+}
@@ -0,0 +1,342 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which copy of a hedged request HedgingPolicy answers with, and that only that copy's latency is recorded.
+ */
+public class HedgingPolicyTest
+{
+    @Test
+    public void disabled_runsOnTheCallingThread_andRecordsIt() throws Exception
+    {
+        LatencyHistogram latencyHistogram = new LatencyHistogram("test.query");
+        HedgingPolicy hedgingPolicy = new HedgingPolicy("test", latencyHistogram);
+        final Thread caller = Thread.currentThread();
+
+        boolean isSameThread = hedgingPolicy.execute(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                return Thread.currentThread() == caller;
+            }
+        });
+
+        assertTrue(isSameThread);
+        assertEquals(1, latencyHistogram.getCount());
+    }
+
+    @Test
+    public void fastRequest_isNotHedged() throws Exception
+    {
+        LatencyHistogram latencyHistogram = new LatencyHistogram("test.query");
+        HedgingPolicy hedgingPolicy = newPolicy(latencyHistogram);
+        final AtomicInteger calls = new AtomicInteger();
+
+        String result = hedgingPolicy.execute(new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                calls.incrementAndGet();
+                return "ok";
+            }
+        });
+
+        assertEquals("ok", result);
+        assertEquals(1, calls.get());
+        assertEquals(1, latencyHistogram.getCount());
+    }
+
+    @Test
+    public void slowRequest_isHedged_andOnlyTheWinnerIsRecorded() throws Exception
+    {
+        LatencyHistogram latencyHistogram = new LatencyHistogram("test.query");
+        HedgingPolicy hedgingPolicy = newPolicy(latencyHistogram);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch loserStopped = new CountDownLatch(1);
+
+        String result = hedgingPolicy.execute(new Callable<String>()
+        {
+            @Override
+            public String call() throws InterruptedException
+            {
+                if (calls.incrementAndGet() == 1)
+                {
+                    try
+                    {
+                        // the primary hangs until it's cancelled
+                        Thread.sleep(60000);
+                        return "primary";
+                    }
+                    finally
+                    {
+                        loserStopped.countDown();
+                    }
+                }
+
+                return "hedge";
+            }
+        });
+
+        assertEquals("hedge", result);
+        assertEquals(2, calls.get());
+
+        // the cancelled primary ends with an InterruptedException, which must not be recorded
+        assertTrue(loserStopped.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(1, latencyHistogram.getCount());
+        assertTrue(latencyHistogram.getMaxMicros() < 60000000);
+    }
+
+    @Test
+    public void oneCopyFails_theOtherAnswers() throws Exception
+    {
+        LatencyHistogram latencyHistogram = new LatencyHistogram("test.query");
+        HedgingPolicy hedgingPolicy = newPolicy(latencyHistogram);
+        final AtomicInteger calls = new AtomicInteger();
+
+        String result = hedgingPolicy.execute(new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                if (calls.incrementAndGet() == 1)
+                {
+                    // slow enough to be hedged, then fails before the hedge answers
+                    Thread.sleep(100);
+                    throw new IllegalStateException("primary failed");
+                }
+
+                Thread.sleep(300);
+                return "hedge";
+            }
+        });
+
+        assertEquals("hedge", result);
+        assertEquals(1, latencyHistogram.getCount());
+    }
+
+    @Test
+    public void bothCopiesFail_throwsTheRequestsException() throws Exception
+    {
+        LatencyHistogram latencyHistogram = new LatencyHistogram("test.query");
+        HedgingPolicy hedgingPolicy = newPolicy(latencyHistogram);
+
+        try
+        {
+            hedgingPolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call() throws Exception
+                {
+                    Thread.sleep(100);
+                    throw new IllegalStateException("failed");
+                }
+            });
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+
+        assertEquals(1, latencyHistogram.getCount());
+    }
+
+    @Test
+    public void interruptedCaller_cancelsBothCopies_andKeepsTheInterrupt() throws Exception
+    {
+        LatencyHistogram latencyHistogram = new LatencyHistogram("test.query");
+        HedgingPolicy hedgingPolicy = newPolicy(latencyHistogram);
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final CountDownLatch bothStopped = new CountDownLatch(2);
+        final Thread caller = Thread.currentThread();
+
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    bothStarted.await();
+                    caller.interrupt();
+                }
+                catch (InterruptedException e)
+                {
+                    // the test gives up below
+                }
+            }
+        }).start();
+
+        try
+        {
+            hedgingPolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call() throws InterruptedException
+                {
+                    bothStarted.countDown();
+
+                    try
+                    {
+                        Thread.sleep(60000);
+                        return "ok";
+                    }
+                    finally
+                    {
+                        bothStopped.countDown();
+                    }
+                }
+            });
+            fail();
+        }
+        catch (InterruptedException e)
+        {
+            // expected
+        }
+
+        assertTrue(Thread.interrupted()); // also clears it for the rest of the test
+        assertTrue(bothStopped.await(5, TimeUnit.SECONDS));
+        assertEquals(0, latencyHistogram.getCount());
+    }
+
+    @Test
+    public void hedge_holdsItsOwnLimiterSlot() throws Exception
+    {
+        final ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test");
+        concurrencyLimiter.setLimits(4, 1, 4);
+        HedgingPolicy hedgingPolicy = newPolicy(new LatencyHistogram("test.query"), concurrencyLimiter);
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger inFlightDuringHedge = new AtomicInteger();
+        final CountDownLatch loserStopped = new CountDownLatch(1);
+
+        // the slot the caller's first copy runs under, like ResiliencePolicy takes
+        concurrencyLimiter.acquire();
+
+        String result = hedgingPolicy.execute(new Callable<String>()
+        {
+            @Override
+            public String call() throws InterruptedException
+            {
+                if (calls.incrementAndGet() == 1)
+                {
+                    try
+                    {
+                        Thread.sleep(60000);
+                        return "primary";
+                    }
+                    finally
+                    {
+                        loserStopped.countDown();
+                    }
+                }
+
+                inFlightDuringHedge.set(concurrencyLimiter.getInFlight());
+                return "hedge";
+            }
+        });
+
+        assertEquals("hedge", result);
+        assertEquals(2, inFlightDuringHedge.get());
+
+        // the hedge gave its slot back, the caller still has its own
+        assertTrue(loserStopped.await(5, TimeUnit.SECONDS));
+        assertEquals(1, concurrencyLimiter.getInFlight());
+        concurrencyLimiter.release();
+    }
+
+    @Test
+    public void noFreeLimiterSlot_isNotHedged() throws Exception
+    {
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test");
+        concurrencyLimiter.setLimits(1, 1, 1);
+        HedgingPolicy hedgingPolicy = newPolicy(new LatencyHistogram("test.query"), concurrencyLimiter);
+        final AtomicInteger calls = new AtomicInteger();
+
+        concurrencyLimiter.acquire();
+
+        String result = hedgingPolicy.execute(new Callable<String>()
+        {
+            @Override
+            public String call() throws InterruptedException
+            {
+                calls.incrementAndGet();
+                Thread.sleep(100);
+                return "ok";
+            }
+        });
+
+        assertEquals("ok", result);
+        assertEquals(1, calls.get());
+        assertEquals(1, concurrencyLimiter.getInFlight());
+        concurrencyLimiter.release();
+    }
+
+    @Test
+    public void hedgeCancelledBeforeItRan_givesItsSlotBack() throws Exception
+    {
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test");
+        concurrencyLimiter.setLimits(4, 1, 4);
+        HedgingPolicy hedgingPolicy = newPolicy(new LatencyHistogram("test.query"), concurrencyLimiter);
+
+        concurrencyLimiter.acquire();
+
+        // many slow requests in a row, so some of the hedges are cancelled before their thread picks them up
+        for (int i = 0; i < 20; i++)
+        {
+            final AtomicInteger calls = new AtomicInteger();
+
+            hedgingPolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call() throws InterruptedException
+                {
+                    if (calls.incrementAndGet() == 1)
+                    {
+                        Thread.sleep(25);
+                    }
+
+                    return "ok";
+                }
+            });
+        }
+
+        // a running loser gives its slot back when it notices it was cancelled
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (concurrencyLimiter.getInFlight() > 1 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, concurrencyLimiter.getInFlight());
+        concurrencyLimiter.release();
+    }
+
+    /**
+     * @return an enabled policy that hedges anything slower than 20 ms, with enough budget for every test
+     */
+    private static HedgingPolicy newPolicy(LatencyHistogram latencyHistogram)
+    {
+        return newPolicy(latencyHistogram, null);
+    }
+
+    private static HedgingPolicy newPolicy(LatencyHistogram latencyHistogram, ConcurrencyLimiter concurrencyLimiter)
+    {
+        HedgingPolicy hedgingPolicy = new HedgingPolicy("test", latencyHistogram, concurrencyLimiter);
+        hedgingPolicy.setBudget(1, 10);
+        hedgingPolicy.setDelays(20, 20, 1000);
+        hedgingPolicy.setEnabled(true);
+        return hedgingPolicy;
+    }
+}
@@ -0,0 +1,208 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks LatencyHistogram's buckets and that its percentiles stay within the promised 1/16 of the exact answer.
+ */
+public class LatencyHistogramTest
+{
+    private static final long MAX_TRACKED_MICROS = (1L << 40) - 1; // the highest value with its own bucket
+
+    @Test
+    public void nothingRecorded_isAllZero()
+    {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void smallValues_areExact()
+    {
+        for (long micros = 0; micros < 32; micros++)
+        {
+            assertEquals(micros, LatencyHistogram.getBucketUpperBound(LatencyHistogram.getBucketIndex(micros)));
+        }
+    }
+
+    @Test
+    public void buckets_followEachOtherWithoutGaps()
+    {
+        int lastIndex = LatencyHistogram.getBucketIndex(Long.MAX_VALUE);
+
+        for (int i = 0; i < lastIndex; i++)
+        {
+            long upperBound = LatencyHistogram.getBucketUpperBound(i);
+
+            assertEquals(i, LatencyHistogram.getBucketIndex(upperBound));
+            assertEquals(i + 1, LatencyHistogram.getBucketIndex(upperBound + 1));
+        }
+
+        assertEquals(MAX_TRACKED_MICROS, LatencyHistogram.getBucketUpperBound(lastIndex - 1));
+    }
+
+    @Test
+    public void bucketEdges()
+    {
+        assertEquals(0, LatencyHistogram.getBucketIndex(0));
+        assertEquals(0, LatencyHistogram.getBucketUpperBound(0));
+
+        // everything past the last tracked value goes in the overflow bucket, which has no upper bound
+        int lastIndex = LatencyHistogram.getBucketIndex(MAX_TRACKED_MICROS + 1);
+        assertEquals(LatencyHistogram.getBucketIndex(MAX_TRACKED_MICROS) + 1, lastIndex);
+        assertEquals(lastIndex, LatencyHistogram.getBucketIndex(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketUpperBound(lastIndex));
+    }
+
+    @Test
+    public void everyBucket_isWithinASixteenthOfItsValues()
+    {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 1000000; i++)
+        {
+            long micros = random.nextLong() >>> (24 + random.nextInt(40)); // spread over every tracked magnitude
+            long upperBound = LatencyHistogram.getBucketUpperBound(LatencyHistogram.getBucketIndex(micros));
+
+            assertTrue(micros + " went in a bucket ending at " + upperBound, upperBound >= micros);
+            assertTrue(micros + " went in a bucket ending at " + upperBound, upperBound - micros <= micros / 16);
+        }
+    }
+
+    @Test
+    public void percentiles_ofAUniformDistribution()
+    {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+
+        // 1..10000 microseconds, once each, so the exact pN is N * 100
+        for (long micros = 1; micros <= 10000; micros++)
+        {
+            histogram.recordMicros(micros);
+        }
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000, histogram.getMeanMicros());
+        assertEquals(10000, histogram.getMaxMicros());
+
+        for (int percentile = 1; percentile <= 100; percentile++)
+        {
+            assertWithinASixteenth(percentile * 100, histogram.getPercentileMicros(percentile));
+        }
+
+        assertEquals(1, histogram.getPercentileMicros(0));
+        assertEquals(10000, histogram.getPercentileMicros(100)); // never more than the max
+    }
+
+    @Test
+    public void percentiles_ofALongTail()
+    {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        long[] values = new long[100000];
+        Random random = new Random(7);
+
+        // mostly around 20ms, with a tail out to seconds, like a network call
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = (long) (20000 * Math.exp(random.nextGaussian()));
+            histogram.recordMicros(values[i]);
+        }
+
+        Arrays.sort(values);
+
+        for (double percentile : new double[]{50, 90, 99, 99.9})
+        {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            assertWithinASixteenth(exact, histogram.getPercentileMicros(percentile));
+        }
+
+        assertEquals(values[values.length - 1], histogram.getMaxMicros());
+    }
+
+    @Test
+    public void negativeValues_countAsZero()
+    {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.recordMicros(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void overflow_reportsTheMax()
+    {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        long twentyDays = 20L * 24 * 60 * 60 * 1000 * 1000;
+
+        histogram.recordMicros(100);
+        histogram.recordMicros(twentyDays);
+
+        assertWithinASixteenth(100, histogram.getPercentileMicros(50));
+        assertEquals(twentyDays, histogram.getPercentileMicros(100));
+        assertEquals(twentyDays, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void reset_forgetsEverything()
+    {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.recordMicros(1000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(99));
+        assertEquals(0, histogram.getMaxMicros());
+
+        histogram.recordMicros(3);
+        assertEquals(3, histogram.getPercentileMicros(99));
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws InterruptedException
+    {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 100000; i++)
+                    {
+                        histogram.recordMicros(i % 1000 + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(999 + threads.length - 1, histogram.getMaxMicros());
+    }
+
+    /**
+     * The histogram only ever reports a value's bucket upper bound, so it can be up to 1/16 above the exact one, never below.
+     */
+    private static void assertWithinASixteenth(long exact, long reported)
+    {
+        assertTrue("Expected about " + exact + " but was " + reported, reported >= exact && reported - exact <= exact / 16);
+    }
+}
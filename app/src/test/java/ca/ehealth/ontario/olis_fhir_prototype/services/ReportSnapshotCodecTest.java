@@ -0,0 +1,244 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.EpochDateFormat;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISObservationModel;
+import ca.ehealth.ontario.olis_fhir_prototype.models.ReferenceRangeEvaluator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that ReportSnapshotCodec gives back the models it was given, and refuses snapshots it can't read.
+ */
+public class ReportSnapshotCodecTest
+{
+    @Test
+    public void encodeThenDecode_givesBackTheSameReports() throws IOException
+    {
+        ArrayList<OLISDiagnosticReportModel> reports = new ArrayList<>();
+        reports.add(newReport("r1", 1500000000000L, true, newObservation("Glucose", "7.9 mmol/L", "H", "3.6 - 6.1 mmol/L"),
+                newObservation("Sodium", "140 mmol/L", "N", "135 - 145 mmol/L")));
+        reports.add(newReport("r2", 1500000360000L, false));
+        reports.add(newReport("r3", EpochDateFormat.NO_TIME, false)); // no release time
+        reports.add(newSummary("r4", 1400000000000L)); // details not loaded
+        reports.get(0).setRangeFlag(ReferenceRangeEvaluator.FLAG_HIGH, 0.72);
+        reports.get(1).setRangeFlag(ReferenceRangeEvaluator.FLAG_NORMAL, 0);
+
+        assertReportsEqual(reports, ReportSnapshotCodec.decode(ReportSnapshotCodec.encode(reports)));
+    }
+
+    @Test
+    public void numbers_keptExactly() throws IOException
+    {
+        OLISObservationModel glucose = newObservation("Glucose", "7.9 mmol/L", "H", "3.6 - 6.1 mmol/L");
+        glucose.setValue(7.9);
+        glucose.setUnit("mmol/L");
+        glucose.setRangeLow(3.6);
+        glucose.setRangeHigh(6.1);
+
+        // one-sided range, and a value that doesn't print back the same
+        OLISObservationModel cholesterol = newObservation("Cholesterol", "5.3 mmol/L", null, null);
+        cholesterol.setValue(0.1 + 0.2);
+        cholesterol.setRangeHigh(5.2);
+
+        ArrayList<OLISDiagnosticReportModel> reports = new ArrayList<>();
+        reports.add(newReport("r1", 1500000000000L, true, glucose, cholesterol, newObservation("Comment", "See note", null, null)));
+        reports.get(0).setRangeFlag(ReferenceRangeEvaluator.FLAG_CRITICAL_HIGH, 1.0 / 3);
+
+        OLISDiagnosticReportModel decoded = ReportSnapshotCodec.decode(ReportSnapshotCodec.encode(reports)).get(0);
+
+        assertReportsEqual(reports, new ArrayList<>(Arrays.asList(decoded)));
+        assertEquals(0.1 + 0.2, decoded.getObservations().get(1).getValue(), 0);
+        assertTrue(Double.isNaN(decoded.getObservations().get(1).getRangeLow()));
+        assertNull(decoded.getObservations().get(1).getUnit());
+        assertTrue(Double.isNaN(decoded.getObservations().get(2).getValue()));
+    }
+
+    @Test
+    public void emptyList() throws IOException
+    {
+        assertTrue(ReportSnapshotCodec.decode(ReportSnapshotCodec.encode(new ArrayList<OLISDiagnosticReportModel>())).isEmpty());
+    }
+
+    @Test
+    public void nullStrings_stayNull() throws IOException
+    {
+        ArrayList<OLISDiagnosticReportModel> reports = new ArrayList<>();
+        OLISDiagnosticReportModel report = new OLISDiagnosticReportModel();
+        report.setDetails(new ArrayList<OLISObservationModel>());
+        report.getObservations().add(new OLISObservationModel());
+        reports.add(report);
+        reports.add(newReport("", 0L, false)); // an empty string isn't null
+
+        ArrayList<OLISDiagnosticReportModel> decoded = ReportSnapshotCodec.decode(ReportSnapshotCodec.encode(reports));
+
+        assertReportsEqual(reports, decoded);
+        assertNull(decoded.get(0).getPractitionerName());
+        assertNull(decoded.get(0).getReportId());
+        assertNull(decoded.get(0).getObservations().get(0).getTestName());
+        assertEquals("", decoded.get(1).getReportId());
+    }
+
+    @Test
+    public void releaseTimesOutOfOrder_negativeDeltasDecode() throws IOException
+    {
+        ArrayList<OLISDiagnosticReportModel> reports = new ArrayList<>();
+        reports.add(newSummary("newest", 1600000000000L));
+        reports.add(newSummary("older", 1500000000000L));
+        reports.add(newSummary("before 1970", -86400000L * 365 * 30));
+        reports.add(newSummary("newer", 1550000000000L));
+        reports.add(newSummary("min", Long.MIN_VALUE + 1));
+        reports.add(newSummary("max", Long.MAX_VALUE));
+
+        assertReportsEqual(reports, ReportSnapshotCodec.decode(ReportSnapshotCodec.encode(reports)));
+    }
+
+    @Test
+    public void stringsAreStoredOnce()
+    {
+        ArrayList<OLISDiagnosticReportModel> reports = new ArrayList<>();
+        reports.add(newReport("r", 0L, false));
+        int oneReport = ReportSnapshotCodec.encode(reports).length;
+
+        for (int i = 0; i < 99; i++)
+        {
+            reports.add(newReport("r", 0L, false));
+        }
+
+        // every other report is its record alone, a handful of bytes instead of the strings again
+        assertTrue(ReportSnapshotCodec.encode(reports).length < oneReport + 99 * 16);
+    }
+
+    @Test
+    public void truncatedSnapshot_isRejected()
+    {
+        ArrayList<OLISDiagnosticReportModel> reports = new ArrayList<>();
+        reports.add(newReport("r1", 1500000000000L, true, newObservation("Glucose", "7.9 mmol/L", "H", "3.6 - 6.1 mmol/L")));
+        reports.add(newReport("r2", 1400000000000L, false));
+        byte[] snapshot = ReportSnapshotCodec.encode(reports);
+
+        // wherever it's cut, the decoder has to notice rather than return fewer or garbled reports
+        for (int length = 0; length < snapshot.length; length++)
+        {
+            try
+            {
+                ReportSnapshotCodec.decode(Arrays.copyOf(snapshot, length));
+                fail("A snapshot cut to " + length + " of " + snapshot.length + " bytes was decoded");
+            }
+            catch (IOException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void futureVersion_isRejected() throws IOException
+    {
+        byte[] snapshot = ReportSnapshotCodec.encode(new ArrayList<OLISDiagnosticReportModel>());
+        snapshot[4] = (byte) (ReportSnapshotCodec.VERSION + 1); // the version follows the 4 magic bytes
+
+        ReportSnapshotCodec.decode(snapshot);
+    }
+
+    @Test(expected = IOException.class)
+    public void version1_isRejected() throws IOException
+    {
+        // it has no range flags, so it has to be rebuilt rather than read
+        byte[] snapshot = ReportSnapshotCodec.encode(new ArrayList<OLISDiagnosticReportModel>());
+        snapshot[4] = 1;
+
+        ReportSnapshotCodec.decode(snapshot);
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongMagic_isRejected() throws IOException
+    {
+        byte[] snapshot = ReportSnapshotCodec.encode(new ArrayList<OLISDiagnosticReportModel>());
+        snapshot[0] = '{';
+
+        ReportSnapshotCodec.decode(snapshot);
+    }
+
+    private static OLISDiagnosticReportModel newSummary(String reportId, long releaseMillis)
+    {
+        OLISDiagnosticReportModel report = new OLISDiagnosticReportModel();
+        report.setPractitionerName("Dr. Jane Smith");
+        report.setOrganizationName("LifeLabs");
+        report.setTestPerformed("Chemistry");
+        report.setReportId(reportId);
+        report.setHealthCardNumber("9287170261");
+        report.setTestReleaseMillis(releaseMillis);
+        return report;
+    }
+
+    private static OLISDiagnosticReportModel newReport(String reportId, long releaseMillis, boolean isAbnormal, OLISObservationModel... observations)
+    {
+        OLISDiagnosticReportModel report = newSummary(reportId, releaseMillis);
+        report.setTestResult(observations.length > 0 ? observations[0].getTestResult() : "Final");
+        report.setAcceptableRange(observations.length > 0 ? observations[0].getAcceptableRange() : null);
+        report.setAbnormal(isAbnormal);
+        report.setDetails(new ArrayList<>(Arrays.asList(observations)));
+        return report;
+    }
+
+    private static OLISObservationModel newObservation(String testName, String testResult, String interpretationCode, String acceptableRange)
+    {
+        OLISObservationModel observation = new OLISObservationModel();
+        observation.setTestName(testName);
+        observation.setTestResult(testResult);
+        observation.setInterpretationCode(interpretationCode);
+        observation.setAcceptableRange(acceptableRange);
+        return observation;
+    }
+
+    private static void assertReportsEqual(ArrayList<OLISDiagnosticReportModel> expected, ArrayList<OLISDiagnosticReportModel> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            OLISDiagnosticReportModel expectedReport = expected.get(i);
+            OLISDiagnosticReportModel actualReport = actual.get(i);
+
+            assertEquals(expectedReport.getPractitionerName(), actualReport.getPractitionerName());
+            assertEquals(expectedReport.getOrganizationName(), actualReport.getOrganizationName());
+            assertEquals(expectedReport.getTestPerformed(), actualReport.getTestPerformed());
+            assertEquals(expectedReport.getTestResult(), actualReport.getTestResult());
+            assertEquals(expectedReport.getAcceptableRange(), actualReport.getAcceptableRange());
+            assertEquals(expectedReport.getReportId(), actualReport.getReportId());
+            assertEquals(expectedReport.getHealthCardNumber(), actualReport.getHealthCardNumber());
+            assertEquals(expectedReport.getTestReleaseMillis(), actualReport.getTestReleaseMillis());
+            assertEquals(expectedReport.isAbnormal(), actualReport.isAbnormal());
+            assertEquals(expectedReport.isDetailLoaded(), actualReport.isDetailLoaded());
+            assertEquals(expectedReport.getRangeFlag(), actualReport.getRangeFlag());
+            assertEquals(expectedReport.getRangeDeviation(), actualReport.getRangeDeviation(), 0);
+
+            if (expectedReport.isDetailLoaded())
+            {
+                assertEquals(expectedReport.getObservations().size(), actualReport.getObservations().size());
+
+                for (int j = 0; j < expectedReport.getObservations().size(); j++)
+                {
+                    OLISObservationModel expectedObservation = expectedReport.getObservations().get(j);
+                    OLISObservationModel actualObservation = actualReport.getObservations().get(j);
+
+                    assertEquals(expectedObservation.getTestName(), actualObservation.getTestName());
+                    assertEquals(expectedObservation.getTestResult(), actualObservation.getTestResult());
+                    assertEquals(expectedObservation.getInterpretationCode(), actualObservation.getInterpretationCode());
+                    assertEquals(expectedObservation.getAcceptableRange(), actualObservation.getAcceptableRange());
+                    assertEquals(expectedObservation.getValue(), actualObservation.getValue(), 0);
+                    assertEquals(expectedObservation.getUnit(), actualObservation.getUnit());
+                    assertEquals(expectedObservation.getRangeLow(), actualObservation.getRangeLow(), 0);
+                    assertEquals(expectedObservation.getRangeHigh(), actualObservation.getRangeHigh(), 0);
+                }
+            }
+        }
+    }
+}
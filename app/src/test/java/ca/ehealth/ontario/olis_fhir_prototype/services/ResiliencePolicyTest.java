@@ -0,0 +1,284 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.apache.http.client.HttpResponseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ResiliencePolicy's retries, backoff and how it reports each attempt to the CircuitBreaker and ConcurrencyLimiter.
+ */
+public class ResiliencePolicyTest
+{
+    private static final long AN_HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void backoff_staysUnderTheCappedExponentialCeiling()
+    {
+        ResiliencePolicy resiliencePolicy = new ResiliencePolicy("test");
+        resiliencePolicy.setBackoff(100, 1000);
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+
+        for (int retry = 1; retry <= ceilings.length; retry++)
+        {
+            long highest = 0;
+
+            for (int i = 0; i < 10000; i++)
+            {
+                long backoffMillis = resiliencePolicy.getBackoffMillis(retry);
+                assertTrue(backoffMillis >= 0 && backoffMillis <= ceilings[retry - 1]);
+                highest = Math.max(highest, backoffMillis);
+            }
+
+            // full jitter, so the waits spread over the whole range rather than bunching at the ceiling
+            assertTrue(highest > ceilings[retry - 1] / 2);
+        }
+    }
+
+    @Test
+    public void backoff_manyRetries_doesNotOverflow()
+    {
+        ResiliencePolicy resiliencePolicy = new ResiliencePolicy("test");
+        resiliencePolicy.setBackoff(200, 2000);
+
+        for (int retry : new int[]{31, 32, 64, 1000, Integer.MAX_VALUE})
+        {
+            long backoffMillis = resiliencePolicy.getBackoffMillis(retry);
+            assertTrue(backoffMillis >= 0 && backoffMillis <= 2000);
+        }
+    }
+
+    @Test
+    public void backoff_noDelay()
+    {
+        ResiliencePolicy resiliencePolicy = new ResiliencePolicy("test");
+        resiliencePolicy.setBackoff(0, 0);
+
+        assertEquals(0, resiliencePolicy.getBackoffMillis(1));
+        assertEquals(0, resiliencePolicy.getBackoffMillis(5));
+    }
+
+    @Test
+    public void transientFailure_isRetriedUntilItWorks()
+    {
+        ResiliencePolicy resiliencePolicy = newPolicy();
+        final AtomicInteger calls = new AtomicInteger();
+
+        String result = resiliencePolicy.execute(new Callable<String>()
+        {
+            @Override
+            public String call() throws IOException
+            {
+                if (calls.incrementAndGet() < 3)
+                {
+                    throw new IOException("timed out");
+                }
+
+                return "ok";
+            }
+        });
+
+        assertEquals("ok", result);
+        assertEquals(3, calls.get());
+        assertEquals(CircuitBreaker.State.CLOSED, resiliencePolicy.getCircuitBreaker().getState());
+        assertEquals(0, resiliencePolicy.getConcurrencyLimiter().getInFlight());
+    }
+
+    @Test
+    public void transientFailure_givesUpAfterMaxAttempts()
+    {
+        ResiliencePolicy resiliencePolicy = newPolicy();
+        final AtomicInteger calls = new AtomicInteger();
+
+        try
+        {
+            resiliencePolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call() throws IOException
+                {
+                    calls.incrementAndGet();
+                    throw new IOException("timed out");
+                }
+            });
+            fail();
+        }
+        catch (ServiceUnavailableException e)
+        {
+            // checked exceptions come wrapped
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        assertEquals(3, calls.get());
+        assertEquals(0, resiliencePolicy.getConcurrencyLimiter().getInFlight());
+    }
+
+    @Test
+    public void otherFailure_isNotRetried_andCountsAsASuccessForTheBreaker()
+    {
+        ResiliencePolicy resiliencePolicy = newPolicy();
+        resiliencePolicy.getCircuitBreaker().setFailureThreshold(1);
+        final AtomicInteger calls = new AtomicInteger();
+
+        try
+        {
+            resiliencePolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    calls.incrementAndGet();
+                    throw new IllegalArgumentException("bad request");
+                }
+            });
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(CircuitBreaker.State.CLOSED, resiliencePolicy.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void openBreaker_sendsNothing()
+    {
+        ResiliencePolicy resiliencePolicy = newPolicy();
+        resiliencePolicy.getCircuitBreaker().setFailureThreshold(1);
+        resiliencePolicy.getCircuitBreaker().recordFailure();
+        final AtomicInteger calls = new AtomicInteger();
+
+        try
+        {
+            resiliencePolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    calls.incrementAndGet();
+                    return "ok";
+                }
+            });
+            fail();
+        }
+        catch (CircuitOpenException e)
+        {
+            // expected
+        }
+
+        assertEquals(0, calls.get());
+        assertEquals(0, resiliencePolicy.getConcurrencyLimiter().getInFlight());
+    }
+
+    @Test
+    public void trialThatThrowsAnError_doesNotLeaveTheBreakerHalfOpen()
+    {
+        ResiliencePolicy resiliencePolicy = newPolicy();
+        CircuitBreaker circuitBreaker = resiliencePolicy.getCircuitBreaker();
+        circuitBreaker.setFailureThreshold(1);
+        circuitBreaker.recordFailure();
+        circuitBreaker.setOpenMillis(0);
+
+        try
+        {
+            resiliencePolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    throw new OutOfMemoryError("test");
+                }
+            });
+            fail();
+        }
+        catch (OutOfMemoryError e)
+        {
+            // expected
+        }
+
+        assertEquals(0, resiliencePolicy.getConcurrencyLimiter().getInFlight());
+
+        // the next request gets to be the trial
+        String result = resiliencePolicy.execute(new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return "ok";
+            }
+        });
+
+        assertEquals("ok", result);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void interruptedRequest_isNotRetried_orHeldAgainstTheServer()
+    {
+        ResiliencePolicy resiliencePolicy = newPolicy();
+        CircuitBreaker circuitBreaker = resiliencePolicy.getCircuitBreaker();
+        circuitBreaker.setFailureThreshold(1);
+        circuitBreaker.recordFailure();
+        circuitBreaker.setOpenMillis(0);
+        final AtomicInteger calls = new AtomicInteger();
+
+        try
+        {
+            resiliencePolicy.execute(new Callable<String>()
+            {
+                @Override
+                public String call() throws InterruptedException
+                {
+                    calls.incrementAndGet();
+                    throw new InterruptedException();
+                }
+            });
+            fail();
+        }
+        catch (ServiceUnavailableException e)
+        {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+
+        assertTrue(Thread.interrupted()); // also clears it for the rest of the test
+        assertEquals(1, calls.get());
+        assertEquals(0, resiliencePolicy.getConcurrencyLimiter().getInFlight());
+
+        // it wasn't a success either, the breaker is still waiting for a trial to tell it the server is back
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void transientFailure_sameStatusesForPCRAndOLIS()
+    {
+        assertTrue(ResiliencePolicy.isTransientFailure(new HttpResponseException(503, "PCR answered 503")));
+        assertTrue(ResiliencePolicy.isTransientFailure(new HttpResponseException(429, "PCR answered 429")));
+        assertFalse(ResiliencePolicy.isTransientFailure(new HttpResponseException(400, "PCR answered 400")));
+        assertTrue(ResiliencePolicy.isTransientFailure(new InternalErrorException("OLIS answered 500")));
+        assertTrue(ResiliencePolicy.isTransientFailure(new UnclassifiedServerFailureException(429, "OLIS answered 429")));
+        assertFalse(ResiliencePolicy.isTransientFailure(new InvalidRequestException("OLIS answered 400")));
+        assertTrue(ResiliencePolicy.isTransientFailure(new IOException("timed out")));
+    }
+
+    /**
+     * @return a policy that retries without waiting and whose breaker stays open for an hour once it opens
+     */
+    private static ResiliencePolicy newPolicy()
+    {
+        ResiliencePolicy resiliencePolicy = new ResiliencePolicy("test");
+        resiliencePolicy.setBackoff(0, 0);
+        resiliencePolicy.getCircuitBreaker().setOpenMillis(AN_HOUR);
+        return resiliencePolicy;
+    }
+}
@@ -0,0 +1,244 @@
+package ca.ehealth.ontario.olis_fhir_prototype.batch;
+
+import java.io.File;
+import java.util.Arrays;
+
+import ca.ehealth.ontario.olis_fhir_prototype.standin.StandInConfig;
+
+/**
+ * This class holds the settings of a BatchRunner.
+ *
+ * On the command line (see fromArgs()):
+ *   --roster roster.csv              a name,hcn line per patient, the same file Import Roster takes (required)
+ *   --out batch-results              the directory for results.csv and summary.txt, created if needed
+ *   --concurrency 8                  patients looked up at the same time
+ *   --limit 1000                     only the first patients of the roster, 0 for all of them
+ *   --olis http://localhost:8080/olis
+ *   --pcr http://localhost:8080/pcr
+ *   --attempts 3                     tries per OLIS or PCR request, 1 for no retries
+ *   --timeout-millis 10000           connect and read timeout for OLIS and PCR, the app's own timeouts if not given
+ *   --max-in-flight 64               the most requests each of OLIS and PCR can have in flight, their limiters find the best number below it
+ *   --hedge 95                       sends a second copy of OLIS searches slower than that percentile, 0 (the default) to never hedge
+ *   --standin --olis-latency lognormal:200:2000 --error-rate 0.02
+ *                                    starts a stand-in server on a free port and uses it instead of --olis and --pcr.
+ *                                    It goes last, everything after it is a StandInConfig option.
+ */
+public class BatchConfig
+{
+    private File rosterFile;
+    private File outputDirectory = new File("batch-results");
+    private int concurrency = 8;
+    private int limit;
+    private String olisEndPoint;
+    private String pcrEndPoint;
+    private int attempts = 3;
+    private int timeoutMillis;
+    private int maxInFlight = 64;
+    private double hedgePercentile;
+    private StandInConfig standInConfig;
+
+    /**
+     * @throws IllegalArgumentException if an option is unknown, its value can't be read, or there's no roster
+     */
+    public static BatchConfig fromArgs(String[] args)
+    {
+        BatchConfig config = new BatchConfig();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String option = args[i];
+
+            if ("--standin".equals(option))
+            {
+                StandInConfig standInConfig = StandInConfig.fromArgs(Arrays.copyOfRange(args, i + 1, args.length));
+                standInConfig.setPort(0);
+                config.setStandInConfig(standInConfig);
+                break;
+            }
+
+            if (i + 1 >= args.length)
+            {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+
+            String value = args[++i];
+
+            try
+            {
+                switch (option)
+                {
+                    case "--roster":
+                        config.setRosterFile(new File(value));
+                        break;
+
+                    case "--out":
+                        config.setOutputDirectory(new File(value));
+                        break;
+
+                    case "--concurrency":
+                        config.setConcurrency(Integer.parseInt(value));
+                        break;
+
+                    case "--limit":
+                        config.setLimit(Integer.parseInt(value));
+                        break;
+
+                    case "--olis":
+                        config.setOLISEndPoint(value);
+                        break;
+
+                    case "--pcr":
+                        config.setPCREndPoint(value);
+                        break;
+
+                    case "--attempts":
+                        config.setAttempts(Integer.parseInt(value));
+                        break;
+
+                    case "--timeout-millis":
+                        config.setTimeoutMillis(Integer.parseInt(value));
+                        break;
+
+                    case "--max-in-flight":
+                        config.setMaxInFlight(Integer.parseInt(value));
+                        break;
+
+                    case "--hedge":
+                        config.setHedgePercentile(Double.parseDouble(value));
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Bad value \"" + value + "\" for " + option);
+            }
+        }
+
+        if (config.getRosterFile() == null)
+        {
+            throw new IllegalArgumentException("--roster is required");
+        }
+
+        if (config.getConcurrency() < 1)
+        {
+            throw new IllegalArgumentException("--concurrency has to be at least 1");
+        }
+
+        if (config.getMaxInFlight() < 1)
+        {
+            throw new IllegalArgumentException("--max-in-flight has to be at least 1");
+        }
+
+        if (config.getHedgePercentile() < 0 || config.getHedgePercentile() >= 100)
+        {
+            throw new IllegalArgumentException("--hedge has to be a percentile from 0 to 99.9");
+        }
+
+        return config;
+    }
+
+    public File getRosterFile()
+    {
+        return rosterFile;
+    }
+    public void setRosterFile(File rosterFile)
+    {
+        this.rosterFile = rosterFile;
+    }
+    public File getOutputDirectory()
+    {
+        return outputDirectory;
+    }
+    public void setOutputDirectory(File outputDirectory)
+    {
+        this.outputDirectory = outputDirectory;
+    }
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+    public void setConcurrency(int concurrency)
+    {
+        this.concurrency = concurrency;
+    }
+    public int getLimit()
+    {
+        return limit;
+    }
+    public void setLimit(int limit)
+    {
+        this.limit = limit;
+    }
+    public String getOLISEndPoint()
+    {
+        return olisEndPoint;
+    }
+    public void setOLISEndPoint(String olisEndPoint)
+    {
+        this.olisEndPoint = olisEndPoint;
+    }
+    public String getPCREndPoint()
+    {
+        return pcrEndPoint;
+    }
+    public void setPCREndPoint(String pcrEndPoint)
+    {
+        this.pcrEndPoint = pcrEndPoint;
+    }
+    public int getAttempts()
+    {
+        return attempts;
+    }
+    public void setAttempts(int attempts)
+    {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return 0 to keep the app's own timeouts
+     */
+    public int getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+    public void setTimeoutMillis(int timeoutMillis)
+    {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return 0 to never hedge OLIS searches
+     */
+    public double getHedgePercentile()
+    {
+        return hedgePercentile;
+    }
+    public void setHedgePercentile(double hedgePercentile)
+    {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * @return the settings of the stand-in server to start, or null to use the --olis and --pcr end points
+     */
+    public StandInConfig getStandInConfig()
+    {
+        return standInConfig;
+    }
+    public void setStandInConfig(StandInConfig standInConfig)
+    {
+        this.standInConfig = standInConfig;
+    }
+}
@@ -0,0 +1,350 @@
+package ca.ehealth.ontario.olis_fhir_prototype.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+import ca.ehealth.ontario.olis_fhir_prototype.services.LatencyHistogram;
+import ca.ehealth.ontario.olis_fhir_prototype.services.Metrics;
+import ca.ehealth.ontario.olis_fhir_prototype.services.OLISService;
+import ca.ehealth.ontario.olis_fhir_prototype.services.PCRService;
+import ca.ehealth.ontario.olis_fhir_prototype.services.PatientLookupPipeline;
+import ca.ehealth.ontario.olis_fhir_prototype.services.RosterFileReader;
+import ca.ehealth.ontario.olis_fhir_prototype.standin.StandInServer;
+
+/**
+ * This class runs the patient list's PCR then OLIS lookup (PatientLookupPipeline) for a whole roster from the command line, no device needed.
+ * It writes two files to the output directory:
+ * -results.csv     one line per patient: hcn,name,found,lab_total,millis,error
+ * -summary.txt     throughput, per-patient latency percentiles, and the app's own Metrics (PCR and OLIS query times, errors, ...)
+ * The summary is printed as well.
+ *
+ * Usage, against a stand-in server it starts itself:
+ *   ./gradlew :batch:run -PbatchArgs="--roster build/synthetic/roster.csv --concurrency 16 --standin --olis-latency lognormal:200:2000"
+ * See BatchConfig for every option.
+ */
+public class BatchRunner
+{
+    private final BatchConfig config;
+    private final LatencyHistogram patientLatency = Metrics.histogram("batch.patient");
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    // the pipeline's OLISService isn't meant to be shared, so each worker thread gets its own
+    private final ThreadLocal<PatientLookupPipeline> pipelines = new ThreadLocal<PatientLookupPipeline>()
+    {
+        @Override
+        protected PatientLookupPipeline initialValue()
+        {
+            return new PatientLookupPipeline();
+        }
+    };
+
+    private int patientCount;
+    private int foundCount;
+    private int failedCount;
+    private long labTotal;
+
+    public BatchRunner(BatchConfig config)
+    {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        BatchConfig config;
+
+        try
+        {
+            config = BatchConfig.fromArgs(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        StandInServer standInServer = null;
+
+        if (config.getStandInConfig() != null)
+        {
+            // the stand-in sleeps a thread per request while it injects latency, so it needs at least one per lookup in flight
+            config.getStandInConfig().setThreadCount(Math.max(config.getStandInConfig().getThreadCount(), config.getConcurrency() * 2));
+            standInServer = new StandInServer(config.getStandInConfig());
+            standInServer.start();
+            config.setOLISEndPoint(standInServer.getOLISEndPoint());
+            config.setPCREndPoint(standInServer.getPCREndPoint());
+        }
+
+        try
+        {
+            System.out.print(new BatchRunner(config).run());
+        }
+        finally
+        {
+            if (standInServer != null)
+            {
+                standInServer.stop();
+            }
+        }
+    }
+
+    /**
+     * Looks up every patient in the roster, config.getConcurrency() at a time, writing each result as soon as it's in.
+     * Only a couple of patients per worker are read ahead of the lookups, so the roster can be any size.
+     * @return the summary, which is also written to summary.txt
+     */
+    public String run() throws IOException, InterruptedException
+    {
+        File outputDirectory = config.getOutputDirectory();
+
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+        {
+            throw new IOException("Can't create " + outputDirectory.getAbsolutePath());
+        }
+
+        if (config.getOLISEndPoint() != null)
+        {
+            OLISService.setEndPointBase(config.getOLISEndPoint());
+        }
+
+        if (config.getPCREndPoint() != null)
+        {
+            PCRService.setEndPoint(config.getPCREndPoint());
+        }
+
+        OLISService.getResiliencePolicy().setMaxAttempts(config.getAttempts());
+        PCRService.getResiliencePolicy().setMaxAttempts(config.getAttempts());
+        OLISService.getHedgingPolicy().setEnabled(config.getHedgePercentile() > 0);
+
+        if (config.getHedgePercentile() > 0)
+        {
+            OLISService.getHedgingPolicy().setPercentile(config.getHedgePercentile());
+        }
+
+        // the limiters start low, so they learn how fast the servers are before they have many requests to answer
+        int initialLimit = Math.min(8, config.getMaxInFlight());
+        OLISService.getResiliencePolicy().getConcurrencyLimiter().setLimits(initialLimit, 1, config.getMaxInFlight());
+        PCRService.getResiliencePolicy().getConcurrencyLimiter().setLimits(initialLimit, 1, config.getMaxInFlight());
+
+        if (config.getTimeoutMillis() > 0)
+        {
+            OLISService.setTimeouts(config.getTimeoutMillis(), config.getTimeoutMillis());
+            PCRService.setTimeouts(config.getTimeoutMillis(), config.getTimeoutMillis());
+        }
+
+        Metrics.reset();
+
+        ExecutorService executor = Executors.newFixedThreadPool(config.getConcurrency(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "batch-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        CompletionService<PatientResult> completionService = new ExecutorCompletionService<>(executor);
+        int maxInFlight = config.getConcurrency() * 2;
+        int inFlight = 0;
+        long startTime = System.nanoTime();
+
+        try (RosterFileReader rosterFileReader = new RosterFileReader(new FileInputStream(config.getRosterFile()));
+             Writer resultWriter = newWriter(new File(outputDirectory, "results.csv")))
+        {
+            resultWriter.write("hcn,name,found,lab_total,millis,error\n");
+
+            while ((config.getLimit() <= 0 || patientCount < config.getLimit()) && rosterFileReader.next())
+            {
+                if (inFlight == maxInFlight)
+                {
+                    writeResult(completionService.take(), resultWriter);
+                    inFlight--;
+                }
+
+                completionService.submit(new PatientLookup(rosterFileReader.getHealthCardNumber(), rosterFileReader.getName()));
+                inFlight++;
+                patientCount++;
+            }
+
+            for (; inFlight > 0; inFlight--)
+            {
+                writeResult(completionService.take(), resultWriter);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        String summary = buildSummary(System.nanoTime() - startTime);
+
+        try (Writer summaryWriter = newWriter(new File(outputDirectory, "summary.txt")))
+        {
+            summaryWriter.write(summary);
+        }
+
+        return summary;
+    }
+
+    private void writeResult(Future<PatientResult> future, Writer resultWriter) throws IOException, InterruptedException
+    {
+        PatientResult result;
+
+        try
+        {
+            result = future.get();
+        }
+        catch (ExecutionException e)
+        {
+            // PatientLookup catches everything it can, this is only for what it can't
+            throw new IllegalStateException(e.getCause());
+        }
+
+        boolean isFound = result.error == null && PatientLookupPipeline.isFound(result.pcrPatient);
+
+        if (result.error != null)
+        {
+            failedCount++;
+        }
+        else if (isFound)
+        {
+            foundCount++;
+            labTotal += result.pcrPatient.getLabTotal();
+        }
+
+        resultWriter.write(result.healthCardNumber);
+        resultWriter.write(',');
+        resultWriter.write(toCsvField(isFound ? result.pcrPatient.getName().trim() : result.rosterName));
+        resultWriter.write(',');
+        resultWriter.write(String.valueOf(isFound));
+        resultWriter.write(',');
+        resultWriter.write(isFound ? String.valueOf(result.pcrPatient.getLabTotal()) : "");
+        resultWriter.write(',');
+        resultWriter.write(String.format(Locale.CANADA, "%.1f", result.elapsedMicros / 1000.0));
+        resultWriter.write(',');
+        resultWriter.write(result.error != null ? toCsvField(result.error) : "");
+        resultWriter.write('\n');
+    }
+
+    private String buildSummary(long elapsedNanos)
+    {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        StringBuilder summary = new StringBuilder();
+
+        summary.append(String.format(Locale.CANADA, "roster           %s%n", config.getRosterFile().getPath()));
+        summary.append(String.format(Locale.CANADA, "olis             %s%n", OLISService.getEndPointBase()));
+        summary.append(String.format(Locale.CANADA, "pcr              %s%n", PCRService.getEndPoint()));
+        summary.append(String.format(Locale.CANADA, "concurrency      %d%n", config.getConcurrency()));
+        summary.append(String.format(Locale.CANADA, "attempts         %d%n", config.getAttempts()));
+        summary.append(String.format(Locale.CANADA, "max in flight    %d%n", config.getMaxInFlight()));
+        summary.append(String.format(Locale.CANADA, "hedge            %s%n%n",
+                config.getHedgePercentile() > 0 ? "p" + config.getHedgePercentile() : "off"));
+
+        summary.append(String.format(Locale.CANADA, "patients         %d (%d found, %d not in PCR, %d failed)%n",
+                patientCount, foundCount, patientCount - foundCount - failedCount, failedCount));
+        summary.append(String.format(Locale.CANADA, "lab reports      %d%n", labTotal));
+        summary.append(String.format(Locale.CANADA, "elapsed          %.1f s%n", elapsedSeconds));
+        summary.append(String.format(Locale.CANADA, "throughput       %.1f patients/s, %.1f reports/s%n",
+                patientCount / elapsedSeconds, labTotal / elapsedSeconds));
+        summary.append(String.format(Locale.CANADA, "patient latency  p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms%n%n",
+                patientLatency.getPercentileMicros(50) / 1000.0,
+                patientLatency.getPercentileMicros(95) / 1000.0,
+                patientLatency.getPercentileMicros(99) / 1000.0,
+                patientLatency.getMaxMicros() / 1000.0));
+
+        summary.append(Metrics.dump());
+
+        return summary.toString();
+    }
+
+    private static String toCsvField(String value)
+    {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+        {
+            return value;
+        }
+
+        return "\"" + value.replace("\"", "\"\"").replace('\n', ' ') + "\"";
+    }
+
+    private static Writer newWriter(File file) throws IOException
+    {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Looks up one patient on a worker thread.
+     */
+    private class PatientLookup implements Callable<PatientResult>
+    {
+        private final String healthCardNumber;
+        private final String rosterName;
+
+        PatientLookup(String healthCardNumber, String rosterName)
+        {
+            this.healthCardNumber = healthCardNumber;
+            this.rosterName = rosterName;
+        }
+
+        @Override
+        public PatientResult call()
+        {
+            PatientResult result = new PatientResult(healthCardNumber, rosterName);
+            long startTime = Metrics.startTimer();
+
+            try
+            {
+                result.pcrPatient = pipelines.get().lookUp(healthCardNumber);
+            }
+            catch (Exception | LinkageError e)
+            {
+                // LinkageError: android.util.Log has no native half on a plain JVM, so the app's own error logging can throw here
+                result.error = e.toString();
+            }
+            finally
+            {
+                result.elapsedMicros = (System.nanoTime() - startTime) / 1000;
+                patientLatency.recordMicros(result.elapsedMicros);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * What happened to one patient. Either pcrPatient or error is set.
+     */
+    private static class PatientResult
+    {
+        final String healthCardNumber;
+        final String rosterName;
+        PCRPatientModel pcrPatient;
+        String error;
+        long elapsedMicros;
+
+        PatientResult(String healthCardNumber, String rosterName)
+        {
+            this.healthCardNumber = healthCardNumber;
+            this.rosterName = rosterName;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding whole OLIS search results with OLISService.BundleToString() and StringToBundle().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FhirJsonBenchmark
+{
+    @Param({Fixtures.SMALL, Fixtures.MEDIUM, Fixtures.LARGE})
+    public String size;
+
+    private Bundle bundle;
+    private String bundleJson;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        bundle = Fixtures.loadBundle(size);
+        bundleJson = Fixtures.loadBundleJson(size);
+    }
+
+    @Benchmark
+    public String bundleToString()
+    {
+        return OLISService.BundleToString(bundle);
+    }
+
+    @Benchmark
+    public Bundle stringToBundle()
+    {
+        return OLISService.StringToBundle(bundleJson);
+    }
+}
@@ -0,0 +1,130 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class loads the recorded payloads in src/jmh/resources/fixtures:
+ * -olis-bundle-small.json, a search result with 5 DiagnosticReports
+ * -olis-bundle-medium.json, a search result with 200 DiagnosticReports, some of them panels
+ * -pcr-response-found.xml and pcr-response-not-found.xml, PRPA_IN101102CA responses from PCR
+ * A 10k report Bundle would be tens of megabytes in the repo, so the large size is built from the medium one instead.
+ */
+class Fixtures
+{
+    static final String SMALL = "small";
+    static final String MEDIUM = "medium";
+    static final String LARGE = "large";
+
+    private static final int LARGE_REPORT_COUNT = 10000;
+
+    private Fixtures()
+    {
+    }
+
+    /**
+     * @param size SMALL, MEDIUM or LARGE
+     * @return the OLIS search result Bundle of that size, as JSON
+     */
+    static String loadBundleJson(String size) throws IOException
+    {
+        if (LARGE.equals(size))
+        {
+            return OLISService.BundleToString(loadBundle(LARGE));
+        }
+
+        return readResource("olis-bundle-" + size + ".json");
+    }
+
+    /**
+     * @param size SMALL, MEDIUM or LARGE
+     * @return the OLIS search result Bundle of that size
+     */
+    static Bundle loadBundle(String size) throws IOException
+    {
+        if (LARGE.equals(size))
+        {
+            return repeatReports(OLISService.StringToBundle(readResource("olis-bundle-medium.json")), LARGE_REPORT_COUNT);
+        }
+
+        return OLISService.StringToBundle(readResource("olis-bundle-" + size + ".json"));
+    }
+
+    /**
+     * @param name "found" or "not-found"
+     * @return the PCR response body. Returned as bytes, since the HttpResponse's content can only be read once.
+     */
+    static byte[] loadPCRResponse(String name) throws IOException
+    {
+        return readResource("pcr-response-" + name + ".xml").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a 200 response with the body, like the one PCRService.executeQuery() gets back
+     */
+    static HttpResponse toHttpResponse(byte[] body)
+    {
+        HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        httpResponse.setEntity(new ByteArrayEntity(body, ContentType.TEXT_XML));
+        return httpResponse;
+    }
+
+    /**
+     * Copies the template's reports until there are reportCount of them, each with an id of its own.
+     */
+    private static Bundle repeatReports(Bundle template, int reportCount)
+    {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(reportCount);
+
+        int templateCount = template.getEntry().size();
+
+        for (int i = 0; i < reportCount; i++)
+        {
+            DiagnosticReport report = ((DiagnosticReport) template.getEntry().get(i % templateCount).getResource()).copy();
+            report.setId("olis-large-" + i);
+            bundle.addEntry().setResource(report);
+        }
+
+        return bundle;
+    }
+
+    private static String readResource(String name) throws IOException
+    {
+        InputStream inputStream = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+
+        if (inputStream == null)
+        {
+            throw new IOException("Missing fixture " + name);
+        }
+
+        try
+        {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+
+            while ((length = inputStream.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, length);
+            }
+
+            return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+}
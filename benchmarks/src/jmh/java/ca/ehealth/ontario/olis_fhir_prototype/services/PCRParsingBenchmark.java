@@ -0,0 +1,42 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+
+/**
+ * Measures PCRService.parseHttpResponse() on a recorded PCR response, for a patient that was found and one that wasn't.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PCRParsingBenchmark
+{
+    @Param({"found", "not-found"})
+    public String response;
+
+    private byte[] responseBody;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        responseBody = Fixtures.loadPCRResponse(response);
+    }
+
+    @Benchmark
+    public PCRPatientModel parseHttpResponse()
+    {
+        // a new response every time, its content can only be read once
+        return PCRService.parseHttpResponse(Fixtures.toHttpResponse(responseBody));
+    }
+}
@@ -0,0 +1,41 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the OLIS search URL, with and without a specimen collection date range.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryUrlBenchmark
+{
+    private OLISService olisService;
+
+    @Setup
+    public void setUp()
+    {
+        // only builds the FHIR client, nothing is sent
+        olisService = new OLISService();
+    }
+
+    @Benchmark
+    public String withoutDateRange()
+    {
+        return olisService.buildQueryUrl("1006395956", "1974-01-15", "female", null, null);
+    }
+
+    @Benchmark
+    public String withDateRange()
+    {
+        return olisService.buildQueryUrl("1006395956", "1974-01-15", "female", "2018-01-01", "2018-07-02");
+    }
+}
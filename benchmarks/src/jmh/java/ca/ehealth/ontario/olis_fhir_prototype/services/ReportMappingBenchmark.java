@@ -0,0 +1,66 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+
+/**
+ * Measures turning DiagnosticReports into the models of the report list:
+ * -one report at a time with the OLISDiagnosticReportModel constructor
+ * -the whole Bundle with DiagnosticReportMapper, which maps large Bundles in parallel chunks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReportMappingBenchmark
+{
+    private static final String HEALTH_CARD_NUMBER = "9287170261";
+
+    @Param({Fixtures.SMALL, Fixtures.MEDIUM, Fixtures.LARGE})
+    public String size;
+
+    private Bundle bundle;
+    private List<DiagnosticReport> diagnosticReports;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        bundle = Fixtures.loadBundle(size);
+        diagnosticReports = new ArrayList<>(bundle.getEntry().size());
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry())
+        {
+            diagnosticReports.add((DiagnosticReport) entry.getResource());
+        }
+    }
+
+    @Benchmark
+    public void modelConstructor(Blackhole blackhole)
+    {
+        for (DiagnosticReport diagnosticReport : diagnosticReports)
+        {
+            blackhole.consume(new OLISDiagnosticReportModel(diagnosticReport, HEALTH_CARD_NUMBER));
+        }
+    }
+
+    @Benchmark
+    public ArrayList<OLISDiagnosticReportModel> mapReports()
+    {
+        return DiagnosticReportMapper.mapReports(bundle, HEALTH_CARD_NUMBER);
+    }
+}
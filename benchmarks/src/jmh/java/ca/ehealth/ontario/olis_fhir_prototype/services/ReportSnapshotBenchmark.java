@@ -0,0 +1,63 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.OLISDiagnosticReportModel;
+
+/**
+ * Measures the two ways OLISAsyncTask can get a patient's report list:
+ * -decoding the JSON with OLISService.StringToBundle() and mapping it with DiagnosticReportMapper, what happens without a snapshot
+ * -decoding a ReportSnapshotCodec snapshot of the same list
+ * and encoding the snapshot, which is paid once after every change to the patient's reports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReportSnapshotBenchmark
+{
+    private static final String HEALTH_CARD_NUMBER = "9287170261";
+
+    @Param({Fixtures.SMALL, Fixtures.MEDIUM, Fixtures.LARGE})
+    public String size;
+
+    private String bundleJson;
+    private ArrayList<OLISDiagnosticReportModel> reports;
+    private byte[] snapshot;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        bundleJson = Fixtures.loadBundleJson(size);
+        reports = DiagnosticReportMapper.mapReports(OLISService.StringToBundle(bundleJson), HEALTH_CARD_NUMBER);
+        snapshot = ReportSnapshotCodec.encode(reports);
+    }
+
+    @Benchmark
+    public ArrayList<OLISDiagnosticReportModel> decodeJsonAndMap()
+    {
+        return DiagnosticReportMapper.mapReports(OLISService.StringToBundle(bundleJson), HEALTH_CARD_NUMBER);
+    }
+
+    @Benchmark
+    public ArrayList<OLISDiagnosticReportModel> decodeSnapshot() throws IOException
+    {
+        return ReportSnapshotCodec.decode(snapshot);
+    }
+
+    @Benchmark
+    public byte[] encodeSnapshot()
+    {
+        return ReportSnapshotCodec.encode(reports);
+    }
+}
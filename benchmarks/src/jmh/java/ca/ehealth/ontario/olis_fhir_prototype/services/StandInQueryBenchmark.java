@@ -0,0 +1,78 @@
+package ca.ehealth.ontario.olis_fhir_prototype.services;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ca.ehealth.ontario.olis_fhir_prototype.models.PCRPatientModel;
+import ca.ehealth.ontario.olis_fhir_prototype.standin.StandInConfig;
+import ca.ehealth.ontario.olis_fhir_prototype.standin.StandInServer;
+
+/**
+ * Measures whole OLIS and PCR queries, over HTTP to an embedded stand-in server that answers right away.
+ * With notModified the stand-in sends ETags, so after the first search OLIS answers 304 and OLISResultCache hands back the cached Bundle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StandInQueryBenchmark
+{
+    @Param({"50", "1000"})
+    public int reportsPerPatient;
+
+    @Param({"false", "true"})
+    public boolean notModified;
+
+    private StandInServer standInServer;
+    private OLISService olisService;
+    private String healthCardNumber;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        StandInConfig config = new StandInConfig();
+        config.setPort(0);
+        config.setReportsPerPatient(reportsPerPatient);
+        config.setValidatorsEnabled(notModified);
+
+        standInServer = new StandInServer(config);
+        standInServer.start();
+
+        OLISService.setEndPointBase(standInServer.getOLISEndPoint());
+        PCRService.setEndPoint(standInServer.getPCREndPoint());
+
+        olisService = new OLISService();
+        healthCardNumber = standInServer.getSyntheticData().getHealthCardNumber(0);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        standInServer.stop();
+
+        OLISService.setEndPointBase(null);
+        PCRService.setEndPoint(null);
+    }
+
+    @Benchmark
+    public Bundle olisQuery()
+    {
+        return olisService.executeQuery(healthCardNumber, "1974-01-15", "female");
+    }
+
+    @Benchmark
+    public PCRPatientModel pcrQuery()
+    {
+        return PCRService.parseHttpResponse(PCRService.executeQuery(healthCardNumber));
+    }
+}
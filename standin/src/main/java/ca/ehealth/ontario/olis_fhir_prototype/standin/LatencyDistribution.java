@@ -0,0 +1,110 @@
+package ca.ehealth.ontario.olis_fhir_prototype.standin;
+
+import java.util.Random;
+
+/**
+ * This class decides how long the stand-in server waits before answering a request.
+ * Written like "fixed:200", "uniform:50:500" or "lognormal:200:2000" on the command line (all in milliseconds).
+ *
+ * Real server latency usually has a long tail, which is what the log-normal distribution is for:
+ * half of the requests take less than the median, and 1 in 100 takes longer than the p99.
+ */
+public class LatencyDistribution
+{
+    private static final double Z_99 = 2.326; // how many standard deviations the 99th percentile is above the mean
+
+    private static final int TYPE_FIXED = 0;
+    private static final int TYPE_UNIFORM = 1;
+    private static final int TYPE_LOG_NORMAL = 2;
+
+    private final int type;
+    private final double first;
+    private final double second;
+
+    private LatencyDistribution(int type, double first, double second)
+    {
+        this.type = type;
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * @return answers right away
+     */
+    public static LatencyDistribution none()
+    {
+        return fixed(0);
+    }
+
+    public static LatencyDistribution fixed(long millis)
+    {
+        return new LatencyDistribution(TYPE_FIXED, millis, 0);
+    }
+
+    public static LatencyDistribution uniform(long minMillis, long maxMillis)
+    {
+        return new LatencyDistribution(TYPE_UNIFORM, minMillis, Math.max(minMillis, maxMillis));
+    }
+
+    /**
+     * @param medianMillis half of the requests are faster than this
+     * @param p99Millis    99 out of 100 requests are faster than this, should be above the median
+     */
+    public static LatencyDistribution logNormal(long medianMillis, long p99Millis)
+    {
+        double mu = Math.log(Math.max(medianMillis, 1));
+        double sigma = Math.max(0, (Math.log(Math.max(p99Millis, 1)) - mu) / Z_99);
+        return new LatencyDistribution(TYPE_LOG_NORMAL, mu, sigma);
+    }
+
+    /**
+     * @param text "none", "fixed:200", "uniform:50:500" or "lognormal:200:2000"
+     * @throws IllegalArgumentException if the text isn't one of those
+     */
+    public static LatencyDistribution parse(String text)
+    {
+        String[] parts = text.trim().toLowerCase().split(":");
+
+        try
+        {
+            switch (parts[0])
+            {
+                case "none":
+                    return none();
+
+                case "fixed":
+                    return fixed(Long.parseLong(parts[1]));
+
+                case "uniform":
+                    return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+
+                case "lognormal":
+                    return logNormal(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            }
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+        {
+            // falls through to the exception below
+        }
+
+        throw new IllegalArgumentException("Unknown latency \"" + text + "\", use e.g. fixed:200, uniform:50:500 or lognormal:200:2000");
+    }
+
+    /**
+     * @return how long to wait before answering, in milliseconds
+     */
+    public long sampleMillis(Random random)
+    {
+        switch (type)
+        {
+            case TYPE_UNIFORM:
+                return (long) (first + random.nextDouble() * (second - first));
+
+            case TYPE_LOG_NORMAL:
+                return (long) Math.exp(first + second * random.nextGaussian());
+
+            default:
+                return (long) first;
+        }
+    }
+}
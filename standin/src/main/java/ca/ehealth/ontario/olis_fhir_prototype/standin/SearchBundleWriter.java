@@ -0,0 +1,125 @@
+package ca.ehealth.ontario.olis_fhir_prototype.standin;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * This class writes a searchset Bundle as JSON one entry at a time, so only the resource being written has to be in memory.
+ * Building a Bundle of 10k DiagnosticReports and encoding it in one go takes hundreds of megabytes, this takes one report's worth.
+ *
+ * Usage:
+ *   searchBundleWriter.writeStart(total, selfUrl, null);
+ *   for each report: searchBundleWriter.writeEntry(fullUrl, report);
+ *   searchBundleWriter.writeEnd();
+ */
+public class SearchBundleWriter
+{
+    private final Writer writer;
+    private final Writer resourceWriter;
+    private final IParser jsonParser;
+    private boolean isFirstEntry = true;
+
+    /**
+     * @param writer where the JSON goes. It isn't flushed or closed here, that's up to the caller.
+     */
+    public SearchBundleWriter(FhirContext fhirContext, Writer writer)
+    {
+        this.writer = writer;
+        jsonParser = fhirContext.newJsonParser();
+
+        // HAPI flushes after every resource, which would send a packet per report
+        resourceWriter = new FilterWriter(writer)
+        {
+            @Override
+            public void flush()
+            {
+            }
+        };
+    }
+
+    /**
+     * @param total   the number of matches, which can be more than the entries on this page
+     * @param selfUrl the search URL
+     * @param nextUrl the URL of the next page, or null if this is the last one
+     */
+    public void writeStart(int total, String selfUrl, String nextUrl) throws IOException
+    {
+        writer.write("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":");
+        writer.write(String.valueOf(total));
+        writer.write(",\"link\":[");
+        writeLink("self", selfUrl);
+
+        if (nextUrl != null)
+        {
+            writer.write(',');
+            writeLink("next", nextUrl);
+        }
+
+        writer.write("],\"entry\":[");
+    }
+
+    public void writeEntry(String fullUrl, IBaseResource resource) throws IOException
+    {
+        if (!isFirstEntry)
+        {
+            writer.write(',');
+        }
+
+        isFirstEntry = false;
+
+        writer.write("{\"fullUrl\":");
+        writeString(fullUrl);
+        writer.write(",\"resource\":");
+        jsonParser.encodeResourceToWriter(resource, resourceWriter);
+        writer.write('}');
+    }
+
+    public void writeEnd() throws IOException
+    {
+        writer.write("]}");
+    }
+
+    private void writeLink(String relation, String url) throws IOException
+    {
+        writer.write("{\"relation\":");
+        writeString(relation);
+        writer.write(",\"url\":");
+        writeString(url);
+        writer.write('}');
+    }
+
+    /**
+     * Writes a JSON string, escaping what JSON needs escaped.
+     */
+    private void writeString(String value) throws IOException
+    {
+        writer.write('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+            {
+                writer.write('\\');
+                writer.write(c);
+            }
+            else if (c < 0x20)
+            {
+                writer.write(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                writer.write(c);
+            }
+        }
+
+        writer.write('"');
+    }
+}
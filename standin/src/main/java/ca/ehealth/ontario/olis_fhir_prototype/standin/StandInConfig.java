@@ -0,0 +1,234 @@
+package ca.ehealth.ontario.olis_fhir_prototype.standin;
+
+/**
+ * This class holds the settings of a StandInServer. The defaults answer right away and never fail.
+ *
+ * On the command line (see fromArgs()):
+ *   --port 8080                      0 picks any free port
+ *   --olis-latency lognormal:200:2000
+ *   --pcr-latency uniform:50:300
+ *   --error-rate 0.02                the share of requests answered with a 500
+ *   --timeout-rate 0.01              the share of requests that hang for --timeout-millis, then get a 504
+ *   --timeout-millis 60000
+ *   --page-size 50                   0 puts every report in one page
+ *   --reports 200                    DiagnosticReports per patient
+ *   --large-patients 3               the first few patients of the roster get --large-reports reports instead
+ *   --large-reports 10000
+ *   --seed 42                        the same seed always gives the same patients and reports
+ *   --threads 32
+ *   --no-validators                  no ETags, so searches never get a 304 Not Modified
+ */
+public class StandInConfig
+{
+    private int port = 8080;
+    private LatencyDistribution olisLatency = LatencyDistribution.none();
+    private LatencyDistribution pcrLatency = LatencyDistribution.none();
+    private double errorRate;
+    private double timeoutRate;
+    private long timeoutMillis = 60000;
+    private int pageSize;
+    private int reportsPerPatient = 50;
+    private int largePatientCount;
+    private int largeReportsPerPatient = 10000;
+    private long seed = 42;
+    private int threadCount = 32;
+    private boolean isValidatorsEnabled = true;
+
+    /**
+     * @throws IllegalArgumentException if an option is unknown or its value can't be read
+     */
+    public static StandInConfig fromArgs(String[] args)
+    {
+        StandInConfig config = new StandInConfig();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String option = args[i];
+
+            if ("--no-validators".equals(option))
+            {
+                config.setValidatorsEnabled(false);
+                continue;
+            }
+
+            if (i + 1 >= args.length)
+            {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+
+            String value = args[++i];
+
+            try
+            {
+                switch (option)
+                {
+                    case "--port":
+                        config.setPort(Integer.parseInt(value));
+                        break;
+
+                    case "--olis-latency":
+                        config.setOLISLatency(LatencyDistribution.parse(value));
+                        break;
+
+                    case "--pcr-latency":
+                        config.setPCRLatency(LatencyDistribution.parse(value));
+                        break;
+
+                    case "--error-rate":
+                        config.setErrorRate(Double.parseDouble(value));
+                        break;
+
+                    case "--timeout-rate":
+                        config.setTimeoutRate(Double.parseDouble(value));
+                        break;
+
+                    case "--timeout-millis":
+                        config.setTimeoutMillis(Long.parseLong(value));
+                        break;
+
+                    case "--page-size":
+                        config.setPageSize(Integer.parseInt(value));
+                        break;
+
+                    case "--reports":
+                        config.setReportsPerPatient(Integer.parseInt(value));
+                        break;
+
+                    case "--large-patients":
+                        config.setLargePatientCount(Integer.parseInt(value));
+                        break;
+
+                    case "--large-reports":
+                        config.setLargeReportsPerPatient(Integer.parseInt(value));
+                        break;
+
+                    case "--seed":
+                        config.setSeed(Long.parseLong(value));
+                        break;
+
+                    case "--threads":
+                        config.setThreadCount(Integer.parseInt(value));
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Bad value \"" + value + "\" for " + option);
+            }
+        }
+
+        return config;
+    }
+
+    /* ******************************************************************************************************************* */
+    /*                                              getters and setters                                                    */
+    /* ******************************************************************************************************************* */
+
+    public int getPort()
+    {
+        return port;
+    }
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+    public LatencyDistribution getOLISLatency()
+    {
+        return olisLatency;
+    }
+    public void setOLISLatency(LatencyDistribution olisLatency)
+    {
+        this.olisLatency = olisLatency;
+    }
+    public LatencyDistribution getPCRLatency()
+    {
+        return pcrLatency;
+    }
+    public void setPCRLatency(LatencyDistribution pcrLatency)
+    {
+        this.pcrLatency = pcrLatency;
+    }
+    public double getErrorRate()
+    {
+        return errorRate;
+    }
+    public void setErrorRate(double errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+    public double getTimeoutRate()
+    {
+        return timeoutRate;
+    }
+    public void setTimeoutRate(double timeoutRate)
+    {
+        this.timeoutRate = timeoutRate;
+    }
+    public long getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+    public void setTimeoutMillis(long timeoutMillis)
+    {
+        this.timeoutMillis = timeoutMillis;
+    }
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+    public int getReportsPerPatient()
+    {
+        return reportsPerPatient;
+    }
+    public void setReportsPerPatient(int reportsPerPatient)
+    {
+        this.reportsPerPatient = reportsPerPatient;
+    }
+    public int getLargePatientCount()
+    {
+        return largePatientCount;
+    }
+    public void setLargePatientCount(int largePatientCount)
+    {
+        this.largePatientCount = largePatientCount;
+    }
+    public int getLargeReportsPerPatient()
+    {
+        return largeReportsPerPatient;
+    }
+    public void setLargeReportsPerPatient(int largeReportsPerPatient)
+    {
+        this.largeReportsPerPatient = largeReportsPerPatient;
+    }
+    public long getSeed()
+    {
+        return seed;
+    }
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+    public void setThreadCount(int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+    public boolean isValidatorsEnabled()
+    {
+        return isValidatorsEnabled;
+    }
+    public void setValidatorsEnabled(boolean validatorsEnabled)
+    {
+        isValidatorsEnabled = validatorsEnabled;
+    }
+}
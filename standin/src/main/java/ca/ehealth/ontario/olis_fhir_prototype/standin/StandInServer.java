@@ -0,0 +1,514 @@
+package ca.ehealth.ontario.olis_fhir_prototype.standin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * This class is a local stand-in for the Innovation Lab OLIS and PCR test servers, so the app, the benchmarks and load tests
+ * can run offline and get the same answers every time. It serves:
+ * -GET  /olis/DiagnosticReport?patient.identifier=...|{hcn}  a searchset Bundle of made up reports (see SyntheticData),
+ *                                                             streamed one report at a time
+ * -POST /pcr                                                  a PRPA_IN101102CA response for the clientIDPub in the request
+ *
+ * Searches understand specimen.collected=ge/le, _lastUpdated=gt, _count and _page, and send an ETag so
+ * OLISResultCache can get 304 Not Modified back. Every request first waits for a latency picked from the configured distribution,
+ * then may be failed with a 500 or held until it times out, at the configured rates.
+ *
+ * Embedded:
+ *   StandInServer standInServer = new StandInServer(config);
+ *   standInServer.start();
+ *   OLISService.setEndPointBase(standInServer.getOLISEndPoint());
+ *   PCRService.setEndPoint(standInServer.getPCREndPoint());
+ *
+ * From the command line, see StandInConfig for the options:
+ *   ./gradlew :standin:run -PstandinArgs="--port 8080 --olis-latency lognormal:200:2000 --error-rate 0.02"
+ */
+public class StandInServer
+{
+    public static final String OLIS_PATH = "/olis";
+    public static final String PCR_PATH = "/pcr";
+
+    private static final String FHIR_JSON = "application/fhir+json;charset=UTF-8";
+    private static final String SOAP_XML = "text/xml;charset=UTF-8";
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final Pattern HEALTH_CARD_NUMBER_PATTERN = Pattern.compile("<clientIDPub>\\s*<value[^>]*extension=\"([^\"]*)\"");
+    private static final Pattern PAGE_PATTERN = Pattern.compile("&_page=\\d+");
+
+    private static final String SOAP_FAULT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">\n" +
+            " <S:Body>\n" +
+            "  <S:Fault>\n" +
+            "   <faultcode>S:Server</faultcode>\n" +
+            "   <faultstring>%s</faultstring>\n" +
+            "  </S:Fault>\n" +
+            " </S:Body>\n" +
+            "</S:Envelope>\n";
+
+    private final StandInConfig config;
+    private final SyntheticData syntheticData;
+    private final FhirContext fhirContext = FhirContext.forDstu3();
+    private final Random random; // java.util.Random is safe to share between the server's threads
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong faultCount = new AtomicLong();
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    public StandInServer(StandInConfig config)
+    {
+        this.config = config;
+        syntheticData = new SyntheticData(config.getSeed(), config.getReportsPerPatient(), config.getLargePatientCount(), config.getLargeReportsPerPatient());
+        random = new Random(config.getSeed());
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        StandInConfig config;
+
+        try
+        {
+            config = StandInConfig.fromArgs(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        StandInServer standInServer = new StandInServer(config);
+        standInServer.start();
+
+        System.out.println("OLIS: " + standInServer.getOLISEndPoint());
+        System.out.println("PCR:  " + standInServer.getPCREndPoint());
+        System.out.println("e.g. health card number " + standInServer.getSyntheticData().getHealthCardNumber(0));
+    }
+
+    /**
+     * Starts answering requests on the configured port, on a pool of config.getThreadCount() threads.
+     */
+    public synchronized void start() throws IOException
+    {
+        httpServer = HttpServer.create(new InetSocketAddress(config.getPort()), 0);
+        httpServer.createContext(OLIS_PATH, new OLISHandler());
+        httpServer.createContext(PCR_PATH, new PCRHandler());
+
+        // requests sleep while their latency is injected, so each one needs a thread of its own
+        executor = Executors.newFixedThreadPool(Math.max(1, config.getThreadCount()));
+        httpServer.setExecutor(executor);
+        httpServer.start();
+    }
+
+    /**
+     * Stops right away, requests that are still waiting are dropped.
+     */
+    public synchronized void stop()
+    {
+        if (httpServer != null)
+        {
+            httpServer.stop(0);
+            executor.shutdownNow();
+            httpServer = null;
+        }
+    }
+
+    /**
+     * @return the port the server listens on, useful when it was started on port 0
+     */
+    public int getPort()
+    {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * @return the FHIR base URL to give OLISService.setEndPointBase()
+     */
+    public String getOLISEndPoint()
+    {
+        return "http://localhost:" + getPort() + OLIS_PATH;
+    }
+
+    /**
+     * @return the URL to give PCRService.setEndPoint()
+     */
+    public String getPCREndPoint()
+    {
+        return "http://localhost:" + getPort() + PCR_PATH;
+    }
+
+    public SyntheticData getSyntheticData()
+    {
+        return syntheticData;
+    }
+
+    public long getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    /**
+     * @return how many requests were failed on purpose, with a 500 or a timeout
+     */
+    public long getFaultCount()
+    {
+        return faultCount.get();
+    }
+
+    /* ******************************************************************************************************************* */
+    /*                                                     OLIS                                                            */
+    /* ******************************************************************************************************************* */
+
+    private class OLISHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try
+            {
+                if (injectFaults(exchange, config.getOLISLatency(), true))
+                {
+                    return;
+                }
+
+                if (!"GET".equals(exchange.getRequestMethod()) || !(OLIS_PATH + "/DiagnosticReport").equals(exchange.getRequestURI().getPath()))
+                {
+                    sendOperationOutcome(exchange, 404, OperationOutcome.IssueType.NOTSUPPORTED, "Only DiagnosticReport searches are supported");
+                    return;
+                }
+
+                String rawQuery = exchange.getRequestURI().getRawQuery() != null ? exchange.getRequestURI().getRawQuery() : "";
+                Map<String, List<String>> parameters = parseQuery(rawQuery);
+                String healthCardNumber = getHealthCardNumber(parameters);
+
+                if (healthCardNumber == null)
+                {
+                    sendOperationOutcome(exchange, 400, OperationOutcome.IssueType.REQUIRED, "patient.identifier is required");
+                    return;
+                }
+
+                if (config.isValidatorsEnabled())
+                {
+                    // the data only depends on the seed, the patient's report count and the query, so the same query always gets the same ETag
+                    String eTag = "\"" + Long.toHexString(config.getSeed() * 31 + syntheticData.getReportCount(healthCardNumber)) + "-" + Integer.toHexString(rawQuery.hashCode()) + "\"";
+                    exchange.getResponseHeaders().set("ETag", eTag);
+
+                    if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                    {
+                        exchange.sendResponseHeaders(304, -1);
+                        return;
+                    }
+                }
+
+                String selfUrl = "http://" + exchange.getRequestHeaders().getFirst("Host") + exchange.getRequestURI();
+                sendSearchResults(exchange, healthCardNumber, parameters, selfUrl);
+            }
+            catch (InterruptedException e)
+            {
+                // the server is stopping
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e)
+            {
+                sendOperationOutcome(exchange, 400, OperationOutcome.IssueType.INVALID, e.toString());
+            }
+            finally
+            {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Finds the patient's reports that match the date filters, and streams the requested page of them as a searchset Bundle.
+     */
+    private void sendSearchResults(HttpExchange exchange, String healthCardNumber, Map<String, List<String>> parameters, String selfUrl) throws IOException
+    {
+        long collectedFrom = Long.MIN_VALUE;
+        long collectedTo = Long.MAX_VALUE;
+        long updatedAfter = Long.MIN_VALUE;
+
+        for (String collected : getValues(parameters, "specimen.collected"))
+        {
+            if (collected.startsWith("ge"))
+            {
+                collectedFrom = parseStartOfDay(collected.substring(2));
+            }
+            else if (collected.startsWith("le"))
+            {
+                collectedTo = parseStartOfDay(collected.substring(2)) + DAY_MILLIS - 1;
+            }
+        }
+
+        for (String lastUpdated : getValues(parameters, "_lastUpdated"))
+        {
+            if (lastUpdated.startsWith("gt"))
+            {
+                updatedAfter = new InstantType(lastUpdated.substring(2)).getValue().getTime();
+            }
+        }
+
+        // only the report times are worked out for the filter, the reports are only built for the page that's sent
+        int reportCount = syntheticData.getReportCount(healthCardNumber);
+        int[] matches = new int[reportCount];
+        int matchCount = 0;
+
+        for (int i = 0; i < reportCount; i++)
+        {
+            long reportMillis = syntheticData.getReportMillis(healthCardNumber, i);
+
+            if (reportMillis >= collectedFrom && reportMillis <= collectedTo && reportMillis > updatedAfter)
+            {
+                matches[matchCount++] = i;
+            }
+        }
+
+        int pageSize = getValues(parameters, "_count").isEmpty() ? config.getPageSize() : Integer.parseInt(getValues(parameters, "_count").get(0));
+        pageSize = pageSize > 0 ? pageSize : Integer.MAX_VALUE;
+        int page = getValues(parameters, "_page").isEmpty() ? 1 : Math.max(1, Integer.parseInt(getValues(parameters, "_page").get(0)));
+        int first = (int) Math.min((long) (page - 1) * pageSize, matchCount);
+        int last = (int) Math.min((long) first + pageSize, matchCount);
+
+        String baseUrl = selfUrl.substring(0, selfUrl.indexOf(OLIS_PATH) + OLIS_PATH.length());
+        String nextUrl = last < matchCount ? PAGE_PATTERN.matcher(selfUrl).replaceAll("") + "&_page=" + (page + 1) : null;
+
+        // 0 means chunked, the length isn't known until the last report is written
+        exchange.getResponseHeaders().set("Content-Type", FHIR_JSON);
+        exchange.sendResponseHeaders(200, 0);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 64 * 1024);
+        SearchBundleWriter searchBundleWriter = new SearchBundleWriter(fhirContext, writer);
+        searchBundleWriter.writeStart(matchCount, selfUrl, nextUrl);
+
+        for (int i = first; i < last; i++)
+        {
+            searchBundleWriter.writeEntry(baseUrl + "/DiagnosticReport/" + SyntheticData.getReportId(healthCardNumber, matches[i]),
+                    syntheticData.createReport(healthCardNumber, matches[i]));
+        }
+
+        searchBundleWriter.writeEnd();
+        writer.close();
+    }
+
+    /**
+     * @return the health card number after the | of patient.identifier, or null if there isn't one
+     */
+    private static String getHealthCardNumber(Map<String, List<String>> parameters)
+    {
+        List<String> identifiers = getValues(parameters, "patient.identifier");
+
+        if (identifiers.isEmpty() || identifiers.get(0).isEmpty())
+        {
+            return null;
+        }
+
+        String identifier = identifiers.get(0);
+        return identifier.substring(identifier.lastIndexOf('|') + 1);
+    }
+
+    /**
+     * @param date like 2018-07-02(yyyy-MM-dd), in Ontario's time zone
+     */
+    private static long parseStartOfDay(String date)
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.CANADA);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("America/Toronto"));
+
+        try
+        {
+            return dateFormat.parse(date).getTime();
+        }
+        catch (ParseException e)
+        {
+            throw new IllegalArgumentException("Bad date " + date);
+        }
+    }
+
+    private void sendOperationOutcome(HttpExchange exchange, int status, OperationOutcome.IssueType issueType, String message) throws IOException
+    {
+        OperationOutcome operationOutcome = new OperationOutcome();
+        operationOutcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(issueType)
+                .setDiagnostics(message);
+
+        sendText(exchange, status, FHIR_JSON, fhirContext.newJsonParser().encodeResourceToString(operationOutcome));
+    }
+
+    /* ******************************************************************************************************************* */
+    /*                                                      PCR                                                            */
+    /* ******************************************************************************************************************* */
+
+    private class PCRHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try
+            {
+                if (injectFaults(exchange, config.getPCRLatency(), false))
+                {
+                    return;
+                }
+
+                if (!"POST".equals(exchange.getRequestMethod()))
+                {
+                    sendText(exchange, 405, SOAP_XML, String.format(SOAP_FAULT, "Only POST is supported"));
+                    return;
+                }
+
+                Matcher matcher = HEALTH_CARD_NUMBER_PATTERN.matcher(readBody(exchange));
+                String healthCardNumber = matcher.find() ? matcher.group(1) : null;
+
+                sendText(exchange, 200, SOAP_XML, syntheticData.createPCRResponse(healthCardNumber));
+            }
+            catch (InterruptedException e)
+            {
+                // the server is stopping
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                exchange.close();
+            }
+        }
+    }
+
+    /* ******************************************************************************************************************* */
+    /*                                                    helpers                                                          */
+    /* ******************************************************************************************************************* */
+
+    /**
+     * Waits for the request's latency, then fails it on purpose at the configured rates.
+     *
+     * @return true if the request was failed and already answered
+     */
+    private boolean injectFaults(HttpExchange exchange, LatencyDistribution latency, boolean isFhir) throws IOException, InterruptedException
+    {
+        requestCount.incrementAndGet();
+        Thread.sleep(latency.sampleMillis(random));
+
+        double roll = random.nextDouble();
+        int status;
+
+        if (roll < config.getTimeoutRate())
+        {
+            // hold on to the request long enough for the client to give up
+            Thread.sleep(config.getTimeoutMillis());
+            status = 504;
+        }
+        else if (roll < config.getTimeoutRate() + config.getErrorRate())
+        {
+            status = 500;
+        }
+        else
+        {
+            return false;
+        }
+
+        faultCount.incrementAndGet();
+
+        if (isFhir)
+        {
+            sendOperationOutcome(exchange, status, status == 504 ? OperationOutcome.IssueType.TIMEOUT : OperationOutcome.IssueType.EXCEPTION, "Injected fault");
+        }
+        else
+        {
+            sendText(exchange, status, SOAP_XML, String.format(SOAP_FAULT, "Injected fault"));
+        }
+
+        return true;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String contentType, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(bytes);
+        outputStream.close();
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException
+    {
+        InputStream inputStream = exchange.getRequestBody();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+
+        while ((length = inputStream.read(buffer)) != -1)
+        {
+            outputStream.write(buffer, 0, length);
+        }
+
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) throws UnsupportedEncodingException
+    {
+        Map<String, List<String>> parameters = new HashMap<>();
+
+        for (String pair : rawQuery.split("&"))
+        {
+            if (pair.isEmpty())
+            {
+                continue;
+            }
+
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals >= 0 ? pair.substring(0, equals) : pair, "UTF-8");
+            String value = equals >= 0 ? URLDecoder.decode(pair.substring(equals + 1), "UTF-8") : "";
+
+            List<String> values = parameters.get(name);
+
+            if (values == null)
+            {
+                values = new ArrayList<>();
+                parameters.put(name, values);
+            }
+
+            values.add(value);
+        }
+
+        return parameters;
+    }
+
+    private static List<String> getValues(Map<String, List<String>> parameters, String name)
+    {
+        List<String> values = parameters.get(name);
+        return values != null ? values : Collections.<String>emptyList();
+    }
+}
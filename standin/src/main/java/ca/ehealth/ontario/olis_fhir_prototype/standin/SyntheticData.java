@@ -0,0 +1,317 @@
+package ca.ehealth.ontario.olis_fhir_prototype.standin;
+
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.DiagnosticReport;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.ProcedureRequest;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.SimpleQuantity;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * This class makes up patients and their lab reports, shaped like what OLIS and PCR send back.
+ * Everything is worked out from the seed, the patient's health card number and the report's index,
+ * so the same report always comes out the same and nothing has to be kept in memory.
+ *
+ * Each DiagnosticReport contains a Practitioner, an Organization, a ProcedureRequest and one Observation,
+ * or three for panels, with a value, units, a reference range and an interpretation code.
+ * Report i of a patient is newer than report i + 1, and they're spread over the 3 years before July 2018.
+ * The first few patients of the roster can be given a lot more reports than the others, to stress the large-patient paths.
+ */
+public class SyntheticData
+{
+    private static final long NEWEST_REPORT_MILLIS = 1530446400000L; // 2018-07-01T12:00:00Z
+    private static final long REPORT_SPAN_MILLIS = 3 * 365 * 24 * 60 * 60 * 1000L;
+    private static final double PANEL_RATE = 0.3;
+
+    private static final String[][] TESTS = {
+            // LOINC code, name, unit, low, high
+            {"2823-3", "Potassium", "mmol/L", "3.5", "5.0"},
+            {"2951-2", "Sodium", "mmol/L", "135", "145"},
+            {"4548-4", "Hemoglobin A1c", "%", "4.0", "6.0"},
+            {"718-7", "Hemoglobin", "g/L", "120", "160"},
+            {"2160-0", "Creatinine", "umol/L", "50", "110"},
+            {"6690-2", "WBC", "10*9/L", "4.0", "11.0"},
+            {"777-3", "Platelets", "10*9/L", "150", "400"},
+            {"2345-7", "Glucose", "mmol/L", "3.6", "7.7"},
+            {"1742-6", "ALT", "U/L", "0", "40"},
+            {"3016-3", "TSH", "mU/L", "0.32", "4.0"}
+    };
+    private static final String[] ORGANIZATIONS = {"LifeLabs", "Dynacare", "Hamilton Health Sciences", "Mohawk College Hospital", "Toronto General Hospital", "Ottawa Hospital"};
+    private static final String[] GIVEN_NAMES = {"Ann", "Ben", "Carla", "David", "Emily", "Farid", "Grace", "Hugo", "Iris", "Jun", "Kiran", "Lucie"};
+    private static final String[] FAMILY_NAMES = {"Singh", "Tremblay", "Wong", "Martin", "Roy", "Patel", "Nguyen", "Brown", "Gagnon", "Smith", "Cote", "Ali"};
+
+    private static final String PCR_FOUND_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">\n" +
+            " <S:Body>\n" +
+            "  <hl7:PRPA_IN101102CA ITSVersion=\"XML_1.0\" xmlns:hl7=\"urn:hl7-org:v3\">\n" +
+            "   <hl7:interactionId root=\"2.16.840.1.113883.1.6\" extension=\"PRPA_IN101102CA\"/>\n" +
+            "   <hl7:acknowledgement typeCode=\"AA\"/>\n" +
+            "   <hl7:controlActEvent classCode=\"CACT\" moodCode=\"EVN\">\n" +
+            "    <hl7:subject typeCode=\"SUBJ\">\n" +
+            "     <hl7:registrationEvent classCode=\"REG\" moodCode=\"EVN\">\n" +
+            "      <hl7:subject1 typeCode=\"SBJ\">\n" +
+            "       <hl7:identifiedEntity classCode=\"IDENT\">\n" +
+            "        <hl7:id root=\"2.16.840.1.113883.4.59\" extension=\"%1$s\" use=\"BUS\"/>\n" +
+            "        <hl7:identifiedPerson classCode=\"PSN\" determinerCode=\"INSTANCE\">\n" +
+            "         <hl7:name use=\"L\">\n" +
+            "          <hl7:given partType=\"GIV\">%2$s</hl7:given>\n" +
+            "          <hl7:family partType=\"FAM\">%3$s</hl7:family>\n" +
+            "         </hl7:name>\n" +
+            "         <hl7:administrativeGenderCode code=\"%4$s\" codeSystem=\"2.16.840.1.113883.5.1\"/>\n" +
+            "         <hl7:birthTime value=\"%5$s\"/>\n" +
+            "        </hl7:identifiedPerson>\n" +
+            "       </hl7:identifiedEntity>\n" +
+            "      </hl7:subject1>\n" +
+            "     </hl7:registrationEvent>\n" +
+            "    </hl7:subject>\n" +
+            "    <hl7:queryAck>\n" +
+            "     <hl7:queryResponseCode code=\"OK\"/>\n" +
+            "     <hl7:resultTotalQuantity value=\"1\"/>\n" +
+            "    </hl7:queryAck>\n" +
+            "   </hl7:controlActEvent>\n" +
+            "  </hl7:PRPA_IN101102CA>\n" +
+            " </S:Body>\n" +
+            "</S:Envelope>\n";
+
+    private static final String PCR_NOT_FOUND_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">\n" +
+            " <S:Body>\n" +
+            "  <hl7:PRPA_IN101102CA ITSVersion=\"XML_1.0\" xmlns:hl7=\"urn:hl7-org:v3\">\n" +
+            "   <hl7:interactionId root=\"2.16.840.1.113883.1.6\" extension=\"PRPA_IN101102CA\"/>\n" +
+            "   <hl7:acknowledgement typeCode=\"AA\">\n" +
+            "    <hl7:acknowledgementDetail typeCode=\"I\">\n" +
+            "     <hl7:text>no member(s) found.</hl7:text>\n" +
+            "    </hl7:acknowledgementDetail>\n" +
+            "   </hl7:acknowledgement>\n" +
+            "   <hl7:controlActEvent classCode=\"CACT\" moodCode=\"EVN\">\n" +
+            "    <hl7:queryAck>\n" +
+            "     <hl7:queryResponseCode code=\"NF\"/>\n" +
+            "     <hl7:resultTotalQuantity value=\"0\"/>\n" +
+            "    </hl7:queryAck>\n" +
+            "   </hl7:controlActEvent>\n" +
+            "  </hl7:PRPA_IN101102CA>\n" +
+            " </S:Body>\n" +
+            "</S:Envelope>\n";
+
+    private final long seed;
+    private final int reportsPerPatient;
+    private final int largeReportsPerPatient;
+    private final Set<String> largeHealthCardNumbers = new HashSet<>();
+
+    /**
+     * @param seed              the same seed always gives the same data
+     * @param reportsPerPatient how many DiagnosticReports every patient has
+     */
+    public SyntheticData(long seed, int reportsPerPatient)
+    {
+        this(seed, reportsPerPatient, 0, 0);
+    }
+
+    /**
+     * @param seed                   the same seed always gives the same data
+     * @param reportsPerPatient      how many DiagnosticReports most patients have
+     * @param largePatientCount      how many patients, from the start of the roster, have largeReportsPerPatient reports instead
+     * @param largeReportsPerPatient e.g. 10000
+     */
+    public SyntheticData(long seed, int reportsPerPatient, int largePatientCount, int largeReportsPerPatient)
+    {
+        this.seed = seed;
+        this.reportsPerPatient = reportsPerPatient;
+        this.largeReportsPerPatient = largeReportsPerPatient;
+
+        for (int i = 0; i < largePatientCount; i++)
+        {
+            largeHealthCardNumbers.add(getHealthCardNumber(i));
+        }
+    }
+
+    /**
+     * @return how many DiagnosticReports the patient has
+     */
+    public int getReportCount(String healthCardNumber)
+    {
+        return largeHealthCardNumbers.contains(healthCardNumber) ? largeReportsPerPatient : reportsPerPatient;
+    }
+
+    /**
+     * @param patientIndex 0 for the first patient of the roster, 1 for the second...
+     * @return a 10 digit health card number, a different one for every index
+     */
+    public String getHealthCardNumber(int patientIndex)
+    {
+        // multiplying by a prime that shares no factors with 9 000 000 000 never maps two indexes to the same number
+        long offset = (patientIndex * 2654435761L + seed) % 9000000000L;
+        return String.valueOf(1000000000L + (offset < 0 ? offset + 9000000000L : offset));
+    }
+
+    /**
+     * @return true if PCR should find a patient with this health card number
+     */
+    public boolean isKnownHealthCardNumber(String healthCardNumber)
+    {
+        return healthCardNumber != null && healthCardNumber.matches("[1-9][0-9]{9}");
+    }
+
+    /**
+     * @return the patient's demographics, the same every time for the same health card number
+     */
+    public SyntheticPatient getPatient(String healthCardNumber)
+    {
+        Random random = new Random(seed * 31 + healthCardNumber.hashCode());
+
+        String givenName = GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)];
+        String familyName = FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)];
+        String genderCode = random.nextBoolean() ? "F" : "M";
+        String birthDate = String.format(Locale.CANADA, "%04d%02d%02d", 1930 + random.nextInt(80), 1 + random.nextInt(12), 1 + random.nextInt(28));
+
+        return new SyntheticPatient(healthCardNumber, givenName, familyName, genderCode, birthDate);
+    }
+
+    /**
+     * @return the PRPA_IN101102CA SOAP response PCR sends for the health card number, found or not
+     */
+    public String createPCRResponse(String healthCardNumber)
+    {
+        if (!isKnownHealthCardNumber(healthCardNumber))
+        {
+            return PCR_NOT_FOUND_RESPONSE;
+        }
+
+        SyntheticPatient patient = getPatient(healthCardNumber);
+
+        return String.format(Locale.CANADA, PCR_FOUND_RESPONSE,
+                patient.getHealthCardNumber(), patient.getGivenName(), patient.getFamilyName(), patient.getGenderCode(), patient.getBirthDate());
+    }
+
+    /**
+     * @return when the report was issued, without building it. Lets searches filter by date before building anything.
+     */
+    public long getReportMillis(String healthCardNumber, int reportIndex)
+    {
+        return getReportMillis(healthCardNumber, reportIndex, newReportRandom(healthCardNumber, reportIndex));
+    }
+
+    /**
+     * @param reportIndex 0 for the patient's newest report, up to getReportCount() - 1
+     */
+    public DiagnosticReport createReport(String healthCardNumber, int reportIndex)
+    {
+        Random random = newReportRandom(healthCardNumber, reportIndex);
+
+        // the time has to be drawn first, so it matches getReportMillis()
+        Date issued = new Date(getReportMillis(healthCardNumber, reportIndex, random));
+        int testIndex = random.nextInt(TESTS.length);
+        String[] test = TESTS[testIndex];
+        Reference patientReference = new Reference("Patient/" + healthCardNumber);
+
+        DiagnosticReport diagnosticReport = new DiagnosticReport();
+        diagnosticReport.setId(getReportId(healthCardNumber, reportIndex));
+        diagnosticReport.getMeta().setLastUpdated(issued);
+        diagnosticReport.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+        diagnosticReport.getCategory().addCoding().setSystem("http://hl7.org/fhir/v2/0074").setCode("CH");
+        diagnosticReport.getCode().addCoding().setSystem("http://loinc.org").setCode(test[0]).setDisplay(test[1]);
+        diagnosticReport.setSubject(patientReference);
+        diagnosticReport.setEffective(new DateTimeType(issued));
+        diagnosticReport.setIssued(issued);
+
+        Practitioner practitioner = new Practitioner();
+        practitioner.setId("p1");
+        practitioner.addIdentifier().setSystem("https://fhir.infoway-inforoute.ca/NamingSystem/ca-on-license-physician").setValue(String.valueOf(10000 + random.nextInt(90000)));
+        practitioner.addName().setFamily(FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)]).addGiven(GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+        diagnosticReport.addContained(practitioner);
+
+        Organization organization = new Organization();
+        organization.setId("o1");
+        organization.addIdentifier().setSystem("https://fhir.infoway-inforoute.ca/NamingSystem/ca-on-lab-license").setValue(String.valueOf(1000 + random.nextInt(9000)));
+        organization.setName(ORGANIZATIONS[random.nextInt(ORGANIZATIONS.length)]);
+        diagnosticReport.addContained(organization);
+        diagnosticReport.addPerformer().setActor(new Reference("#o1"));
+
+        ProcedureRequest procedureRequest = new ProcedureRequest();
+        procedureRequest.setId("pr1");
+        procedureRequest.setStatus(ProcedureRequest.ProcedureRequestStatus.COMPLETED);
+        procedureRequest.setIntent(ProcedureRequest.ProcedureRequestIntent.ORDER);
+        procedureRequest.getCode().addCoding().setSystem("http://loinc.org").setCode(test[0]).setDisplay(test[1]);
+        procedureRequest.setSubject(patientReference);
+        procedureRequest.getRequester().setAgent(new Reference("#p1")).setOnBehalfOf(new Reference("#o1"));
+        diagnosticReport.addContained(procedureRequest);
+        diagnosticReport.addBasedOn(new Reference("#pr1"));
+
+        // a panel has the ordered test and two more
+        int observationCount = random.nextDouble() < PANEL_RATE ? 3 : 1;
+
+        for (int i = 0; i < observationCount; i++)
+        {
+            String[] observedTest = TESTS[(testIndex + i * 3) % TESTS.length];
+            Observation observation = createObservation(observedTest, issued, patientReference, random);
+            observation.setId("obs" + (i + 1));
+            diagnosticReport.addContained(observation);
+            diagnosticReport.addResult(new Reference("#obs" + (i + 1)));
+        }
+
+        return diagnosticReport;
+    }
+
+    /**
+     * @return the id OLIS would give the report
+     */
+    public static String getReportId(String healthCardNumber, int reportIndex)
+    {
+        return String.format(Locale.CANADA, "olis-%s-%05d", healthCardNumber, reportIndex);
+    }
+
+    /**
+     * @return the date like 2018-07-02(yyyy-MM-dd) that specimen.collected searches compare against
+     */
+    public static String formatCollectedDate(long millis)
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.CANADA);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("America/Toronto"));
+        return dateFormat.format(new Date(millis));
+    }
+
+    private Observation createObservation(String[] test, Date issued, Reference patientReference, Random random)
+    {
+        double low = Double.parseDouble(test[3]);
+        double high = Double.parseDouble(test[4]);
+        // mostly normal, with some results a bit outside the range on either side
+        double value = Math.round((low * 0.8 + random.nextDouble() * (high * 1.2 - low * 0.8)) * 10) / 10.0;
+
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode(test[0]).setDisplay(test[1]);
+        observation.setSubject(patientReference);
+        observation.setIssued(issued);
+        observation.setValue(new Quantity().setValue(value).setUnit(test[2]).setSystem("http://unitsofmeasure.org").setCode(test[2]));
+        observation.getInterpretation().addCoding().setSystem("http://hl7.org/fhir/v2/0078").setCode(value > high ? "H" : value < low ? "L" : "N");
+
+        Observation.ObservationReferenceRangeComponent referenceRange = observation.addReferenceRange();
+        referenceRange.setLow((SimpleQuantity) new SimpleQuantity().setValue(low).setUnit(test[2]));
+        referenceRange.setHigh((SimpleQuantity) new SimpleQuantity().setValue(high).setUnit(test[2]));
+        referenceRange.setText(test[3] + "-" + test[4] + " " + test[2]);
+
+        return observation;
+    }
+
+    private long getReportMillis(String healthCardNumber, int reportIndex, Random random)
+    {
+        long reportSpacingMillis = REPORT_SPAN_MILLIS / Math.max(getReportCount(healthCardNumber), 1);
+        return NEWEST_REPORT_MILLIS - reportIndex * reportSpacingMillis - (long) (random.nextDouble() * reportSpacingMillis);
+    }
+
+    private Random newReportRandom(String healthCardNumber, int reportIndex)
+    {
+        return new Random((seed * 31 + healthCardNumber.hashCode()) * 1000003L + reportIndex);
+    }
+}
@@ -0,0 +1,188 @@
+package ca.ehealth.ontario.olis_fhir_prototype.standin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * This class writes a large made up data set to disk, the same files every time for the same options:
+ * -roster.csv          a name,hcn line per patient, ready for Import Roster in the app
+ * -pcr/{hcn}.xml       each patient's PCR response
+ * -olis/{hcn}.json     a searchset Bundle with all of each patient's DiagnosticReports
+ * Everything is written one patient and one report at a time, so it can produce millions of reports (or a patient with 10k+)
+ * without holding more than one report in memory. The data is the same SyntheticData the stand-in server serves,
+ * so a stand-in started with the same --seed, --reports, --large-patients and --large-reports answers with these reports.
+ *
+ * Usage:
+ *   ./gradlew :standin:generateData -PgeneratorArgs="--out build/synthetic --patients 20000 --large-patients 3 --large-reports 10000"
+ *
+ *   --out synthetic-data     the directory to write to, created if needed
+ *   --patients 1000
+ *   --reports 50             DiagnosticReports per patient
+ *   --large-patients 0       the first few patients get --large-reports reports instead
+ *   --large-reports 10000
+ *   --seed 42
+ */
+public class SyntheticDataGenerator
+{
+    private static final String HCN_SYSTEM = "https://fhir.infoway-inforoute.ca/NamingSystem/ca-on-patient-hcn";
+    private static final String BASE_URL = "http://localhost:8080" + StandInServer.OLIS_PATH;
+    private static final int PROGRESS_INTERVAL = 1000; // patients between progress lines
+
+    private final FhirContext fhirContext = FhirContext.forDstu3();
+    private final SyntheticData syntheticData;
+
+    /**
+     * @param seed                   the same seed always gives the same data
+     * @param reportsPerPatient      how many DiagnosticReports most patients have
+     * @param largePatientCount      how many patients, from the start of the roster, have largeReportsPerPatient reports instead
+     * @param largeReportsPerPatient e.g. 10000
+     */
+    public SyntheticDataGenerator(long seed, int reportsPerPatient, int largePatientCount, int largeReportsPerPatient)
+    {
+        syntheticData = new SyntheticData(seed, reportsPerPatient, largePatientCount, largeReportsPerPatient);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        File outputDirectory = new File("synthetic-data");
+        int patientCount = 1000;
+        int reportsPerPatient = 50;
+        int largePatientCount = 0;
+        int largeReportsPerPatient = 10000;
+        long seed = 42;
+
+        for (int i = 0; i < args.length; i += 2)
+        {
+            if (i + 1 >= args.length)
+            {
+                throw new IllegalArgumentException("Missing a value for " + args[i]);
+            }
+
+            String value = args[i + 1];
+
+            switch (args[i])
+            {
+                case "--out":
+                    outputDirectory = new File(value);
+                    break;
+
+                case "--patients":
+                    patientCount = Integer.parseInt(value);
+                    break;
+
+                case "--reports":
+                    reportsPerPatient = Integer.parseInt(value);
+                    break;
+
+                case "--large-patients":
+                    largePatientCount = Integer.parseInt(value);
+                    break;
+
+                case "--large-reports":
+                    largeReportsPerPatient = Integer.parseInt(value);
+                    break;
+
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(seed, reportsPerPatient, largePatientCount, largeReportsPerPatient);
+        long reportCount = generator.generate(outputDirectory, patientCount, System.out);
+
+        System.out.println(String.format("Wrote %d patients and %d reports to %s in %d s",
+                patientCount, reportCount, outputDirectory.getAbsolutePath(), (System.currentTimeMillis() - startTime) / 1000));
+    }
+
+    /**
+     * Writes the roster, and the PCR response and OLIS reports of every patient in it.
+     * @param outputDirectory created if needed. Files already in it are overwritten.
+     * @param patientCount    how many patients in the roster
+     * @param progress        told every thousand patients how far along we are. May be null.
+     * @return the number of DiagnosticReports written
+     */
+    public long generate(File outputDirectory, int patientCount, PrintStream progress) throws IOException
+    {
+        File olisDirectory = new File(outputDirectory, "olis");
+        File pcrDirectory = new File(outputDirectory, "pcr");
+
+        if (!olisDirectory.isDirectory() && !olisDirectory.mkdirs() || !pcrDirectory.isDirectory() && !pcrDirectory.mkdirs())
+        {
+            throw new IOException("Can't create " + outputDirectory.getAbsolutePath());
+        }
+
+        long reportCount = 0;
+
+        try (Writer rosterWriter = newWriter(new File(outputDirectory, "roster.csv")))
+        {
+            rosterWriter.write("name,hcn\n");
+
+            for (int i = 0; i < patientCount; i++)
+            {
+                String healthCardNumber = syntheticData.getHealthCardNumber(i);
+
+                rosterWriter.write(syntheticData.getPatient(healthCardNumber).getName());
+                rosterWriter.write(',');
+                rosterWriter.write(healthCardNumber);
+                rosterWriter.write('\n');
+
+                try (Writer pcrWriter = newWriter(new File(pcrDirectory, healthCardNumber + ".xml")))
+                {
+                    pcrWriter.write(syntheticData.createPCRResponse(healthCardNumber));
+                }
+
+                try (Writer olisWriter = newWriter(new File(olisDirectory, healthCardNumber + ".json")))
+                {
+                    reportCount += writeReports(healthCardNumber, olisWriter);
+                }
+
+                if (progress != null && (i + 1) % PROGRESS_INTERVAL == 0)
+                {
+                    progress.println(String.format("%d/%d patients, %d reports", i + 1, patientCount, reportCount));
+                }
+            }
+        }
+
+        return reportCount;
+    }
+
+    /**
+     * Writes all of a patient's reports as one searchset Bundle, the way the stand-in answers a search without paging.
+     * @return the number of reports written
+     */
+    private int writeReports(String healthCardNumber, Writer writer) throws IOException
+    {
+        int reportCount = syntheticData.getReportCount(healthCardNumber);
+        SearchBundleWriter searchBundleWriter = new SearchBundleWriter(fhirContext, writer);
+
+        searchBundleWriter.writeStart(reportCount, BASE_URL + "/DiagnosticReport?patient.identifier=" + HCN_SYSTEM + "|" + healthCardNumber, null);
+
+        for (int i = 0; i < reportCount; i++)
+        {
+            searchBundleWriter.writeEntry(BASE_URL + "/DiagnosticReport/" + SyntheticData.getReportId(healthCardNumber, i),
+                    syntheticData.createReport(healthCardNumber, i));
+        }
+
+        searchBundleWriter.writeEnd();
+
+        return reportCount;
+    }
+
+    private static Writer newWriter(File file) throws IOException
+    {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 64 * 1024);
+    }
+}
@@ -0,0 +1,59 @@
+package ca.ehealth.ontario.olis_fhir_prototype.standin;
+
+/**
+ * The demographics PCR has for a made up patient, see SyntheticData.getPatient().
+ */
+public class SyntheticPatient
+{
+    private final String healthCardNumber;
+    private final String givenName;
+    private final String familyName;
+    private final String genderCode;
+    private final String birthDate;
+
+    SyntheticPatient(String healthCardNumber, String givenName, String familyName, String genderCode, String birthDate)
+    {
+        this.healthCardNumber = healthCardNumber;
+        this.givenName = givenName;
+        this.familyName = familyName;
+        this.genderCode = genderCode;
+        this.birthDate = birthDate;
+    }
+
+    public String getHealthCardNumber()
+    {
+        return healthCardNumber;
+    }
+    public String getGivenName()
+    {
+        return givenName;
+    }
+    public String getFamilyName()
+    {
+        return familyName;
+    }
+
+    /**
+     * @return e.g. Ann Tremblay, the way the roster and the app show it
+     */
+    public String getName()
+    {
+        return givenName + " " + familyName;
+    }
+
+    /**
+     * @return "F" or "M", like PCR's administrativeGenderCode
+     */
+    public String getGenderCode()
+    {
+        return genderCode;
+    }
+
+    /**
+     * @return like 19740115(yyyyMMdd), like PCR's birthTime
+     */
+    public String getBirthDate()
+    {
+        return birthDate;
+    }
+}